@@ -0,0 +1,81 @@
+#!/usr/bin/env bash
+
+# Compile test and benchmark Swift files at each optimization setting
+# and statically count data store operations in the generated Tcl.
+# Compares the counts against a baseline file, failing if any setting
+# regresses.  Only runs the compiler: no Turbine run is needed.
+
+SCRIPTDIR=$(cd $(dirname $0) && pwd)
+ROOT=$(cd ${SCRIPTDIR}/../../.. && pwd)
+
+UPDATE=0
+if [[ $1 == -u ]]; then
+  UPDATE=1
+  shift
+fi
+
+OLEVELS=$1
+BASELINE=$2
+
+if [ ! -f "$OLEVELS" -o -z "$BASELINE" ]
+then
+  echo "usage: $0 [-u] <OLevels file> <baseline file>"
+  echo "Writes baseline file if it doesn't exist or -u is given,"
+  echo "otherwise compares counts against baseline"
+  echo "STC env var is stc command (default: stc)"
+  echo "STC_FLAGS env var is added to stc command line"
+  echo "SWIFT_FILES env var overrides list of Swift files"
+  echo "  (default: tests/*.swift and bench/**/*.swift)"
+  exit 1
+fi
+
+STC=${STC:-stc}
+
+if [[ -z "$SWIFT_FILES" ]]; then
+  SWIFT_FILES=$(cd ${ROOT} && ls tests/*.swift && \
+                find bench -name '*.swift' | sort)
+fi
+
+olevels=()
+while read olevel; do
+  if [[ ! -z "$olevel" ]]; then
+    olevels+=("$olevel")
+  fi
+done < ${OLEVELS}
+
+TMPDIR=$(mktemp -d ${TMPDIR:-/tmp}/static-opcount.XXXXXX)
+trap "rm -rf $TMPDIR" EXIT
+COUNTS=$TMPDIR/counts
+TCL=$TMPDIR/out.tcl
+
+printf "file\toptions\t" > $COUNTS
+$SCRIPTDIR/tcl_opcounts.py /dev/null | cut -d' ' -f1 | paste -s - >> $COUNTS
+
+for swift in $SWIFT_FILES; do
+  if grep -F -q "THIS-TEST-SHOULD-NOT-COMPILE" ${ROOT}/$swift; then
+    continue
+  fi
+  stcargs=
+  if [ -f ${ROOT}/${swift%.swift}.stcargs ]; then
+    stcargs=$(< ${ROOT}/${swift%.swift}.stcargs)
+  fi
+  for olevel in "${olevels[@]}"; do
+    rm -f $TCL
+    if (cd $(dirname ${ROOT}/$swift) &&
+        $STC ${STC_FLAGS} ${stcargs} ${olevel} \
+             ${ROOT}/$swift $TCL &> $TMPDIR/stc.out); then
+      $SCRIPTDIR/tcl_opcounts.py --row "$swift" "$olevel" $TCL >> $COUNTS
+    else
+      echo "FAILED COMPILE: $swift $olevel"
+      printf "%s\t%s\tFAILED\n" "$swift" "$olevel" >> $COUNTS
+    fi
+  done
+done
+
+if [[ $UPDATE == 1 || ! -f "$BASELINE" ]]; then
+  cp $COUNTS $BASELINE
+  echo "Wrote baseline $BASELINE"
+  exit 0
+fi
+
+$SCRIPTDIR/static_opcount_compare.py $BASELINE $COUNTS
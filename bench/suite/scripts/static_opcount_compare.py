@@ -0,0 +1,101 @@
+#!/usr/bin/env python2.7
+# Compare static operation counts from static-opcount-test.sh against
+# a baseline.  Exits with non-zero status if, for any optimization
+# setting, the total count of any kind of operation over all files
+# increased, or if a file that compiled in the baseline no longer
+# compiles.  Changes in individual files are reported for information.
+#
+# usage: static_opcount_compare.py <baseline file> <counts file>
+from __future__ import print_function
+import sys
+
+FAILED = "FAILED"
+
+def read_counts(path):
+  """
+  Return header and map from (file, options) to list of counts,
+  or FAILED if the file didn't compile
+  """
+  header = None
+  rows = {}
+  with open(path) as f:
+    for line in f:
+      toks = line.rstrip("\n").split("\t")
+      if header is None:
+        header = toks
+        continue
+      if len(toks) == 3 and toks[2] == FAILED:
+        rows[(toks[0], toks[1])] = FAILED
+      elif len(toks) == len(header):
+        rows[(toks[0], toks[1])] = [int(t) for t in toks[2:]]
+      else:
+        print("Bad line in %s: %s" % (path, repr(line)), file=sys.stderr)
+  return header, rows
+
+def main(args):
+  if len(args) != 2:
+    print("usage: %s <baseline file> <counts file>" % sys.argv[0],
+          file=sys.stderr)
+    return 1
+  base_header, base = read_counts(args[0])
+  header, new = read_counts(args[1])
+  if base_header != header:
+    print("Columns differ from baseline: %s vs %s" % (base_header, header),
+          file=sys.stderr)
+    return 1
+  ops = header[2:]
+
+  regressions = 0
+  # Totals per options setting, over files present in both
+  totals = {}
+  for key in sorted(new.keys()):
+    if key not in base:
+      print("NEW: %s %s" % key)
+      continue
+    old_counts = base[key]
+    new_counts = new[key]
+    if new_counts == FAILED:
+      if old_counts != FAILED:
+        print("REGRESSION: %s %s: no longer compiles" % key)
+        regressions += 1
+      continue
+    elif old_counts == FAILED:
+      print("FIXED: %s %s: now compiles" % key)
+      continue
+
+    diffs = []
+    worse = False
+    for op, old, cur in zip(ops, old_counts, new_counts):
+      if cur != old:
+        diffs.append("%s %d -> %d" % (op, old, cur))
+        worse = worse or cur > old
+    if diffs:
+      print("%s: %s %s: %s" % ((worse and "WORSE" or "BETTER",) + key +
+                               (", ".join(diffs),)))
+
+    opts_totals = totals.setdefault(key[1], [[0] * len(ops), [0] * len(ops)])
+    for i in range(len(ops)):
+      opts_totals[0][i] += old_counts[i]
+      opts_totals[1][i] += new_counts[i]
+
+  for key in sorted(base.keys()):
+    if key not in new:
+      print("MISSING: %s %s" % key)
+
+  print()
+  print("Totals (baseline -> current):")
+  for opts in sorted(totals.keys()):
+    old_totals, new_totals = totals[opts]
+    print("%s\t%s" % (opts, "\t".join("%s %d -> %d" % t
+                          for t in zip(ops, old_totals, new_totals))))
+    for op, old, cur in zip(ops, old_totals, new_totals):
+      if cur > old:
+        print("REGRESSION: %s: %s %d -> %d" % (opts, op, old, cur))
+        regressions += 1
+
+  print()
+  print("%d regressions" % regressions)
+  return 1 if regressions > 0 else 0
+
+if __name__ == "__main__":
+  sys.exit(main(sys.argv[1:]))
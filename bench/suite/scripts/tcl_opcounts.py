@@ -0,0 +1,81 @@
+#!/usr/bin/env python2.7
+# Statically count data store operations in STC-generated Tcl code.
+# Counts are of operation call sites in the code, not of operations
+# executed at runtime, so code in loops and functions is counted once.
+#
+# usage: tcl_opcounts.py <tcl file>
+#   prints "op count" lines, in the same format as opcounts.py
+# usage: tcl_opcounts.py --row <key>... <tcl file>
+#   prints tab-separated keys and counts, ordered as in OPS
+from __future__ import print_function
+import re
+import sys
+
+# Categories of operations, in output order
+OPS = ["creates", "stores", "retrieves", "rules", "refcounts", "inserts",
+       "spawns"]
+
+# Map operation category to pattern matching Turbine/ADLB function names
+# Order matters: first match wins
+op_patterns = [
+  ("creates", re.compile(r"^adlb::(multicreate|create_globals)$")),
+  ("creates", re.compile(r"^(adlb::create|turbine::allocate\w*|"
+                         r"turbine::(\w*create_nested|c_f_create|"
+                         r"cr_v_create|cr_f_create))$")),
+  ("refcounts", re.compile(r"^(adlb|turbine)::\w*refcount_(incr|decr)$")),
+  ("inserts", re.compile(r"^(adlb|turbine)::\w*insert\w*$")),
+  ("stores", re.compile(r"^(adlb|turbine)::(store\w*|set_filename_val|"
+                        r"copy_in_filename|update_\w+|init_updateable_float|"
+                        r"\w+_build|build_rec)$")),
+  ("retrieves", re.compile(r"^(adlb|turbine)::(retrieve\w*|\w*lookup|"
+                           r"enumerate\w*|exists_sub|acquire_\w+|"
+                           r"container_size|get_filename_val)$")),
+  ("rules", re.compile(r"^turbine::(rule|deeprule)$")),
+  ("spawns", re.compile(r"^adlb::(spawn|put)$")),
+]
+
+fn_name = re.compile(r"(?:adlb|turbine)::[A-Za-z_0-9]+")
+# Each variable created by multicreate has a [ list ... ] spec
+create_spec = re.compile(r"\[\s*list\b")
+# Lines that can't contain operations, only names of them
+ignore_line = re.compile(r"^\s*(#|turbine::c::log\b|adlb::add_debug_symbol\b)")
+
+def count_ops(f):
+  counts = dict((op, 0) for op in OPS)
+  for line in f:
+    if ignore_line.match(line):
+      continue
+    for name in fn_name.findall(line):
+      for op, pattern in op_patterns:
+        if pattern.match(name):
+          if name in ("adlb::multicreate", "adlb::create_globals"):
+            counts[op] += max(len(create_spec.findall(line)), 1)
+          else:
+            counts[op] += 1
+          break
+  return counts
+
+def main(args):
+  if len(args) >= 2 and args[0] == "--row":
+    keys = args[1:-1]
+    tcl = args[-1]
+  elif len(args) == 1:
+    keys = None
+    tcl = args[0]
+  else:
+    print("usage: %s [--row <key>...] <tcl file>" % sys.argv[0],
+          file=sys.stderr)
+    return 1
+
+  with open(tcl) as f:
+    counts = count_ops(f)
+
+  if keys is None:
+    for op in OPS:
+      print(op, counts[op])
+  else:
+    print("\t".join(keys + [str(counts[op]) for op in OPS]))
+  return 0
+
+if __name__ == "__main__":
+  sys.exit(main(sys.argv[1:]))
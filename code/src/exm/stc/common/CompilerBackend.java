@@ -69,14 +69,26 @@ public interface CompilerBackend {
 
     private final boolean checkpointRequired;
 
-    public CodeGenOptions(boolean checkpointRequired) {
+    /**
+     * Functions that are specialized copies of other functions:
+     * clone -> original
+     */
+    private final Map<FnID, FnID> specializedFunctions;
+
+    public CodeGenOptions(boolean checkpointRequired,
+                          Map<FnID, FnID> specializedFunctions) {
       this.checkpointRequired = checkpointRequired;
+      this.specializedFunctions = specializedFunctions;
     }
 
     public boolean checkpointRequired() {
       return checkpointRequired;
     }
 
+    public Map<FnID, FnID> specializedFunctions() {
+      return specializedFunctions;
+    }
+
   }
 
   /**
@@ -243,7 +255,8 @@ public interface CompilerBackend {
    * Start a parallel foreach loop over an array.
    * @param loopName unique name for loop
    * @param container
-   * @param memberVar
+   * @param memberVar member variable, can be null if loop body doesn't
+   *        use members and container isn't local
    * @param loopCountVar counter variable, can be null
    * @param splitDegree
    * @param leafDegree
@@ -251,12 +264,16 @@ public interface CompilerBackend {
    * @param passedVars
    * @param perIterIncrs per-iteration increments
    * @param constIncrs constant increments
+   * @param batchedInserts containers whose inserts in loop body should be
+   *        buffered and done in one operation after the last iteration
+   *        of each leaf of the loop
    */
   public void startForeachLoop(String loopName,
       Var container, Var memberVar, Var loopCountVar, int splitDegree,
       int leafDegree, boolean arrayClosed,
       List<PassedVar> passedVars, List<RefCount> perIterIncrs,
-      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs);
+      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs,
+      List<Var> batchedInserts);
 
   /**
    * Finish the parallel foreach loop over array.
@@ -284,11 +301,14 @@ public interface CompilerBackend {
    * @param splitDegree the desired loop split factor (negative if no splitting)
    * @param perIterIncrs per-iteration increments
    * @param constIncrs constant increments
+   * @param batchedInserts containers whose inserts in loop body should be
+   *        buffered, as for foreach loops
    */
   public void startRangeLoop(String loopName, Var loopVar, Var countVar,
       Arg start, Arg end, Arg increment, int splitDegree, int leafDegree,
       List<PassedVar> passedVars, List<RefCount> perIterIncrs,
-      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs);
+      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs,
+      List<Var> batchedInserts);
 
   /**
    * Finish the range loop
@@ -1173,6 +1193,23 @@ public interface CompilerBackend {
    */
   public void lookupCheckpoint(Var checkpointExists, Var val, Arg key);
 
+  /**
+   * Store an encoded result in the in-memory memo cache of this rank
+   * @param key a {@link ScalarValueType} of blob
+   * @param val a {@link ScalarValueType} of blob
+   */
+  public void writeMemo(Arg key, Arg val);
+
+  /**
+   * Lookup an encoded result in the in-memory memo cache of this rank
+   * @param memoExists a {@link ScalarValueType} of bool for output,
+   *            whether the result was cached
+   * @param val a {@link ScalarValueType} of blob for output, only set if
+   *            the result was cached
+   * @param key a {@link ScalarValueType} of blob
+   */
+  public void lookupMemo(Var memoExists, Var val, Arg key);
+
   /**
    * @param packed a {@link ScalarValueType} of blob for output
    * @param unpacked local value variables for packing
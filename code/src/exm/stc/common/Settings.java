@@ -46,9 +46,17 @@ public class Settings {
   public static final String RPATH = "stc.rpath";
 
   public static final String IC_OUTPUT_FILE = "stc.ic.output-file";
+  public static final String TASK_GRAPH_OUTPUT_FILE =
+                                      "stc.task-graph.output-file";
+
+  /** Code generator: turbine (Tcl) or jvm (Java source) */
+  public static final String BACKEND = "stc.backend";
+  /** Whether to compile generated Java source to class files */
+  public static final String JVM_COMPILE = "stc.jvm.compile";
   public static final String OPT_CONSTANT_FOLD = "stc.opt.constant-fold";
   public static final String OPT_SHARED_CONSTANTS = "stc.opt.shared-constants";
   public static final String OPT_DEMOTE_GLOBALS = "stc.opt.demote-globals";
+  public static final String OPT_DEMOTE_FUTURES = "stc.opt.demote-futures";
   public static final String OPT_FLATTEN_NESTED = "stc.opt.flatten-nested";
   public static final String OPT_DEAD_CODE_ELIM = "stc.opt.dead-code-elim";
   public static final String OPT_VALUE_NUMBER = "stc.opt.value-number";
@@ -59,6 +67,8 @@ public class Settings {
   public static final String OPT_PIPELINE = "stc.opt.pipeline";
   public static final String OPT_CONTROLFLOW_FUSION =
                                             "stc.opt.controlflow-fusion";
+  public static final String OPT_PRODUCER_CONSUMER_FUSION =
+                            "stc.opt.producer-consumer-fusion";
   public static final String OPT_FUNCTION_INLINE = "stc.opt.function-inline";
   public static final String OPT_FULL_FUNCTION_INLINE = "stc.opt.full-function-inline";
   public static final String OPT_FUNCTION_INLINE_THRESHOLD =
@@ -74,6 +84,14 @@ public class Settings {
 
   public static final String OPT_FUNCTION_SIGNATURE =
                               "stc.opt.function-signature";
+  /* Infer which composite functions are pure */
+  public static final String OPT_INFER_PURITY = "stc.opt.infer-purity";
+  /* Clone functions for call sites with constant arguments */
+  public static final String OPT_FUNCTION_SPECIALIZE =
+                              "stc.opt.function-specialize";
+  // Max total instructions added by cloning functions for specialization
+  public static final String OPT_FUNCTION_SPECIALIZE_THRESHOLD =
+                              "stc.opt.function-specialize-threshold";
   public static final String OPT_DISABLE_ASSERTS = "stc.opt.disable-asserts";
   /* Master switch for loop unrolling pass.  At minimum manually
    * annotated loops are unrolled */
@@ -94,9 +112,26 @@ public class Settings {
   // Threshold extra instructions for unrolling loop
   public static final String OPT_UNROLL_LOOP_THRESHOLD_INSTS =
                             "stc.opt.unroll-loop-threshold-insts";
+  /* Strip-mine range loops: unroll the body within each leaf chunk so that
+   * loop-invariant waits and retrieves are only done once per strip */
+  public static final String OPT_STRIP_MINE_LOOPS = "stc.opt.strip-mine-loops";
+  // Number of iterations per strip when strip-mining
+  public static final String OPT_STRIP_MINE_FACTOR =
+                            "stc.opt.strip-mine-factor";
   public static final String OPT_HOIST = "stc.opt.hoist";
   public static final String OPT_REORDER_INSTS = "stc.opt.reorder-insts";
   public static final String OPT_ARRAY_BUILD = "stc.opt.array-build";
+  public static final String OPT_BATCH_INSERTS = "stc.opt.batch-inserts";
+  public static final String OPT_SCALAR_REPLACE_STRUCTS =
+                            "stc.opt.scalar-replace-structs";
+  public static final String OPT_FOREACH_KEYS_ONLY =
+                            "stc.opt.foreach-keys-only";
+  public static final String OPT_CRITICAL_PATH_PRIORITY =
+                            "stc.opt.critical-path-priority";
+  public static final String OPT_LOCATION_AFFINITY =
+                            "stc.opt.location-affinity";
+  /* Merge generated Tcl procs that only differ in names */
+  public static final String OPT_DEDUP_PROCS = "stc.opt.dedup-procs";
   public static final String OPT_LOOP_SIMPLIFY = "stc.opt.loop-simplify";
   public static final String OPT_PROPAGATE_ALIASES = "stc.opt.propagate-aliases";
 
@@ -105,11 +140,16 @@ public class Settings {
   public static final String OPT_PIGGYBACK_REFCOUNTS = "stc.opt.piggyback-refcounts";
   public static final String OPT_BATCH_REFCOUNTS = "stc.opt.batch-refcounts";
   public static final String OPT_HOIST_REFCOUNTS = "stc.opt.hoist-refcounts";
+  public static final String OPT_PASS_REFCOUNTS = "stc.opt.pass-refcounts";
+  /* Don't pass refcounts for inputs that callee never dereferences */
+  public static final String OPT_BORROW_REFCOUNTS = "stc.opt.borrow-refcounts";
 
   public static final String OPT_MAX_ITERATIONS = "stc.opt.max-iterations";
 
   public static final String ENABLE_REFCOUNTING = "stc.refcounting";
   public static final String ENABLE_CHECKPOINTING = "stc.checkpointing";
+  /** Max entries in per-rank cache for @memo functions */
+  public static final String MEMO_CACHE_SIZE = "stc.memo-cache-size";
 
   public static final String AUTO_DECLARE = "stc.auto-declare";
 
@@ -150,6 +190,9 @@ public class Settings {
     defaults.setProperty(TURBINE_VERSION, "0.0.5");
     defaults.setProperty(DEBUG_LEVEL, "COMMENTS");
     defaults.setProperty(IC_OUTPUT_FILE, "");
+    defaults.setProperty(TASK_GRAPH_OUTPUT_FILE, "");
+    defaults.setProperty(BACKEND, "turbine");
+    defaults.setProperty(JVM_COMPILE, "true");
     defaults.setProperty(RPATH, "");
     defaults.setProperty(INPUT_FILENAME, "");
     defaults.setProperty(OUTPUT_FILENAME, "");
@@ -166,6 +209,7 @@ public class Settings {
     defaults.setProperty(OPT_CONSTANT_FOLD, "true");
     defaults.setProperty(OPT_SHARED_CONSTANTS, "true");
     defaults.setProperty(OPT_DEMOTE_GLOBALS, "true");
+    defaults.setProperty(OPT_DEMOTE_FUTURES, "true");
     defaults.setProperty(OPT_DEAD_CODE_ELIM, "true");
     defaults.setProperty(OPT_UNROLL_LOOPS, "true");
     defaults.setProperty(OPT_EXPAND_LOOPS, "true");
@@ -174,6 +218,8 @@ public class Settings {
     defaults.setProperty(OPT_UNROLL_LOOP_THRESHOLD_ITERS, "8");
     defaults.setProperty(OPT_EXPAND_LOOP_THRESHOLD_INSTS, "256");
     defaults.setProperty(OPT_UNROLL_LOOP_THRESHOLD_INSTS, "192");
+    defaults.setProperty(OPT_STRIP_MINE_LOOPS, "true");
+    defaults.setProperty(OPT_STRIP_MINE_FACTOR, "4");
     defaults.setProperty(OPT_DISABLE_ASSERTS, "false");
     defaults.setProperty(OPT_VALUE_NUMBER, "true");
     defaults.setProperty(OPT_FINALIZED_VAR, "true");
@@ -182,6 +228,7 @@ public class Settings {
     defaults.setProperty(OPT_WAIT_COALESCE, "true");
     defaults.setProperty(OPT_PIPELINE, "false");
     defaults.setProperty(OPT_CONTROLFLOW_FUSION, "true");
+    defaults.setProperty(OPT_PRODUCER_CONSUMER_FUSION, "true");
     defaults.setProperty(OPT_FUNCTION_INLINE, "true");
     defaults.setProperty(OPT_FULL_FUNCTION_INLINE, "false");
     defaults.setProperty(OPT_FUNCTION_INLINE_THRESHOLD,
@@ -189,9 +236,18 @@ public class Settings {
     defaults.setProperty(OPT_FUNCTION_ALWAYS_INLINE_THRESHOLD,
               Long.toString(FUNCTION_ALWAYS_INLINE_THRESHOLD_DEFAULT));
     defaults.setProperty(OPT_FUNCTION_SIGNATURE, "true");
+    defaults.setProperty(OPT_INFER_PURITY, "true");
+    defaults.setProperty(OPT_FUNCTION_SPECIALIZE, "false");
+    defaults.setProperty(OPT_FUNCTION_SPECIALIZE_THRESHOLD, "500");
     defaults.setProperty(OPT_HOIST, "true");
     defaults.setProperty(OPT_REORDER_INSTS, "false");
     defaults.setProperty(OPT_ARRAY_BUILD, "true");
+    defaults.setProperty(OPT_BATCH_INSERTS, "false");
+    defaults.setProperty(OPT_SCALAR_REPLACE_STRUCTS, "true");
+    defaults.setProperty(OPT_FOREACH_KEYS_ONLY, "false");
+    defaults.setProperty(OPT_CRITICAL_PATH_PRIORITY, "false");
+    defaults.setProperty(OPT_LOCATION_AFFINITY, "false");
+    defaults.setProperty(OPT_DEDUP_PROCS, "false");
     defaults.setProperty(OPT_LOOP_SIMPLIFY, "true");
     defaults.setProperty(OPT_PROPAGATE_ALIASES, "true");
     defaults.setProperty(OPT_MERGE_REFCOUNTS, "true");
@@ -199,9 +255,12 @@ public class Settings {
     defaults.setProperty(OPT_PIGGYBACK_REFCOUNTS, "true");
     defaults.setProperty(OPT_BATCH_REFCOUNTS, "true");
     defaults.setProperty(OPT_HOIST_REFCOUNTS, "true");
+    defaults.setProperty(OPT_PASS_REFCOUNTS, "true");
+    defaults.setProperty(OPT_BORROW_REFCOUNTS, "true");
     defaults.setProperty(OPT_MAX_ITERATIONS, "10");
     defaults.setProperty(ENABLE_REFCOUNTING, "true");
     defaults.setProperty(ENABLE_CHECKPOINTING, "true");
+    defaults.setProperty(MEMO_CACHE_SIZE, "1024");
     defaults.setProperty(AUTO_DECLARE, "true");
     defaults.setProperty(PROFILE_STC, "false");
     defaults.setProperty(LOG_FILE, "");
@@ -315,6 +374,7 @@ public class Settings {
     getBoolean(OPT_CONSTANT_FOLD);
     getBoolean(OPT_SHARED_CONSTANTS);
     getBoolean(OPT_DEMOTE_GLOBALS);
+    getBoolean(OPT_DEMOTE_FUTURES);
     getBoolean(OPT_DEAD_CODE_ELIM);
     getBoolean(OPT_DISABLE_ASSERTS);
     getBoolean(OPT_VALUE_NUMBER);
@@ -324,26 +384,44 @@ public class Settings {
     getBoolean(OPT_WAIT_COALESCE);
     getBoolean(OPT_PIPELINE);
     getBoolean(OPT_CONTROLFLOW_FUSION);
+    getBoolean(OPT_PRODUCER_CONSUMER_FUSION);
     getBoolean(OPT_FUNCTION_SIGNATURE);
+    getBoolean(OPT_INFER_PURITY);
+    getBoolean(OPT_FUNCTION_SPECIALIZE);
+    getLong(OPT_FUNCTION_SPECIALIZE_THRESHOLD);
     getBoolean(OPT_HOIST);
     getBoolean(OPT_REORDER_INSTS);
     getBoolean(OPT_UNROLL_LOOPS);
     getBoolean(OPT_EXPAND_LOOPS);
     getBoolean(OPT_FULL_UNROLL);
+    getBoolean(OPT_STRIP_MINE_LOOPS);
     getBoolean(OPT_ARRAY_BUILD);
+    getBoolean(OPT_BATCH_INSERTS);
+    getBoolean(OPT_SCALAR_REPLACE_STRUCTS);
+    getBoolean(OPT_FOREACH_KEYS_ONLY);
+    getBoolean(OPT_CRITICAL_PATH_PRIORITY);
+    getBoolean(OPT_LOCATION_AFFINITY);
+    getBoolean(OPT_DEDUP_PROCS);
     getBoolean(OPT_LOOP_SIMPLIFY);
     getBoolean(OPT_PROPAGATE_ALIASES);
     getLong(OPT_EXPAND_LOOP_THRESHOLD_ITERS);
     getLong(OPT_UNROLL_LOOP_THRESHOLD_ITERS);
     getLong(OPT_EXPAND_LOOP_THRESHOLD_INSTS);
     getLong(OPT_UNROLL_LOOP_THRESHOLD_INSTS);
+    getLong(OPT_STRIP_MINE_FACTOR);
     getBoolean(OPT_MERGE_REFCOUNTS);
     getBoolean(OPT_CANCEL_REFCOUNTS);
     getBoolean(OPT_PIGGYBACK_REFCOUNTS);
     getBoolean(OPT_BATCH_REFCOUNTS);
     getBoolean(OPT_HOIST_REFCOUNTS);
+    getBoolean(OPT_PASS_REFCOUNTS);
+    getBoolean(OPT_BORROW_REFCOUNTS);
     getBoolean(ENABLE_REFCOUNTING);
     getBoolean(ENABLE_CHECKPOINTING);
+    if (getLong(MEMO_CACHE_SIZE) < 1) {
+      throw new InvalidOptionException("Invalid value for option " +
+          MEMO_CACHE_SIZE + ": must be at least 1");
+    }
     getBoolean(AUTO_DECLARE);
     getBoolean(COMPILER_DEBUG);
     getBoolean(PROFILE_STC);
@@ -352,12 +430,21 @@ public class Settings {
     getBoolean(PREPROCESSOR_FORCE_CPP);
     getBoolean(PREPROCESSOR_FORCE_GCC);
     getBoolean(MUST_PASS_WAIT_VARS);
+    getBoolean(JVM_COMPILE);
 
     getLong(OPT_MAX_ITERATIONS);
 
     initInlineProperties();
 
     checkOneOf(DEBUG_LEVEL, Arrays.asList("off", "comments", "debugger"));
+    checkOneOf(BACKEND, Arrays.asList("turbine", "jvm"));
+  }
+
+  /**
+   * @return true if generating Java code for the JVM runtime
+   */
+  public static boolean jvmBackend() {
+    return get(BACKEND).equalsIgnoreCase("jvm");
   }
 
   private static void initInlineProperties() throws InvalidOptionException {
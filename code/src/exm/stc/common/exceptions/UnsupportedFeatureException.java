@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.common.exceptions;
+
+import exm.stc.common.lang.Var.SourceLoc;
+
+/**
+ * Used when a program uses a feature that the selected backend doesn't
+ * support
+ */
+public class UnsupportedFeatureException extends UserException {
+
+  private static final long serialVersionUID = 1L;
+
+  public UnsupportedFeatureException(SourceLoc loc, String message) {
+    super(loc.file, loc.line, loc.column, message);
+  }
+
+  public UnsupportedFeatureException(String message) {
+    super(message);
+  }
+
+  /**
+   * Code generation methods don't declare checked exceptions, so this
+   * carries the exception out to STCMiddleEnd.regenerate(), which
+   * rethrows the original.
+   */
+  public static class Unchecked extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public final UnsupportedFeatureException error;
+
+    public Unchecked(UnsupportedFeatureException error) {
+      super(error);
+      this.error = error;
+    }
+  }
+}
@@ -34,6 +34,7 @@ public class Annotations {
   public static final String FN_PAR = "par";
   public static final String FN_DEPRECATED = "deprecated";
   public static final String FN_CHECKPOINT = "checkpoint";
+  public static final String FN_MEMO = "memo";
   public static final String FN_SUPPRESS = "suppress";
 
   // Options for @suppress
@@ -1660,6 +1660,7 @@ public class ASTWalker {
       handleBuiltinFunctionAnnotation(context, fid, fdecl,
                             tree.child(pos), inlineTcl != null);
     }
+    checkMemoAnnotation(context, fid);
 
     ExecTarget taskMode = context.getForeignFunctions().getTaskMode(fid);
 
@@ -1788,6 +1789,8 @@ public class ASTWalker {
       foreignFuncs.addAssertVariant(id);
     } else if (annotation.equals(Annotations.FN_PURE)) {
       foreignFuncs.addPure(id);
+    } else if (annotation.equals(Annotations.FN_DETERMINISTIC)) {
+      context.setFunctionProperty(id, FnProp.DETERMINISTIC);
     } else if (annotation.equals(Annotations.FN_COMMUTATIVE)) {
       foreignFuncs.addCommutative(id);
     } else if (annotation.equals(Annotations.FN_COPY)) {
@@ -1803,12 +1806,41 @@ public class ASTWalker {
 
       context.setFunctionProperty(id, FnProp.CHECKPOINTED);
       backend.requireCheckpointing();
+    } else if (annotation.equals(Annotations.FN_MEMO)) {
+      context.setFunctionProperty(id, FnProp.MEMOIZED);
     } else {
       throw new InvalidAnnotationException(context, "function", annotation, false);
     }
 
   }
 
+  /**
+   * Check that a function annotated with @memo can be memoized.  Must be
+   * called after all annotations for the function are registered.
+   * @param context
+   * @param id
+   * @throws UserException
+   */
+  private void checkMemoAnnotation(Context context, FnID id)
+      throws UserException {
+    if (!context.hasFunctionProp(id, FnProp.MEMOIZED)) {
+      return;
+    }
+
+    if (!context.getForeignFunctions().isPure(id) &&
+        !context.hasFunctionProp(id, FnProp.DETERMINISTIC)) {
+      throw new InvalidAnnotationException(context, "Cannot memoize " +
+          id.originalName() + ": @" + Annotations.FN_MEMO + " requires @" +
+          Annotations.FN_DETERMINISTIC + " or @" + Annotations.FN_PURE);
+    }
+
+    if (context.hasFunctionProp(id, FnProp.CHECKPOINTED)) {
+      throw new InvalidAnnotationException(context, "Cannot combine @" +
+          Annotations.FN_MEMO + " and @" + Annotations.FN_CHECKPOINT +
+          " on function " + id.originalName());
+    }
+  }
+
 
   private void defineFunction(Context context, SwiftAST tree)
   throws UserException {
@@ -1869,6 +1901,7 @@ public class ASTWalker {
         registerFunctionAnnotation(context, id, fdecl, annotation);
       }
     }
+    checkMemoAnnotation(context, id);
 
     context.setFunctionProperty(id, FnProp.COMPOSITE);
     if (!async) {
@@ -608,6 +608,8 @@ public abstract class Context {
     TARGETABLE, /** if this is targetable */
     DEPRECATED, /** Warn if user uses function */
     CHECKPOINTED, /** Whether results should be checkpointed */
+    DETERMINISTIC, /** Same inputs always give same outputs */
+    MEMOIZED, /** Whether results should be cached in memory */
   }
 
   /**
@@ -140,10 +140,14 @@ public class FunctionCallEvaluator {
 
     boolean checkpointed =
         context.hasFunctionProp(id, FnProp.CHECKPOINTED);
+    boolean memoized = context.hasFunctionProp(id, FnProp.MEMOIZED);
 
     if (checkpointed) {
       checkpointedFunctionCall(callContext, id, kind, concrete, oList,
                                      props, fixedIList);
+    } else if (memoized) {
+      memoizedFunctionCall(callContext, id, kind, concrete, oList,
+                           props, fixedIList);
     } else {
       backendFunctionCall(callContext, id, kind, concrete, oList, fixedIList,
                           props);
@@ -469,6 +473,72 @@ public class FunctionCallEvaluator {
     }
   }
 
+  /**
+   * Generate code for a function call where we may be able to short-circuit
+   * by looking up the results of a previous call with the same arguments in
+   * the in-memory memo cache.
+   *
+   * @param context
+   * @param id
+   * @param kind
+   * @param concrete
+   * @param oList
+   * @param props
+   * @param iList
+   * @throws UserException
+   */
+  private void memoizedFunctionCall(Context context, FnID id,
+      FunctionCallKind kind, FunctionType concrete, List<Var> oList,
+      TaskProps props, List<Var> iList) throws UserException {
+    /*
+     * wait (input_futures) {
+     *   memo_key = lookup(input_futures)
+     *   memo_exists, vals = lookup_memo(memo_key)
+     *   if (memo_exists) {
+     *     ... Set output variables
+     *   } else {
+     *     ... call function
+     *     wait (output_futures) {
+     *       output_vals = lookup(output_futures)
+     *       write_memo(memo_key, output_vals)
+     *     }
+     *   }
+     * }
+     */
+    backend.startWaitStatement(
+        context.constructName(id.uniqueName() + "-memo-wait"),
+        VarRepr.backendVars(iList), WaitMode.WAIT_ONLY,
+        false, true, ExecTarget.nonDispatchedAny());
+    Var keyBlob = packMemoKey(context, id, iList);
+
+    Var existingVal = varCreator.createTmpLocalVal(context, Types.V_BLOB);
+    Var memoExists = varCreator.createTmpLocalVal(context, Types.V_BOOL);
+
+    backend.lookupMemo(VarRepr.backendVar(memoExists),
+          VarRepr.backendVar(existingVal), VarRepr.backendArg(keyBlob));
+
+    backend.startIfStatement(VarRepr.backendArg(memoExists), true);
+    setVarsFromCheckpoint(context, oList, existingVal);
+    backend.startElseBlock();
+
+    backendFunctionCall(context, id, kind, concrete, oList, iList, props);
+
+    backend.startWaitStatement(
+        context.constructName(id.uniqueName() + "-memo-wait"),
+        VarRepr.backendVars(oList), WaitMode.WAIT_ONLY,
+        false, true, ExecTarget.nonDispatchedAny());
+
+    // Pack key again since variable might not be able to be passed
+    // through wait.  Rely on optimizer to clean up redundancy
+    Var keyBlob2 = packMemoKey(context, id, iList);
+    Var valBlob = packCheckpointVal(context, oList);
+    backend.writeMemo(VarRepr.backendArg(keyBlob2),
+                      VarRepr.backendArg(valBlob));
+
+    backend.endWaitStatement(); // Close wait for values
+    backend.endIfStatement();
+    backend.endWaitStatement(); // Close wait for keys
+  }
 
   /**
    * Generate backend instruction for function call
@@ -668,7 +738,16 @@ public class FunctionCallEvaluator {
   private Var packCheckpointKey(Context context,
       FnID id, List<Var> vars) throws UserException,
       UndefinedTypeException, DoubleDefineException {
-    return packCheckpointData(context, id, vars);
+    assert(id.uniqueName().equals(id.originalName())) :
+      "Cannot checkpoint overloaded function";
+    return packCheckpointData(context, id.originalName(), vars);
+  }
+
+  private Var packMemoKey(Context context,
+      FnID id, List<Var> vars) throws UserException,
+      UndefinedTypeException, DoubleDefineException {
+    // Memo cache is not persisted, so can use unique name of overload
+    return packCheckpointData(context, id.uniqueName(), vars);
   }
 
   private Var packCheckpointVal(Context context, List<Var> vars)
@@ -680,6 +759,7 @@ public class FunctionCallEvaluator {
    * Take set of (recursively closed) variables and create a
    * unique key from their values.
    * @param context
+   * @param fnName if not null, function name to prefix key with
    * @param vars
    * @return
    * @throws UserException
@@ -687,15 +767,13 @@ public class FunctionCallEvaluator {
    * @throws DoubleDefineException
    */
   private Var packCheckpointData(Context context,
-      FnID id, List<Var> vars) throws UserException,
+      String fnName, List<Var> vars) throws UserException,
       UndefinedTypeException, DoubleDefineException {
     List<Arg> elems = new ArrayList<Arg>(vars.size());
 
-    if (id != null) {
-      assert(id.uniqueName().equals(id.originalName())) :
-        "Cannot checkpoint overloaded function";
+    if (fnName != null) {
       // Prefix with function name
-      elems.add(Arg.newString(id.originalName()));
+      elems.add(Arg.newString(fnName));
     }
 
     for (Var v: vars) {
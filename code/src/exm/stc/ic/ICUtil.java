@@ -34,9 +34,12 @@ import exm.stc.common.lang.TaskProp.TaskPropKey;
 import exm.stc.common.lang.TaskProp.TaskProps;
 import exm.stc.common.lang.Var;
 import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICContinuations.WaitStatement;
+import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.CleanupAction;
 import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
 
 /**
  * Miscellaneous useful utilities that are used in multiple places in the intermediate
@@ -276,6 +279,40 @@ public class ICUtil {
     }
   }
 
+  /**
+   * Set priority of tasks spawned directly from block that don't already
+   * have a priority.  Tasks nested inside those inherit the priority.
+   */
+  public static void setTaskPriority(Block block, Arg priority) {
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.INSTRUCTION) {
+        Instruction inst = stmt.instruction();
+        TaskProps props = inst.getTaskProps();
+        if (inst.execMode().isAsync() && props != null &&
+            !props.containsKey(TaskPropKey.PRIORITY)) {
+          props.put(TaskPropKey.PRIORITY, priority);
+        }
+      } else {
+        for (Block inner: stmt.conditional().getBlocks()) {
+          setTaskPriority(inner, priority);
+        }
+      }
+    }
+
+    for (Continuation cont: block.getContinuations()) {
+      if (cont instanceof WaitStatement) {
+        TaskProps props = ((WaitStatement)cont).getTaskProps();
+        if (!props.containsKey(TaskPropKey.PRIORITY)) {
+          props.put(TaskPropKey.PRIORITY, priority);
+        }
+      } else {
+        for (Block inner: cont.getBlocks()) {
+          setTaskPriority(inner, priority);
+        }
+      }
+    }
+  }
+
   public static LinkedList<Statement> cloneStatements(
       List<Statement> stmts) {
     LinkedList<Statement> output = new LinkedList<Statement>();
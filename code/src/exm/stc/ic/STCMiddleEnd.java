@@ -30,6 +30,7 @@ import exm.stc.common.CompilerBackend;
 import exm.stc.common.CompilerBackend.RefCount;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.exceptions.UndefinedTypeException;
+import exm.stc.common.exceptions.UnsupportedFeatureException;
 import exm.stc.common.exceptions.UserException;
 import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.AsyncExecutor;
@@ -131,6 +132,16 @@ public class STCMiddleEnd {
     logger.debug("Optimisation done");
   }
 
+  /**
+   * Write summary of task structure of program
+   * @param out
+   * @param format
+   */
+  public void writeTaskGraph(PrintStream out, TaskGraph.Format format) {
+    logger.debug("Writing task graph");
+    TaskGraph.build(program).write(out, format);
+  }
+
   /**
    * Recreate an equivalent series of calls that were used
    * to create the program
@@ -138,7 +149,11 @@ public class STCMiddleEnd {
    */
   public void regenerate(CompilerBackend backend) throws UserException {
     logger.debug("Using Swift IC to regenerate code");
-    this.program.generate(logger, backend);
+    try {
+      this.program.generate(logger, backend);
+    } catch (UnsupportedFeatureException.Unchecked e) {
+      throw e.error;
+    }
     logger.debug("Done using Swift IC to regenerate code");
   }
 
@@ -1136,6 +1151,17 @@ public class STCMiddleEnd {
         TurbineOp.lookupCheckpoint(checkpointExists, value, key));
   }
 
+  public void writeMemo(Arg key, Arg val) {
+    assert(Types.isBlobVal(key));
+    assert(Types.isBlobVal(val));
+    currBlock().addInstruction(TurbineOp.writeMemo(key, val));
+  }
+
+  public void lookupMemo(Var memoExists, Var value, Arg key) {
+    assert(Types.isBlobVal(key));
+    currBlock().addInstruction(TurbineOp.lookupMemo(memoExists, value, key));
+  }
+
   public void packValues(Var packedValues, List<Arg> values) {
     assert(Types.isBlobVal(packedValues));
     currBlock().addInstruction(
@@ -0,0 +1,1000 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import exm.stc.common.CompilerBackend.RefCount;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.ExecTarget;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.WaitVar;
+import exm.stc.ic.tree.Conditionals.Conditional;
+import exm.stc.ic.tree.ForeachLoops.AbstractForeachLoop;
+import exm.stc.ic.tree.ForeachLoops.ForeachLoop;
+import exm.stc.ic.tree.ForeachLoops.RangeLoop;
+import exm.stc.ic.tree.ICContinuations.AsyncExec;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICContinuations.ContinuationType;
+import exm.stc.ic.tree.ICContinuations.Loop;
+import exm.stc.ic.tree.ICContinuations.WaitStatement;
+import exm.stc.ic.tree.ICInstructions.CommonFunctionCall;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.CleanupAction;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.Opcode;
+
+/**
+ * Static summary of the task structure of an IC program, intended to be
+ * built from the optimized program so that optimization settings can be
+ * compared without running the program.
+ *
+ * Each function is a tree of constructs: waits, loops, async execs and
+ * spawned function calls.  Each construct has an estimate of the tasks
+ * and data store operations it performs.  Estimates are symbolic in loop
+ * iteration counts and container sizes where these are not known at
+ * compile time.  Counts are per invocation of the function: calls to
+ * other functions are listed but their costs are not included.
+ *
+ * The estimates are approximate: e.g. conditionals are estimated by taking
+ * the maximum of branches, and each data store operation is counted as one
+ * operation regardless of the amount of data.
+ */
+public class TaskGraph {
+
+  public static enum Format {
+    JSON,
+    DOT,
+    ;
+
+    /**
+     * Choose format based on file extension, defaulting to JSON
+     */
+    public static Format fromFileName(String fileName) {
+      String lower = fileName.toLowerCase();
+      if (lower.endsWith(".dot") || lower.endsWith(".gv")) {
+        return DOT;
+      }
+      return JSON;
+    }
+  }
+
+  /**
+   * Categories of operations counted
+   */
+  public static enum OpKind {
+    /** Tasks, including local data-dependent rules */
+    TASKS,
+    /** Tasks sent through the data store task queues */
+    DISPATCHED,
+    /** Subscriptions to data store variables */
+    SUBSCRIBES,
+    /** Data store variables created */
+    CREATES,
+    /** Stores and inserts into data store variables */
+    STORES,
+    /** Retrieves and lookups of data store variables */
+    RETRIEVES,
+    /** Reference count operations */
+    REFCOUNTS,
+    ;
+
+    public String jsonName() {
+      return toString().toLowerCase();
+    }
+
+    /**
+     * @return true if counted as an operation on the data store
+     */
+    public boolean isDataStoreOp() {
+      return this != TASKS;
+    }
+  }
+
+  /**
+   * A sum of terms, each a product of a coefficient and symbols.
+   * Immutable.
+   */
+  public static class Estimate {
+    public static final Estimate ZERO = new Estimate(
+                        Collections.<List<String>, Double>emptyMap());
+    public static final Estimate ONE = constant(1);
+
+    /** Map from sorted list of symbols to coefficient */
+    private final Map<List<String>, Double> terms;
+
+    private Estimate(Map<List<String>, Double> terms) {
+      this.terms = terms;
+    }
+
+    public static Estimate constant(double c) {
+      if (c == 0.0) {
+        return ZERO;
+      }
+      return new Estimate(Collections.singletonMap(
+                          Collections.<String>emptyList(), c));
+    }
+
+    public static Estimate symbol(String sym) {
+      return new Estimate(Collections.singletonMap(
+                          Collections.singletonList(sym), 1.0));
+    }
+
+    public boolean isZero() {
+      return terms.isEmpty();
+    }
+
+    public boolean isConstant() {
+      return terms.isEmpty() ||
+          (terms.size() == 1 && terms.containsKey(
+                                Collections.<String>emptyList()));
+    }
+
+    public double constantValue() {
+      assert(isConstant());
+      Double c = terms.get(Collections.<String>emptyList());
+      return c == null ? 0.0 : c;
+    }
+
+    public Estimate plus(Estimate o) {
+      if (o.isZero()) {
+        return this;
+      } else if (this.isZero()) {
+        return o;
+      }
+      Map<List<String>, Double> res = newTermMap();
+      res.putAll(this.terms);
+      for (Map.Entry<List<String>, Double> e: o.terms.entrySet()) {
+        addTerm(res, e.getKey(), e.getValue());
+      }
+      return new Estimate(res);
+    }
+
+    public Estimate times(Estimate o) {
+      if (this.isZero() || o.isZero()) {
+        return ZERO;
+      }
+      Map<List<String>, Double> res = newTermMap();
+      for (Map.Entry<List<String>, Double> e1: this.terms.entrySet()) {
+        for (Map.Entry<List<String>, Double> e2: o.terms.entrySet()) {
+          List<String> syms = new ArrayList<String>(e1.getKey());
+          syms.addAll(e2.getKey());
+          Collections.sort(syms);
+          addTerm(res, syms, e1.getValue() * e2.getValue());
+        }
+      }
+      return new Estimate(res);
+    }
+
+    /**
+     * Upper bound of the two estimates, assuming all symbols are
+     * non-negative
+     */
+    public Estimate max(Estimate o) {
+      Map<List<String>, Double> res = newTermMap();
+      res.putAll(this.terms);
+      for (Map.Entry<List<String>, Double> e: o.terms.entrySet()) {
+        Double prev = res.get(e.getKey());
+        if (prev == null || prev < e.getValue()) {
+          res.put(e.getKey(), e.getValue());
+        }
+      }
+      return new Estimate(res);
+    }
+
+    private static Map<List<String>, Double> newTermMap() {
+      return new TreeMap<List<String>, Double>(TERM_ORDER);
+    }
+
+    private static void addTerm(Map<List<String>, Double> res,
+                                List<String> syms, double coeff) {
+      Double prev = res.get(syms);
+      double sum = (prev == null ? 0.0 : prev) + coeff;
+      if (sum == 0.0) {
+        res.remove(syms);
+      } else {
+        res.put(syms, sum);
+      }
+    }
+
+    /**
+     * Order terms by degree, then alphabetically
+     */
+    private static final Comparator<List<String>> TERM_ORDER =
+        new Comparator<List<String>>() {
+      @Override
+      public int compare(List<String> a, List<String> b) {
+        if (a.size() != b.size()) {
+          return a.size() - b.size();
+        }
+        for (int i = 0; i < a.size(); i++) {
+          int c = a.get(i).compareTo(b.get(i));
+          if (c != 0) {
+            return c;
+          }
+        }
+        return 0;
+      }
+    };
+
+    @Override
+    public String toString() {
+      if (terms.isEmpty()) {
+        return "0";
+      }
+      StringBuilder sb = new StringBuilder();
+      boolean first = true;
+      for (Map.Entry<List<String>, Double> e: terms.entrySet()) {
+        if (!first) {
+          sb.append(" + ");
+        }
+        first = false;
+        appendTerm(sb, e.getKey(), e.getValue());
+      }
+      return sb.toString();
+    }
+
+    private static void appendTerm(StringBuilder sb, List<String> syms,
+                                   double coeff) {
+      String symStr = syms.isEmpty() ? null : joinSyms(syms);
+      if (symStr == null) {
+        sb.append(formatNum(coeff));
+      } else if (coeff == 1.0) {
+        sb.append(symStr);
+      } else if (isIntegral(coeff)) {
+        sb.append(formatNum(coeff)).append("*").append(symStr);
+      } else if (isIntegral(1.0 / coeff)) {
+        sb.append(symStr).append("/").append(formatNum(1.0 / coeff));
+      } else {
+        sb.append(formatNum(coeff)).append("*").append(symStr);
+      }
+    }
+
+    private static String joinSyms(List<String> syms) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < syms.size(); i++) {
+        if (i > 0) {
+          sb.append("*");
+        }
+        sb.append(syms.get(i));
+      }
+      return sb.toString();
+    }
+
+    private static boolean isIntegral(double d) {
+      return d == Math.rint(d) && !Double.isInfinite(d);
+    }
+
+    private static String formatNum(double d) {
+      if (isIntegral(d)) {
+        return Long.toString((long)d);
+      }
+      return String.format("%.4g", d);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Estimate)) {
+        return false;
+      }
+      return terms.equals(((Estimate)o).terms);
+    }
+
+    @Override
+    public int hashCode() {
+      return terms.hashCode();
+    }
+  }
+
+  /**
+   * Estimates for each kind of operation
+   */
+  public static class OpCounts {
+    private final EnumMap<OpKind, Estimate> counts =
+                        new EnumMap<OpKind, Estimate>(OpKind.class);
+
+    public Estimate get(OpKind kind) {
+      Estimate e = counts.get(kind);
+      return e == null ? Estimate.ZERO : e;
+    }
+
+    public void add(OpKind kind, Estimate e) {
+      counts.put(kind, get(kind).plus(e));
+    }
+
+    public void add(OpKind kind, long n) {
+      add(kind, Estimate.constant(n));
+    }
+
+    public void addAll(OpCounts o) {
+      for (OpKind kind: OpKind.values()) {
+        add(kind, o.get(kind));
+      }
+    }
+
+    public OpCounts times(Estimate e) {
+      OpCounts res = new OpCounts();
+      for (OpKind kind: OpKind.values()) {
+        res.add(kind, get(kind).times(e));
+      }
+      return res;
+    }
+
+    public OpCounts max(OpCounts o) {
+      OpCounts res = new OpCounts();
+      for (OpKind kind: OpKind.values()) {
+        res.counts.put(kind, get(kind).max(o.get(kind)));
+      }
+      return res;
+    }
+
+    /**
+     * @return sum of all data store operations
+     */
+    public Estimate dataStoreOps() {
+      Estimate res = Estimate.ZERO;
+      for (OpKind kind: OpKind.values()) {
+        if (kind.isDataStoreOp()) {
+          res = res.plus(get(kind));
+        }
+      }
+      return res;
+    }
+  }
+
+  /**
+   * A construct in the task graph
+   */
+  public static class Node {
+    public final int id;
+    public final String kind;
+    public final String name;
+    public final ExecTarget target;
+
+    /** Number of times body executes per execution of construct */
+    public final Estimate iterations;
+
+    /** Operations performed once per execution of construct */
+    public final OpCounts once = new OpCounts();
+
+    /** Operations performed in each iteration of body */
+    public final OpCounts body = new OpCounts();
+
+    /** Variables this construct waits on before running */
+    public final List<Var> waitsOn = new ArrayList<Var>();
+
+    /** Variables this construct produces */
+    public final List<Var> produces = new ArrayList<Var>();
+
+    /** If a call, the function called */
+    public final FnID callee;
+
+    /** If true, children are alternatives of which one executes */
+    public final boolean alternatives;
+
+    public final List<Node> children = new ArrayList<Node>();
+
+    private Node(int id, String kind, String name, ExecTarget target,
+                 Estimate iterations, FnID callee, boolean alternatives) {
+      this.id = id;
+      this.kind = kind;
+      this.name = name;
+      this.target = target;
+      this.iterations = iterations;
+      this.callee = callee;
+      this.alternatives = alternatives;
+    }
+
+    /**
+     * @return operations for one execution of construct, including
+     *         nested constructs
+     */
+    public OpCounts total() {
+      OpCounts perIter = new OpCounts();
+      perIter.addAll(body);
+      if (alternatives) {
+        OpCounts branchMax = new OpCounts();
+        for (Node child: children) {
+          branchMax = branchMax.max(child.total());
+        }
+        perIter.addAll(branchMax);
+      } else {
+        for (Node child: children) {
+          perIter.addAll(child.total());
+        }
+      }
+
+      OpCounts res = perIter.times(iterations);
+      res.addAll(once);
+      return res;
+    }
+  }
+
+  private final Program program;
+  private final Map<FnID, Node> functions = new LinkedHashMap<FnID, Node>();
+
+  /** Description of each symbol used in estimates */
+  private final Map<String, String> symbols = new TreeMap<String, String>();
+
+  private int nextNodeID = 0;
+
+  private TaskGraph(Program program) {
+    this.program = program;
+  }
+
+  public static TaskGraph build(Program program) {
+    TaskGraph graph = new TaskGraph(program);
+    for (Function f: program.functions()) {
+      graph.functions.put(f.id(), graph.buildFunction(f));
+    }
+    return graph;
+  }
+
+  public Map<FnID, Node> functions() {
+    return Collections.unmodifiableMap(functions);
+  }
+
+  /**
+   * @return sum over all functions of operations per invocation
+   */
+  public OpCounts totals() {
+    OpCounts res = new OpCounts();
+    for (Node f: functions.values()) {
+      res.addAll(f.total());
+    }
+    return res;
+  }
+
+  private Node newNode(String kind, String name, ExecTarget target,
+          Estimate iterations, FnID callee, boolean alternatives) {
+    return new Node(nextNodeID++, kind, name, target, iterations, callee,
+                    alternatives);
+  }
+
+  private Node buildFunction(Function f) {
+    Node root = newNode("function", f.id().uniqueName(), f.mode(),
+                        Estimate.ONE, null, false);
+    for (WaitVar wv: f.blockingInputs()) {
+      root.waitsOn.add(wv.var);
+    }
+    if (f.isAsync()) {
+      // Function body runs after blocking inputs are closed
+      root.body.add(OpKind.SUBSCRIBES, f.blockingInputs().size());
+    }
+    addBlock(root, f.mainBlock());
+    return root;
+  }
+
+  /**
+   * Add contents of block to node, adding operations to the body
+   * of the node.
+   */
+  private void addBlock(Node node, Block block) {
+    for (Var v: block.variables()) {
+      if (v.storage() == Alloc.STACK || v.storage() == Alloc.TEMP) {
+        node.body.add(OpKind.CREATES, 1);
+      }
+    }
+
+    for (Statement stmt: block.getStatements()) {
+      switch (stmt.type()) {
+        case INSTRUCTION:
+          addInstruction(node, stmt.instruction());
+          break;
+        case CONDITIONAL:
+          addContinuation(node, stmt.conditional());
+          break;
+        default:
+          throw new STCRuntimeError(
+                                "Unknown statement type " + stmt.type());
+      }
+    }
+
+    for (Continuation c: block.getContinuations()) {
+      addContinuation(node, c);
+    }
+
+    for (CleanupAction ca: block.getCleanups()) {
+      countInstruction(node.body, ca.action());
+    }
+  }
+
+  private void addInstruction(Node node, Instruction inst) {
+    if (inst instanceof CommonFunctionCall) {
+      CommonFunctionCall call = (CommonFunctionCall)inst;
+      ExecTarget mode = inst.execMode();
+      if (!mode.isAsync() && program.lookupFunction(call.functionID()) == null) {
+        // Synchronous foreign function: just local computation
+        countInstruction(node.body, inst);
+        return;
+      }
+      Node callNode = newNode("call", null, mode,
+                              Estimate.ONE, call.functionID(), false);
+      callNode.waitsOn.addAll(inst.getBlockingInputs(program));
+      callNode.produces.addAll(inst.getOutputs());
+      countInstruction(callNode.body, inst);
+      node.children.add(callNode);
+    } else {
+      countInstruction(node.body, inst);
+    }
+  }
+
+  /**
+   * Count operations for an instruction that doesn't get its own node
+   */
+  private void countInstruction(OpCounts counts, Instruction inst) {
+    ExecTarget mode = inst.execMode();
+    if (mode.isAsync()) {
+      counts.add(OpKind.TASKS, 1);
+      counts.add(OpKind.SUBSCRIBES, inst.getBlockingInputs(program).size());
+      if (mode.isDispatched()) {
+        counts.add(OpKind.DISPATCHED, 1);
+      }
+    }
+
+    OpKind kind = opKind(inst.op);
+    if (kind != null) {
+      counts.add(kind, 1);
+    }
+  }
+
+  private void addContinuation(Node parent, Continuation c) {
+    Node node;
+    switch (c.getType()) {
+      case NESTED_BLOCK:
+        // Just part of enclosing block
+        for (Block b: c.getBlocks()) {
+          addBlock(parent, b);
+        }
+        return;
+      case IF_STATEMENT:
+      case SWITCH_STATEMENT: {
+        Conditional cond = (Conditional)c;
+        node = newNode(c.getType() == ContinuationType.IF_STATEMENT ?
+                        "if" : "switch", null, c.target(), Estimate.ONE,
+                        null, true);
+        int branchNum = 0;
+        for (Block b: cond.getBlocks()) {
+          Node branch = newNode("branch", Integer.toString(branchNum++),
+                                c.target(), Estimate.ONE, null, false);
+          addBlock(branch, b);
+          node.children.add(branch);
+        }
+        break;
+      }
+      case WAIT_STATEMENT: {
+        WaitStatement wait = (WaitStatement)c;
+        node = newNode("wait", wait.procName(), wait.target(), Estimate.ONE,
+                       null, false);
+        node.waitsOn.addAll(WaitVar.asVarList(wait.getWaitVars()));
+        node.once.add(OpKind.TASKS, 1);
+        node.once.add(OpKind.SUBSCRIBES, wait.getWaitVars().size());
+        if (wait.target().isDispatched()) {
+          node.once.add(OpKind.DISPATCHED, 1);
+        }
+        addBlock(node, wait.getBlock());
+        break;
+      }
+      case ASYNC_EXEC: {
+        AsyncExec exec = (AsyncExec)c;
+        node = newNode("async_exec", exec.procName() + " (" +
+                       exec.executor() + ")", exec.target(), Estimate.ONE,
+                       null, false);
+        node.once.add(OpKind.TASKS, 1);
+        node.once.add(OpKind.DISPATCHED, 1);
+        addBlock(node, exec.getBlock());
+        break;
+      }
+      case LOOP: {
+        Loop loop = (Loop)c;
+        String sym = loopSymbol(loop.loopName());
+        symbols.put(sym, "iterations of loop " + loop.loopName());
+        node = newNode("loop", loop.loopName(), loop.target(),
+                       Estimate.symbol(sym), null, false);
+        // Each iteration is a rule waiting on blocking loop variables
+        node.body.add(OpKind.TASKS, 1);
+        node.body.add(OpKind.SUBSCRIBES, loop.blockingVars(false).size());
+        for (Block b: loop.getBlocks()) {
+          addBlock(node, b);
+        }
+        break;
+      }
+      case FOREACH_LOOP:
+      case RANGE_LOOP: {
+        node = foreachNode((AbstractForeachLoop)c);
+        break;
+      }
+      default:
+        throw new STCRuntimeError(
+                              "Unknown continuation type " + c.getType());
+    }
+    parent.children.add(node);
+  }
+
+  private Node foreachNode(AbstractForeachLoop loop) {
+    Estimate iters;
+    Node node;
+    if (loop.getType() == ContinuationType.FOREACH_LOOP) {
+      ForeachLoop foreach = (ForeachLoop)loop;
+      Var container = foreach.getArrayVar();
+      String sym = "size(" + container.name() + ")";
+      symbols.put(sym, "number of elements in " + container.name());
+      iters = Estimate.symbol(sym);
+      node = newNode("foreach", loop.loopName(), loop.target(), iters,
+                     null, false);
+      node.waitsOn.add(container);
+      if (loop.target().isAsync()) {
+        // Wait for container to be closed
+        node.once.add(OpKind.TASKS, 1);
+        node.once.add(OpKind.SUBSCRIBES, 1);
+      }
+      // Enumerate contents
+      node.once.add(OpKind.RETRIEVES, 1);
+    } else {
+      RangeLoop range = (RangeLoop)loop;
+      long constIters = range.constIterCount();
+      if (constIters >= 0) {
+        iters = Estimate.constant(constIters);
+      } else {
+        String sym = loopSymbol(loop.loopName());
+        symbols.put(sym, "iterations of range " + argString(range.start()) +
+            ":" + argString(range.end()) + ":" + argString(range.increment()));
+        iters = Estimate.symbol(sym);
+      }
+      node = newNode("range", loop.loopName(), loop.target(), iters,
+                     null, false);
+    }
+
+    if (loop.splitDegree() > 0) {
+      // Iterations are split recursively into leaf tasks
+      Estimate leafTasks;
+      if (iters.isConstant()) {
+        leafTasks = Estimate.constant(
+            Math.ceil(iters.constantValue() / loop.leafDegree()));
+      } else {
+        leafTasks = iters.times(Estimate.constant(1.0 / loop.leafDegree()));
+      }
+      node.once.add(OpKind.TASKS, leafTasks);
+      node.once.add(OpKind.DISPATCHED, leafTasks);
+    }
+
+    node.once.add(OpKind.REFCOUNTS, refcountOps(loop.getStartIncrements()));
+    node.body.add(OpKind.REFCOUNTS, refcountOps(loop.getEndDecrements()));
+
+    for (Block b: loop.getBlocks()) {
+      addBlock(node, b);
+    }
+    return node;
+  }
+
+  private static long refcountOps(List<RefCount> refcounts) {
+    return refcounts.size();
+  }
+
+  private static String loopSymbol(String loopName) {
+    return "iters(" + loopName + ")";
+  }
+
+  private static String argString(Arg a) {
+    return a.isVar() ? a.getVar().name() : a.toString();
+  }
+
+  /**
+   * Classify data store operation performed by an instruction
+   * @param op
+   * @return null if not a data store operation
+   */
+  private static OpKind opKind(Opcode op) {
+    if (op.isAssign()) {
+      return OpKind.STORES;
+    } else if (op.isRetrieve()) {
+      return OpKind.RETRIEVES;
+    }
+
+    switch (op) {
+      case STORE_REF:
+      case ARR_STORE:
+      case ARR_STORE_FUTURE:
+      case AREF_STORE_IMM:
+      case AREF_STORE_FUTURE:
+      case ARR_COPY_IN_IMM:
+      case ARR_COPY_IN_FUTURE:
+      case AREF_COPY_IN_IMM:
+      case AREF_COPY_IN_FUTURE:
+      case ARR_CREATE_NESTED_FUTURE:
+      case AREF_CREATE_NESTED_FUTURE:
+      case ARR_CREATE_NESTED_IMM:
+      case AREF_CREATE_NESTED_IMM:
+      case BAG_INSERT:
+      case ARRAY_BUILD:
+      case STRUCT_STORE_SUB:
+      case STRUCTREF_STORE_SUB:
+      case STRUCT_COPY_IN:
+      case STRUCTREF_COPY_IN:
+      case STRUCT_CREATE_NESTED:
+      case SET_FILENAME_VAL:
+      case COPY_IN_FILENAME:
+      case INIT_UPDATEABLE_FLOAT:
+      case UPDATE_MIN:
+      case UPDATE_INCR:
+      case UPDATE_SCALE:
+      case UPDATE_MIN_IMM:
+      case UPDATE_INCR_IMM:
+      case UPDATE_SCALE_IMM:
+        return OpKind.STORES;
+      case DEREF_SCALAR:
+      case DEREF_FILE:
+      case ARR_RETRIEVE:
+      case ARR_COPY_OUT_IMM:
+      case ARR_COPY_OUT_FUTURE:
+      case AREF_COPY_OUT_IMM:
+      case AREF_COPY_OUT_FUTURE:
+      case ARR_CONTAINS:
+      case CONTAINER_SIZE:
+      case STRUCT_RETRIEVE_SUB:
+      case STRUCT_COPY_OUT:
+      case STRUCTREF_COPY_OUT:
+      case LATEST_VALUE:
+      case GET_FILENAME_VAL:
+        return OpKind.RETRIEVES;
+      case INCR_READERS:
+      case DECR_READERS:
+      case INCR_WRITERS:
+      case DECR_WRITERS:
+        return OpKind.REFCOUNTS;
+      default:
+        return null;
+    }
+  }
+
+  public void write(PrintStream out, Format format) {
+    switch (format) {
+      case JSON:
+        writeJSON(out);
+        break;
+      case DOT:
+        writeDOT(out);
+        break;
+      default:
+        throw new STCRuntimeError(
+                                      "Unknown format " + format);
+    }
+    out.flush();
+  }
+
+  private void writeJSON(PrintStream out) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\n");
+    sb.append("  \"functions\": [");
+    boolean first = true;
+    for (Node f: functions.values()) {
+      sb.append(first ? "\n" : ",\n");
+      first = false;
+      jsonNode(sb, f, "    ");
+    }
+    sb.append("\n  ],\n");
+
+    sb.append("  \"symbols\": {");
+    first = true;
+    for (Map.Entry<String, String> e: symbols.entrySet()) {
+      sb.append(first ? "\n" : ",\n");
+      first = false;
+      sb.append("    ").append(jsonString(e.getKey())).append(": ")
+        .append(jsonString(e.getValue()));
+    }
+    sb.append(first ? "},\n" : "\n  },\n");
+
+    sb.append("  \"totals\": ");
+    jsonCounts(sb, totals());
+    sb.append("\n}\n");
+    out.print(sb);
+  }
+
+  private void jsonNode(StringBuilder sb, Node node, String indent) {
+    String ind2 = indent + "  ";
+    sb.append(indent).append("{\n");
+    sb.append(ind2).append("\"id\": ").append(node.id).append(",\n");
+    sb.append(ind2).append("\"kind\": ").append(jsonString(node.kind))
+                   .append(",\n");
+    if (node.name != null) {
+      sb.append(ind2).append("\"name\": ").append(jsonString(node.name))
+                     .append(",\n");
+    }
+    if (node.callee != null) {
+      sb.append(ind2).append("\"callee\": ")
+        .append(jsonString(node.callee.uniqueName())).append(",\n");
+    }
+    sb.append(ind2).append("\"target\": ")
+                   .append(jsonString(targetString(node.target)))
+                   .append(",\n");
+    if (!node.waitsOn.isEmpty()) {
+      sb.append(ind2).append("\"waits_on\": ");
+      jsonVarList(sb, node.waitsOn);
+      sb.append(",\n");
+    }
+    if (!node.produces.isEmpty()) {
+      sb.append(ind2).append("\"produces\": ");
+      jsonVarList(sb, node.produces);
+      sb.append(",\n");
+    }
+    sb.append(ind2).append("\"iterations\": ")
+                   .append(jsonEstimate(node.iterations)).append(",\n");
+    sb.append(ind2).append("\"estimate\": ");
+    jsonCounts(sb, node.total());
+    if (!node.children.isEmpty()) {
+      sb.append(",\n").append(ind2).append("\"children\": [\n");
+      for (int i = 0; i < node.children.size(); i++) {
+        if (i > 0) {
+          sb.append(",\n");
+        }
+        jsonNode(sb, node.children.get(i), ind2 + "  ");
+      }
+      sb.append("\n").append(ind2).append("]");
+    }
+    sb.append("\n").append(indent).append("}");
+  }
+
+  private static void jsonCounts(StringBuilder sb, OpCounts counts) {
+    sb.append("{");
+    for (OpKind kind: OpKind.values()) {
+      sb.append("\"").append(kind.jsonName()).append("\": ")
+        .append(jsonEstimate(counts.get(kind))).append(", ");
+    }
+    sb.append("\"data_store_ops\": ")
+      .append(jsonEstimate(counts.dataStoreOps())).append("}");
+  }
+
+  private static void jsonVarList(StringBuilder sb, List<Var> vars) {
+    sb.append("[");
+    for (int i = 0; i < vars.size(); i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(jsonString(vars.get(i).name()));
+    }
+    sb.append("]");
+  }
+
+  /**
+   * Constant estimates are numbers, symbolic estimates are strings
+   */
+  private static String jsonEstimate(Estimate e) {
+    if (e.isConstant()) {
+      return e.toString();
+    }
+    return jsonString(e.toString());
+  }
+
+  private static String jsonString(String s) {
+    return "\"" + StringEscapeUtils.escapeJson(s) + "\"";
+  }
+
+  private static String targetString(ExecTarget target) {
+    String cx = target.targetContext() == null ? "ANY" :
+                                target.targetContext().toString();
+    if (target.isDispatched()) {
+      return "dispatched " + cx;
+    } else if (target.isAsync()) {
+      return "async " + cx;
+    } else {
+      return "sync " + cx;
+    }
+  }
+
+  private void writeDOT(PrintStream out) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("digraph tasks {\n");
+    sb.append("  node [shape=box, fontsize=10];\n");
+
+    List<String> callEdges = new ArrayList<String>();
+    for (Node f: functions.values()) {
+      sb.append("  subgraph ").append(dotString("cluster_" + f.name))
+        .append(" {\n");
+      sb.append("    label=").append(dotString(f.name)).append(";\n");
+      Map<Var, Node> producers = new HashMap<Var, Node>();
+      dotNodes(sb, f, producers, callEdges);
+      dotDataEdges(sb, f, producers);
+      sb.append("  }\n");
+    }
+
+    for (String edge: callEdges) {
+      sb.append(edge);
+    }
+    sb.append("}\n");
+    out.print(sb);
+  }
+
+  private void dotNodes(StringBuilder sb, Node node, Map<Var, Node> producers,
+                        List<String> callEdges) {
+    StringBuilder label = new StringBuilder();
+    label.append(node.kind);
+    if (node.name != null) {
+      label.append(" ").append(node.name);
+    }
+    if (node.callee != null) {
+      label.append(" ").append(node.callee.uniqueName());
+    }
+    label.append("\n").append(targetString(node.target));
+    if (!node.iterations.equals(Estimate.ONE)) {
+      label.append("\niterations: ").append(node.iterations);
+    }
+    OpCounts total = node.total();
+    label.append("\ntasks: ").append(total.get(OpKind.TASKS));
+    label.append("\ndata store ops: ").append(total.dataStoreOps());
+
+    sb.append("    n").append(node.id).append(" [label=")
+      .append(dotString(label.toString())).append("];\n");
+
+    for (Var v: node.produces) {
+      producers.put(v, node);
+    }
+
+    for (Node child: node.children) {
+      dotNodes(sb, child, producers, callEdges);
+      sb.append("    n").append(node.id).append(" -> n").append(child.id)
+        .append(";\n");
+    }
+
+    if (node.callee != null) {
+      Node callee = functions.get(node.callee);
+      if (callee != null) {
+        callEdges.add("  n" + node.id + " -> n" + callee.id +
+                      " [style=dashed];\n");
+      }
+    }
+  }
+
+  /**
+   * Add edges from constructs producing variables to constructs waiting
+   * on them.
+   */
+  private void dotDataEdges(StringBuilder sb, Node node,
+                            Map<Var, Node> producers) {
+    for (Var v: node.waitsOn) {
+      Node producer = producers.get(v);
+      if (producer != null && producer != node) {
+        sb.append("    n").append(producer.id).append(" -> n")
+          .append(node.id).append(" [style=dotted, label=")
+          .append(dotString(v.name())).append("];\n");
+      }
+    }
+    for (Node child: node.children) {
+      dotDataEdges(sb, child, producers);
+    }
+  }
+
+  private static String dotString(String s) {
+    return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"")
+                   .replace("\n", "\\n") + "\"";
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.PassedVar;
+import exm.stc.common.lang.Var;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
+import exm.stc.ic.tree.ForeachLoops.AbstractForeachLoop;
+import exm.stc.ic.tree.ForeachLoops.ForeachLoop;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICContinuations.ContinuationType;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.CleanupAction;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
+import exm.stc.ic.tree.Opcode;
+
+/**
+ * Batch inserts into a container from the body of a foreach or range
+ * loop, e.g. foreach i in [0:N] { A[i] = f(i); }.  The backend buffers
+ * the elements inserted by each leaf of the loop, which runs a chunk of
+ * iterations in one task, and inserts them all in one operation after the
+ * leaf's last iteration, along with the writers refcount decrements.
+ *
+ * A container is batched if it's declared outside the loop and is only
+ * used in the loop body by array stores or bag inserts that run in the
+ * same task as the loop iteration, i.e. not in any nested continuation
+ * other than synchronous conditionals.
+ *
+ * Writers refcount decrements are buffered along with inserts, so this
+ * must run after refcounts are placed.
+ */
+public class BatchInserts extends FunctionOptimizerPass {
+
+  @Override
+  public String getPassName() {
+    return "Batch inserts";
+  }
+
+  @Override
+  public String getConfigEnabledKey() {
+    return Settings.OPT_BATCH_INSERTS;
+  }
+
+  @Override
+  public void optimize(Logger logger, Function f) throws UserException {
+    findLoops(logger, f, f.mainBlock());
+  }
+
+  private static void findLoops(Logger logger, Function f, Block block) {
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.CONDITIONAL) {
+        for (Block inner: stmt.conditional().getBlocks()) {
+          findLoops(logger, f, inner);
+        }
+      }
+    }
+
+    for (Continuation cont: block.getContinuations()) {
+      if (cont.getType() == ContinuationType.FOREACH_LOOP ||
+          cont.getType() == ContinuationType.RANGE_LOOP) {
+        batchLoop(logger, f, (AbstractForeachLoop)cont);
+      }
+      for (Block inner: cont.getBlocks()) {
+        findLoops(logger, f, inner);
+      }
+    }
+  }
+
+  private static void batchLoop(Logger logger, Function f,
+                                AbstractForeachLoop loop) {
+    Set<Var> inserted = new LinkedHashSet<Var>();
+    Set<Var> excluded = new HashSet<Var>();
+    if (loop.getType() == ContinuationType.FOREACH_LOOP) {
+      excluded.add(((ForeachLoop)loop).getArrayVar());
+    }
+
+    findInserts(loop.getLoopBody(), true, inserted, excluded);
+
+    for (Var container: inserted) {
+      if (!excluded.contains(container)) {
+        logger.trace("Batching inserts into " + container.name() + " in "
+                     + loop.loopName() + " in " + f.id());
+        loop.addBatchedInsert(container);
+      }
+    }
+  }
+
+  /**
+   * Find containers inserted into and variables used otherwise
+   * @param block
+   * @param sameTask if block runs in same task as loop iteration
+   * @param inserted containers inserted into by batchable instructions
+   * @param excluded variables that can't be batched
+   */
+  private static void findInserts(Block block, boolean sameTask,
+                          Set<Var> inserted, Set<Var> excluded) {
+    // Must be declared outside loop to be same container in all iterations
+    excluded.addAll(block.variables());
+
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.INSTRUCTION) {
+        Instruction inst = stmt.instruction();
+        if (sameTask && isBatchable(inst)) {
+          inserted.add(inst.getOutput(0));
+        } else {
+          addUses(inst, excluded);
+        }
+      } else {
+        assert(stmt.type() == StatementType.CONDITIONAL);
+        Continuation cond = stmt.conditional();
+        excluded.addAll(cond.requiredVars(false));
+        for (Block inner: cond.getBlocks()) {
+          findInserts(inner, sameTask && !cond.isAsync(), inserted,
+                      excluded);
+        }
+      }
+    }
+
+    for (Continuation cont: block.getContinuations()) {
+      excluded.addAll(cont.requiredVars(false));
+      if (cont.isAsync()) {
+        for (PassedVar passed: cont.getAllPassedVars()) {
+          excluded.add(passed.var);
+        }
+        excluded.addAll(cont.getKeepOpenVars());
+      }
+      for (Block inner: cont.getBlocks()) {
+        findInserts(inner, false, inserted, excluded);
+      }
+    }
+
+    for (CleanupAction cleanup: block.getCleanups()) {
+      addUses(cleanup.action(), excluded);
+    }
+  }
+
+  private static boolean isBatchable(Instruction inst) {
+    return inst.op == Opcode.ARR_STORE || inst.op == Opcode.BAG_INSERT;
+  }
+
+  private static void addUses(Instruction inst, Set<Var> uses) {
+    uses.addAll(inst.getOutputs());
+    for (Arg in: inst.getInputs()) {
+      if (in.isVar()) {
+        uses.add(in.getVar());
+      }
+    }
+  }
+}
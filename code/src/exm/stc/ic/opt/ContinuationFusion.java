@@ -15,21 +15,51 @@
  */
 package exm.stc.ic.opt;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+
 import exm.stc.common.Settings;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.ExecTarget;
 import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.PassedVar;
+import exm.stc.common.lang.TaskProp.TaskProps;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.WaitMode;
+import exm.stc.common.lang.WaitVar;
+import exm.stc.ic.componentaliases.Component;
+import exm.stc.ic.componentaliases.ComponentAlias;
+import exm.stc.ic.componentaliases.ComponentGraph;
 import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
 import exm.stc.ic.tree.Conditionals.IfStatement;
 import exm.stc.ic.tree.ForeachLoops.ForeachLoop;
 import exm.stc.ic.tree.ForeachLoops.RangeLoop;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICContinuations.ContinuationType;
+import exm.stc.ic.tree.ICContinuations.WaitStatement;
+import exm.stc.ic.tree.ICInstructions;
+import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.RenameMode;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
+import exm.stc.ic.tree.Opcode;
+import exm.stc.ic.tree.TurbineOp;
 
 /**
  * Fuse together equivalent continuations e.g. if statements with
@@ -39,6 +69,8 @@ import exm.stc.ic.tree.ICTree.Function;
  *  * if statements with same condition
  *  * range loops with same bounds and same loop settings
  *  * foreach loops over same array with same loop settings
+ *  * foreach loops over an array into the range loop that produces
+ *    the array, with same loop settings
  *
  * Doing this for loops has the potential to reduce overhead, but the biggest
  * gains might be from the optimizations that can follow on after the fusion
@@ -57,20 +89,28 @@ public class ContinuationFusion extends FunctionOptimizerPass {
 
   @Override
   public void optimize(Logger logger, Function f) {
-    fuseRecursive(logger, f, f.mainBlock());
+    ProducerInfo producers = null;
+    if (Settings.getBooleanUnchecked(Settings.OPT_PRODUCER_CONSUMER_FUSION)) {
+      producers = new ProducerInfo(f);
+    }
+    fuseRecursive(logger, f, f.mainBlock(), producers);
   }
 
-  private static void fuseRecursive(Logger logger, Function f, Block block) {
+  private static void fuseRecursive(Logger logger, Function f, Block block,
+                                    ProducerInfo producers) {
     if (block.getContinuations().size() > 1) {
       // no point trying to fuse anything if we don't have two continuations
       // to rub together
       fuseNonRecursive(f.id(), block);
+      if (producers != null) {
+        fuseProducerConsumer(logger, f.id(), block, producers);
+      }
     }
 
     // Recurse on child blocks
     for (Continuation c: block.allComplexStatements()) {
       for (Block child: c.getBlocks()) {
-        fuseRecursive(logger, f, child);
+        fuseRecursive(logger, f, child, producers);
       }
     }
   }
@@ -182,4 +222,280 @@ public class ContinuationFusion extends FunctionOptimizerPass {
       }
     }
   }
+
+  /**
+   * Writers and component relationships of containers in a function,
+   * used to check that a range loop is the only producer of a container.
+   */
+  private static class ProducerInfo {
+    /** Instructions writing each variable */
+    final ListMultimap<Var, Instruction> writers =
+                                      ArrayListMultimap.create();
+
+    /** Potential component relationships between variables */
+    final ComponentGraph components = new ComponentGraph();
+
+    /** Variables declared in function body */
+    final Set<Var> declared = new HashSet<Var>();
+
+    final Set<Var> params = new HashSet<Var>();
+
+    ProducerInfo(Function f) {
+      params.addAll(f.getInputList());
+      params.addAll(f.getOutputList());
+      walk(f.mainBlock());
+    }
+
+    private void walk(Block block) {
+      declared.addAll(block.variables());
+      for (Statement stmt: block.getStatements()) {
+        if (stmt.type() == StatementType.INSTRUCTION) {
+          Instruction inst = stmt.instruction();
+          for (Var out: inst.getOutputs()) {
+            writers.put(out, inst);
+          }
+          for (ComponentAlias alias: inst.getComponentAliases()) {
+            components.addPotentialComponent(alias);
+          }
+        } else {
+          assert(stmt.type() == StatementType.CONDITIONAL);
+          for (Block inner: stmt.conditional().getBlocks()) {
+            walk(inner);
+          }
+        }
+      }
+
+      for (Continuation cont: block.getContinuations()) {
+        for (Block inner: cont.getBlocks()) {
+          walk(inner);
+        }
+      }
+    }
+
+    /**
+     * @return the single instruction writing container, if container
+     *      can't be written by anything else, either directly or through
+     *      an alias of it or its elements
+     */
+    Instruction soleWriter(Var container) {
+      if (params.contains(container) || !declared.contains(container) ||
+          container.storage() == Alloc.ALIAS ||
+          container.storage() == Alloc.GLOBAL_CONST) {
+        return null;
+      }
+
+      List<Instruction> containerWriters = writers.get(container);
+      if (containerWriters.size() != 1) {
+        return null;
+      }
+
+      // Container mustn't be an alias or part of anything else
+      Set<Var> wholeAliases = components.findPotentialAliases(
+          new Component(container, Collections.<Arg>emptyList()));
+      wholeAliases.remove(container);
+      if (!wholeAliases.isEmpty()) {
+        return null;
+      }
+
+      // Aliases of elements can be read, but not written
+      Set<Var> elemAliases = new HashSet<Var>();
+      components.findPotentialAliases(container,
+                      Collections.singletonList((Arg)null), elemAliases);
+      elemAliases.remove(container);
+      for (Var elemAlias: elemAliases) {
+        for (Instruction writer: writers.get(elemAlias)) {
+          if (!writer.isInitialized(elemAlias)) {
+            return null;
+          }
+        }
+      }
+      return containerWriters.get(0);
+    }
+  }
+
+  /**
+   * Fuse foreach loops over a container into the range loop producing the
+   * container, e.g.
+   *
+   *   foreach i in [0:N] { B[i] = f(i); }
+   *   foreach x, j in B { C[j] = g(x); }
+   *
+   * becomes
+   *
+   *   foreach i in [0:N] { B[i] = f(i); C[i] = g(f(i)); }
+   *
+   * The consumer iterates over exactly the elements written by the
+   * producer if the producer's loop body unconditionally stores to B[i]
+   * once per iteration, and nothing else can write B or its elements.
+   * The consumer's body then runs in the producer's iteration as soon as
+   * the element is available.  If B isn't used elsewhere, it can then be
+   * eliminated altogether.
+   *
+   * The consumer loop, possibly wrapped in a wait for the container, must
+   * be in this block, and the producer either in this block or nested in
+   * wait statements in this block.
+   */
+  private static void fuseProducerConsumer(Logger logger, FnID function,
+                              Block block, ProducerInfo producers) {
+    for (Continuation cont:
+            new ArrayList<Continuation>(block.getContinuations())) {
+      ForeachLoop consumer = consumerLoop(cont);
+      if (consumer == null) {
+        continue;
+      }
+
+      Var container = consumer.getArrayVar();
+      Instruction store = producers.soleWriter(container);
+      if (store == null) {
+        continue;
+      }
+
+      RangeLoop producer = findProducer(block, cont, store);
+      if (producer != null && canFuse(producer, store, consumer)) {
+        logger.trace("Fusing consumer " + consumer.loopName() +
+                     " into producer " + producer.loopName());
+        block.removeContinuation(cont);
+        fuseConsumer(function, producer, store, consumer);
+      }
+    }
+  }
+
+  /**
+   * @return foreach loop if continuation is foreach loop over a container,
+   *      optionally wrapped in a wait for that container, otherwise null
+   */
+  private static ForeachLoop consumerLoop(Continuation cont) {
+    if (cont.getType() == ContinuationType.FOREACH_LOOP) {
+      return (ForeachLoop)cont;
+    } else if (cont.getType() != ContinuationType.WAIT_STATEMENT) {
+      return null;
+    }
+
+    WaitStatement wait = (WaitStatement)cont;
+    Block waitBlock = wait.getBlock();
+    if (wait.getMode() != WaitMode.WAIT_ONLY ||
+        wait.getWaitVars().size() != 1 ||
+        !waitBlock.getStatements().isEmpty() ||
+        !waitBlock.variables().isEmpty() ||
+        !waitBlock.getCleanups().isEmpty() ||
+        waitBlock.getContinuations().size() != 1 ||
+        waitBlock.getContinuation(0).getType() !=
+                                    ContinuationType.FOREACH_LOOP) {
+      return null;
+    }
+
+    ForeachLoop loop = (ForeachLoop)waitBlock.getContinuation(0);
+    if (!loop.getArrayVar().equals(wait.getWaitVars().get(0).var)) {
+      return null;
+    }
+    return loop;
+  }
+
+  /**
+   * Find range loop with store at top level of body
+   * @param block
+   * @param exclude continuation to skip
+   * @param store
+   * @return
+   */
+  private static RangeLoop findProducer(Block block, Continuation exclude,
+                                        Instruction store) {
+    for (Continuation cont: block.getContinuations()) {
+      if (cont == exclude) {
+        continue;
+      } else if (cont.getType() == ContinuationType.RANGE_LOOP) {
+        RangeLoop loop = (RangeLoop)cont;
+        for (Statement stmt: loop.getLoopBody().getStatements()) {
+          if (stmt.type() == StatementType.INSTRUCTION &&
+              stmt.instruction() == store) {
+            return loop;
+          }
+        }
+      } else if (cont.getType() == ContinuationType.WAIT_STATEMENT) {
+        RangeLoop loop = findProducer(((WaitStatement)cont).getBlock(),
+                                      exclude, store);
+        if (loop != null) {
+          return loop;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static boolean canFuse(RangeLoop producer, Instruction store,
+                                 ForeachLoop consumer) {
+    // Respect any user annotations
+    if (producer.splitDegree() != consumer.splitDegree() ||
+        producer.leafDegree() != consumer.leafDegree()) {
+      return false;
+    }
+
+    // Each iteration must store to distinct key
+    Var loopVar = producer.loopVar();
+    if (!Types.isIntVal(loopVar) || !producer.increment().isInt() ||
+        producer.increment().getInt() == 0) {
+      return false;
+    }
+    if (!store.getInput(0).isVar() ||
+        !store.getInput(0).getVar().equals(loopVar)) {
+      return false;
+    }
+
+    Var member = consumer.loopVar();
+    if (store.op == Opcode.ARR_STORE) {
+      if (!Types.isPrimValue(member)) {
+        return false;
+      }
+    } else if (store.op == Opcode.ARR_COPY_IN_IMM) {
+      Var src = store.getInput(1).getVar();
+      if (!Types.isScalarFuture(src) ||
+          !Types.retrievedType(src).assignableTo(member.type())) {
+        return false;
+      }
+    } else {
+      return false;
+    }
+
+    Var counter = consumer.loopCounterVar();
+    if (counter != null && !counter.type().equals(loopVar.type())) {
+      return false;
+    }
+
+    // Consumer body may rely on container being closed
+    return !OptUtil.usesVar(consumer.getLoopBody(), consumer.getArrayVar());
+  }
+
+  private static void fuseConsumer(FnID function, RangeLoop producer,
+                                   Instruction store, ForeachLoop consumer) {
+    Var counter = consumer.loopCounterVar();
+    if (counter != null) {
+      Map<Var, Arg> renames = new HashMap<Var, Arg>();
+      renames.put(counter, producer.loopVar().asArg());
+      consumer.renameVars(function, renames, RenameMode.REPLACE_VAR, true);
+    }
+
+    Var member = consumer.loopVar();
+    Block consumerBody = consumer.getLoopBody();
+    Block producerBody = producer.getLoopBody();
+    if (store.op == Opcode.ARR_STORE) {
+      // Value is available in same iteration
+      consumerBody.addVariable(member);
+      consumerBody.addInstructionFront(
+          ICInstructions.valueSet(member, store.getInput(1)));
+      producerBody.insertInline(consumerBody);
+    } else {
+      assert(store.op == Opcode.ARR_COPY_IN_IMM);
+      Var src = store.getInput(1).getVar();
+      WaitStatement wait = new WaitStatement(
+          consumer.loopName() + "-fused-wait",
+          new WaitVar(src, false).asList(), PassedVar.NONE, Var.NONE,
+          WaitMode.WAIT_ONLY, false, ExecTarget.nonDispatchedAny(),
+          new TaskProps());
+      Block waitBlock = wait.getBlock();
+      waitBlock.addVariable(member);
+      waitBlock.addInstruction(TurbineOp.retrieveScalar(member, src));
+      waitBlock.insertInline(consumerBody);
+      producerBody.addContinuation(wait);
+    }
+  }
 }
@@ -0,0 +1,619 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.Operators.BuiltinOpcode;
+import exm.stc.common.lang.TaskProp.TaskPropKey;
+import exm.stc.common.lang.TaskProp.TaskProps;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.Var.DefType;
+import exm.stc.common.lang.Var.VarProvenance;
+import exm.stc.ic.tree.ForeachLoops.RangeLoop;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICContinuations.ContinuationType;
+import exm.stc.ic.tree.ICContinuations.WaitStatement;
+import exm.stc.ic.tree.ICInstructions.Builtin;
+import exm.stc.ic.tree.ICInstructions.CommonFunctionCall;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
+
+/**
+ * Assign task priorities based on an estimate of the critical path.
+ *
+ * Within each block we build a dependency graph between statements and
+ * continuations from the data they write and read, treating aliases as
+ * the same data as the variable they alias.  The height of each node is
+ * the longest chain of spawned tasks that depends on it, including tasks
+ * spawned inside nested blocks and called functions.  Tasks without an
+ * explicit priority are given the height as their priority, so that
+ * tasks that gate more downstream work are run first.
+ *
+ * Range loops where later iterations depend on data written by earlier
+ * iterations, e.g. wavefront computations, have a chain of tasks that
+ * isn't visible statically, so tasks inside them also get the number of
+ * remaining iterations added to their priority at runtime.
+ *
+ * Explicit priorities set by the user are never modified, and tasks
+ * nested inside them inherit the explicit priority as usual.
+ */
+public class CriticalPathPriority implements OptimizerPass {
+
+  @Override
+  public String getPassName() {
+    return "Critical path priority";
+  }
+
+  @Override
+  public String getConfigEnabledKey() {
+    return Settings.OPT_CRITICAL_PATH_PRIORITY;
+  }
+
+  @Override
+  public void optimize(Logger logger, Program program) throws UserException {
+    Heights heights = new Heights(program);
+    for (Function f: program.functions()) {
+      FunctionGraph graph = heights.graph(f);
+      annotate(logger, f, graph, f.mainBlock(), 0, null, null);
+    }
+  }
+
+  /**
+   * Annotate tasks in block with priorities.
+   * @param tail height of work in enclosing blocks that depends on this block
+   * @param inherited priority tasks in block inherit, null if unknown
+   * @param term runtime priority term for enclosing loops, null if none
+   */
+  private static void annotate(Logger logger, Function f,
+      FunctionGraph graph, Block block, int tail, Integer inherited,
+      Var term) {
+    Map<Integer, Var> prioVars = new HashMap<Integer, Var>();
+    for (Node node: graph.nodes(block)) {
+      int prio = graph.height(node) + tail;
+      int innerTail = graph.succHeight(node) + tail;
+      if (node.inst != null) {
+        Instruction inst = node.inst;
+        TaskProps props = inst.getTaskProps();
+        if (inst.execMode().isAsync() && props != null &&
+            !props.containsKey(TaskPropKey.PRIORITY)) {
+          setPriority(block, props, prio, inherited, term, prioVars);
+        }
+        continue;
+      }
+
+      Continuation cont = node.cont;
+      if (cont.getType() == ContinuationType.WAIT_STATEMENT) {
+        WaitStatement wait = (WaitStatement)cont;
+        if (wait.getTaskProps().containsKey(TaskPropKey.PRIORITY)) {
+          // Don't override explicit priority
+          continue;
+        }
+        setPriority(block, wait.getTaskProps(), prio, inherited, term,
+                    prioVars);
+        if (term == null) {
+          annotate(logger, f, graph, wait.getBlock(), innerTail, prio, null);
+        }
+        // Otherwise nested tasks inherit runtime priority
+      } else if (cont.getType() == ContinuationType.RANGE_LOOP &&
+                 isLoopCarried(graph, (RangeLoop)cont)) {
+        RangeLoop loop = (RangeLoop)cont;
+        logger.trace("Adding remaining iterations to priorities in " +
+                     loop.loopName() + " in " + f.id());
+        Block body = loop.getLoopBody();
+        Var loopTerm = new Var(Types.V_INT,
+            body.uniqueVarName(Var.VALUEOF_VAR_PREFIX + "critpath"),
+            Alloc.LOCAL, DefType.LOCAL_COMPILER,
+            VarProvenance.optimizerTmp());
+        body.addVariable(loopTerm);
+
+        annotate(logger, f, graph, body, innerTail, null, loopTerm);
+
+        // Add to front after annotating, so that term is computed first
+        if (term == null) {
+          body.addInstructionFront(Builtin.createLocal(BuiltinOpcode.MINUS_INT,
+              loopTerm, Arrays.asList(loop.end(), loop.loopVar().asArg())));
+        } else {
+          Var remaining = new Var(Types.V_INT,
+              body.uniqueVarName(Var.VALUEOF_VAR_PREFIX + "critpath"),
+              Alloc.LOCAL, DefType.LOCAL_COMPILER,
+              VarProvenance.optimizerTmp());
+          body.addVariable(remaining);
+          body.addInstructionFront(Builtin.createLocal(BuiltinOpcode.PLUS_INT,
+              loopTerm, Arrays.asList(term.asArg(), remaining.asArg())));
+          body.addInstructionFront(Builtin.createLocal(BuiltinOpcode.MINUS_INT,
+              remaining, Arrays.asList(loop.end(), loop.loopVar().asArg())));
+        }
+      } else {
+        for (Block inner: cont.getBlocks()) {
+          annotate(logger, f, graph, inner, innerTail, inherited, term);
+        }
+      }
+    }
+  }
+
+  private static void setPriority(Block block, TaskProps props, int prio,
+      Integer inherited, Var term, Map<Integer, Var> prioVars) {
+    if (term != null) {
+      props.put(TaskPropKey.PRIORITY, runtimePriority(block, term, prio,
+                                                      prioVars));
+    } else if (inherited == null || prio != inherited) {
+      props.put(TaskPropKey.PRIORITY, Arg.newInt(prio));
+    }
+  }
+
+  /**
+   * @return var with value of term + prio, shared between tasks in block
+   */
+  private static Arg runtimePriority(Block block, Var term, int prio,
+      Map<Integer, Var> prioVars) {
+    if (prio == 0) {
+      return term.asArg();
+    }
+    Var prioVar = prioVars.get(prio);
+    if (prioVar == null) {
+      prioVar = new Var(Types.V_INT,
+          block.uniqueVarName(Var.VALUEOF_VAR_PREFIX + "prio"),
+          Alloc.LOCAL, DefType.LOCAL_COMPILER, VarProvenance.optimizerTmp());
+      block.addVariable(prioVar);
+      block.addInstructionFront(Builtin.createLocal(BuiltinOpcode.PLUS_INT,
+          prioVar, Arrays.asList(term.asArg(), Arg.newInt(prio))));
+      prioVars.put(prio, prioVar);
+    }
+    return prioVar.asArg();
+  }
+
+  /**
+   * @return true if iterations of loop can depend on data written by
+   *          earlier iterations, and loop counts upwards
+   */
+  private static boolean isLoopCarried(FunctionGraph graph, RangeLoop loop) {
+    Arg incr = loop.increment();
+    if (!incr.isInt() || incr.getInt() <= 0) {
+      return false;
+    }
+    // Compare whole variables, since keys will differ between iterations
+    Node node = graph.contNode(loop);
+    Set<Var> readVars = new HashSet<Var>();
+    for (Datum read: node.reads) {
+      readVars.add(read.var);
+    }
+    for (Datum written: node.writes) {
+      if (readVars.contains(written.var)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Data read or written: a variable, or a member of a container or
+   * struct variable identified by a path of keys.
+   */
+  private static class Datum {
+    final Var var;
+    /** Keys of nested members, empty for whole variable */
+    final List<Arg> path;
+
+    Datum(Var var, List<Arg> path) {
+      this.var = var;
+      this.path = path;
+    }
+
+    Datum member(Arg key) {
+      List<Arg> memberPath = new ArrayList<Arg>(path);
+      memberPath.add(key);
+      return new Datum(var, memberPath);
+    }
+
+    /**
+     * @return true if this and other may be the same data, assuming that
+     *        different keys refer to different members
+     */
+    boolean overlaps(Datum other) {
+      if (!var.equals(other.var)) {
+        return false;
+      }
+      int common = Math.min(path.size(), other.path.size());
+      return path.subList(0, common).equals(other.path.subList(0, common));
+    }
+
+    @Override
+    public int hashCode() {
+      return var.hashCode() * 31 + path.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Datum)) {
+        return false;
+      }
+      Datum other = (Datum)obj;
+      return var.equals(other.var) && path.equals(other.path);
+    }
+  }
+
+  /**
+   * Statement or continuation in dependency graph
+   */
+  private static class Node {
+    final Instruction inst;
+    final Continuation cont;
+
+    /** Data read or written, with aliases resolved */
+    final Set<Datum> reads = new HashSet<Datum>();
+    final Set<Datum> writes = new HashSet<Datum>();
+    /** Variables declared inside continuation */
+    final Set<Var> declared = new HashSet<Var>();
+
+    /** 1 if node spawns a task */
+    int weight;
+    /** Height of tasks nested inside node */
+    int inner;
+
+    final List<Node> succs = new ArrayList<Node>();
+    int succHeight = -1;
+    boolean visiting = false;
+
+    Node(Instruction inst, Continuation cont) {
+      this.inst = inst;
+      this.cont = cont;
+    }
+  }
+
+  /**
+   * Heights of functions in program, computed on demand
+   */
+  private static class Heights {
+    private final Program program;
+    private final Map<FnID, FunctionGraph> graphs =
+                                  new HashMap<FnID, FunctionGraph>();
+    private final Map<FnID, Integer> heights = new HashMap<FnID, Integer>();
+    /** Functions being computed, to handle recursion */
+    private final Set<FnID> inProgress = new HashSet<FnID>();
+
+    Heights(Program program) {
+      this.program = program;
+    }
+
+    FunctionGraph graph(Function f) {
+      FunctionGraph graph = graphs.get(f.id());
+      if (graph == null) {
+        graph = new FunctionGraph(this, f);
+        graphs.put(f.id(), graph);
+      }
+      return graph;
+    }
+
+    int functionHeight(FnID id) {
+      Integer height = heights.get(id);
+      if (height != null) {
+        return height;
+      }
+      Function f = program.lookupFunction(id);
+      if (f == null || inProgress.contains(id)) {
+        return 0;
+      }
+      inProgress.add(id);
+      int result = graph(f).blockHeight(f.mainBlock());
+      inProgress.remove(id);
+      heights.put(id, result);
+      return result;
+    }
+  }
+
+  /**
+   * Dependency graphs for blocks in a function, built on demand
+   */
+  private static class FunctionGraph {
+    private final Heights heights;
+    /** Data that alias variables refer to */
+    private final Map<Var, Datum> aliases = new HashMap<Var, Datum>();
+    private final Map<Block, List<Node>> blockNodes =
+                                      new HashMap<Block, List<Node>>();
+    private final Map<Continuation, Node> contNodes =
+                                      new HashMap<Continuation, Node>();
+
+    FunctionGraph(Heights heights, Function f) {
+      this.heights = heights;
+      findAliases(f.mainBlock());
+    }
+
+    private void findAliases(Block block) {
+      for (Statement stmt: block.getStatements()) {
+        if (stmt.type() == StatementType.INSTRUCTION) {
+          findAliases(stmt.instruction());
+        } else {
+          assert(stmt.type() == StatementType.CONDITIONAL);
+          for (Block inner: stmt.conditional().getBlocks()) {
+            findAliases(inner);
+          }
+        }
+      }
+      for (Continuation cont: block.getContinuations()) {
+        for (Block inner: cont.getBlocks()) {
+          findAliases(inner);
+        }
+      }
+    }
+
+    private void findAliases(Instruction inst) {
+      switch (inst.op) {
+        case ARR_CREATE_ALIAS:
+          aliases.put(inst.getOutput(0),
+              resolve(inst.getInput(0).getVar()).member(inst.getInput(1)));
+          break;
+        case STRUCT_CREATE_ALIAS: {
+          Datum datum = resolve(inst.getInput(0).getVar());
+          for (Arg field: inst.getInputs().subList(1,
+                                          inst.getInputs().size())) {
+            datum = datum.member(field);
+          }
+          aliases.put(inst.getOutput(0), datum);
+          break;
+        }
+        case LOAD_REF:
+        case STORE_REF:
+        case COPY_REF:
+          aliases.put(inst.getOutput(0), resolve(inst.getInput(0).getVar()));
+          break;
+        case ARR_CREATE_NESTED_IMM:
+        case ARR_CREATE_NESTED_FUTURE:
+        case AREF_CREATE_NESTED_IMM:
+        case AREF_CREATE_NESTED_FUTURE:
+          aliases.put(inst.getOutput(0),
+              resolve(inst.getOutput(1)).member(inst.getInput(0)));
+          break;
+        case STRUCT_CREATE_NESTED:
+          aliases.put(inst.getOutput(0), resolve(inst.getOutput(1)));
+          break;
+        default:
+          break;
+      }
+    }
+
+    /**
+     * @return true if instruction only creates an alias to existing data
+     */
+    private static boolean isAliasOp(Instruction inst) {
+      switch (inst.op) {
+        case ARR_CREATE_ALIAS:
+        case STRUCT_CREATE_ALIAS:
+        case LOAD_REF:
+        case STORE_REF:
+        case COPY_REF:
+        case ARR_CREATE_NESTED_IMM:
+        case ARR_CREATE_NESTED_FUTURE:
+        case AREF_CREATE_NESTED_IMM:
+        case AREF_CREATE_NESTED_FUTURE:
+        case STRUCT_CREATE_NESTED:
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    /**
+     * @return true if instruction writes member of container with key
+     *          in first input
+     */
+    private static boolean isMemberWrite(Instruction inst) {
+      switch (inst.op) {
+        case ARR_STORE:
+        case ARR_STORE_FUTURE:
+        case AREF_STORE_IMM:
+        case AREF_STORE_FUTURE:
+        case ARR_COPY_IN_IMM:
+        case ARR_COPY_IN_FUTURE:
+        case AREF_COPY_IN_IMM:
+        case AREF_COPY_IN_FUTURE:
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    private Datum resolve(Var var) {
+      Datum alias = aliases.get(var);
+      return alias != null ? alias
+                           : new Datum(var, Collections.<Arg>emptyList());
+    }
+
+    List<Node> nodes(Block block) {
+      List<Node> nodes = blockNodes.get(block);
+      if (nodes != null) {
+        return nodes;
+      }
+
+      nodes = new ArrayList<Node>();
+      for (Statement stmt: block.getStatements()) {
+        if (stmt.type() == StatementType.INSTRUCTION) {
+          nodes.add(instNode(stmt.instruction()));
+        } else {
+          assert(stmt.type() == StatementType.CONDITIONAL);
+          nodes.add(contNode(stmt.conditional()));
+        }
+      }
+      for (Continuation cont: block.getContinuations()) {
+        nodes.add(contNode(cont));
+      }
+
+      for (Node pred: nodes) {
+        for (Node succ: nodes) {
+          if (pred != succ && overlaps(pred.writes, succ.reads)) {
+            pred.succs.add(succ);
+          }
+        }
+      }
+      blockNodes.put(block, nodes);
+      return nodes;
+    }
+
+    private Node instNode(Instruction inst) {
+      Node node = new Node(inst, null);
+      addUses(inst, node);
+      if (inst.execMode().isAsync()) {
+        node.weight = 1;
+      }
+      if (inst instanceof CommonFunctionCall) {
+        node.inner = heights.functionHeight(
+                          ((CommonFunctionCall)inst).functionID());
+      }
+      return node;
+    }
+
+    Node contNode(Continuation cont) {
+      Node node = contNodes.get(cont);
+      if (node != null) {
+        return node;
+      }
+      node = new Node(null, cont);
+      addUses(cont, node);
+      // Variables declared inside aren't visible to other nodes
+      removeDeclared(node.reads, node.declared);
+      removeDeclared(node.writes, node.declared);
+      if (cont.isAsync()) {
+        node.weight = 1;
+      }
+      for (Block inner: cont.getBlocks()) {
+        node.inner = Math.max(node.inner, blockHeight(inner));
+      }
+      contNodes.put(cont, node);
+      return node;
+    }
+
+    private void addUses(Instruction inst, Node node) {
+      if (isMemberWrite(inst)) {
+        node.writes.add(resolve(inst.getOutput(0)).member(inst.getInput(0)));
+      } else if (!isAliasOp(inst)) {
+        // Creating an alias doesn't write the aliased data
+        for (Var out: inst.getOutputs()) {
+          node.writes.add(resolve(out));
+        }
+      }
+      for (Arg in: inst.getInputs()) {
+        if (in.isVar()) {
+          node.reads.add(resolve(in.getVar()));
+        }
+      }
+    }
+
+    private void addUses(Continuation cont, Node node) {
+      for (Var v: cont.requiredVars(false)) {
+        node.reads.add(resolve(v));
+      }
+      for (Block inner: cont.getBlocks()) {
+        addUses(inner, node);
+      }
+    }
+
+    private void addUses(Block block, Node node) {
+      for (Var declared: block.variables()) {
+        node.declared.add(declared);
+      }
+      for (Statement stmt: block.getStatements()) {
+        if (stmt.type() == StatementType.INSTRUCTION) {
+          addUses(stmt.instruction(), node);
+        } else {
+          assert(stmt.type() == StatementType.CONDITIONAL);
+          addUses(stmt.conditional(), node);
+        }
+      }
+      for (Continuation cont: block.getContinuations()) {
+        addUses(cont, node);
+      }
+    }
+
+    private static void removeDeclared(Set<Datum> data, Set<Var> declared) {
+      Iterator<Datum> it = data.iterator();
+      while (it.hasNext()) {
+        if (declared.contains(it.next().var)) {
+          it.remove();
+        }
+      }
+    }
+
+    private static boolean overlaps(Set<Datum> a, Set<Datum> b) {
+      for (Datum x: a) {
+        for (Datum y: b) {
+          if (x.overlaps(y)) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    /**
+     * @return longest chain of tasks in block
+     */
+    int blockHeight(Block block) {
+      int height = 0;
+      for (Node node: nodes(block)) {
+        height = Math.max(height, node.weight + height(node));
+      }
+      return height;
+    }
+
+    /**
+     * @return longest chain of tasks inside or depending on node,
+     *          not counting task spawned by node
+     */
+    int height(Node node) {
+      return node.inner + succHeight(node);
+    }
+
+    /**
+     * @return longest chain of tasks depending on node
+     */
+    int succHeight(Node node) {
+      if (node.succHeight >= 0) {
+        return node.succHeight;
+      } else if (node.visiting) {
+        // Break cycles, e.g. between iterations of loops
+        return 0;
+      }
+      node.visiting = true;
+      int height = 0;
+      for (Node succ: node.succs) {
+        height = Math.max(height, succ.weight + height(succ));
+      }
+      node.visiting = false;
+      node.succHeight = height;
+      return height;
+    }
+  }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.util.Sets;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICInstructions;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.RenameMode;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
+import exm.stc.ic.tree.Opcode;
+
+/**
+ * Escape analysis for scalar futures that are only written and read by a
+ * single task.  The scope of a future is the innermost block enclosing all
+ * uses of it.  A future doesn't escape if:
+ * - it is only ever stored to or loaded from, never passed to a function,
+ *   waited on, or otherwise used by a continuation
+ * - it is only stored to in its scope, or in branches of synchronous
+ *   conditionals nested in it, i.e. in code that runs in the same task
+ *   before any continuations are spawned
+ * - it is only loaded from where it has definitely been stored to, either
+ *   later in the same task, or in continuations spawned after the store.
+ *
+ * Such futures are replaced with local values declared in their scope, so
+ * the create, store, load and refcount operations go away.  Continuations
+ * that read the value get it passed in by value.
+ *
+ * Value numbering already forwards stored values to loads when the store
+ * dominates the load, so this mainly catches futures assigned in different
+ * branches of a conditional.  Passing annotations are recomputed after
+ * this pass, so it must run before {@link FixupVariables}.
+ */
+public class DemoteFutures extends FunctionOptimizerPass {
+
+  @Override
+  public String getPassName() {
+    return "Demote futures";
+  }
+
+  @Override
+  public String getConfigEnabledKey() {
+    return Settings.OPT_DEMOTE_FUTURES;
+  }
+
+  @Override
+  public void optimize(Logger logger, Function f) throws UserException {
+    EscapeInfo info = new EscapeInfo();
+    findScopes(f.mainBlock(), null, 0, info);
+    findEscapes(f.mainBlock(), new HashSet<Var>(), new HashSet<Var>(), info);
+
+    Map<Var, Var> demote = new HashMap<Var, Var>();
+    for (Var cand: info.stored) {
+      if (!info.escaped.contains(cand)) {
+        info.declBlocks.get(cand).removeVarDeclarations(
+                                      Collections.singleton(cand));
+        demote.put(cand, OptUtil.createDerefTmp(info.scopes.get(cand), cand));
+        logger.trace("Demoting future " + cand + " in " + f.id());
+      }
+    }
+
+    if (demote.isEmpty()) {
+      return;
+    }
+
+    Map<Var, Arg> renames = new HashMap<Var, Arg>();
+    replaceOps(f.mainBlock(), demote, info, renames);
+
+    if (!renames.isEmpty()) {
+      removeDecls(f.mainBlock(), renames.keySet());
+      f.renameVars(renames, RenameMode.REPLACE_VAR, true);
+    }
+  }
+
+  private static class EscapeInfo {
+    /** Variables mapped to declaring block */
+    final Map<Var, Block> declBlocks = new HashMap<Var, Block>();
+
+    /** Blocks mapped to enclosing block */
+    final Map<Block, Block> parents = new HashMap<Block, Block>();
+
+    /** Nesting depth of blocks */
+    final Map<Block, Integer> depths = new HashMap<Block, Integer>();
+
+    /** Number of instructions assigning each variable */
+    final Map<Var, Integer> defCounts = new HashMap<Var, Integer>();
+
+    /** Candidates mapped to innermost block enclosing all uses */
+    final Map<Var, Block> scopes = new HashMap<Var, Block>();
+
+    /** Candidates that can't be demoted */
+    final Set<Var> escaped = new HashSet<Var>();
+
+    /** Candidates stored to at least once */
+    final Set<Var> stored = new HashSet<Var>();
+
+    void addUse(Var v, Block block) {
+      if (!isCandidate(v) || !declBlocks.containsKey(v)) {
+        return;
+      }
+      Block scope = scopes.get(v);
+      if (scope == null) {
+        scopes.put(v, block);
+        return;
+      }
+      // Find common ancestor
+      while (depths.get(block) > depths.get(scope)) {
+        block = parents.get(block);
+      }
+      while (depths.get(scope) > depths.get(block)) {
+        scope = parents.get(scope);
+      }
+      while (scope != block) {
+        scope = parents.get(scope);
+        block = parents.get(block);
+      }
+      scopes.put(v, scope);
+    }
+
+    /**
+     * @return true if value assigned by a single instruction can be
+     *    replaced by a demoted future declared in block
+     */
+    boolean canRename(Var value, Block block) {
+      Integer defs = defCounts.get(value);
+      if (defs == null || defs != 1) {
+        return false;
+      }
+      // Must be in scope of demoted future
+      for (Block b = declBlocks.get(value); b != null; b = parents.get(b)) {
+        if (b == block) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static boolean isCandidate(Var v) {
+    return (v.storage() == Alloc.STACK || v.storage() == Alloc.TEMP) &&
+           !v.mappedDecl() &&
+           (Types.isInt(v) || Types.isFloat(v) || Types.isBool(v) ||
+            Types.isString(v));
+  }
+
+  /**
+   * Walk block to build block tree and find scopes of candidates
+   * @param block
+   * @param parent enclosing block, or null for function main block
+   * @param depth
+   * @param info
+   */
+  private static void findScopes(Block block, Block parent, int depth,
+                                 EscapeInfo info) {
+    info.parents.put(block, parent);
+    info.depths.put(block, depth);
+    for (Var v: block.variables()) {
+      info.declBlocks.put(v, block);
+    }
+
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.INSTRUCTION) {
+        Instruction inst = stmt.instruction();
+        for (Var out: inst.getOutputs()) {
+          Integer defs = info.defCounts.get(out);
+          info.defCounts.put(out, defs == null ? 1 : defs + 1);
+          info.addUse(out, block);
+        }
+        for (Arg in: inst.getInputs()) {
+          if (in.isVar()) {
+            info.addUse(in.getVar(), block);
+          }
+        }
+      } else {
+        assert(stmt.type() == StatementType.CONDITIONAL);
+        findScopes(stmt.conditional(), block, depth, info);
+      }
+    }
+
+    for (Continuation cont: block.getContinuations()) {
+      findScopes(cont, block, depth, info);
+    }
+  }
+
+  private static void findScopes(Continuation cont, Block block, int depth,
+                                 EscapeInfo info) {
+    info.escaped.addAll(cont.requiredVars(false));
+    for (Block inner: cont.getBlocks()) {
+      findScopes(inner, block, depth + 1, info);
+    }
+  }
+
+  /**
+   * Walk block, checking stores and loads of candidates.
+   * @param block
+   * @param assigned candidates definitely stored to before this point
+   *                  in the current task: updated by walk
+   * @param storable candidates that can be stored to in this block
+   * @param info
+   */
+  private static void findEscapes(Block block, Set<Var> assigned,
+      Set<Var> storable, EscapeInfo info) {
+    storable = new HashSet<Var>(storable);
+    for (Map.Entry<Var, Block> e: info.scopes.entrySet()) {
+      if (e.getValue() == block) {
+        storable.add(e.getKey());
+      }
+    }
+
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.INSTRUCTION) {
+        checkInstruction(stmt.instruction(), assigned, storable, info);
+      } else {
+        assert(stmt.type() == StatementType.CONDITIONAL);
+        Continuation cond = stmt.conditional();
+        Set<Var> branchStorable = cond.isAsync() ?
+                                  new HashSet<Var>() : storable;
+        List<Set<Var>> branchAssigned = new ArrayList<Set<Var>>();
+        for (Block inner: cond.getBlocks()) {
+          Set<Var> innerAssigned = new HashSet<Var>(assigned);
+          findEscapes(inner, innerAssigned, branchStorable, info);
+          branchAssigned.add(innerAssigned);
+        }
+
+        if (cond.isExhaustiveSyncConditional()) {
+          assigned.addAll(Sets.intersection(branchAssigned));
+        }
+      }
+    }
+
+    // Continuations are spawned after statements, so can read anything
+    // assigned so far, but mustn't store to anything from outside
+    for (Continuation cont: block.getContinuations()) {
+      for (Block inner: cont.getBlocks()) {
+        findEscapes(inner, new HashSet<Var>(assigned), new HashSet<Var>(),
+                    info);
+      }
+    }
+  }
+
+  private static void checkInstruction(Instruction inst, Set<Var> assigned,
+      Set<Var> storable, EscapeInfo info) {
+    if (inst.op == Opcode.STORE_SCALAR) {
+      Var dst = inst.getOutput(0);
+      if (storable.contains(dst) && !assigned.contains(dst)) {
+        assigned.add(dst);
+        info.stored.add(dst);
+      } else {
+        info.escaped.add(dst);
+      }
+      return;
+    } else if (inst.op == Opcode.LOAD_SCALAR) {
+      Var src = inst.getInput(0).getVar();
+      if (!assigned.contains(src)) {
+        info.escaped.add(src);
+      }
+      info.escaped.addAll(inst.getOutputs());
+      return;
+    }
+
+    info.escaped.addAll(inst.getOutputs());
+    for (Arg in: inst.getInputs()) {
+      if (in.isVar()) {
+        info.escaped.add(in.getVar());
+      }
+    }
+  }
+
+  /**
+   * Replace stores and loads of demoted futures.
+   * @param renames loaded values to rename to demoted value
+   */
+  private static void replaceOps(Block block, Map<Var, Var> demote,
+      EscapeInfo info, Map<Var, Arg> renames) {
+    ListIterator<Statement> it = block.statementIterator();
+    while (it.hasNext()) {
+      Statement stmt = it.next();
+      if (stmt.type() == StatementType.CONDITIONAL) {
+        for (Block inner: stmt.conditional().getBlocks()) {
+          replaceOps(inner, demote, info, renames);
+        }
+        continue;
+      }
+
+      Instruction inst = stmt.instruction();
+      if (inst.op == Opcode.STORE_SCALAR &&
+          demote.containsKey(inst.getOutput(0))) {
+        Var val = demote.get(inst.getOutput(0));
+        it.set(ICInstructions.valueSet(val, inst.getInput(0)));
+      } else if (inst.op == Opcode.LOAD_SCALAR &&
+                 demote.containsKey(inst.getInput(0).getVar())) {
+        Var fut = inst.getInput(0).getVar();
+        Var val = demote.get(fut);
+        Var dst = inst.getOutput(0);
+        if (info.canRename(dst, info.scopes.get(fut))) {
+          // Avoid a copy by using the demoted value directly
+          renames.put(dst, val.asArg());
+          it.remove();
+        } else {
+          it.set(ICInstructions.valueSet(dst, val.asArg()));
+        }
+      }
+    }
+
+    for (Continuation cont: block.getContinuations()) {
+      for (Block inner: cont.getBlocks()) {
+        replaceOps(inner, demote, info, renames);
+      }
+    }
+  }
+
+  private static void removeDecls(Block block, Set<Var> vars) {
+    block.removeVarDeclarations(vars);
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.CONDITIONAL) {
+        for (Block inner: stmt.conditional().getBlocks()) {
+          removeDecls(inner, vars);
+        }
+      }
+    }
+    for (Continuation cont: block.getContinuations()) {
+      for (Block inner: cont.getBlocks()) {
+        removeDecls(inner, vars);
+      }
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Var;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
+import exm.stc.ic.tree.ForeachLoops.ForeachLoop;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICContinuations.ContinuationType;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
+
+/**
+ * Find foreach loops over shared containers where the loop body doesn't
+ * use the member variable, e.g. foreach _, i in A { B[i] = i; }.  The
+ * backend then only enumerates the keys of each chunk of the container,
+ * or just the container size if the keys aren't used either, rather than
+ * fetching all of the members from the data store.
+ *
+ * Earlier passes may remove or rename uses of the member variable, so
+ * this runs as late as possible.
+ */
+public class ForeachKeysOnly extends FunctionOptimizerPass {
+
+  @Override
+  public String getPassName() {
+    return "Foreach keys only";
+  }
+
+  @Override
+  public String getConfigEnabledKey() {
+    return Settings.OPT_FOREACH_KEYS_ONLY;
+  }
+
+  @Override
+  public void optimize(Logger logger, Function f) throws UserException {
+    findLoops(logger, f, f.mainBlock());
+  }
+
+  private static void findLoops(Logger logger, Function f, Block block) {
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.CONDITIONAL) {
+        for (Block inner: stmt.conditional().getBlocks()) {
+          findLoops(logger, f, inner);
+        }
+      }
+    }
+
+    for (Continuation cont: block.getContinuations()) {
+      if (cont.getType() == ContinuationType.FOREACH_LOOP) {
+        ForeachLoop loop = (ForeachLoop)cont;
+        if (canSkipValues(loop)) {
+          logger.trace("Skipping value fetch in " + loop.loopName() +
+                       " in " + f.id());
+          loop.skipValueFetch();
+        }
+      }
+      for (Block inner: cont.getBlocks()) {
+        findLoops(logger, f, inner);
+      }
+    }
+  }
+
+  private static boolean canSkipValues(ForeachLoop loop) {
+    Var container = loop.getArrayVar();
+    if (!loop.fetchValues() || Types.isContainerLocal(container)) {
+      return false;
+    }
+    Var member = loop.loopVar();
+    return !loop.requiredVars(false).contains(member) &&
+           !OptUtil.usesVar(loop.getLoopBody(), member);
+  }
+}
@@ -38,12 +38,14 @@ import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.FnID;
 import exm.stc.common.lang.ForeignFunctions;
 import exm.stc.common.lang.PassedVar;
+import exm.stc.common.lang.TaskProp.TaskPropKey;
 import exm.stc.common.lang.Var;
 import exm.stc.common.lang.WaitMode;
 import exm.stc.common.lang.WaitVar;
 import exm.stc.common.util.Counters;
 import exm.stc.common.util.Pair;
 import exm.stc.common.util.StackLite;
+import exm.stc.ic.ICUtil;
 import exm.stc.ic.opt.TreeWalk.TreeWalker;
 import exm.stc.ic.tree.Conditionals.Conditional;
 import exm.stc.ic.tree.ICContinuations.Continuation;
@@ -465,6 +467,12 @@ public class FunctionInline implements OptimizerPass {
                            RenameMode.REPLACE_VAR, true);
 
     if (!fnCall.execMode().isAsync()) {
+      // Tasks spawned by inlined code would have inherited call priority
+      Arg priority = fnCall.getTaskProps() == null ? null :
+                      fnCall.getTaskProps().get(TaskPropKey.PRIORITY);
+      if (priority != null) {
+        ICUtil.setTaskPriority(inlineBlock, priority);
+      }
       insertBlock = block;
       insertPos = it;
     } else {
@@ -0,0 +1,396 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.WaitVar;
+import exm.stc.common.util.Counters;
+import exm.stc.common.util.Pair;
+import exm.stc.ic.opt.TreeWalk.TreeWalker;
+import exm.stc.ic.tree.Conditionals.Conditional;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICInstructions.FunctionCall;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.BlockType;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.ICTree.RenameMode;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.Opcode;
+
+/**
+ * Create specialized copies of functions for call sites where some
+ * arguments are compile-time constants.  The constants are substituted
+ * into the copy so that later passes (constant folding, dead code
+ * elimination, etc) can simplify it, and the constant arguments are
+ * dropped from the copy's signature.
+ *
+ * The total number of instructions added by cloning is bounded by
+ * a configurable threshold.  Calls with the same constant arguments
+ * share a single copy.
+ */
+public class FunctionSpecialize implements OptimizerPass {
+
+  /**
+   * Specialized functions already created, including in previous runs
+   * of this pass: (function, constant args) -> specialized function
+   */
+  private final Map<SpecializeKey, FnID> specialized =
+                              new HashMap<SpecializeKey, FnID>();
+
+  /**
+   * Remaining budget in instructions for new copies of functions
+   */
+  private long remainingBudget;
+
+  /**
+   * Totals across all runs of this pass
+   */
+  private int totalClones = 0;
+  private long totalInstructions = 0;
+
+  public FunctionSpecialize() {
+    remainingBudget = Settings.getLongUnchecked(
+                        Settings.OPT_FUNCTION_SPECIALIZE_THRESHOLD);
+  }
+
+  @Override
+  public String getPassName() {
+    return "Function specialization";
+  }
+
+  @Override
+  public String getConfigEnabledKey() {
+    return Settings.OPT_FUNCTION_SPECIALIZE;
+  }
+
+  @Override
+  public void optimize(Logger logger, Program program) throws UserException {
+    CallSiteFinder finder = new CallSiteFinder(program);
+    TreeWalk.walk(logger, program, finder);
+
+    int newClones = 0;
+    for (SpecializeKey key: finder.rankedKeys()) {
+      FnID existing = specialized.get(key);
+      if (existing != null && program.lookupFunction(existing) != null) {
+        // Already have copy
+        continue;
+      }
+
+      long size = finder.functionSizes.getCount(key.function);
+      if (size > remainingBudget) {
+        logger.debug("Not specializing " + key + ": size " + size +
+                     " exceeds remaining budget " + remainingBudget);
+        continue;
+      }
+
+      Function original = program.lookupFunction(key.function);
+      FnID cloneID = specialize(logger, program, original, key);
+      specialized.put(key, cloneID);
+      remainingBudget -= size;
+      totalInstructions += size;
+      newClones++;
+    }
+
+    if (specialized.isEmpty()) {
+      return;
+    }
+
+    // Redirect call sites to specialized functions
+    int rewritten = 0;
+    for (Function f: program.functions()) {
+      rewritten += rewriteCalls(logger, program, f.mainBlock());
+    }
+
+    totalClones += newClones;
+    logger.debug("Function specialization: created " + newClones +
+        " specialized functions, redirected " + rewritten + " calls");
+    logger.debug("Function specialization: " + totalClones +
+        " specialized functions in total, " + totalInstructions +
+        " instructions added, remaining budget " + remainingBudget);
+  }
+
+  /**
+   * Create specialized copy of function and add to program
+   * @return id of new function
+   */
+  private FnID specialize(Logger logger, Program program,
+                          Function original, SpecializeKey key) {
+    FnID origID = original.id();
+    // Name after root function if we're specializing a specialized function
+    FnID rootID = origID;
+    while (program.specializations().containsKey(rootID)) {
+      rootID = program.specializations().get(rootID);
+    }
+    FnID cloneID;
+    int seq = 1;
+    do {
+      cloneID = new FnID(rootID.uniqueName() + "-spec-" + seq,
+                         origID.originalName());
+      seq++;
+    } while (program.lookupFunction(cloneID) != null);
+
+    Block cloneBlock = original.mainBlock().clone(BlockType.MAIN_BLOCK,
+                                                  null, null);
+
+    Map<Var, Arg> renames = new HashMap<Var, Arg>();
+    List<Var> iList = new ArrayList<Var>(original.getInputList());
+    List<WaitVar> blockingInputs = new ArrayList<WaitVar>(
+                                        original.blockingInputs());
+    for (Pair<Integer, Arg> constArg: key.constArgs) {
+      Var formal = original.getInputList().get(constArg.val1);
+      Arg replacement;
+      if (Types.isScalarValue(formal)) {
+        replacement = constArg.val2;
+      } else {
+        replacement = Arg.newVar(
+            program.constants().getOrCreateByVal(constArg.val2));
+      }
+      renames.put(formal, replacement);
+      cloneBlock.removeCleanups(formal);
+      iList.remove(formal);
+      WaitVar blocking = WaitVar.find(blockingInputs, formal);
+      if (blocking != null) {
+        blockingInputs.remove(blocking);
+      }
+    }
+
+    cloneBlock.renameVars(cloneID, renames, RenameMode.REPLACE_VAR, true);
+
+    Function clone = new Function(cloneID, iList, blockingInputs,
+            original.getOutputList(), original.mode(), cloneBlock);
+    for (int i = 0; i < original.getOutputList().size(); i++) {
+      if (original.isOutputWriteOnly(i)) {
+        clone.makeOutputWriteOnly(i);
+      }
+    }
+
+    ForeignFunctions foreignFuncs = program.foreignFunctions();
+    if (foreignFuncs.isPure(origID)) {
+      foreignFuncs.addPure(cloneID);
+    }
+
+    program.addFunction(clone);
+    program.addSpecialization(cloneID, origID);
+    logger.debug("Specialized " + origID + " as " + cloneID +
+                 " with constant args " + key.constArgs);
+    return cloneID;
+  }
+
+  private int rewriteCalls(Logger logger, Program program, Block block) {
+    int rewritten = 0;
+    ListIterator<Statement> it = block.statementIterator();
+    while (it.hasNext()) {
+      Statement stmt = it.next();
+      switch (stmt.type()) {
+        case INSTRUCTION: {
+          Instruction inst = stmt.instruction();
+          if (isSpecializableCall(inst)) {
+            FunctionCall fcall = (FunctionCall)inst;
+            SpecializeKey key = makeKey(program, fcall);
+            FnID cloneID = key == null ? null : specialized.get(key);
+            if (cloneID != null && program.lookupFunction(cloneID) != null) {
+              it.set(fcall.retarget(cloneID, nonConstInputs(fcall, key)));
+              logger.trace("Redirected call to " + fcall.functionID() +
+                           " to " + cloneID);
+              rewritten++;
+            }
+          }
+          break;
+        }
+        case CONDITIONAL: {
+          Conditional cnd = stmt.conditional();
+          for (Block cb: cnd.getBlocks()) {
+            rewritten += rewriteCalls(logger, program, cb);
+          }
+          break;
+        }
+        default:
+          throw new STCRuntimeError("Unknown statement type " + stmt);
+      }
+    }
+
+    for (Continuation c: block.getContinuations()) {
+      for (Block cb: c.getBlocks()) {
+        rewritten += rewriteCalls(logger, program, cb);
+      }
+    }
+    return rewritten;
+  }
+
+  private static List<Arg> nonConstInputs(FunctionCall fcall,
+                                          SpecializeKey key) {
+    List<Arg> inputs = new ArrayList<Arg>(fcall.getFunctionInputs());
+    // Remove from back to front so that indices remain valid
+    for (int i = key.constArgs.size() - 1; i >= 0; i--) {
+      inputs.remove((int)key.constArgs.get(i).val1);
+    }
+    return inputs;
+  }
+
+  private static boolean isSpecializableCall(Instruction inst) {
+    return inst.op == Opcode.CALL_CONTROL || inst.op == Opcode.CALL_LOCAL ||
+           inst.op == Opcode.CALL_SYNC || inst.op == Opcode.CALL_LOCAL_CONTROL;
+  }
+
+  /**
+   * Build key for call from constant arguments
+   * @return null if call can't be specialized
+   */
+  private static SpecializeKey makeKey(Program program, FunctionCall fcall) {
+    Function callee = program.lookupFunction(fcall.functionID());
+    if (callee == null || callee.id().equals(FnID.ENTRY_FUNCTION)) {
+      return null;
+    }
+
+    List<Pair<Integer, Arg>> constArgs = new ArrayList<Pair<Integer, Arg>>();
+    List<Arg> inputs = fcall.getFunctionInputs();
+    for (int i = 0; i < inputs.size(); i++) {
+      Var formal = callee.getInputList().get(i);
+      Arg constVal = constantValue(program, inputs.get(i));
+      if (constVal != null && (Types.isScalarFuture(formal) ||
+                               Types.isScalarValue(formal))) {
+        constArgs.add(Pair.create(i, constVal));
+      }
+    }
+
+    if (constArgs.isEmpty()) {
+      return null;
+    }
+    return new SpecializeKey(callee.id(), constArgs);
+  }
+
+  /**
+   * @return constant value of argument, or null if not constant
+   */
+  private static Arg constantValue(Program program, Arg arg) {
+    if (arg.isConst()) {
+      return arg;
+    } else if (arg.getVar().storage() == Alloc.GLOBAL_CONST) {
+      return program.constants().lookupByVar(arg.getVar());
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Function plus (input index, constant value) for all constant inputs
+   */
+  private static class SpecializeKey {
+    final FnID function;
+    final List<Pair<Integer, Arg>> constArgs;
+
+    SpecializeKey(FnID function, List<Pair<Integer, Arg>> constArgs) {
+      this.function = function;
+      this.constArgs = constArgs;
+    }
+
+    @Override
+    public int hashCode() {
+      return function.hashCode() * 31 + constArgs.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof SpecializeKey)) {
+        return false;
+      }
+      SpecializeKey other = (SpecializeKey)obj;
+      return function.equals(other.function) &&
+             constArgs.equals(other.constArgs);
+    }
+
+    @Override
+    public String toString() {
+      return function + constArgs.toString();
+    }
+  }
+
+  /**
+   * Find function sizes and calls with constant arguments
+   */
+  private static class CallSiteFinder extends TreeWalker {
+    private final Program program;
+
+    /**
+     * Function sizes in instructions
+     */
+    final Counters<FnID> functionSizes = new Counters<FnID>();
+
+    /**
+     * Number of calls for each key
+     */
+    final Counters<SpecializeKey> callCounts = new Counters<SpecializeKey>();
+
+    /**
+     * Keys in order first encountered
+     */
+    final List<SpecializeKey> keys = new ArrayList<SpecializeKey>();
+
+    CallSiteFinder(Program program) {
+      this.program = program;
+    }
+
+    @Override
+    public void visit(Logger logger, Function functionContext,
+                      Instruction inst) {
+      functionSizes.increment(functionContext.id());
+
+      if (isSpecializableCall(inst)) {
+        SpecializeKey key = makeKey(program, (FunctionCall)inst);
+        if (key != null && callCounts.increment(key) == 1) {
+          keys.add(key);
+        }
+      }
+    }
+
+    /**
+     * @return keys with most frequently called first
+     */
+    List<SpecializeKey> rankedKeys() {
+      List<SpecializeKey> result = new ArrayList<SpecializeKey>(keys);
+      // Stable sort keeps order deterministic
+      Collections.sort(result, new Comparator<SpecializeKey>() {
+        @Override
+        public int compare(SpecializeKey a, SpecializeKey b) {
+          long countA = callCounts.getCount(a);
+          long countB = callCounts.getCount(b);
+          return countA > countB ? -1 : (countA == countB ? 0 : 1);
+        }
+      });
+      return result;
+    }
+  }
+}
@@ -23,6 +23,7 @@ import exm.stc.common.Settings;
 import exm.stc.common.exceptions.InvalidWriteException;
 import exm.stc.common.exceptions.UserException;
 import exm.stc.ic.opt.valuenumber.ValueNumber;
+import exm.stc.ic.refcount.BorrowInputs;
 import exm.stc.ic.refcount.RefcountPass;
 import exm.stc.ic.tree.ICTree.Program;
 
@@ -101,8 +102,9 @@ public class ICOptimizer {
   private static void iterate(PrintStream icOutput, Logger logger,
       Program prog, boolean debug, long nIterations) throws UserException {
 
-    // FunctionInline is stateful
+    // FunctionInline and FunctionSpecialize are stateful
     FunctionInline inliner = new FunctionInline();
+    FunctionSpecialize specializer = new FunctionSpecialize();
     boolean canReorder = true;
 
     for (long iteration = 0; iteration < nIterations; iteration++) {
@@ -111,7 +113,15 @@ public class ICOptimizer {
         pipe.setValidator(Validate.standardValidator());
       }
 
-      // First prune and inline any functions
+      // First infer properties of, specialize, prune and inline functions
+      if (iteration == 0 || iteration == nIterations / 2) {
+        // Rerun later since simplification may remove impure operations
+        pipe.addPass(new InferPurity());
+      }
+      if (iteration == 1 || iteration == nIterations / 2) {
+        // Wait until constants have been propagated to call sites
+        pipe.addPass(specializer);
+      }
       if (iteration == nIterations / 2) {
         // Only makes sense to do periodically
         pipe.addPass(new PruneFunctions());
@@ -153,6 +163,10 @@ public class ICOptimizer {
         pipe.addPass(new PropagateAliases());
       }
 
+      // Split up local structs before value numbering so that field
+      // accesses can be optimized like other futures
+      pipe.addPass(new ScalarReplaceStructs());
+
       if (iteration == nIterations - 2) {
         // Towards end, inline explicit waits and disallow reordering
         canReorder = false;
@@ -219,15 +233,30 @@ public class ICOptimizer {
     // Final pruning to remove unused functions
     postprocess.addPass(new PruneFunctions());
 
+    // Demote futures that don't escape their task now that instructions
+    // won't be reordered or moved
+    postprocess.addPass(new DemoteFutures());
+
+    // Assign priorities and locations once task structure is fixed, before
+    // variable passing is worked out for any new variables used
+    postprocess.addPass(new CriticalPathPriority());
+    postprocess.addPass(new LocationAffinity());
+
     // Add in all the variable passing annotations now that instructions,
     // continuations and variables are fixed
     postprocess.addPass(new FixupVariables());
+    // Work out which inputs functions can borrow before adding refcounts
+    postprocess.addPass(new BorrowInputs());
     // Add in reference counting after passing annotations
     postprocess.addPass(new RefcountPass());
     // Refcount pass sometimes adds instructions, do another fixup as a
     // workaround to make sure that passing annotations are still correct
     postprocess.addPass(new FixupVariables());
 
+    // Batch container inserts in loops once writers refcounts are final
+    postprocess.addPass(new BatchInserts());
+    postprocess.addPass(new ForeachKeysOnly());
+
     postprocess.addPass(Validate.finalValidator());
     postprocess.runPipeline(logger, prog,  nIterations - 1);
   }
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Types.Typed;
+import exm.stc.common.lang.Var;
+import exm.stc.common.util.StackLite;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICContinuations.ContinuationType;
+import exm.stc.ic.tree.ICInstructions.CommonFunctionCall;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.CleanupAction;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
+
+/**
+ * Infer which composite functions are pure, i.e. deterministic and
+ * free of side-effects, so that calls to them can be treated the same
+ * as calls to functions annotated with @pure.  A function is pure if
+ * all instructions in its body are pure and all functions it calls
+ * are pure.  Recursive functions are handled by starting with the
+ * optimistic assumption that all candidates are pure and removing
+ * functions until a fixed point is reached.
+ *
+ * Functions with file or updateable arguments are not considered,
+ * since their semantics are not captured by argument values alone.
+ */
+public class InferPurity implements OptimizerPass {
+
+  @Override
+  public String getPassName() {
+    return "Infer function purity";
+  }
+
+  @Override
+  public String getConfigEnabledKey() {
+    return Settings.OPT_INFER_PURITY;
+  }
+
+  @Override
+  public void optimize(Logger logger, Program program) throws UserException {
+    ForeignFunctions foreignFuncs = program.foreignFunctions();
+
+    // Candidates for purity, and IC functions they call
+    Set<FnID> pure = new HashSet<FnID>();
+    SetMultimap<FnID, FnID> callees = HashMultimap.create();
+
+    for (Function f: program.functions()) {
+      if (f.id().equals(FnID.ENTRY_FUNCTION) || foreignFuncs.isPure(f.id())) {
+        continue;
+      }
+
+      if (candidateSignature(f) &&
+          bodyIsPure(program, f, callees)) {
+        pure.add(f.id());
+      } else {
+        logger.trace("Function " + f.id() + " is not pure");
+      }
+    }
+
+    // Remove functions that call impure functions until fixed point
+    boolean changed;
+    do {
+      changed = false;
+      Iterator<FnID> it = pure.iterator();
+      while (it.hasNext()) {
+        FnID id = it.next();
+        for (FnID callee: callees.get(id)) {
+          if (!pure.contains(callee) && !foreignFuncs.isPure(callee)) {
+            logger.trace("Function " + id + " is not pure: calls " + callee);
+            it.remove();
+            changed = true;
+            break;
+          }
+        }
+      }
+    } while (changed);
+
+    // Keep program order for deterministic output
+    List<FnID> inferred = new ArrayList<FnID>();
+    for (Function f: program.functions()) {
+      if (pure.contains(f.id())) {
+        foreignFuncs.addPure(f.id());
+        inferred.add(f.id());
+      }
+    }
+
+    if (!inferred.isEmpty()) {
+      logger.debug("Inferred pure functions: " + inferred);
+    }
+  }
+
+  /**
+   * @return true if all arguments have types for which purity
+   *          can be inferred
+   */
+  private static boolean candidateSignature(Function f) {
+    for (Var v: f.getInputList()) {
+      if (!candidateType(v)) {
+        return false;
+      }
+    }
+    for (Var v: f.getOutputList()) {
+      if (!candidateType(v)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean candidateType(Typed t) {
+    if (Types.isScalarFuture(t) || Types.isScalarValue(t)) {
+      return true;
+    } else if (Types.isContainer(t) || Types.isContainerLocal(t)) {
+      return candidateType(Types.containerElemType(t));
+    } else if (Types.isRef(t)) {
+      return candidateType(Types.retrievedType(t));
+    } else {
+      // Files, updateables, structs, etc
+      return false;
+    }
+  }
+
+  /**
+   * Check whether function body is pure, ignoring calls to other
+   * IC functions, which are added to callees.
+   */
+  private static boolean bodyIsPure(Program program, Function f,
+                                    SetMultimap<FnID, FnID> callees) {
+    StackLite<Block> blocks = new StackLite<Block>();
+    blocks.push(f.mainBlock());
+    while (!blocks.isEmpty()) {
+      Block block = blocks.pop();
+      for (Statement stmt: block.getStatements()) {
+        if (stmt.type() == StatementType.INSTRUCTION &&
+            !instructionIsPure(program, f, stmt.instruction(), callees)) {
+          return false;
+        }
+      }
+
+      for (CleanupAction ca: block.getCleanups()) {
+        if (ca.hasSideEffect()) {
+          return false;
+        }
+      }
+
+      for (Continuation c: block.allComplexStatements()) {
+        if (c.getType() == ContinuationType.ASYNC_EXEC) {
+          // Executes external task
+          return false;
+        }
+        for (Block inner: c.getBlocks()) {
+          blocks.push(inner);
+        }
+      }
+    }
+    return true;
+  }
+
+  private static boolean instructionIsPure(Program program, Function f,
+            Instruction inst, SetMultimap<FnID, FnID> callees) {
+    switch (inst.op) {
+      case CALL_CONTROL:
+      case CALL_SYNC:
+      case CALL_LOCAL:
+      case CALL_LOCAL_CONTROL: {
+        FnID id = ((CommonFunctionCall)inst).functionID();
+        if (program.lookupFunction(id) != null) {
+          // Resolve later
+          callees.put(f.id(), id);
+          return true;
+        }
+        return program.foreignFunctions().isPure(id);
+      }
+      case CALL_FOREIGN:
+      case CALL_FOREIGN_LOCAL:
+        // Note: wrapped builtins share the ID of the foreign function
+        return program.foreignFunctions().isPure(
+                    ((CommonFunctionCall)inst).functionID());
+      case LOOP_BREAK:
+      case LOOP_CONTINUE:
+        // Control flow within function only
+        return true;
+      case EXEC:
+        // External program
+        return false;
+      default:
+        return !inst.hasSideEffects();
+    }
+  }
+}
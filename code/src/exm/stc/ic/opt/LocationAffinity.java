@@ -0,0 +1,360 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.Location;
+import exm.stc.common.lang.TaskProp.TaskPropKey;
+import exm.stc.common.lang.TaskProp.TaskProps;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Var;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICContinuations.WaitStatement;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
+
+/**
+ * Give dispatched tasks a soft location near their input data.  If a task
+ * with a location writes a blob or container, then tasks without a
+ * location that read that data are sent to the same location with soft
+ * strictness, so that they run there unless the worker is busy.  The
+ * location is the same runtime expression used for the producing task,
+ * so this only applies when that expression is in scope for the consumer.
+ *
+ * Consumers that get a location can in turn pass it on to tasks that
+ * consume their outputs.
+ */
+public class LocationAffinity extends FunctionOptimizerPass {
+
+  @Override
+  public String getPassName() {
+    return "Location affinity";
+  }
+
+  @Override
+  public String getConfigEnabledKey() {
+    return Settings.OPT_LOCATION_AFFINITY;
+  }
+
+  @Override
+  public void optimize(Logger logger, Function f) throws UserException {
+    Map<Var, Var> aliases = new HashMap<Var, Var>();
+    findAliases(f.mainBlock(), aliases);
+
+    boolean changed;
+    do {
+      Map<Var, TaskProps> producers = new HashMap<Var, TaskProps>();
+      Set<Var> conflicts = new HashSet<Var>();
+      findProducers(f.mainBlock(), aliases, producers, conflicts);
+      for (Var conflict: conflicts) {
+        producers.remove(conflict);
+      }
+      if (producers.isEmpty()) {
+        return;
+      }
+
+      Set<Var> visible = new HashSet<Var>();
+      visible.addAll(f.getInputList());
+      visible.addAll(f.getOutputList());
+      changed = addLocations(logger, f, f.mainBlock(), aliases, producers,
+                             visible);
+    } while (changed);
+  }
+
+  private static void findAliases(Block block, Map<Var, Var> aliases) {
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.INSTRUCTION) {
+        Instruction inst = stmt.instruction();
+        switch (inst.op) {
+          case ARR_CREATE_ALIAS:
+          case STRUCT_CREATE_ALIAS:
+          case LOAD_REF:
+          case COPY_REF:
+            if (inst.getInput(0).isVar()) {
+              aliases.put(inst.getOutput(0), inst.getInput(0).getVar());
+            }
+            break;
+          case ARR_CREATE_NESTED_IMM:
+          case ARR_CREATE_NESTED_FUTURE:
+          case AREF_CREATE_NESTED_IMM:
+          case AREF_CREATE_NESTED_FUTURE:
+          case STRUCT_CREATE_NESTED:
+            aliases.put(inst.getOutput(0), inst.getOutput(1));
+            break;
+          default:
+            break;
+        }
+      } else {
+        assert(stmt.type() == StatementType.CONDITIONAL);
+        for (Block inner: stmt.conditional().getBlocks()) {
+          findAliases(inner, aliases);
+        }
+      }
+    }
+    for (Continuation cont: block.getContinuations()) {
+      for (Block inner: cont.getBlocks()) {
+        findAliases(inner, aliases);
+      }
+    }
+  }
+
+  /**
+   * @return variable that var is an alias for, or var if not an alias
+   */
+  private static Var resolve(Map<Var, Var> aliases, Var var) {
+    Var curr = var;
+    Var next;
+    while ((next = aliases.get(curr)) != null) {
+      curr = next;
+    }
+    return curr;
+  }
+
+  /**
+   * @return true if data is worth moving task for
+   */
+  private static boolean isLargeData(Var var) {
+    return Types.isBlob(var) || Types.isContainer(var) ||
+           Types.isContainerRef(var);
+  }
+
+  /**
+   * @return task properties if a task we can assign locations to
+   */
+  private static TaskProps taskProps(Instruction inst) {
+    if (inst.execMode().isDispatched()) {
+      return inst.getTaskProps();
+    }
+    return null;
+  }
+
+  private static TaskProps taskProps(Continuation cont) {
+    if (cont instanceof WaitStatement && cont.target().isDispatched()) {
+      return ((WaitStatement)cont).getTaskProps();
+    }
+    return null;
+  }
+
+  private static boolean hasLocation(TaskProps props) {
+    return !Location.isAnyLocation(props.get(TaskPropKey.LOC_RANK), true);
+  }
+
+  private static void findProducers(Block block, Map<Var, Var> aliases,
+      Map<Var, TaskProps> producers, Set<Var> conflicts) {
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.INSTRUCTION) {
+        Instruction inst = stmt.instruction();
+        TaskProps props = taskProps(inst);
+        if (props != null && hasLocation(props)) {
+          for (Var out: inst.getOutputs()) {
+            addProducer(aliases, producers, conflicts, out, props);
+          }
+        }
+      } else {
+        assert(stmt.type() == StatementType.CONDITIONAL);
+        for (Block inner: stmt.conditional().getBlocks()) {
+          findProducers(inner, aliases, producers, conflicts);
+        }
+      }
+    }
+
+    for (Continuation cont: block.getContinuations()) {
+      TaskProps props = taskProps(cont);
+      if (props != null && hasLocation(props)) {
+        for (Block inner: cont.getBlocks()) {
+          addWrittenVars(inner, aliases, producers, conflicts, props);
+        }
+      } else {
+        for (Block inner: cont.getBlocks()) {
+          findProducers(inner, aliases, producers, conflicts);
+        }
+      }
+    }
+  }
+
+  private static void addWrittenVars(Block block, Map<Var, Var> aliases,
+      Map<Var, TaskProps> producers, Set<Var> conflicts, TaskProps props) {
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.INSTRUCTION) {
+        for (Var out: stmt.instruction().getOutputs()) {
+          addProducer(aliases, producers, conflicts, out, props);
+        }
+      } else {
+        assert(stmt.type() == StatementType.CONDITIONAL);
+        for (Block inner: stmt.conditional().getBlocks()) {
+          addWrittenVars(inner, aliases, producers, conflicts, props);
+        }
+      }
+    }
+    for (Continuation cont: block.getContinuations()) {
+      for (Block inner: cont.getBlocks()) {
+        addWrittenVars(inner, aliases, producers, conflicts, props);
+      }
+    }
+  }
+
+  private static void addProducer(Map<Var, Var> aliases,
+      Map<Var, TaskProps> producers, Set<Var> conflicts, Var written,
+      TaskProps props) {
+    Var data = resolve(aliases, written);
+    if (!isLargeData(data)) {
+      return;
+    }
+    TaskProps prev = producers.get(data);
+    if (prev == null) {
+      producers.put(data, props);
+    } else if (!sameLocation(prev, props)) {
+      // Written from different locations
+      conflicts.add(data);
+    }
+  }
+
+  private static boolean sameLocation(TaskProps a, TaskProps b) {
+    return a.getWithDefault(TaskPropKey.LOC_RANK).equals(
+                        b.getWithDefault(TaskPropKey.LOC_RANK)) &&
+           a.getWithDefault(TaskPropKey.LOC_ACCURACY).equals(
+                        b.getWithDefault(TaskPropKey.LOC_ACCURACY));
+  }
+
+  /**
+   * Add locations to tasks that consume data from producers
+   * @param outerVisible variables from enclosing blocks visible in block
+   * @return true if any changes made
+   */
+  private static boolean addLocations(Logger logger, Function f, Block block,
+      Map<Var, Var> aliases, Map<Var, TaskProps> producers,
+      Set<Var> outerVisible) {
+    // Instructions might run before a location in this block is computed,
+    // but continuations run after all instructions in block
+    Set<Var> visible = new HashSet<Var>(outerVisible);
+    visible.addAll(block.variables());
+
+    boolean changed = false;
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.INSTRUCTION) {
+        Instruction inst = stmt.instruction();
+        TaskProps props = taskProps(inst);
+        if (props != null && !hasLocation(props)) {
+          Set<Var> reads = new HashSet<Var>();
+          for (Arg in: inst.getInputs()) {
+            if (in.isVar()) {
+              reads.add(in.getVar());
+            }
+          }
+          changed |= addLocation(logger, f, props, reads, aliases, producers,
+                                 outerVisible);
+        }
+      } else {
+        assert(stmt.type() == StatementType.CONDITIONAL);
+        // Branches run at this point in the block, so can't see locations
+        // computed later in block
+        for (Block inner: stmt.conditional().getBlocks()) {
+          changed |= addLocations(logger, f, inner, aliases, producers,
+                                  outerVisible);
+        }
+      }
+    }
+
+    for (Continuation cont: block.getContinuations()) {
+      TaskProps props = taskProps(cont);
+      if (props != null && !hasLocation(props)) {
+        Set<Var> reads = new HashSet<Var>(cont.requiredVars(false));
+        for (Block inner: cont.getBlocks()) {
+          findReads(inner, reads);
+        }
+        changed |= addLocation(logger, f, props, reads, aliases, producers,
+                               visible);
+      }
+
+      Set<Var> innerVisible = visible;
+      if (!cont.constructDefinedVars().isEmpty()) {
+        innerVisible = new HashSet<Var>(visible);
+        innerVisible.addAll(cont.constructDefinedVars());
+      }
+      for (Block inner: cont.getBlocks()) {
+        changed |= addLocations(logger, f, inner, aliases, producers,
+                                innerVisible);
+      }
+    }
+    return changed;
+  }
+
+  private static void findReads(Block block, Set<Var> reads) {
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.INSTRUCTION) {
+        for (Arg in: stmt.instruction().getInputs()) {
+          if (in.isVar()) {
+            reads.add(in.getVar());
+          }
+        }
+      } else {
+        assert(stmt.type() == StatementType.CONDITIONAL);
+        reads.addAll(stmt.conditional().requiredVars(false));
+        for (Block inner: stmt.conditional().getBlocks()) {
+          findReads(inner, reads);
+        }
+      }
+    }
+    for (Continuation cont: block.getContinuations()) {
+      reads.addAll(cont.requiredVars(false));
+      for (Block inner: cont.getBlocks()) {
+        findReads(inner, reads);
+      }
+    }
+  }
+
+  private static boolean addLocation(Logger logger, Function f,
+      TaskProps props, Set<Var> reads, Map<Var, Var> aliases,
+      Map<Var, TaskProps> producers, Set<Var> visible) {
+    for (Var read: reads) {
+      Var data = resolve(aliases, read);
+      TaskProps producer = producers.get(data);
+      if (producer == null) {
+        continue;
+      }
+
+      Arg rank = producer.get(TaskPropKey.LOC_RANK);
+      Arg accuracy = producer.getWithDefault(TaskPropKey.LOC_ACCURACY);
+      if (isVisible(rank, visible) && isVisible(accuracy, visible)) {
+        logger.trace("Soft location " + rank + " for task reading " +
+                     data.name() + " in " + f.id());
+        props.put(TaskPropKey.LOC_RANK, rank);
+        props.put(TaskPropKey.LOC_STRICTNESS,
+                  TaskProps.LOC_STRICTNESS_SOFT_ARG);
+        props.put(TaskPropKey.LOC_ACCURACY, accuracy);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isVisible(Arg arg, Set<Var> visible) {
+    return arg.isConst() || visible.contains(arg.getVar());
+  }
+}
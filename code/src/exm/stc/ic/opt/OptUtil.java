@@ -29,6 +29,7 @@ import exm.stc.common.Logging;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.PassedVar;
 import exm.stc.common.lang.RefCounting;
 import exm.stc.common.lang.Types;
 import exm.stc.common.lang.Types.Type;
@@ -46,9 +47,11 @@ import exm.stc.ic.tree.ICInstructions.Instruction.MakeImmVar;
 import exm.stc.ic.tree.ICInstructions.Instruction.VarCreator;
 import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.BlockType;
+import exm.stc.ic.tree.ICTree.CleanupAction;
 import exm.stc.ic.tree.ICTree.Function;
 import exm.stc.ic.tree.ICTree.RenameMode;
 import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
 
 public class OptUtil {
 
@@ -531,4 +534,67 @@ public class OptUtil {
     block.addVariable(res);
     return res;
   }
-}
\ No newline at end of file
+
+  /**
+   * @return true if var is used anywhere in block, including nested
+   *         blocks, cleanups and vars passed into async continuations
+   */
+  public static boolean usesVar(Block block, Var var) {
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.INSTRUCTION) {
+        if (usesVar(stmt.instruction(), var)) {
+          return true;
+        }
+      } else {
+        assert(stmt.type() == StatementType.CONDITIONAL);
+        if (usesVar(stmt.conditional(), var)) {
+          return true;
+        }
+      }
+    }
+
+    for (Continuation cont: block.getContinuations()) {
+      if (usesVar(cont, var)) {
+        return true;
+      }
+    }
+
+    for (CleanupAction cleanup: block.getCleanups()) {
+      if (cleanup.var().equals(var) || usesVar(cleanup.action(), var)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean usesVar(Continuation cont, Var var) {
+    if (cont.requiredVars(false).contains(var)) {
+      return true;
+    }
+    if (cont.isAsync()) {
+      for (PassedVar passed: cont.getAllPassedVars()) {
+        if (passed.var.equals(var)) {
+          return true;
+        }
+      }
+    }
+    for (Block inner: cont.getBlocks()) {
+      if (usesVar(inner, var)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean usesVar(Instruction inst, Var var) {
+    if (inst.getOutputs().contains(var)) {
+      return true;
+    }
+    for (Arg in: inst.getInputs()) {
+      if (in.isVar() && in.getVar().equals(var)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
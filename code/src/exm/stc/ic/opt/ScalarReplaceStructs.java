@@ -0,0 +1,321 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Types.StructType;
+import exm.stc.common.lang.Types.StructType.StructField;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.Var.DefType;
+import exm.stc.common.lang.Var.VarProvenance;
+import exm.stc.common.util.Out;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.CleanupAction;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.RenameMode;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
+import exm.stc.ic.tree.Opcode;
+import exm.stc.ic.tree.TurbineOp;
+
+/**
+ * Scalar replacement of struct futures.  A struct declared in a function
+ * with only scalar fields doesn't escape if it is only accessed through
+ * field operations: storing, retrieving or copying individual fields,
+ * creating aliases to fields, or storing a whole struct value built
+ * in the function.  Such structs are split into a separate future per
+ * field, so that field accesses become direct uses of the field futures
+ * and the struct datum and subscript operations go away.
+ */
+public class ScalarReplaceStructs extends FunctionOptimizerPass {
+
+  @Override
+  public String getPassName() {
+    return "Scalar replace structs";
+  }
+
+  @Override
+  public String getConfigEnabledKey() {
+    return Settings.OPT_SCALAR_REPLACE_STRUCTS;
+  }
+
+  @Override
+  public void optimize(Logger logger, Function f) throws UserException {
+    StructUses uses = new StructUses();
+    findUses(f.mainBlock(), uses);
+
+    // Check that whole struct stores are of values built in the function
+    for (Instruction store: uses.wholeStores) {
+      Var struct = store.getOutput(0);
+      Arg val = store.getInput(0);
+      if (!val.isVar() || !uses.localBuilds.containsKey(val.getVar())) {
+        uses.escaped.add(struct);
+      }
+    }
+
+    Map<Var, Map<String, Var>> replacements =
+                                  new HashMap<Var, Map<String, Var>>();
+    for (Map.Entry<Var, Block> e: uses.candidates.entrySet()) {
+      Var struct = e.getKey();
+      if (!uses.escaped.contains(struct)) {
+        logger.trace("Splitting struct " + struct.name() + " in " + f.id());
+        replacements.put(struct, createFieldVars(e.getValue(), struct));
+      }
+    }
+
+    if (replacements.isEmpty()) {
+      return;
+    }
+
+    Map<Var, Arg> aliasRenames = new HashMap<Var, Arg>();
+    replaceUses(f.mainBlock(), replacements, uses.localBuilds,
+                aliasRenames);
+
+    for (Var alias: aliasRenames.keySet()) {
+      Block declBlock = uses.declarations.get(alias);
+      declBlock.removeVarDeclarations(Collections.singleton(alias));
+    }
+    f.mainBlock().renameVars(f.id(), aliasRenames,
+                             RenameMode.REPLACE_VAR, true);
+  }
+
+  private static class StructUses {
+    /** Structs that might be split, with declaring block */
+    final Map<Var, Block> candidates = new HashMap<Var, Block>();
+    /** Structs that can't be split */
+    final Set<Var> escaped = new HashSet<Var>();
+    /** Whole-struct stores to candidates */
+    final List<Instruction> wholeStores = new ArrayList<Instruction>();
+    /** Local struct values built from field values in function */
+    final Map<Var, Instruction> localBuilds = new HashMap<Var, Instruction>();
+    /** Declaring block of every variable */
+    final Map<Var, Block> declarations = new HashMap<Var, Block>();
+  }
+
+  private static void findUses(Block block, StructUses uses) {
+    for (Var declared: block.variables()) {
+      uses.declarations.put(declared, block);
+      if (isCandidate(declared)) {
+        uses.candidates.put(declared, block);
+      }
+    }
+
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.INSTRUCTION) {
+        findUses(stmt.instruction(), uses);
+      } else {
+        assert(stmt.type() == StatementType.CONDITIONAL);
+        escapeAll(stmt.conditional().requiredVars(false), uses);
+        for (Block inner: stmt.conditional().getBlocks()) {
+          findUses(inner, uses);
+        }
+      }
+    }
+
+    for (Continuation cont: block.getContinuations()) {
+      escapeAll(cont.requiredVars(false), uses);
+      for (Block inner: cont.getBlocks()) {
+        findUses(inner, uses);
+      }
+    }
+
+    for (CleanupAction cleanup: block.getCleanups()) {
+      uses.escaped.add(cleanup.var());
+      findUses(cleanup.action(), uses);
+    }
+  }
+
+  private static boolean isCandidate(Var var) {
+    if (!Types.isStruct(var) ||
+        (var.storage() != Alloc.STACK && var.storage() != Alloc.TEMP)) {
+      return false;
+    }
+
+    StructType type = (StructType)var.type().getImplType();
+    for (StructField field: type.fields()) {
+      if (!Types.isScalarFuture(field.type()) || Types.isFile(field.type())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void findUses(Instruction inst, StructUses uses) {
+    if (inst.op == Opcode.STRUCT_LOCAL_BUILD) {
+      uses.localBuilds.put(inst.getOutput(0), inst);
+    }
+
+    Var accessed = fieldAccessStruct(inst);
+    if (accessed != null && inst.op == Opcode.STORE_STRUCT) {
+      uses.wholeStores.add(inst);
+    }
+
+    for (Var out: inst.getOutputs()) {
+      if (accessed == null || !out.equals(accessed)) {
+        uses.escaped.add(out);
+      }
+    }
+    for (Arg in: inst.getInputs()) {
+      if (in.isVar() && (accessed == null || !in.getVar().equals(accessed))) {
+        uses.escaped.add(in.getVar());
+      }
+    }
+  }
+
+  private static void escapeAll(Iterable<Var> vars, StructUses uses) {
+    for (Var v: vars) {
+      uses.escaped.add(v);
+    }
+  }
+
+  /**
+   * @return the struct accessed by a supported field access instruction,
+   *         or null if not a supported instruction
+   */
+  private static Var fieldAccessStruct(Instruction inst) {
+    switch (inst.op) {
+      case STRUCT_CREATE_ALIAS:
+      case STRUCT_COPY_OUT:
+        if (inst.getInputs().size() == 2) {
+          return inst.getInput(0).getVar();
+        }
+        return null;
+      case STRUCT_RETRIEVE_SUB:
+        if (inst.getInputs().size() == 3 && inst.getInput(1).isInt() &&
+            inst.getInput(1).getInt() == 0) {
+          return inst.getInput(0).getVar();
+        }
+        return null;
+      case STRUCT_STORE_SUB:
+      case STRUCT_COPY_IN:
+        if (inst.getInputs().size() == 2) {
+          return inst.getOutput(0);
+        }
+        return null;
+      case STORE_STRUCT:
+        return inst.getOutput(0);
+      default:
+        return null;
+    }
+  }
+
+  private static Map<String, Var> createFieldVars(Block block, Var struct) {
+    Map<String, Var> fieldVars = new HashMap<String, Var>();
+    StructType type = (StructType)struct.type().getImplType();
+    for (StructField field: type.fields()) {
+      String name = block.uniqueVarName(
+                      Var.structFieldName(struct, field.name(), false));
+      Var fieldVar = new Var(field.type(), name, struct.storage(),
+          DefType.LOCAL_COMPILER,
+          VarProvenance.structField(struct, field.name()));
+      block.addVariable(fieldVar);
+      fieldVars.put(field.name(), fieldVar);
+    }
+    block.removeVarDeclarations(Collections.singleton(struct));
+    return fieldVars;
+  }
+
+  private static void replaceUses(Block block,
+      Map<Var, Map<String, Var>> replacements,
+      Map<Var, Instruction> localBuilds, Map<Var, Arg> aliasRenames) {
+    ListIterator<Statement> it = block.statementIterator();
+    while (it.hasNext()) {
+      Statement stmt = it.next();
+      if (stmt.type() == StatementType.INSTRUCTION) {
+        Instruction inst = stmt.instruction();
+        Map<String, Var> fieldVars = replacements.get(fieldAccessStruct(inst));
+        if (fieldVars != null) {
+          it.remove();
+          for (Instruction repl: replaceInstruction(inst, fieldVars,
+                                          localBuilds, aliasRenames)) {
+            it.add(repl);
+          }
+        }
+      } else {
+        assert(stmt.type() == StatementType.CONDITIONAL);
+        for (Block inner: stmt.conditional().getBlocks()) {
+          replaceUses(inner, replacements, localBuilds, aliasRenames);
+        }
+      }
+    }
+
+    for (Continuation cont: block.getContinuations()) {
+      for (Block inner: cont.getBlocks()) {
+        replaceUses(inner, replacements, localBuilds, aliasRenames);
+      }
+    }
+  }
+
+  private static List<Instruction> replaceInstruction(Instruction inst,
+      Map<String, Var> fieldVars, Map<Var, Instruction> localBuilds,
+      Map<Var, Arg> aliasRenames) {
+    List<Arg> in = inst.getInputs();
+    switch (inst.op) {
+      case STRUCT_CREATE_ALIAS:
+        aliasRenames.put(inst.getOutput(0),
+                         fieldVars.get(in.get(1).getString()).asArg());
+        return Collections.emptyList();
+      case STRUCT_COPY_OUT:
+        return Collections.singletonList(TurbineOp.asyncCopy(
+              inst.getOutput(0), fieldVars.get(in.get(1).getString())));
+      case STRUCT_RETRIEVE_SUB:
+        return Collections.singletonList(TurbineOp.retrieveScalar(
+              inst.getOutput(0), fieldVars.get(in.get(2).getString())));
+      case STRUCT_STORE_SUB:
+        return Collections.singletonList(TurbineOp.assignScalar(
+              fieldVars.get(in.get(1).getString()), in.get(0)));
+      case STRUCT_COPY_IN:
+        return Collections.singletonList(TurbineOp.asyncCopy(
+              fieldVars.get(in.get(1).getString()), in.get(0).getVar()));
+      case STORE_STRUCT: {
+        TurbineOp build = (TurbineOp)localBuilds.get(in.get(0).getVar());
+        Out<List<List<String>>> fieldPaths = new Out<List<List<String>>>();
+        Out<List<Arg>> fieldVals = new Out<List<Arg>>();
+        build.unpackStructBuildArgs(fieldPaths, null, fieldVals);
+
+        List<Instruction> stores = new ArrayList<Instruction>();
+        for (int i = 0; i < fieldPaths.val.size(); i++) {
+          List<String> path = fieldPaths.val.get(i);
+          assert(path.size() == 1) : path;
+          stores.add(TurbineOp.assignScalar(fieldVars.get(path.get(0)),
+                                            fieldVals.val.get(i)));
+        }
+        return stores;
+      }
+      default:
+        throw new STCRuntimeError("Unexpected op: " + inst);
+    }
+  }
+}
@@ -40,6 +40,7 @@ import exm.stc.common.lang.ExecContext;
 import exm.stc.common.lang.ExecTarget;
 import exm.stc.common.lang.Location;
 import exm.stc.common.lang.PassedVar;
+import exm.stc.common.lang.TaskProp.TaskPropKey;
 import exm.stc.common.lang.TaskProp.TaskProps;
 import exm.stc.common.lang.Types;
 import exm.stc.common.lang.Var;
@@ -463,6 +464,14 @@ public class WaitCoalescer implements OptimizerPass {
       return false;
     }
 
+    // Check that inner code would run with same priority
+    Arg prio = wait.getTaskProps().get(TaskPropKey.PRIORITY);
+    Arg innerPrio = innerWait.getTaskProps().get(TaskPropKey.PRIORITY);
+    if (innerPrio != null && (prio == null || !innerPrio.equals(prio))) {
+      logger.trace("Priorities incompatible");
+      return false;
+    }
+
     // Check that contexts are compatible
     ExecContext possibleMergedContext;
     if (innerContext.equals(waitContext)) {
@@ -629,7 +638,9 @@ public class WaitCoalescer implements OptimizerPass {
   }
 
   /**
-   * Build a map of <variable> --> wait statements blocking on that value
+   * Build a map of <variable> --> wait statements blocking on that value.
+   * Waits with a priority are left out, since the merged wait would
+   * run their code with a different priority.
    * @param block
    * @return
    */
@@ -638,6 +649,9 @@ public class WaitCoalescer implements OptimizerPass {
     for (Continuation c: block.getContinuations()) {
       if (c.getType() == ContinuationType.WAIT_STATEMENT) {
         WaitStatement wait = (WaitStatement)c;
+        if (wait.getTaskProps().containsKey(TaskPropKey.PRIORITY)) {
+          continue;
+        }
 
         // Defensively check for duplicates since duplicates cause issues here
         List<WaitVar> waitVars = new ArrayList<WaitVar>(wait.getWaitVars());
@@ -0,0 +1,234 @@
+package exm.stc.ic.refcount;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.PassedVar;
+import exm.stc.common.lang.RefCounting;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.WaitVar;
+import exm.stc.common.util.Pair;
+import exm.stc.common.util.StackLite;
+import exm.stc.ic.opt.OptimizerPass;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICInstructions.CommonFunctionCall;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.CleanupAction;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
+
+/**
+ * Work out which function inputs are borrowed from the caller.  By
+ * default, callers pass a read reference for each input to an async
+ * function, which the function consumes when it finishes.  A function
+ * that never dereferences an input doesn't need a reference of its own:
+ * the variable only has to stay valid in the caller.  For borrowed inputs
+ * the caller doesn't increment and the function doesn't decrement.
+ *
+ * An input is borrowed if it is not read, waited on or passed to a task
+ * anywhere in the function, except for being passed on to other calls
+ * that borrow it.  E.g. an input that a recursive function only passes
+ * through to the recursive call.  Recursive functions are handled by
+ * starting with the optimistic assumption that all candidates are
+ * borrowed and removing inputs until a fixed point is reached.
+ *
+ * Must run after variable passing annotations are added and before
+ * refcounts are added.
+ */
+public class BorrowInputs implements OptimizerPass {
+
+  @Override
+  public String getPassName() {
+    return "Borrow function inputs";
+  }
+
+  @Override
+  public String getConfigEnabledKey() {
+    return Settings.OPT_BORROW_REFCOUNTS;
+  }
+
+  @Override
+  public void optimize(Logger logger, Program program) throws UserException {
+    // Candidate inputs, and inputs of other functions they're passed to
+    Set<Pair<FnID, Integer>> borrowed = new HashSet<Pair<FnID, Integer>>();
+    SetMultimap<Pair<FnID, Integer>, Pair<FnID, Integer>> passedTo =
+                                                    HashMultimap.create();
+
+    for (Function f: program.functions()) {
+      f.clearBorrowedInputs();
+      if (!f.isAsync()) {
+        // Function doesn't consume refcounts
+        continue;
+      }
+
+      Map<Var, Integer> candidates = new HashMap<Var, Integer>();
+      List<Var> inputs = f.getInputList();
+      for (int i = 0; i < inputs.size(); i++) {
+        Var input = inputs.get(i);
+        if (candidateInput(f, input)) {
+          candidates.put(input, i);
+        }
+      }
+
+      if (!candidates.isEmpty()) {
+        Set<Var> used = findUses(program, f, candidates, passedTo);
+        for (Var input: candidates.keySet()) {
+          if (!used.contains(input)) {
+            borrowed.add(Pair.create(f.id(), candidates.get(input)));
+          }
+        }
+      }
+    }
+
+    // Remove inputs passed to calls that don't borrow until fixed point
+    boolean changed;
+    do {
+      changed = false;
+      Iterator<Pair<FnID, Integer>> it = borrowed.iterator();
+      while (it.hasNext()) {
+        Pair<FnID, Integer> input = it.next();
+        for (Pair<FnID, Integer> calleeInput: passedTo.get(input)) {
+          if (!borrowed.contains(calleeInput)) {
+            it.remove();
+            changed = true;
+            break;
+          }
+        }
+      }
+    } while (changed);
+
+    // Keep program order for deterministic output
+    List<Var> borrowedVars = new ArrayList<Var>();
+    for (Function f: program.functions()) {
+      for (int i = 0; i < f.getInputList().size(); i++) {
+        if (borrowed.contains(Pair.create(f.id(), i))) {
+          f.makeInputBorrowed(i);
+          borrowedVars.add(f.getInputList().get(i));
+        }
+      }
+      if (!borrowedVars.isEmpty()) {
+        logger.debug("Borrowed inputs of " + f.id() + ": " + borrowedVars);
+        borrowedVars.clear();
+      }
+    }
+  }
+
+  /**
+   * @return true if input is refcounted in a way that can be borrowed
+   */
+  private static boolean candidateInput(Function f, Var input) {
+    if (!RefCounting.trackReadRefCount(input) ||
+        Types.isScalarUpdateable(input)) {
+      // Updateables are passed write refcounts too
+      return false;
+    }
+
+    // Caller's task waits on blocking inputs
+    return WaitVar.find(f.blockingInputs(), input) == null;
+  }
+
+  /**
+   * Find candidate inputs that are used in function body other than
+   * being passed to calls, which are added to passedTo.
+   */
+  private static Set<Var> findUses(Program program, Function f,
+      Map<Var, Integer> candidates,
+      SetMultimap<Pair<FnID, Integer>, Pair<FnID, Integer>> passedTo) {
+    Set<Var> used = new HashSet<Var>();
+
+    StackLite<Block> blocks = new StackLite<Block>();
+    blocks.push(f.mainBlock());
+    while (!blocks.isEmpty()) {
+      Block block = blocks.pop();
+      for (Statement stmt: block.getStatements()) {
+        if (stmt.type() == StatementType.INSTRUCTION) {
+          findUses(program, f, stmt.instruction(), candidates, passedTo,
+                   used);
+        }
+      }
+
+      for (CleanupAction ca: block.getCleanups()) {
+        used.add(ca.var());
+        addUses(ca.action(), used);
+      }
+
+      for (Continuation c: block.allComplexStatements()) {
+        used.addAll(c.requiredVars(false));
+        if (c.isAsync()) {
+          // New task needs its own reference
+          for (PassedVar pv: c.getAllPassedVars()) {
+            used.add(pv.var);
+          }
+        }
+        for (Block inner: c.getBlocks()) {
+          blocks.push(inner);
+        }
+      }
+    }
+    return used;
+  }
+
+  private static void findUses(Program program, Function f,
+      Instruction inst, Map<Var, Integer> candidates,
+      SetMultimap<Pair<FnID, Integer>, Pair<FnID, Integer>> passedTo,
+      Set<Var> used) {
+    switch (inst.op) {
+      case CALL_CONTROL:
+      case CALL_LOCAL:
+      case CALL_LOCAL_CONTROL: {
+        CommonFunctionCall call = (CommonFunctionCall)inst;
+        if (program.lookupFunction(call.functionID()) != null) {
+          List<Arg> args = call.getFunctionInputs();
+          for (int j = 0; j < args.size(); j++) {
+            Arg arg = args.get(j);
+            if (arg.isVar() && candidates.containsKey(arg.getVar())) {
+              Integer i = candidates.get(arg.getVar());
+              passedTo.put(Pair.create(f.id(), i),
+                           Pair.create(call.functionID(), j));
+            }
+          }
+          used.addAll(call.getOutputs());
+          if (call.getTaskProps() != null) {
+            for (Arg prop: call.getTaskProps().values()) {
+              if (prop.isVar()) {
+                used.add(prop.getVar());
+              }
+            }
+          }
+          return;
+        }
+        break;
+      }
+      default:
+        break;
+    }
+    addUses(inst, used);
+  }
+
+  private static void addUses(Instruction inst, Set<Var> used) {
+    used.addAll(inst.getOutputs());
+    for (Arg in: inst.getInputs()) {
+      if (in.isVar()) {
+        used.add(in.getVar());
+      }
+    }
+  }
+}
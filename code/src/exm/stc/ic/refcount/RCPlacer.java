@@ -3,6 +3,7 @@ package exm.stc.ic.refcount;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -71,23 +72,273 @@ public class RCPlacer {
 
   public void placeAll(Logger logger, GlobalVars globals, Function fn,
       Block block, RCTracker increments, Set<Var> parentAssignedAliasVars) {
+    for (RefCountType rcType: RefcountPass.RC_TYPES) {
+      place(logger, globals, fn, block, increments, rcType,
+            parentAssignedAliasVars);
+    }
+  }
+
+  private void place(Logger logger, GlobalVars globals, Function fn,
+      Block block, RCTracker increments, RefCountType rcType,
+      Set<Var> parentAssignedAliasVars) {
+    preprocessIncrements(increments, rcType);
+    if (logger.isTraceEnabled()) {
+      logger.trace("After preprocessing: \n" + increments);
+    }
+
+    // Cancel out increments and decrements
+    cancelIncrements(logger, fn, block, increments, rcType);
+
+    placeRemaining(logger, globals, fn, block, increments, rcType,
+                   parentAssignedAliasVars);
+  }
+
+  private void placeRemaining(Logger logger, GlobalVars globals, Function fn,
+      Block block, RCTracker increments, RefCountType rcType,
+      Set<Var> parentAssignedAliasVars) {
+    // Add decrements to block
+    placeDecrements(logger, globals, fn, block, increments, rcType);
+
+    // Add any remaining increments
+    placeIncrements(globals, fn, block, increments, rcType, parentAssignedAliasVars);
+
+    // Verify we didn't miss any
+    RCUtil.checkRCZero(block, increments, rcType, true, true);
+  }
+
+  /**
+   * Pass decrements for the block into the branches of a conditional
+   * that is the last use of the variable in the block.  If a branch
+   * increments the variable to pass it to a task or function call, the
+   * callee can then take over the block's reference: the increment and
+   * the decrement cancel out.  E.g. a recursive function that passes its
+   * input to the recursive call no longer needs to touch the refcount of
+   * the input.  If the decrement doesn't cancel in a branch, it is placed
+   * at the end of the branch, where it will be pulled up again if it is
+   * on all branches.
+   *
+   * Only the caller's own reference is handed over to the call.  Calls
+   * that don't need a reference at all because the callee borrows the
+   * input are handled by {@link BorrowInputs}.
+   *
+   * Must be called before increments are pulled up out of branches.
+   * @param logger
+   * @param globals
+   * @param fn
+   * @param block
+   * @param increments decrements passed to branches are removed
+   * @param parentAssignedAliasVars
+   */
+  public void passDecrementsToBranches(Logger logger, GlobalVars globals,
+      Function fn, Block block, RCTracker increments,
+      Set<Var> parentAssignedAliasVars) {
+    if (!RCUtil.passEnabled() || !RCUtil.cancelEnabled()) {
+      return;
+    }
+
+    if (block.getType() != BlockType.MAIN_BLOCK
+        && RCUtil.isForeachLoop(block.getParentCont())) {
+      // Better to batch decrements for whole loop
+      return;
+    }
+
     for (RefCountType rcType: RefcountPass.RC_TYPES) {
       preprocessIncrements(increments, rcType);
-      if (logger.isTraceEnabled()) {
-        logger.trace("After preprocessing: \n" + increments);
+      passDecrementsToBranches(logger, globals, fn, block, increments, rcType,
+                               parentAssignedAliasVars);
+    }
+  }
+
+  private void passDecrementsToBranches(Logger logger, GlobalVars globals,
+      Function fn, Block block, RCTracker increments, RefCountType rcType,
+      Set<Var> parentAssignedAliasVars) {
+    Set<Var> passIncrements = new HashSet<Var>();
+    ListMultimap<Conditional, Var> toPass = findPassCandidates(logger, fn,
+                            block, increments, rcType, passIncrements);
+    for (Conditional cond: toPass.keySet()) {
+      passToBranches(logger, globals, fn, cond, increments, rcType,
+                     toPass.get(cond), passIncrements, parentAssignedAliasVars);
+    }
+  }
+
+  /**
+   * Find decremented vars where last use in block is in a conditional
+   * and passing the decrement could let it cancel out.
+   * @param passIncrements filled with vars where the conditional is the only
+   *              use, so increments in the block can be passed to branches
+   * @return map from conditional to vars
+   */
+  private ListMultimap<Conditional, Var> findPassCandidates(Logger logger,
+      Function fn, Block block, RCTracker increments, RefCountType rcType,
+      Set<Var> passIncrements) {
+    ListMultimap<Conditional, Var> result = ArrayListMultimap.create();
+
+    Set<Var> candidates = new HashSet<Var>();
+    for (Entry<AliasKey, Long> e: increments.rcIter(rcType, RCDir.DECR)) {
+      Var var = increments.getRefCountVar(e.getKey());
+      // Alias vars may not be initialized at top of branch
+      if (e.getValue() < 0 && var.storage() != Alloc.ALIAS &&
+          RefCounting.trackRefCount(var, rcType)) {
+        candidates.add(var);
       }
+    }
 
-      // Cancel out increments and decrements
-      cancelIncrements(logger, fn, block, increments, rcType);
+    if (candidates.isEmpty()) {
+      return result;
+    }
 
-      // Add decrements to block
-      placeDecrements(logger, globals, fn, block, increments, rcType);
+    UseFinder useFinder = new UseFinder(increments, rcType, candidates);
+    for (Continuation cont: block.getContinuations()) {
+      useFinder.reset();
+      TreeWalk.walkSyncChildren(logger, fn, cont, useFinder);
+      candidates.removeAll(useFinder.getUsedVars());
+    }
 
-      // Add any remaining increments
-      placeIncrements(globals, fn, block, increments, rcType, parentAssignedAliasVars);
+    // Scan backwards to find last use
+    Map<Var, Conditional> lastUse = new HashMap<Var, Conditional>();
+    ListIterator<Statement> it = block.statementEndIterator();
+    while (it.hasPrevious() && !candidates.isEmpty()) {
+      Statement stmt = it.previous();
+      if (stmt.type() == StatementType.INSTRUCTION) {
+        candidates.removeAll(findUses(stmt.instruction(), increments, rcType,
+                                      candidates));
+      } else {
+        assert(stmt.type() == StatementType.CONDITIONAL);
+        Conditional cond = stmt.conditional();
+        useFinder.reset();
+        TreeWalk.walkSyncChildren(logger, fn, cond, useFinder);
+        for (Var used: useFinder.getUsedVars()) {
+          if (candidates.remove(used) && cond.isExhaustiveSyncConditional()) {
+            lastUse.put(used, cond);
+          }
+        }
+      }
+    }
+
+    if (lastUse.isEmpty()) {
+      return result;
+    }
+
+    // Increments in block are only for the conditional if nothing else
+    // uses the var
+    for (Var var: lastUse.keySet()) {
+      if (increments.getCount(rcType, var, RCDir.INCR) > 0) {
+        passIncrements.add(var);
+      }
+    }
+    UseFinder incrUseFinder = new UseFinder(increments, rcType,
+                                            passIncrements);
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.INSTRUCTION) {
+        passIncrements.removeAll(findUses(stmt.instruction(), increments,
+                                          rcType, passIncrements));
+      } else {
+        Conditional cond = stmt.conditional();
+        incrUseFinder.reset();
+        TreeWalk.walkSyncChildren(logger, fn, cond, incrUseFinder);
+        for (Var used: incrUseFinder.getUsedVars()) {
+          if (lastUse.get(used) != cond) {
+            passIncrements.remove(used);
+          }
+        }
+      }
+    }
+
+    for (Entry<Var, Conditional> e: lastUse.entrySet()) {
+      Var var = e.getKey();
+      Conditional cond = e.getValue();
+      if (passIncrements.contains(var) ||
+          branchIncrements(cond, increments, rcType, var)) {
+        result.put(cond, var);
+      }
+    }
+
+    if (logger.isTraceEnabled()) {
+      logger.trace("Pass " + rcType + " decrements to branches: " + result +
+                   " increments: " + passIncrements);
+    }
+    return result;
+  }
+
+  /**
+   * @return true if var is incremented at top level of any branch
+   */
+  private boolean branchIncrements(Conditional cond, RCTracker increments,
+                                   RefCountType rcType, Var var) {
+    for (Block branch: cond.getBlocks()) {
+      for (Statement stmt: branch.getStatements()) {
+        if (isConstIncrement(stmt, increments, rcType, var)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean isConstIncrement(Statement stmt, RCTracker increments,
+                                   RefCountType rcType, Var var) {
+    if (stmt.type() != StatementType.INSTRUCTION) {
+      return false;
+    }
+    Instruction inst = stmt.instruction();
+    return RefCountOp.isIncrement(inst.op) &&
+        RefCountOp.getRCType(inst.op) == rcType &&
+        RefCountOp.getRCAmount(inst).isInt() &&
+        increments.getRefCountVar(RefCountOp.getRCTarget(inst)).equals(var);
+  }
 
-      // Verify we didn't miss any
-      RCUtil.checkRCZero(block, increments, rcType, true, true);
+  /**
+   * Move refcounts for vars into each branch of conditional, along with
+   * increments already in the branch, then redo placement in branch,
+   * recursing into nested conditionals.
+   */
+  private void passToBranches(Logger logger, GlobalVars globals, Function fn,
+      Conditional cond, RCTracker increments, RefCountType rcType,
+      List<Var> vars, Set<Var> passIncrements,
+      Set<Var> parentAssignedAliasVars) {
+    for (Block branch: cond.getBlocks()) {
+      RCTracker branchIncrements = new RCTracker(increments.getAliases());
+      for (Var var: vars) {
+        branchIncrements.incr(var, rcType,
+                          increments.getCount(rcType, var, RCDir.DECR));
+        if (passIncrements.contains(var)) {
+          branchIncrements.incr(var, rcType,
+                          increments.getCount(rcType, var, RCDir.INCR));
+        }
+      }
+
+      ListIterator<Statement> it = branch.statementIterator();
+      while (it.hasNext()) {
+        Statement stmt = it.next();
+        for (Var var: vars) {
+          if (isConstIncrement(stmt, increments, rcType, var)) {
+            branchIncrements.incr(var, rcType,
+                RefCountOp.getRCAmount(stmt.instruction()).getInt());
+            it.remove();
+            break;
+          }
+        }
+      }
+
+      preprocessIncrements(branchIncrements, rcType);
+      cancelIncrements(logger, fn, branch, branchIncrements, rcType);
+      passDecrementsToBranches(logger, globals, fn, branch, branchIncrements,
+                               rcType, parentAssignedAliasVars);
+      placeRemaining(logger, globals, fn, branch, branchIncrements, rcType,
+                     parentAssignedAliasVars);
+    }
+
+    for (Var var: vars) {
+      long decr = increments.getCount(rcType, var, RCDir.DECR);
+      if (logger.isTraceEnabled()) {
+        logger.trace("Passed " + var + " " + rcType + " " + decr +
+                     " to branches");
+      }
+      increments.cancel(var, rcType, -decr);
+      if (passIncrements.contains(var)) {
+        increments.cancel(var, rcType,
+                          -increments.getCount(rcType, var, RCDir.INCR));
+      }
     }
   }
 
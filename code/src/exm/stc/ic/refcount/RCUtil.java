@@ -56,6 +56,10 @@ public class RCUtil {
     return Settings.getBooleanUnchecked(Settings.OPT_HOIST_REFCOUNTS);
   }
 
+  static boolean passEnabled() {
+    return Settings.getBooleanUnchecked(Settings.OPT_PASS_REFCOUNTS);
+  }
+
   /**
    * Check reference counts are all set to zero
    * @param block
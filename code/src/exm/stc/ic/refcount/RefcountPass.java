@@ -51,6 +51,10 @@ import exm.stc.ic.tree.TurbineOp.RefCountOp.RCDir;
  * Eliminate, merge and otherwise reduce read/write reference counting
  * operations. Run as a post-processing step.
  *
+ * Inputs that {@link BorrowInputs} found are never dereferenced by a
+ * function are borrowed from the caller: no read reference is passed in
+ * at call sites and none is consumed by the function.
+ *
  * Additional unimplemented ideas:
  * - Pushing down reference decrements to blocks where they can be merged
  */
@@ -268,6 +272,10 @@ public class RefcountPass implements OptimizerPass {
 
     reorderContinuations(logger, block);
 
+    // Let calls in branches take over references held by this block
+    placer.passDecrementsToBranches(logger, globals, fn, block, increments,
+                                    parentAssignedAliasVars);
+
     // Move any increment instructions up to this block
     // if they can be combined with increments here
     pullUpRefIncrements(block, increments);
@@ -330,8 +338,13 @@ public class RefcountPass implements OptimizerPass {
       assert (block == fn.mainBlock());
       if (fn.isAsync()) {
         // Need to do bookkeeping if this runs in separate task
-        for (Var i: fn.getInputList()) {
-          increments.readDecr(i);
+        List<Var> inputs = fn.getInputList();
+        for (int idx = 0; idx < inputs.size(); idx++) {
+          Var i = inputs.get(idx);
+          if (!fn.isInputBorrowed(idx)) {
+            // Caller passed in a read reference for us to consume
+            increments.readDecr(i);
+          }
           if (Types.isScalarUpdateable(i) && RefCounting.WRITABLE_UPDATEABLE_INARGS) {
             increments.writeDecr(i);
           }
@@ -71,13 +71,21 @@ public class Conditionals {
     @Override
     public boolean isNoop() {
       for (Block b: getBlocks()) {
-        if (!b.isEmpty()) {
+        if (!isEmptyBlock(b)) {
           return false;
         }
       }
       return true;
     }
 
+    /**
+     * @return true if block can be omitted: cleanups such as refcount
+     *         decrements can be placed in a block with no other code
+     */
+    protected static boolean isEmptyBlock(Block b) {
+      return b.isEmpty() && b.getCleanups().isEmpty();
+    }
+
     @Override
     public Statement cloneStatement() {
       return clone();
@@ -151,7 +159,7 @@ public class Conditionals {
 
     @Override
     public void generate(Logger logger, CompilerBackend gen, GenInfo info) {
-      boolean hasElse = !(elseBlock.isEmpty());
+      boolean hasElse = !isEmptyBlock(elseBlock);
       gen.startIfStatement(condition, hasElse);
       this.thenBlock.generate(logger, gen, info);
       if (hasElse) {
@@ -168,7 +176,7 @@ public class Conditionals {
       sb.append(this.condition.toString());
       sb.append(") {\n");
       thenBlock.prettyPrint(sb, newIndent);
-      if (!elseBlock.isEmpty()) {
+      if (!isEmptyBlock(elseBlock)) {
         sb.append(currentIndent + "} else {\n");
         elseBlock.prettyPrint(sb, newIndent);
       }
@@ -304,7 +312,7 @@ public class Conditionals {
 
     @Override
     public void generate(Logger logger, CompilerBackend gen, GenInfo info) {
-      boolean hasDefault = !defaultBlock.isEmpty();
+      boolean hasDefault = !isEmptyBlock(defaultBlock);
       gen.startSwitch(switchVar, caseLabels, hasDefault);
 
       for (Block b: this.caseBlocks) {
@@ -331,7 +339,7 @@ public class Conditionals {
         caseBlocks.get(i).prettyPrint(sb, caseBlockIndent);
         sb.append(caseIndent + "}\n");
       }
-      if (!defaultBlock.isEmpty()) {
+      if (!isEmptyBlock(defaultBlock)) {
         sb.append(caseIndent + "default {\n");
         defaultBlock.prettyPrint(sb, caseBlockIndent);
         sb.append(caseIndent + "}\n");
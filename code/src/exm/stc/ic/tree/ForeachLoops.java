@@ -5,6 +5,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -42,10 +43,13 @@ import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICContinuations.ContinuationType;
 import exm.stc.ic.tree.ICContinuations.NestedBlock;
 import exm.stc.ic.tree.ICInstructions.Builtin;
+import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.BlockType;
 import exm.stc.ic.tree.ICTree.GenInfo;
 import exm.stc.ic.tree.ICTree.RenameMode;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
 import exm.stc.ic.tree.TurbineOp.RefCountOp.RCDir;
 
 /**
@@ -78,6 +82,12 @@ public class ForeachLoops {
     /** Decrements that should happen at end of loop body (once per iteration) */
     protected final List<RefCount> endDecrements;
 
+    /**
+     * Containers whose inserts in loop body are buffered and done in one
+     * operation per leaf of the loop.  Set after refcounts are placed.
+     */
+    protected final List<Var> batchedInserts = new ArrayList<Var>();
+
     public AbstractForeachLoop(Block loopBody, String loopName, Var loopVar,
         Var loopCounterVar, int splitDegree, int leafDegree, int desiredUnroll,
         boolean unrolled,
@@ -136,6 +146,17 @@ public class ForeachLoops {
       endDecrements.add(decr);
     }
 
+    public List<Var> getBatchedInserts() {
+      return Collections.unmodifiableList(batchedInserts);
+    }
+
+    public void addBatchedInsert(Var container) {
+      assert(Types.isArray(container) || Types.isBag(container));
+      if (!batchedInserts.contains(container)) {
+        batchedInserts.add(container);
+      }
+    }
+
     public void prettyPrintIncrs(StringBuilder sb) {
       if (!startIncrements.isEmpty()) {
         sb.append(" #beforeperiter[");
@@ -153,6 +174,11 @@ public class ForeachLoops {
         ICUtil.prettyPrintList(sb, endDecrements);
         sb.append("]");
       }
+      if (!batchedInserts.isEmpty()) {
+        sb.append(" #batchinsert[");
+        ICUtil.prettyPrintVarList(sb, batchedInserts);
+        sb.append("]");
+      }
     }
 
     /**
@@ -193,6 +219,26 @@ public class ForeachLoops {
       return -1;
     }
 
+    public String loopName() {
+      return loopName;
+    }
+
+    public Var loopVar() {
+      return loopVar;
+    }
+
+    public Var loopCounterVar() {
+      return loopCounterVar;
+    }
+
+    public int splitDegree() {
+      return splitDegree;
+    }
+
+    public int leafDegree() {
+      return leafDegree;
+    }
+
 
     protected Collection<Var> abstractForeachRequiredVars(boolean forDeadCodeElim) {
       Collection<Var> res = new ArrayList<Var>();
@@ -206,6 +252,21 @@ public class ForeachLoops {
     }
 
 
+    protected void renameBatchedInserts(Map<Var, Arg> renames) {
+      ListIterator<Var> it = batchedInserts.listIterator();
+      while (it.hasNext()) {
+        Arg replacement = renames.get(it.next());
+        if (replacement != null) {
+          it.set(replacement.getVar());
+        }
+      }
+    }
+
+    protected <T extends AbstractForeachLoop> T copyBatchedInserts(T clone) {
+      clone.batchedInserts.addAll(batchedInserts);
+      return clone;
+    }
+
     private void addRefCountVars(Collection<Var> res,
                       Collection<RefCount> refcounts) {
       for (RefCount rc: refcounts) {
@@ -218,10 +279,25 @@ public class ForeachLoops {
   public static class ForeachLoop extends AbstractForeachLoop {
     private Var container;
     private boolean containerClosed;
+    /** If false, loop body doesn't use loop var, so don't fetch members */
+    private boolean fetchValues = true;
     public Var getArrayVar() {
       return container;
     }
 
+    public boolean fetchValues() {
+      return fetchValues;
+    }
+
+    /**
+     * Mark that loop body doesn't use member values, so backend
+     * only needs to enumerate keys
+     */
+    public void skipValueFetch() {
+      assert(!Types.isContainerLocal(container));
+      this.fetchValues = false;
+    }
+
     private ForeachLoop(Block block,
         String loopName, Var container, Var loopVar,
         Var loopCounterVar, int splitDegree, int leafDegree,
@@ -252,10 +328,12 @@ public class ForeachLoops {
 
     @Override
     public ForeachLoop clone() {
-      return new ForeachLoop(this.loopBody.clone(), loopName,
-        container, loopVar, loopCounterVar, splitDegree, leafDegree,
-        containerClosed, passedVars, keepOpenVars, startIncrements,
-        constStartIncrements, endDecrements, false);
+      ForeachLoop clone = copyBatchedInserts(new ForeachLoop(
+        this.loopBody.clone(), loopName, container, loopVar, loopCounterVar,
+        splitDegree, leafDegree, containerClosed, passedVars, keepOpenVars,
+        startIncrements, constStartIncrements, endDecrements, false));
+      clone.fetchValues = this.fetchValues;
+      return clone;
     }
 
     @Override
@@ -312,10 +390,11 @@ public class ForeachLoops {
 
     @Override
     public void generate(Logger logger, CompilerBackend gen, GenInfo info) {
-      gen.startForeachLoop(loopName, container, loopVar, loopCounterVar,
+      gen.startForeachLoop(loopName, container,
+                fetchValues ? loopVar : null, loopCounterVar,
                 splitDegree, leafDegree, containerClosed,
                 passedVars, startIncrements, constStartIncrements,
-                endDecrements);
+                endDecrements, batchedInserts);
       this.loopBody.generate(logger, gen, info);
       gen.endForeachLoop(splitDegree, containerClosed, endDecrements);
     }
@@ -328,6 +407,9 @@ public class ForeachLoops {
       if (splitDegree < 0) {
         sb.append(currentIndent + "@nospawn\n");
       }
+      if (!fetchValues) {
+        sb.append(currentIndent + "@novalues\n");
+      }
       sb.append(currentIndent + "foreach " + loopVar.name());
       if (loopCounterVar != null) {
         sb.append(", " + loopCounterVar.name());
@@ -349,6 +431,7 @@ public class ForeachLoops {
       if (renames.containsKey(container)) {
         container = renames.get(container).getVar();
       }
+      renameBatchedInserts(renames);
 
       if (mode == RenameMode.REPLACE_VAR) {
         if (renames.containsKey(loopVar)) {
@@ -373,6 +456,7 @@ public class ForeachLoops {
     public void removeVars_(Set<Var> removeVars) {
       checkNotRemoved(container, removeVars);
       checkNotRemoved(loopVar, removeVars);
+      batchedInserts.removeAll(removeVars);
       if (loopCounterVar != null) {
         checkNotRemoved(loopCounterVar, removeVars);
       }
@@ -423,6 +507,7 @@ public class ForeachLoops {
         }
       }
       o.renameVars(function, renames, RenameMode.REPLACE_VAR, true);
+      this.fetchValues = this.fetchValues || o.fetchValues;
 
       fuseIntoAbstract(o, insertAtTop);
     }
@@ -445,6 +530,7 @@ public class ForeachLoops {
           Types.retrievedType(this.container, false)));
       this.container = localContainer;
       this.containerClosed = true;
+      this.fetchValues = true;
       this.splitDegree = -1; // Execute locally
     }
   }
@@ -509,11 +595,11 @@ public class ForeachLoops {
       } else {
         newLoopBody = new Block(BlockType.RANGELOOP_BODY, null);
       }
-      return new RangeLoop(newLoopBody, loopName, loopVar, loopCounterVar,
-          start, end, increment,
+      return copyBatchedInserts(new RangeLoop(newLoopBody, loopName, loopVar,
+          loopCounterVar, start, end, increment,
           passedVars, keepOpenVars, desiredUnroll, unrolled,
           splitDegree, leafDegree, startIncrements, constStartIncrements,
-          endDecrements, !cloneLoopBody);
+          endDecrements, !cloneLoopBody));
     }
 
     @Override
@@ -521,6 +607,18 @@ public class ForeachLoops {
       return ContinuationType.RANGE_LOOP;
     }
 
+    public Arg start() {
+      return start;
+    }
+
+    public Arg end() {
+      return end;
+    }
+
+    public Arg increment() {
+      return increment;
+    }
+
     @Override
     public ExecTarget target() {
       if (splitDegree > 0) {
@@ -544,7 +642,7 @@ public class ForeachLoops {
     public void generate(Logger logger, CompilerBackend gen, GenInfo info) {
       gen.startRangeLoop(loopName, loopVar, loopCounterVar, start, end, increment,
                          splitDegree, leafDegree, passedVars, startIncrements,
-                         constStartIncrements, endDecrements);
+                         constStartIncrements, endDecrements, batchedInserts);
       this.loopBody.generate(logger, gen, info);
       gen.endRangeLoop(splitDegree, endDecrements);
     }
@@ -579,6 +677,7 @@ public class ForeachLoops {
       start = renameRangeArg(start, renames);
       end = renameRangeArg(end, renames);
       increment = renameRangeArg(increment, renames);
+      renameBatchedInserts(renames);
 
       if (mode == RenameMode.REPLACE_VAR) {
         if (renames.containsKey(loopVar)) {
@@ -620,6 +719,7 @@ public class ForeachLoops {
       checkNotRemoved(start, removeVars);
       checkNotRemoved(end, removeVars);
       checkNotRemoved(increment, removeVars);
+      batchedInserts.removeAll(removeVars);
     }
 
     @Override
@@ -785,28 +885,27 @@ public class ForeachLoops {
         }
         return Pair.create(true, doUnroll(logger, function, outerBlock,
                                           desiredUnroll));
-      } else if (expandLoops || fullUnroll) {
-        long instCount = loopBody.getInstructionCount();
-        long iterCount = constIterCount();
-        if (expandLoops && iterCount >= 0) {
-          // See if the loop has a small number of iterations, could just expand;
-          if (iterCount <= getUnrollMaxIters(true)) {
-            long extraInstructions = instCount * (iterCount - 1);
-            if (extraInstructions <= getUnrollMaxExtraInsts(true)) {
-              return Pair.create(true, doUnroll(logger, function, outerBlock,
-                                 (int)iterCount));
-            }
+      }
+
+      long instCount = loopBody.getInstructionCount();
+      long iterCount = constIterCount();
+      if (expandLoops && iterCount >= 0) {
+        // See if the loop has a small number of iterations, could just expand;
+        if (iterCount <= getUnrollMaxIters(true)) {
+          long extraInstructions = instCount * (iterCount - 1);
+          if (extraInstructions <= getUnrollMaxExtraInsts(true)) {
+            return Pair.create(true, doUnroll(logger, function, outerBlock,
+                               (int)iterCount));
           }
         }
-        if (!fullUnroll) {
-          logger.trace("Full unrolled not enabled");
-          return NO_UNROLL;
-        }
+      }
 
-        if (this.unrolled) {
-          // Don't do extra unrolling unless we're just expanding a small loop
-          return NO_UNROLL;
-        }
+      if (this.unrolled) {
+        // Don't do extra unrolling unless we're just expanding a small loop
+        return NO_UNROLL;
+      }
+
+      if (fullUnroll) {
         // Finally, maybe unroll a few iterations
         long threshold = getUnrollMaxExtraInsts(false);
         long unrollFactor = Math.min(getUnrollMaxIters(false),
@@ -815,10 +914,93 @@ public class ForeachLoops {
           return Pair.create(true, doUnroll(logger, function, outerBlock,
                                             (int)unrollFactor));
         }
+      } else {
+        logger.trace("Full unrolled not enabled");
+      }
+
+      if (isStripMineEnabled()) {
+        int stripSize = getStripMineFactor();
+        if (canStripMine(stripSize, instCount, iterCount)) {
+          logger.debug("Strip-mining range loop " + loopName + " with strips"
+                     + " of " + stripSize + " iterations");
+          return Pair.create(true, doUnroll(logger, function, outerBlock,
+                                            stripSize));
+        }
       }
       return NO_UNROLL;
     }
 
+    /**
+     * Check whether strip-mining this loop is worthwhile: each strip of
+     * iterations runs inside a single leaf task, so we only want to do it
+     * if the body waits on or retrieves futures defined outside the loop,
+     * which later passes can then do once per strip rather than once per
+     * iteration.
+     */
+    private boolean canStripMine(int stripSize, long instCount,
+                                 long iterCount) {
+      if (stripSize <= 1 || loopCounterVar != null) {
+        return false;
+      }
+
+      if (leafDegree < stripSize ||
+          (iterCount >= 0 && iterCount <= stripSize)) {
+        // Strips wouldn't fit in leaf chunks
+        return false;
+      }
+
+      if (instCount * (stripSize - 1) > getUnrollMaxExtraInsts(false)) {
+        return false;
+      }
+
+      // Only strip-mine innermost loops to limit code growth
+      return !containsLoop(loopBody) && hasInvariantWaits();
+    }
+
+    private static boolean containsLoop(Block block) {
+      for (Continuation c: block.allComplexStatements()) {
+        if (c.isLoop()) {
+          return true;
+        }
+        for (Block inner: c.getBlocks()) {
+          if (containsLoop(inner)) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    /**
+     * @return true if loop body waits on or retrieves futures defined
+     *          outside loop
+     */
+    private boolean hasInvariantWaits() {
+      Set<Var> bodyVars = new HashSet<Var>(loopBody.variables());
+      for (Statement stmt: loopBody.getStatements()) {
+        if (stmt.type() == StatementType.INSTRUCTION) {
+          Instruction inst = stmt.instruction();
+          if (inst.op.isRetrieve(false)) {
+            Arg src = inst.getInput(0);
+            if (src.isVar() && !bodyVars.contains(src.getVar())) {
+              return true;
+            }
+          }
+        }
+      }
+
+      for (Continuation c: loopBody.getContinuations()) {
+        if (c.isAsync()) {
+          for (BlockingVar bv: c.blockingVars(false)) {
+            if (!bodyVars.contains(bv.var)) {
+              return true;
+            }
+          }
+        }
+      }
+      return false;
+    }
+
     private boolean isExpandLoopsEnabled() {
       return Settings.getBooleanUnchecked(Settings.OPT_EXPAND_LOOPS);
     }
@@ -827,6 +1009,14 @@ public class ForeachLoops {
       return Settings.getBooleanUnchecked(Settings.OPT_FULL_UNROLL);
     }
 
+    private boolean isStripMineEnabled() {
+      return Settings.getBooleanUnchecked(Settings.OPT_STRIP_MINE_LOOPS);
+    }
+
+    private int getStripMineFactor() {
+      return Settings.getIntUnchecked(Settings.OPT_STRIP_MINE_FACTOR);
+    }
+
 
     private int getUnrollMaxIters(boolean fullExpand) {
       if (fullExpand) {
@@ -860,7 +1050,7 @@ public class ForeachLoops {
     private List<Continuation> doUnroll(Logger logger, FnID function,
                                         Block outerBlock, int unrollFactor) {
       logger.debug("Unrolling range loop " + this.loopName
-                        + " " + desiredUnroll + " times ");
+                        + " " + unrollFactor + " times ");
 
       String vPrefix = Var.VALUEOF_VAR_PREFIX + loopName;
       String bigStepName = outerBlock.uniqueVarName(vPrefix + ":unrollincr");
@@ -1399,6 +1399,10 @@ public class ICContinuations {
 
 
 
+    public String procName() {
+      return procName;
+    }
+
     public WaitMode getMode() {
       return mode;
     }
@@ -1441,6 +1445,13 @@ public class ICContinuations {
       return props.get(TaskPropKey.PARALLELISM);
     }
 
+    /**
+     * @return task properties of wait, can be modified in place
+     */
+    public TaskProps getTaskProps() {
+      return props;
+    }
+
     /**
      * @return target location.  Non-null.
      */
@@ -1549,6 +1560,7 @@ public class ICContinuations {
         return null;
       } else {
         // if at end we have nothing left, return the inner block for inlining
+        inheritPriority();
         return block;
       }
     }
@@ -1589,9 +1601,21 @@ public class ICContinuations {
     }
 
     public void inlineInto(Block dstBlock) {
+      inheritPriority();
       inlineInto(dstBlock, this.block);
     }
 
+    /**
+     * Before removing this wait, pass its priority on to tasks spawned
+     * from the block, which would otherwise have inherited it.
+     */
+    private void inheritPriority() {
+      Arg priority = props.get(TaskPropKey.PRIORITY);
+      if (priority != null) {
+        ICUtil.setTaskPriority(block, priority);
+      }
+    }
+
     /**
      * @param wv
      * @return true if we need to recursively check closing for variable, i.e.
@@ -1715,6 +1739,14 @@ public class ICContinuations {
           taskOutputs, taskArgs, taskProps, hasSideEffects);
     }
 
+    public String procName() {
+      return procName;
+    }
+
+    public AsyncExecutor executor() {
+      return executor;
+    }
+
     public Block getBlock() {
       return block;
     }
@@ -1173,10 +1173,18 @@ public class ICInstructions {
         case CALL_LOCAL_CONTROL: {
           List<VarCount> readIncr = new ArrayList<VarCount>();
           List<VarCount> writeIncr = new ArrayList<VarCount>();
-          for (Arg inArg: inputs) {
+          Function f = null;
+          if (op != Opcode.CALL_FOREIGN &&
+              op != Opcode.CALL_FOREIGN_LOCAL) {
+            f = functions.get(this.id);
+          }
+          for (int i = 0; i < inputs.size(); i++) {
+            Arg inArg = inputs.get(i);
             if (inArg.isVar()) {
               Var inVar = inArg.getVar();
-              if (RefCounting.trackReadRefCount(inVar)) {
+              // Borrowed inputs are never dereferenced by callee
+              if (RefCounting.trackReadRefCount(inVar) &&
+                  (f == null || !f.isInputBorrowed(i))) {
                 readIncr.add(VarCount.one(inVar));
               }
               if (Types.isScalarUpdateable(inVar) &&
@@ -1191,9 +1199,7 @@ public class ICInstructions {
               writeIncr.add(VarCount.one(outVar));
             }
             boolean readRC = false;
-            if (op != Opcode.CALL_FOREIGN &&
-                op != Opcode.CALL_FOREIGN_LOCAL) {
-              Function f = functions.get(this.id);
+            if (f != null) {
               boolean writeOnly = f.isOutputWriteOnly(i);
 
               // keep read references to output vars
@@ -1573,6 +1579,18 @@ public class ICInstructions {
           new ArrayList<Var>(outputs), new ArrayList<Arg>(inputs),
           props.clone(), foreignFuncs);
     }
+
+    /**
+     * Create a copy of this call that invokes a different function
+     * with the same outputs and execution mode.
+     * @param newID function to call
+     * @param newInputs inputs to new function
+     * @return
+     */
+    public FunctionCall retarget(FnID newID, List<Arg> newInputs) {
+      return new FunctionCall(op, newID, new ArrayList<Var>(outputs),
+          new ArrayList<Arg>(newInputs), props.clone(), foreignFuncs);
+    }
   }
 
   public static class LocalFunctionCall extends CommonFunctionCall {
@@ -120,6 +120,13 @@ public class ICTree {
      */
     private boolean checkpointRequired = false;
 
+    /**
+     * Functions created by specializing another function:
+     * clone -> original
+     */
+    private final Map<FnID, FnID> specializations =
+                                        new HashMap<FnID, FnID>();
+
     public Program(ForeignFunctions foreignFunctions) {
       this.foreignFunctions = foreignFunctions;
     }
@@ -137,7 +144,8 @@ public class ICTree {
       GenInfo info = new GenInfo(blockVectors);
 
       logger.debug("Starting to generate program from Swift IC");
-      gen.initialize(new CodeGenOptions(checkpointRequired), foreignFunctions);
+      gen.initialize(new CodeGenOptions(checkpointRequired, specializations),
+                     foreignFunctions);
 
       logger.debug("Generating required packages");
       for (RequiredPackage pkg: required) {
@@ -207,6 +215,22 @@ public class ICTree {
       this.functionsByID.put(fn.id(), fn);
     }
 
+    /**
+     * Record that a function was created as a specialized copy of another
+     * @param clone
+     * @param original
+     */
+    public void addSpecialization(FnID clone, FnID original) {
+      specializations.put(clone, original);
+    }
+
+    /**
+     * @return map of specialized function -> original function
+     */
+    public Map<FnID, FnID> specializations() {
+      return Collections.unmodifiableMap(specializations);
+    }
+
     public void addFunctions(Collection<Function> c) {
       for (Function f: c) {
         addFunction(f);
@@ -358,7 +382,7 @@ public class ICTree {
       out.append("\n");
 
       for (Function f: functions) {
-        f.prettyPrint(out);
+        f.prettyPrint(out, foreignFunctions.isPure(f.id()));
         out.append("\n");
       }
     }
@@ -732,6 +756,11 @@ public class ICTree {
     private final List<Var> oList;
     /** List of which outputs are write-only */
     private final List<Var> oListWriteOnly;
+    /**
+     * List of inputs that function never dereferences, so callers
+     * needn't pass a read reference
+     */
+    private final List<Var> iListBorrowed;
 
     /** Wait until the below inputs are available before running function. */
     private final List<WaitVar> blockingInputs;
@@ -764,6 +793,7 @@ public class ICTree {
       this.iList = new ArrayList<Var>(iList);
       this.oList = new ArrayList<Var>(oList);
       this.oListWriteOnly = new ArrayList<Var>();
+      this.iListBorrowed = new ArrayList<Var>();
       this.mode = mode;
       this.mainBlock = mainBlock;
       this.blockingInputs = new ArrayList<WaitVar>(blockingInputs);
@@ -801,6 +831,22 @@ public class ICTree {
       return oList.get(i);
     }
 
+    public boolean isInputBorrowed(int i) {
+      return iListBorrowed.contains(iList.get(i));
+    }
+
+    public void makeInputBorrowed(int i) {
+      assert(i >= 0 && i < iList.size());
+      Var input = iList.get(i);
+      if (!iListBorrowed.contains(input)) {
+        iListBorrowed.add(input);
+      }
+    }
+
+    public void clearBorrowedInputs() {
+      iListBorrowed.clear();
+    }
+
     public boolean isOutputWriteOnly(int i) {
       return oListWriteOnly.contains(oList.get(i));
     }
@@ -851,6 +897,14 @@ public class ICTree {
     }
 
     public void prettyPrint(StringBuilder sb) {
+      prettyPrint(sb, false);
+    }
+
+    /**
+     * @param sb
+     * @param pure whether function is known to be pure
+     */
+    public void prettyPrint(StringBuilder sb, boolean pure) {
       ICUtil.prettyPrintFormalArgs(sb, this.oList);
       sb.append(" @" + id + " ");
       ICUtil.prettyPrintFormalArgs(sb, this.iList);
@@ -866,6 +920,16 @@ public class ICTree {
         ICUtil.prettyPrintVarList(sb, this.oListWriteOnly);
         sb.append("]");
       }
+
+      if (!this.iListBorrowed.isEmpty()) {
+        sb.append(" #borrowed[");
+        ICUtil.prettyPrintVarList(sb, this.iListBorrowed);
+        sb.append("]");
+      }
+
+      if (pure) {
+        sb.append(" #pure");
+      }
       sb.append(" {\n");
       mainBlock.prettyPrint(sb, indent);
       sb.append("}\n");
@@ -976,7 +1040,8 @@ public class ICTree {
 
       // Only rename if we're fully replacing
       if (mode == RenameMode.REPLACE_VAR) {
-        for (List<Var> varList: Arrays.asList(iList, oList, oListWriteOnly)) {
+        for (List<Var> varList: Arrays.asList(iList, oList, oListWriteOnly,
+                                              iListBorrowed)) {
           ICUtil.replaceVarsInList(renames, varList, false);
         }
 
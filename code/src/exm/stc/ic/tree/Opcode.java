@@ -111,6 +111,9 @@ public enum Opcode {
   CHECKPOINT_WRITE_ENABLED, CHECKPOINT_LOOKUP_ENABLED,
   LOOKUP_CHECKPOINT, WRITE_CHECKPOINT,
 
+  // Lookup and write in-memory memo cache
+  LOOKUP_MEMO, WRITE_MEMO,
+
   // Pack and unpack values into blob
   PACK_VALUES, UNPACK_VALUES,
 
@@ -399,6 +399,12 @@ public class TurbineOp extends Instruction {
     case LOOKUP_CHECKPOINT:
       gen.lookupCheckpoint(getOutput(0), getOutput(1), getInput(0));
       break;
+    case WRITE_MEMO:
+      gen.writeMemo(getInput(0), getInput(1));
+      break;
+    case LOOKUP_MEMO:
+      gen.lookupMemo(getOutput(0), getOutput(1), getInput(0));
+      break;
     case PACK_VALUES:
       gen.packValues(getOutput(0), getInputs());
       break;
@@ -1619,6 +1625,20 @@ public class TurbineOp extends Instruction {
         Arrays.asList(checkpointExists, value), key);
   }
 
+  public static Instruction writeMemo(Arg key, Arg value) {
+    assert(Types.isBlobVal(key));
+    assert(Types.isBlobVal(value));
+    return new TurbineOp(Opcode.WRITE_MEMO, Var.NONE, key, value);
+  }
+
+  public static Instruction lookupMemo(Var memoExists, Var value, Arg key) {
+    assert(Types.isBoolVal(memoExists));
+    assert(Types.isBlobVal(value));
+    assert(Types.isBlobVal(key));
+    return new TurbineOp(Opcode.LOOKUP_MEMO,
+        Arrays.asList(memoExists, value), key);
+  }
+
   public static Instruction packValues(Var packedValues, List<Arg> values) {
     for (Arg val: values) {
       assert(val.isConst() || val.getVar().storage() == Alloc.LOCAL);
@@ -1805,7 +1825,11 @@ public class TurbineOp extends Instruction {
     case WRITE_CHECKPOINT:
       // Writing checkpoint is a side-effect
       return true;
+    case WRITE_MEMO:
+      // Modifies memo cache
+      return true;
     case LOOKUP_CHECKPOINT:
+    case LOOKUP_MEMO:
     case PACK_VALUES:
     case UNPACK_VALUES:
     case UNPACK_ARRAY_TO_FLAT:
@@ -2701,6 +2725,8 @@ public class TurbineOp extends Instruction {
     case CHECKPOINT_LOOKUP_ENABLED:
     case LOOKUP_CHECKPOINT:
     case WRITE_CHECKPOINT:
+    case LOOKUP_MEMO:
+    case WRITE_MEMO:
     case PACK_VALUES:
     case UNPACK_VALUES:
     case UNPACK_ARRAY_TO_FLAT:
@@ -2867,6 +2893,11 @@ public class TurbineOp extends Instruction {
       case LOOKUP_CHECKPOINT:
         return true;
 
+      case LOOKUP_MEMO:
+      case WRITE_MEMO:
+        // Local hash table operations
+        return true;
+
       case PACK_VALUES:
       case UNPACK_ARRAY_TO_FLAT:
       case UNPACK_VALUES:
@@ -3018,6 +3049,7 @@ public class TurbineOp extends Instruction {
         return false;
 
       case LOOKUP_CHECKPOINT:
+      case LOOKUP_MEMO:
         return false;
 
       case PACK_VALUES:
@@ -3030,6 +3062,10 @@ public class TurbineOp extends Instruction {
         // Don't defer writing checkpoint
         return true;
 
+      case WRITE_MEMO:
+        // Make cached result visible to later calls
+        return true;
+
       default:
         throw new STCRuntimeError("Missing: " + op);
     }
@@ -0,0 +1,92 @@
+package exm.stc.jvm.runtime;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Pool of off-heap buffers for blobs.  Allocating direct buffers is
+ * expensive and they are only freed when the garbage collector gets
+ * around to it, so buffers of released blob variables are kept for
+ * reuse.  Buffers are pooled in power-of-two size classes, and only a
+ * limited number are kept in each class.
+ */
+public class BlobPool {
+
+  /** Smallest size class: 1KB */
+  private static final int MIN_SHIFT = 10;
+
+  /** Largest size class: 16MB.  Larger buffers aren't pooled. */
+  private static final int MAX_SHIFT = 24;
+
+  private static final int MAX_PER_CLASS = 16;
+
+  private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static final ConcurrentLinkedQueue<ByteBuffer> free[] =
+                            new ConcurrentLinkedQueue[CLASSES];
+
+  /** Approximate number of buffers in each class */
+  private static final AtomicIntegerArray freeCount =
+                            new AtomicIntegerArray(CLASSES);
+
+  static {
+    for (int i = 0; i < CLASSES; i++) {
+      free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+  }
+
+  /**
+   * @return direct buffer with position 0 and limit size
+   */
+  public static ByteBuffer allocate(int size) {
+    int sizeClass = sizeClass(size);
+    if (sizeClass < 0) {
+      return ByteBuffer.allocateDirect(size);
+    }
+    ByteBuffer buf = free[sizeClass].poll();
+    if (buf == null) {
+      buf = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+    } else {
+      freeCount.decrementAndGet(sizeClass);
+      buf.clear();
+    }
+    buf.limit(size);
+    return buf;
+  }
+
+  /**
+   * Return buffer to pool.  Caller must not use the buffer afterwards.
+   * Buffers that weren't allocated from the pool are ignored.
+   */
+  public static void recycle(ByteBuffer buf) {
+    if (!buf.isDirect() || buf.isReadOnly()) {
+      return;
+    }
+    int capacity = buf.capacity();
+    int sizeClass = sizeClass(capacity);
+    if (sizeClass < 0 || (1 << (sizeClass + MIN_SHIFT)) != capacity) {
+      return;
+    }
+    if (freeCount.incrementAndGet(sizeClass) > MAX_PER_CLASS) {
+      freeCount.decrementAndGet(sizeClass);
+      return;
+    }
+    free[sizeClass].add(buf);
+  }
+
+  /**
+   * @return size class that fits size, or -1 if too large to pool
+   */
+  private static int sizeClass(int size) {
+    if (size <= (1 << MIN_SHIFT)) {
+      return 0;
+    }
+    int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+    if (shift > MAX_SHIFT) {
+      return -1;
+    }
+    return shift - MIN_SHIFT;
+  }
+}
@@ -0,0 +1,120 @@
+package exm.stc.jvm.runtime;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Elastic thread pool for tasks that may block, so that they don't tie
+ * up the fixed set of worker threads that run short dataflow tasks.
+ * Threads are started on demand up to a limit and exit once idle.
+ *
+ * Blocking tasks report completion by setting their output variables,
+ * which notifies waiters and adds dependent tasks to the task queue in
+ * the normal way.  Each blocking task is registered with the task queue
+ * while it is pending so that the queue doesn't terminate under it.
+ * Once all threads are busy, queued tasks start in priority order, and
+ * in submission order for equal priorities.
+ */
+public class BlockingExecutor {
+
+  public static final String THREADS_PROPERTY = "swift.jvm.blocking-threads";
+
+  private static final int DEFAULT_MAX_THREADS = 256;
+
+  private static final long KEEP_ALIVE_SECS = 30;
+
+  private final TaskQueue queue;
+
+  private final ThreadPoolExecutor pool;
+
+  /** Sequence number to keep equal priority tasks in FIFO order */
+  private final AtomicLong submitted = new AtomicLong(0);
+
+  public BlockingExecutor(TaskQueue queue, int maxThreads) {
+    this.queue = queue;
+    // Core threads time out, so pool grows to maxThreads under load
+    // and shrinks back when idle
+    this.pool = new ThreadPoolExecutor(maxThreads, maxThreads,
+        KEEP_ALIVE_SECS, TimeUnit.SECONDS,
+        new PriorityBlockingQueue<Runnable>(), new BlockingThreadFactory());
+    this.pool.allowCoreThreadTimeOut(true);
+  }
+
+  public static int defaultMaxThreads() {
+    return Integer.getInteger(THREADS_PROPERTY, DEFAULT_MAX_THREADS);
+  }
+
+  /**
+   * Run task on a pool thread
+   */
+  public void execute(Task task) {
+    execute(task, 0);
+  }
+
+  public void execute(Task task, int priority) {
+    queue.register();
+    pool.execute(new QueuedTask(task, priority,
+                                submitted.getAndIncrement()));
+  }
+
+  /**
+   * @return maximum number of threads that were running at once
+   */
+  public int largestPoolSize() {
+    return pool.getLargestPoolSize();
+  }
+
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+  private class QueuedTask implements Runnable, Comparable<QueuedTask> {
+    private final Task task;
+    private final int priority;
+    private final long seq;
+
+    QueuedTask(Task task, int priority, long seq) {
+      this.task = task;
+      this.priority = priority;
+      this.seq = seq;
+    }
+
+    @Override
+    public void run() {
+      long start = Metrics.ENABLED ? System.nanoTime() : 0;
+      try {
+        task.run();
+      } finally {
+        if (Metrics.ENABLED) {
+          Metrics.local().taskRun(task, SwiftTask.readyNanos(task), start,
+                                  System.nanoTime());
+        }
+        queue.deregister();
+      }
+    }
+
+    @Override
+    public int compareTo(QueuedTask o) {
+      if (priority != o.priority) {
+        return priority > o.priority ? -1 : 1;
+      }
+      return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+    }
+  }
+
+  private static class BlockingThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "swift-blocking-" + count.getAndIncrement());
+      // Don't prevent exit if program aborts
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
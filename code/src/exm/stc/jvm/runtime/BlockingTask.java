@@ -0,0 +1,9 @@
+package exm.stc.jvm.runtime;
+
+/**
+ * Base class for tasks in generated code that may block, for example
+ * leaf tasks that do I/O.  These run on the {@link BlockingExecutor}
+ * rather than on the worker threads that run dataflow tasks.
+ */
+public abstract class BlockingTask extends SwiftTask {
+}
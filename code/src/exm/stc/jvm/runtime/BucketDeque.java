@@ -0,0 +1,126 @@
+package exm.stc.jvm.runtime;
+
+/**
+ * Work-stealing deque with priority buckets: a {@link WorkDeque} per
+ * bucket, using the same mapping from priorities to buckets as
+ * {@link BucketQueue}.  The owner pops from the most urgent non-empty
+ * bucket and thieves steal from it too.
+ *
+ * The owner is the only thread that adds tasks, so it maintains the
+ * bitmap of non-empty buckets without atomic operations.  Thieves read
+ * the bitmap as a hint: a stale bit only costs a failed steal, and the
+ * owner clears it the next time it finds the bucket empty.  Deques are
+ * created when the owner first pushes to a bucket.  Tasks with the
+ * default priority take a fast path that costs a bitmap check on top
+ * of the plain deque.
+ */
+class BucketDeque {
+
+  private static final long DEFAULT_BIT = 1L << BucketQueue.DEFAULT_BUCKET;
+
+  private final WorkDeque deques[] = new WorkDeque[BucketQueue.BUCKETS];
+
+  /** Deque for default priority, kept separately for fast path */
+  private final WorkDeque defaultDeque = new WorkDeque();
+
+  /**
+   * Bit i set if bucket i may be non-empty.  Only written by owner.
+   * The volatile write after creating a deque publishes it to thieves.
+   */
+  private volatile long nonEmpty = 0;
+
+  BucketDeque() {
+    deques[BucketQueue.DEFAULT_BUCKET] = defaultDeque;
+  }
+
+  /**
+   * Add task.  Must only be called by owner.
+   */
+  public void push(Task task, int priority) {
+    if (priority == 0) {
+      defaultDeque.push(task);
+      long bits = nonEmpty;
+      if ((bits & DEFAULT_BIT) == 0) {
+        nonEmpty = bits | DEFAULT_BIT;
+      }
+      return;
+    }
+    int bucket = BucketQueue.bucket(priority);
+    WorkDeque deque = deques[bucket];
+    if (deque == null) {
+      deque = new WorkDeque();
+      deques[bucket] = deque;
+    }
+    deque.push(task);
+    long bit = 1L << bucket;
+    long bits = nonEmpty;
+    if ((bits & bit) == 0) {
+      nonEmpty = bits | bit;
+    }
+  }
+
+  /**
+   * Remove most recently added task in most urgent bucket.  Must only be
+   * called by owner.
+   * @return a task, or null if empty
+   */
+  public Task pop() {
+    long bits = nonEmpty;
+    if (bits == DEFAULT_BIT) {
+      Task res = defaultDeque.pop();
+      if (res == null) {
+        nonEmpty = 0;
+      }
+      return res;
+    }
+    while (bits != 0) {
+      int bucket = 63 - Long.numberOfLeadingZeros(bits);
+      Task res = deques[bucket].pop();
+      if (res != null) {
+        return res;
+      }
+      // Deque is empty and only we can add to it
+      bits &= ~(1L << bucket);
+      nonEmpty = bits;
+    }
+    return null;
+  }
+
+  /**
+   * Remove oldest task in most urgent bucket.  May be called by any thread.
+   * @return a task, or null if empty or if lost race with another thread
+   */
+  public Task steal() {
+    long bits = nonEmpty;
+    while (bits != 0) {
+      int bucket = 63 - Long.numberOfLeadingZeros(bits);
+      Task res = deques[bucket].steal();
+      if (res != null) {
+        return res;
+      }
+      bits &= ~(1L << bucket);
+    }
+    return null;
+  }
+
+  /**
+   * @return approximate number of tasks
+   */
+  public int size() {
+    long bits = nonEmpty;
+    int size = 0;
+    while (bits != 0) {
+      int bucket = 63 - Long.numberOfLeadingZeros(bits);
+      size += deques[bucket].size();
+      bits &= ~(1L << bucket);
+    }
+    return size;
+  }
+
+  /**
+   * @return most urgent bucket that may be non-empty, or -1 if empty
+   */
+  public int maxBucket() {
+    return 63 - Long.numberOfLeadingZeros(nonEmpty);
+  }
+}
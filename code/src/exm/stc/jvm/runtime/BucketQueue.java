@@ -0,0 +1,133 @@
+package exm.stc.jvm.runtime;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent priority queue of tasks with a fixed number of priority
+ * buckets.  Any thread may add or remove tasks.  Tasks are FIFO within
+ * a bucket, and a bitmap of non-empty buckets makes finding the most
+ * urgent bucket cheap, so adding a task costs about the same as adding
+ * to a plain concurrent queue.
+ *
+ * Priorities are mapped to buckets on a roughly logarithmic scale
+ * around the default priority 0: small priorities each get a bucket,
+ * larger ones share a bucket with neighbours, and very large or small
+ * priorities are clamped to the outermost buckets.  Order between tasks
+ * in the same bucket is therefore approximate, as in Turbine, where
+ * priorities are only honoured within each server.
+ */
+class BucketQueue {
+
+  /** Number of buckets: one per bit of the bitmap */
+  static final int BUCKETS = 64;
+
+  /** Bucket for the default priority 0 */
+  static final int DEFAULT_BUCKET = BUCKETS / 2;
+
+  /** Magnitudes below this get a bucket each */
+  private static final int LINEAR_MAGNITUDE = 8;
+
+  /** Log2 of the number of buckets per power of two above that */
+  private static final int SUB_BUCKET_BITS = 2;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private final ConcurrentLinkedQueue<Task> buckets[] =
+                          new ConcurrentLinkedQueue[BUCKETS];
+
+  /**
+   * Bit i set if bucket i may be non-empty.  A bit is only cleared if
+   * the bucket was seen to be empty afterwards.
+   */
+  private final AtomicLong nonEmpty = new AtomicLong(0);
+
+  BucketQueue() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets[i] = new ConcurrentLinkedQueue<Task>();
+    }
+  }
+
+  public void add(Task task, int priority) {
+    int bucket = bucket(priority);
+    buckets[bucket].add(task);
+    long bit = 1L << bucket;
+    long bits;
+    do {
+      bits = nonEmpty.get();
+    } while ((bits & bit) == 0 && !nonEmpty.compareAndSet(bits, bits | bit));
+  }
+
+  /**
+   * @return a task from the most urgent non-empty bucket, or null
+   */
+  public Task poll() {
+    while (true) {
+      long bits = nonEmpty.get();
+      if (bits == 0) {
+        return null;
+      }
+      int bucket = 63 - Long.numberOfLeadingZeros(bits);
+      Task res = buckets[bucket].poll();
+      if (res != null) {
+        return res;
+      }
+      clearBit(bucket);
+    }
+  }
+
+  /**
+   * Clear bit for bucket that was seen to be empty.  Sets it again if a
+   * task was added concurrently, since the adding thread may have seen
+   * the bit still set.
+   */
+  private void clearBit(int bucket) {
+    long bit = 1L << bucket;
+    long bits;
+    do {
+      bits = nonEmpty.get();
+    } while ((bits & bit) != 0 && !nonEmpty.compareAndSet(bits, bits & ~bit));
+
+    if (!buckets[bucket].isEmpty()) {
+      do {
+        bits = nonEmpty.get();
+      } while ((bits & bit) == 0 &&
+               !nonEmpty.compareAndSet(bits, bits | bit));
+    }
+  }
+
+  /**
+   * @return most urgent bucket that may be non-empty, or -1 if empty
+   */
+  public int maxBucket() {
+    return 63 - Long.numberOfLeadingZeros(nonEmpty.get());
+  }
+
+  public boolean isEmpty() {
+    return nonEmpty.get() == 0;
+  }
+
+  /**
+   * Map priority to bucket.  Higher priorities map to higher buckets.
+   */
+  static int bucket(int priority) {
+    if (priority >= 0) {
+      return Math.min(BUCKETS - 1, DEFAULT_BUCKET + magnitude(priority));
+    } else {
+      return Math.max(0, DEFAULT_BUCKET - magnitude(-(long)priority));
+    }
+  }
+
+  /**
+   * Logarithmic scale with SUB_BUCKET_BITS bits of precision
+   */
+  private static int magnitude(long x) {
+    if (x < LINEAR_MAGNITUDE) {
+      return (int)x;
+    }
+    int log2 = 63 - Long.numberOfLeadingZeros(x);
+    int sub = (int)(x >>> (log2 - SUB_BUCKET_BITS)) &
+              ((1 << SUB_BUCKET_BITS) - 1);
+    int linearBits = Integer.numberOfTrailingZeros(LINEAR_MAGNITUDE);
+    return LINEAR_MAGNITUDE + ((log2 - linearBits) << SUB_BUCKET_BITS) + sub;
+  }
+}
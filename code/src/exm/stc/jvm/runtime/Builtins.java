@@ -0,0 +1,371 @@
+package exm.stc.jvm.runtime;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import exm.stc.jvm.runtime.Containers.ArrayVar;
+import exm.stc.jvm.runtime.Containers.BagVar;
+import exm.stc.jvm.runtime.Vars.BaseVar;
+
+/**
+ * Implementations of standard library functions and builtin operators
+ * for generated code.  These follow the behaviour of the corresponding
+ * Turbine library functions, including formatting of output.
+ */
+public class Builtins {
+
+  /**
+   * Write trace line with comma-separated values
+   */
+  public static void trace(Object... args) {
+    StringBuilder sb = new StringBuilder("trace: ");
+    for (int i = 0; i < args.length; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(toString(args[i]));
+    }
+    println(sb.toString());
+  }
+
+  public static void printf(String fmt, Object... args) throws LogicException {
+    println(sprintf(fmt, args));
+  }
+
+  /**
+   * Format arguments with C-style format string
+   */
+  public static String sprintf(String fmt, Object... args)
+      throws LogicException {
+    StringBuilder sb = new StringBuilder();
+    int argPos = 0;
+    int i = 0;
+    while (i < fmt.length()) {
+      char c = fmt.charAt(i);
+      if (c != '%') {
+        sb.append(c);
+        i++;
+        continue;
+      }
+      if (i + 1 < fmt.length() && fmt.charAt(i + 1) == '%') {
+        sb.append('%');
+        i += 2;
+        continue;
+      }
+      // Find conversion character
+      int start = i;
+      i++;
+      while (i < fmt.length() && "-+ #0123456789.lh".indexOf(fmt.charAt(i)) >= 0) {
+        i++;
+      }
+      if (i >= fmt.length()) {
+        throw new LogicException("sprintf: incomplete format: " + fmt);
+      }
+      char conv = fmt.charAt(i);
+      i++;
+      String spec = javaFormatSpec(fmt.substring(start, i - 1));
+      if (argPos >= args.length) {
+        throw new LogicException("sprintf: not enough arguments for format: "
+                                 + fmt);
+      }
+      Object arg = args[argPos++];
+      switch (conv) {
+        case 'd':
+        case 'i':
+        case 'u':
+          sb.append(String.format(spec + "d", toLong(arg)));
+          break;
+        case 'x':
+        case 'X':
+        case 'o':
+          sb.append(String.format(spec + conv, toLong(arg)));
+          break;
+        case 'c':
+          sb.append(String.format(spec + conv, (int)toLong(arg)));
+          break;
+        case 'f':
+        case 'e':
+        case 'E':
+        case 'g':
+        case 'G':
+          sb.append(String.format(spec + conv, toDouble(arg)));
+          break;
+        case 's':
+          sb.append(String.format(spec + "s", toString(arg)));
+          break;
+        default:
+          throw new LogicException("sprintf: unknown conversion '" + conv +
+                                   "' in format: " + fmt);
+      }
+    }
+    if (argPos < args.length) {
+      throw new LogicException("sprintf: too many arguments for format: "
+                               + fmt);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Convert C conversion spec without conversion character to Java.
+   * Length modifiers are dropped, as are the 0 and - flags without a
+   * width, which C ignores but Java rejects.
+   */
+  private static String javaFormatSpec(String spec) {
+    spec = spec.replace("l", "").replace("h", "");
+    int flagsEnd = 1;
+    while (flagsEnd < spec.length() &&
+           "-+ #0".indexOf(spec.charAt(flagsEnd)) >= 0) {
+      flagsEnd++;
+    }
+    boolean hasWidth = flagsEnd < spec.length() &&
+                       Character.isDigit(spec.charAt(flagsEnd));
+    if (hasWidth) {
+      return spec;
+    }
+    String flags = spec.substring(1, flagsEnd).replace("0", "")
+                                              .replace("-", "");
+    return "%" + flags + spec.substring(flagsEnd);
+  }
+
+  public static void assertTrue(boolean cond, String msg)
+      throws LogicException {
+    if (!cond) {
+      throw new LogicException("Assertion failed!: " + msg);
+    }
+  }
+
+  public static void assertEqual(Object v1, Object v2, String msg)
+      throws LogicException {
+    boolean equal;
+    if (v1 instanceof Number && v2 instanceof Number) {
+      equal = ((Number)v1).doubleValue() == ((Number)v2).doubleValue();
+    } else {
+      equal = toString(v1).equals(toString(v2));
+    }
+    if (!equal) {
+      throw new LogicException("Assertion failed!: " + msg + ": " +
+                               toString(v1) + " != " + toString(v2));
+    }
+  }
+
+  public static long toint(String s) throws LogicException {
+    return parseInt(s, 10);
+  }
+
+  public static String fromint(long i) {
+    return Long.toString(i);
+  }
+
+  public static double tofloat(String s) throws LogicException {
+    return parseFloat(s);
+  }
+
+  public static String fromfloat(double f) {
+    return floatToString(f);
+  }
+
+  public static double itof(long i) {
+    return i;
+  }
+
+  public static String strcat(Object... args) {
+    StringBuilder sb = new StringBuilder();
+    for (Object arg: args) {
+      sb.append(toString(arg));
+    }
+    return sb.toString();
+  }
+
+  public static long strlen(String s) {
+    return s.length();
+  }
+
+  /**
+   * @return substring of up to len characters starting at start
+   */
+  public static String substring(String s, long start, long len) {
+    int first = (int)Math.max(0, Math.min(start, s.length()));
+    int last = (int)Math.max(first, Math.min(start + len, s.length()));
+    return s.substring(first, last);
+  }
+
+  /**
+   * Look up command-line argument given as --key=value or -key=value
+   * @param key
+   * @param defaultVal optional default value
+   */
+  public static String argvGet(String key, String... defaultVal)
+      throws LogicException {
+    for (String arg: JVMRuntime.args()) {
+      String s = arg;
+      while (s.startsWith("-")) {
+        s = s.substring(1);
+      }
+      if (s.equals(key)) {
+        return "";
+      } else if (s.startsWith(key + "=")) {
+        return s.substring(key.length() + 1);
+      }
+    }
+    if (defaultVal.length > 0) {
+      return defaultVal[0];
+    }
+    throw new LogicException("Could not find command-line argument: " + key);
+  }
+
+  /**
+   * Sleep then trace, for testing
+   */
+  public static long sleepTrace(double secs, Object... args)
+      throws LogicException {
+    try {
+      Thread.sleep((long)(secs * 1000));
+    } catch (InterruptedException e) {
+      throw new LogicException("Interrupted in sleep_trace");
+    }
+    trace(args);
+    return 0;
+  }
+
+  /**
+   * @return size of closed container
+   */
+  public static long containerSize(BaseVar container) {
+    if (container instanceof BagVar) {
+      return ((BagVar<?>)container).size();
+    }
+    return ((ArrayVar<?>)container).size();
+  }
+
+  /**
+   * Fill array with [start..end] and close it
+   */
+  public static void range(ArrayVar<Object> out, long start, long end)
+      throws LogicException {
+    for (long i = start; i <= end; i++) {
+      out.insert("range", "result", Long.valueOf(i - start),
+                 Long.valueOf(i));
+    }
+    out.incrWriters("range", "result", -1);
+  }
+
+  public static long powInt(long base, long exp) throws LogicException {
+    if (exp < 0) {
+      throw new LogicException("Negative exponent for integer power: " + exp);
+    }
+    long result = 1;
+    for (long i = 0; i < exp; i++) {
+      result *= base;
+    }
+    return result;
+  }
+
+  /**
+   * Round half away from zero
+   */
+  public static double round(double x) {
+    return Math.signum(x) * Math.floor(Math.abs(x) + 0.5);
+  }
+
+  public static long parseInt(String s, long base) throws LogicException {
+    try {
+      return Long.parseLong(s.trim(), (int)base);
+    } catch (NumberFormatException e) {
+      throw new LogicException("Could not parse as integer: \"" + s + "\"");
+    }
+  }
+
+  public static double parseFloat(String s) throws LogicException {
+    try {
+      return Double.parseDouble(s.trim());
+    } catch (NumberFormatException e) {
+      throw new LogicException("Could not parse as float: \"" + s + "\"");
+    }
+  }
+
+  /**
+   * Format floating point number as Tcl does: shortest representation
+   * that round-trips, with at least one decimal place, and exponential
+   * notation for very large or small magnitudes.
+   */
+  public static String floatToString(double f) {
+    if (Double.isNaN(f)) {
+      return "NaN";
+    } else if (Double.isInfinite(f)) {
+      return f > 0 ? "Inf" : "-Inf";
+    } else if (f == 0.0) {
+      return (1.0 / f < 0) ? "-0.0" : "0.0";
+    }
+    BigDecimal d = new BigDecimal(Double.toString(f)).stripTrailingZeros();
+    int exp = d.precision() - d.scale() - 1;
+    if (exp >= -5 && exp < 17) {
+      String s = d.toPlainString();
+      return s.indexOf('.') >= 0 ? s : s + ".0";
+    }
+    String digits = d.unscaledValue().abs().toString();
+    StringBuilder sb = new StringBuilder();
+    if (d.signum() < 0) {
+      sb.append('-');
+    }
+    sb.append(digits.charAt(0));
+    if (digits.length() > 1) {
+      sb.append('.').append(digits, 1, digits.length());
+    }
+    sb.append(exp < 0 ? "e-" : "e+");
+    int absExp = Math.abs(exp);
+    if (absExp < 10) {
+      sb.append('0');
+    }
+    sb.append(absExp);
+    return sb.toString();
+  }
+
+  /**
+   * Convert value to string as Turbine would output it.  Booleans are
+   * represented as integers.
+   */
+  @SuppressWarnings("unchecked")
+  public static String toString(Object o) {
+    if (o instanceof Double) {
+      return floatToString((Double)o);
+    } else if (o instanceof Boolean) {
+      return ((Boolean)o) ? "1" : "0";
+    } else if (o instanceof ArrayVar) {
+      List<String> elems = new ArrayList<String>();
+      for (Object elem: DataOps.arrayContents((ArrayVar<Object>)o).values()) {
+        elems.add(toString(elem));
+      }
+      return elems.toString();
+    }
+    return String.valueOf(o);
+  }
+
+  private static long toLong(Object o) throws LogicException {
+    if (o instanceof Long) {
+      return (Long)o;
+    } else if (o instanceof Boolean) {
+      return ((Boolean)o) ? 1 : 0;
+    } else if (o instanceof Double) {
+      return (long)Math.floor((Double)o);
+    } else if (o instanceof String) {
+      return parseInt((String)o, 10);
+    }
+    throw new LogicException("Expected integer: " + o);
+  }
+
+  private static double toDouble(Object o) throws LogicException {
+    if (o instanceof Number) {
+      return ((Number)o).doubleValue();
+    } else if (o instanceof String) {
+      return parseFloat((String)o);
+    }
+    throw new LogicException("Expected float: " + o);
+  }
+
+  private static void println(String s) {
+    synchronized (System.out) {
+      System.out.println(s);
+    }
+  }
+}
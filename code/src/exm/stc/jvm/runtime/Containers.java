@@ -0,0 +1,661 @@
+package exm.stc.jvm.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import exm.stc.jvm.runtime.Vars.BaseVar;
+
+/**
+ * Container futures.  The container as a whole is closed when its writers
+ * count drops to zero, as with scalar futures.  Individual elements can be
+ * inserted concurrently and waited on before the container is closed.
+ *
+ * A container holds a read refcount on each member that is a variable,
+ * which is released along with the container.
+ */
+public class Containers {
+
+  /**
+   * Release read refcount held on member of released container
+   */
+  private static final EntryVisitor<Object> RELEASE_MEMBER =
+                                              new EntryVisitor<Object>() {
+    @Override
+    public void visit(Object key, Object value) {
+      if (value instanceof BaseVar) {
+        try {
+          ((BaseVar)value).incrReaders("release", "<member>", -1);
+        } catch (InvalidReadException e) {
+          JVMRuntime.abort(e);
+        }
+      }
+    }
+  };
+
+  /**
+   * Notification that an element was inserted, or that the container was
+   * closed without it
+   */
+  public static interface KeyNotifyTarget<V> {
+    public void notifyInsert(Object key, V value);
+
+    /**
+     * Container was closed and key was never inserted
+     */
+    public void notifyNeverInserted(Object key);
+  }
+
+  public static interface EntryVisitor<V> {
+    public void visit(Object key, V value);
+  }
+
+  /**
+   * Consistent view of contents, for splitting enumeration into chunks
+   */
+  public static class Snapshot<V> {
+    private final Object keys[];
+    private final Object values[];
+
+    private Snapshot(Object keys[], Object values[]) {
+      this.keys = keys;
+      this.values = values;
+    }
+
+    public int size() {
+      return keys.length;
+    }
+
+    public Object key(int i) {
+      return keys[i];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V value(int i) {
+      return (V)values[i];
+    }
+  }
+
+  /**
+   * Waiters for a key that hasn't been inserted yet.  Treiber stack that
+   * is sealed when the value is inserted, or when the container is closed
+   * without it.
+   */
+  private static class KeyWaiters<V> {
+    private static final Node SEALED = new Node(null, null);
+
+    private final AtomicReference<Node> head;
+
+    KeyWaiters(KeyNotifyTarget<V> first) {
+      this.head = new AtomicReference<Node>(new Node(first, null));
+    }
+
+    /**
+     * @return false if already sealed
+     */
+    boolean add(KeyNotifyTarget<V> target) {
+      while (true) {
+        Node h = head.get();
+        if (h == SEALED) {
+          return false;
+        }
+        if (head.compareAndSet(h, new Node(target, h))) {
+          return true;
+        }
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    void notifyAll(Object key, V value) {
+      Node n = head.getAndSet(SEALED);
+      for (; n != null; n = n.next) {
+        ((KeyNotifyTarget<V>)n.target).notifyInsert(key, value);
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    void notifyNeverInserted(Object key) {
+      Node n = head.getAndSet(SEALED);
+      for (; n != null; n = n.next) {
+        ((KeyNotifyTarget<V>)n.target).notifyNeverInserted(key);
+      }
+    }
+
+    private static class Node {
+      final KeyNotifyTarget<?> target;
+      final Node next;
+
+      Node(KeyNotifyTarget<?> target, Node next) {
+        this.target = target;
+        this.next = next;
+      }
+    }
+  }
+
+  /**
+   * Associative array future.  Each key is written once.
+   */
+  public static abstract class ArrayVar<V> extends BaseVar {
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    public ArrayVar(int writers) {
+      super(writers);
+    }
+
+    /**
+     * Insert element.  Notifies any waiters for key.
+     */
+    public void insert(String fn, String varName, Object key, V value)
+        throws DoubleWriteException {
+      assert(value != null);
+      if (isClosed()) {
+        throw new DoubleWriteException("Inserted " + varName + "[" + key +
+                   "] after close in function " + fn + "!");
+      }
+      if (!insertSlot(key, value)) {
+        throw new DoubleWriteException(varName + "[" + key +
+                    "] written twice in function " + fn + "!");
+      }
+      size.incrementAndGet();
+    }
+
+    /**
+     * Insert several elements.  Equivalent to inserting each in turn.
+     */
+    public void insertAll(String fn, String varName, List<Object> keys,
+        List<V> values) throws DoubleWriteException {
+      assert(keys.size() == values.size());
+      if (isClosed()) {
+        throw new DoubleWriteException("Inserted into " + varName +
+                   " after close in function " + fn + "!");
+      }
+      for (int i = 0; i < keys.size(); i++) {
+        Object key = keys.get(i);
+        assert(values.get(i) != null);
+        if (!insertSlot(key, values.get(i))) {
+          throw new DoubleWriteException(varName + "[" + key +
+                      "] written twice in function " + fn + "!");
+        }
+      }
+      size.addAndGet(keys.size());
+    }
+
+    /**
+     * Insert element unless key is already present.
+     * @return the element now stored under key
+     */
+    public V getOrInsert(String fn, String varName, Object key, V value)
+        throws DoubleWriteException {
+      while (true) {
+        V existing = tryGet(key);
+        if (existing != null) {
+          return existing;
+        }
+        if (isClosed()) {
+          throw new DoubleWriteException("Inserted " + varName + "[" + key +
+                     "] after close in function " + fn + "!");
+        }
+        if (insertSlot(key, value)) {
+          size.incrementAndGet();
+          return value;
+        }
+      }
+    }
+
+    /**
+     * @return value, or null if not present
+     */
+    public V tryGet(Object key) {
+      return valueOf(getSlot(key));
+    }
+
+    public V get(String fn, String varName, Object key)
+        throws InvalidReadException {
+      V res = tryGet(key);
+      if (res == null) {
+        throw new InvalidReadException(readFailure(fn,
+                                          varName + "[" + key + "]"));
+      }
+      return res;
+    }
+
+    public boolean contains(Object key) {
+      return tryGet(key) != null;
+    }
+
+    /**
+     * @return number of elements inserted so far.  Final once closed.
+     */
+    public int size() {
+      return size.get();
+    }
+
+    /**
+     * Wait for key to be inserted.  If the container is closed without
+     * the key, the target is notified of that instead.
+     * @return true if subscribed, false if already present
+     */
+    public abstract boolean subscribeKey(Object key, KeyNotifyTarget<V> target);
+
+    /**
+     * Visit all elements inserted so far.  Complete if closed.
+     */
+    public abstract void enumerate(EntryVisitor<V> visitor);
+
+    /**
+     * Copy contents so that enumeration can be split into chunks
+     */
+    public Snapshot<V> snapshot() {
+      final List<Object> keys = new ArrayList<Object>(size());
+      final List<Object> values = new ArrayList<Object>(size());
+      enumerate(new EntryVisitor<V>() {
+        @Override
+        public void visit(Object key, V value) {
+          keys.add(key);
+          values.add(value);
+        }
+      });
+      return new Snapshot<V>(keys.toArray(), values.toArray());
+    }
+
+    /**
+     * No more keys can be inserted, so fail remaining waiters
+     */
+    @Override
+    protected void closed() {
+      failWaiters();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void release() {
+      // Release can race with closed(), so waiters mustn't be dropped
+      failWaiters();
+      enumerate((EntryVisitor<V>)RELEASE_MEMBER);
+      clearSlots();
+    }
+
+    /**
+     * Notify waiters for all keys that were never inserted
+     */
+    protected abstract void failWaiters();
+
+    /**
+     * @return true if inserted, false if already present
+     */
+    protected abstract boolean insertSlot(Object key, V value);
+
+    protected abstract void clearSlots();
+
+    protected abstract Object getSlot(Object key);
+
+    /**
+     * Common logic for slots that hold nothing, a value, or waiters.
+     * Subclasses implement compare-and-swap on slots.
+     */
+    @SuppressWarnings("unchecked")
+    protected boolean insertSlot(Object key, V value, SlotOps ops) {
+      while (true) {
+        Object cur = ops.get(key);
+        if (cur == null) {
+          if (ops.compareAndSet(key, null, value)) {
+            return true;
+          }
+        } else if (cur instanceof KeyWaiters) {
+          if (ops.compareAndSet(key, cur, value)) {
+            ((KeyWaiters<V>)cur).notifyAll(key, value);
+            return true;
+          }
+        } else {
+          return false;
+        }
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected boolean subscribeKey(Object key, KeyNotifyTarget<V> target,
+                                   SlotOps ops) {
+      while (true) {
+        Object cur = ops.get(key);
+        if (cur == null) {
+          if (ops.compareAndSet(key, null, new KeyWaiters<V>(target))) {
+            break;
+          }
+        } else if (cur instanceof KeyWaiters) {
+          if (((KeyWaiters<V>)cur).add(target)) {
+            break;
+          }
+          // Sealed: value was just inserted, or container closed
+        } else {
+          return false;
+        }
+      }
+      // Closing thread sets closed before failing waiters, so either it
+      // sees this waiter or we see that it is closed
+      if (isClosed()) {
+        failWaiters(key, ops);
+      }
+      return true;
+    }
+
+    /**
+     * Notify waiters for key if it was never inserted.  Removes the
+     * waiters from the slot first, so they are only notified once.
+     */
+    @SuppressWarnings("unchecked")
+    protected static <V> void failWaiters(Object key, SlotOps ops) {
+      Object cur = ops.get(key);
+      if (cur instanceof KeyWaiters && ops.compareAndSet(key, cur, null)) {
+        ((KeyWaiters<V>)cur).notifyNeverInserted(key);
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static <V> V valueOf(Object slot) {
+      if (slot == null || slot instanceof KeyWaiters) {
+        return null;
+      }
+      return (V)slot;
+    }
+
+    /**
+     * Access to slot storage
+     */
+    protected static interface SlotOps {
+      Object get(Object key);
+      boolean compareAndSet(Object key, Object expect, Object update);
+    }
+  }
+
+  /**
+   * Array with arbitrary keys, stored in a concurrent hash map
+   */
+  public static class HashArrayVar<V> extends ArrayVar<V> {
+    private final ConcurrentHashMap<Object, Object> slots =
+                                new ConcurrentHashMap<Object, Object>();
+
+    private final SlotOps ops = new SlotOps() {
+      @Override
+      public Object get(Object key) {
+        return slots.get(key);
+      }
+
+      @Override
+      public boolean compareAndSet(Object key, Object expect, Object update) {
+        if (expect == null) {
+          return slots.putIfAbsent(key, update) == null;
+        } else if (update == null) {
+          return slots.remove(key, expect);
+        }
+        return slots.replace(key, expect, update);
+      }
+    };
+
+    public HashArrayVar(int writers) {
+      super(writers);
+    }
+
+    @Override
+    protected boolean insertSlot(Object key, V value) {
+      return insertSlot(key, value, ops);
+    }
+
+    @Override
+    protected Object getSlot(Object key) {
+      return slots.get(key);
+    }
+
+    @Override
+    protected void clearSlots() {
+      slots.clear();
+    }
+
+    @Override
+    public boolean subscribeKey(Object key, KeyNotifyTarget<V> target) {
+      return subscribeKey(key, target, ops);
+    }
+
+    @Override
+    protected void failWaiters() {
+      for (Object key: slots.keySet()) {
+        failWaiters(key, ops);
+      }
+    }
+
+    @Override
+    public void enumerate(EntryVisitor<V> visitor) {
+      for (Map.Entry<Object, Object> e: slots.entrySet()) {
+        V value = valueOf(e.getValue());
+        if (value != null) {
+          visitor.visit(e.getKey(), value);
+        }
+      }
+    }
+  }
+
+  /**
+   * Array with integer keys expected to be in a contiguous range, which
+   * are stored in a flat array.  Keys outside the range are stored in a
+   * hash map.  Keys are Long, as for Swift integers.
+   */
+  public static class DenseArrayVar<V> extends ArrayVar<V> {
+    private final long lo;
+    private final AtomicReferenceArray<Object> dense;
+    private final HashArrayVar<V> overflow;
+
+    private final SlotOps ops = new SlotOps() {
+      @Override
+      public Object get(Object key) {
+        return dense.get(denseIndex(key));
+      }
+
+      @Override
+      public boolean compareAndSet(Object key, Object expect, Object update) {
+        return dense.compareAndSet(denseIndex(key), expect, update);
+      }
+    };
+
+    /**
+     * @param writers
+     * @param lo first key in dense range
+     * @param count number of keys in dense range
+     */
+    public DenseArrayVar(int writers, long lo, int count) {
+      super(writers);
+      this.lo = lo;
+      this.dense = new AtomicReferenceArray<Object>(count);
+      this.overflow = new HashArrayVar<V>(1);
+    }
+
+    private int denseIndex(Object key) {
+      return (int)(((Long)key).longValue() - lo);
+    }
+
+    private boolean inRange(Object key) {
+      if (!(key instanceof Long)) {
+        return false;
+      }
+      long i = ((Long)key).longValue() - lo;
+      return i >= 0 && i < dense.length();
+    }
+
+    @Override
+    protected boolean insertSlot(Object key, V value) {
+      if (inRange(key)) {
+        return insertSlot(key, value, ops);
+      }
+      return overflow.insertSlot(key, value);
+    }
+
+    @Override
+    protected Object getSlot(Object key) {
+      if (inRange(key)) {
+        return dense.get(denseIndex(key));
+      }
+      return overflow.getSlot(key);
+    }
+
+    @Override
+    protected void clearSlots() {
+      for (int i = 0; i < dense.length(); i++) {
+        dense.set(i, null);
+      }
+      overflow.clearSlots();
+    }
+
+    @Override
+    public boolean subscribeKey(Object key, KeyNotifyTarget<V> target) {
+      if (inRange(key)) {
+        return subscribeKey(key, target, ops);
+      }
+      // Overflow is never closed itself, so check closing of this
+      return subscribeKey(key, target, overflow.ops);
+    }
+
+    @Override
+    protected void failWaiters() {
+      for (int i = 0; i < dense.length(); i++) {
+        if (dense.get(i) instanceof KeyWaiters) {
+          failWaiters(Long.valueOf(lo + i), ops);
+        }
+      }
+      overflow.failWaiters();
+    }
+
+    @Override
+    public void enumerate(EntryVisitor<V> visitor) {
+      for (int i = 0; i < dense.length(); i++) {
+        V value = valueOf(dense.get(i));
+        if (value != null) {
+          visitor.visit(Long.valueOf(lo + i), value);
+        }
+      }
+      overflow.enumerate(visitor);
+    }
+
+    /**
+     * Visit elements with keys in dense range [lo + start, lo + end)
+     * without making a snapshot.
+     */
+    public void enumerateRange(int start, int end, EntryVisitor<V> visitor) {
+      end = Math.min(end, dense.length());
+      for (int i = Math.max(start, 0); i < end; i++) {
+        V value = valueOf(dense.get(i));
+        if (value != null) {
+          visitor.visit(Long.valueOf(lo + i), value);
+        }
+      }
+    }
+
+    public int denseCapacity() {
+      return dense.length();
+    }
+  }
+
+  /**
+   * Unordered multiset future
+   */
+  public static class BagVar<V> extends BaseVar {
+    private final ConcurrentLinkedQueue<V> elems =
+                                    new ConcurrentLinkedQueue<V>();
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    public BagVar(int writers) {
+      super(writers);
+    }
+
+    public void insert(String fn, String varName, V value)
+        throws DoubleWriteException {
+      if (isClosed()) {
+        throw new DoubleWriteException("Inserted into " + varName +
+                   " after close in function " + fn + "!");
+      }
+      elems.add(value);
+      size.incrementAndGet();
+    }
+
+    /**
+     * Insert several elements.  Equivalent to inserting each in turn.
+     */
+    public void insertAll(String fn, String varName, List<V> values)
+        throws DoubleWriteException {
+      if (isClosed()) {
+        throw new DoubleWriteException("Inserted into " + varName +
+                   " after close in function " + fn + "!");
+      }
+      elems.addAll(values);
+      size.addAndGet(values.size());
+    }
+
+    public int size() {
+      return size.get();
+    }
+
+    public void enumerate(EntryVisitor<V> visitor) {
+      for (V value: elems) {
+        visitor.visit(null, value);
+      }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void release() {
+      enumerate((EntryVisitor<V>)RELEASE_MEMBER);
+      elems.clear();
+    }
+
+    /**
+     * Copy contents so that enumeration can be split into chunks.
+     * Keys are all null.
+     */
+    public Snapshot<V> snapshot() {
+      Object values[] = elems.toArray();
+      return new Snapshot<V>(new Object[values.length], values);
+    }
+  }
+
+  /**
+   * Inserts into a container buffered by a task, so that they can be done
+   * in one operation, along with one writers count decrement.
+   */
+  public static class InsertBatch<V> {
+    private final List<Object> keys = new ArrayList<Object>();
+    private final List<V> values = new ArrayList<V>();
+    private int writersDecr = 0;
+
+    public void add(Object key, V value, int writersDecr) {
+      keys.add(key);
+      values.add(value);
+      this.writersDecr += writersDecr;
+    }
+
+    public void add(V value, int writersDecr) {
+      add(null, value, writersDecr);
+    }
+
+    public void flush(String fn, String varName, ArrayVar<V> array)
+        throws DoubleWriteException {
+      if (!values.isEmpty()) {
+        array.insertAll(fn, varName, keys, values);
+      }
+      if (writersDecr != 0) {
+        array.incrWriters(fn, varName, -writersDecr);
+      }
+    }
+
+    public void flush(String fn, String varName, BagVar<V> bag)
+        throws DoubleWriteException {
+      if (!values.isEmpty()) {
+        bag.insertAll(fn, varName, values);
+      }
+      if (writersDecr != 0) {
+        bag.incrWriters(fn, varName, -writersDecr);
+      }
+    }
+  }
+}
@@ -0,0 +1,700 @@
+package exm.stc.jvm.runtime;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import exm.stc.jvm.runtime.Containers.ArrayVar;
+import exm.stc.jvm.runtime.Containers.BagVar;
+import exm.stc.jvm.runtime.Containers.EntryVisitor;
+import exm.stc.jvm.runtime.Containers.HashArrayVar;
+import exm.stc.jvm.runtime.Containers.KeyNotifyTarget;
+import exm.stc.jvm.runtime.Containers.Snapshot;
+import exm.stc.jvm.runtime.Vars.BaseVar;
+import exm.stc.jvm.runtime.Vars.BlobVar;
+import exm.stc.jvm.runtime.Vars.BoolVar;
+import exm.stc.jvm.runtime.Vars.FileVar;
+import exm.stc.jvm.runtime.Vars.FloatVar;
+import exm.stc.jvm.runtime.Vars.IntVar;
+import exm.stc.jvm.runtime.Vars.NotifyTarget;
+import exm.stc.jvm.runtime.Vars.RefVar;
+import exm.stc.jvm.runtime.Vars.ScalarVar;
+import exm.stc.jvm.runtime.Vars.StringVar;
+import exm.stc.jvm.runtime.Vars.VoidVar;
+
+/**
+ * Data-dependent operations on futures used by generated code.  These
+ * are the counterparts of the Turbine rules for waiting, copying and
+ * container access.
+ *
+ * Container elements are stored as boxed values for scalar element
+ * types, and as the variable itself for containers and references.
+ * Int keys are Long.
+ *
+ * Write refcounts are consumed as documented for each operation.  Read
+ * refcounts are consumed as for the corresponding Turbine operation:
+ * operations that wait for an input consume one read refcount on it once
+ * done.  Containers and references hold read refcounts on variables
+ * stored in them, acquired here when the compiler didn't provide them.
+ */
+@SuppressWarnings("unchecked")
+public class DataOps {
+
+  /**
+   * Spawn task once all variables are closed.
+   * @param recursive if true, also wait for container members and
+   *        referenced variables
+   */
+  public static void waitAll(Task task, boolean recursive, BaseVar... vars) {
+    Waiter w = new Waiter(task, recursive);
+    for (BaseVar var: vars) {
+      w.waitFor(var);
+    }
+    w.done();
+  }
+
+  /**
+   * Counts down outstanding variables, then spawns task
+   */
+  @SuppressWarnings("serial")
+  private static class Waiter extends AtomicInteger
+      implements NotifyTarget, EntryVisitor<Object> {
+    private final Task task;
+    private final boolean recursive;
+
+    Waiter(Task task, boolean recursive) {
+      super(1);
+      this.task = task;
+      this.recursive = recursive;
+    }
+
+    void waitFor(BaseVar var) {
+      incrementAndGet();
+      if (!var.subscribe(this)) {
+        notifyFinal(var);
+      }
+    }
+
+    @Override
+    public void notifyFinal(BaseVar var) {
+      if (recursive) {
+        if (var instanceof ArrayVar) {
+          ((ArrayVar<Object>)var).enumerate(this);
+        } else if (var instanceof BagVar) {
+          ((BagVar<Object>)var).enumerate(this);
+        } else if (var instanceof RefVar) {
+          try {
+            waitFor(((RefVar<BaseVar>)var).get("wait", "<ref>"));
+          } catch (InvalidReadException e) {
+            JVMRuntime.abort(e);
+          }
+        }
+      }
+      done();
+    }
+
+    @Override
+    public void visit(Object key, Object value) {
+      if (value instanceof BaseVar) {
+        waitFor((BaseVar)value);
+      }
+    }
+
+    void done() {
+      if (decrementAndGet() == 0) {
+        JVMRuntime.spawn(task);
+      }
+    }
+  }
+
+  /**
+   * Get value of closed variable, boxed if scalar.  The value of a
+   * reference is the referenced variable.  Containers are returned as is.
+   */
+  public static Object valueOf(String fn, String varName, BaseVar var)
+      throws InvalidReadException {
+    if (var instanceof IntVar) {
+      return ((IntVar)var).get(fn, varName);
+    } else if (var instanceof FloatVar) {
+      return ((FloatVar)var).get(fn, varName);
+    } else if (var instanceof StringVar) {
+      return ((StringVar)var).get(fn, varName);
+    } else if (var instanceof BoolVar) {
+      return ((BoolVar)var).get(fn, varName);
+    } else if (var instanceof VoidVar) {
+      ((VoidVar)var).get(fn, varName);
+      return Boolean.TRUE;
+    } else if (var instanceof BlobVar) {
+      return ((BlobVar)var).get(fn, varName);
+    } else if (var instanceof FileVar) {
+      return ((FileVar)var).get(fn, varName);
+    } else if (var instanceof RefVar) {
+      return ((RefVar<BaseVar>)var).get(fn, varName);
+    } else {
+      return var;
+    }
+  }
+
+  /**
+   * Acquire read refcount for container to hold on member, if it is
+   * a variable
+   */
+  private static void acquireMember(String fn, String varName,
+      Object value) throws InvalidReadException {
+    if (value instanceof BaseVar) {
+      ((BaseVar)value).incrReaders(fn, varName, 1);
+    }
+  }
+
+  /**
+   * Assign variable from boxed value, as returned by valueOf().  An
+   * assigned reference holds a read refcount on the referenced variable.
+   */
+  public static void setValue(String fn, String varName, BaseVar var,
+      Object value, int writersDecr) throws LogicException {
+    if (var instanceof IntVar) {
+      ((IntVar)var).set(fn, varName, (Long)value, writersDecr);
+    } else if (var instanceof FloatVar) {
+      ((FloatVar)var).set(fn, varName, (Double)value, writersDecr);
+    } else if (var instanceof StringVar) {
+      ((StringVar)var).set(fn, varName, (String)value, writersDecr);
+    } else if (var instanceof BoolVar) {
+      ((BoolVar)var).set(fn, varName, (Boolean)value, writersDecr);
+    } else if (var instanceof VoidVar) {
+      ((VoidVar)var).set(fn, varName, writersDecr);
+    } else if (var instanceof BlobVar) {
+      ((BlobVar)var).set(fn, varName, (ByteBuffer)value, writersDecr);
+    } else if (var instanceof FileVar) {
+      FileVar file = (FileVar)var;
+      if (!file.isMapped()) {
+        file.setFilename(fn, varName, (String)value);
+      }
+      file.set(fn, varName, writersDecr);
+    } else if (var instanceof RefVar) {
+      RefVar<BaseVar> ref = (RefVar<BaseVar>)var;
+      ((BaseVar)value).incrReaders(fn, varName, 1);
+      ref.holdReaders(1);
+      ref.set(fn, varName, (BaseVar)value, writersDecr);
+    } else {
+      throw new LogicException("Can't assign value to " + varName +
+                               " in function " + fn);
+    }
+  }
+
+  /**
+   * Copy closed variable into another.  Containers are copied
+   * element by element.  Consumes a read refcount of src.
+   * @param writersDecr write refcounts of dst to consume
+   */
+  public static void copy(String fn, String varName, BaseVar dst,
+      BaseVar src, int writersDecr) throws LogicException {
+    if (src instanceof ArrayVar) {
+      ArrayVar<Object> dstArr = (ArrayVar<Object>)dst;
+      Snapshot<Object> contents = ((ArrayVar<Object>)src).snapshot();
+      for (int i = 0; i < contents.size(); i++) {
+        acquireMember(fn, varName, contents.value(i));
+        dstArr.insert(fn, varName, contents.key(i), contents.value(i));
+      }
+      dst.incrWriters(fn, varName, -writersDecr);
+    } else if (src instanceof BagVar) {
+      BagVar<Object> dstBag = (BagVar<Object>)dst;
+      Snapshot<Object> contents = ((BagVar<Object>)src).snapshot();
+      for (int i = 0; i < contents.size(); i++) {
+        acquireMember(fn, varName, contents.value(i));
+        dstBag.insert(fn, varName, contents.value(i));
+      }
+      dst.incrWriters(fn, varName, -writersDecr);
+    } else {
+      setValue(fn, varName, dst, valueOf(fn, varName, src), writersDecr);
+    }
+    src.incrReaders(fn, varName, -1);
+  }
+
+  /**
+   * Copy variable into another once closed
+   */
+  public static void asyncCopy(final String fn, final String varName,
+      final BaseVar dst, final BaseVar src, final int writersDecr) {
+    waitAll(new SwiftTask() {
+      @Override
+      protected void exec() throws LogicException {
+        copy(fn, varName, dst, src, writersDecr);
+      }
+    }, false, src);
+  }
+
+  /**
+   * Wait for reference, then copy referenced scalar into dst.  Consumes
+   * a read refcount of src.
+   */
+  public static void derefScalar(final String fn, final String varName,
+      final BaseVar dst, final RefVar<? extends BaseVar> src) {
+    waitAll(new SwiftTask() {
+      @Override
+      protected void exec() throws LogicException {
+        BaseVar target = src.get(fn, varName);
+        // Keep target alive for copy after reference is released
+        target.incrReaders(fn, varName, 1);
+        src.incrReaders(fn, varName, -1);
+        asyncCopy(fn, varName, dst, target, 1);
+      }
+    }, false, src);
+  }
+
+  /**
+   * @return contents of closed array
+   */
+  public static Map<Object, Object> arrayContents(ArrayVar<Object> arr) {
+    final Map<Object, Object> res = new LinkedHashMap<Object, Object>();
+    arr.enumerate(new EntryVisitor<Object>() {
+      @Override
+      public void visit(Object key, Object value) {
+        res.put(key, value);
+      }
+    });
+    return res;
+  }
+
+  /**
+   * @return contents of closed bag
+   */
+  public static List<Object> bagContents(BagVar<Object> bag) {
+    final List<Object> res = new ArrayList<Object>();
+    bag.enumerate(new EntryVisitor<Object>() {
+      @Override
+      public void visit(Object key, Object value) {
+        res.add(value);
+      }
+    });
+    return res;
+  }
+
+  /**
+   * Insert all elements and consume write refcounts
+   */
+  public static void arrayBuild(String fn, String varName,
+      ArrayVar<Object> arr, Map<Object, Object> contents, int writersDecr)
+          throws LogicException {
+    for (Map.Entry<Object, Object> e: contents.entrySet()) {
+      acquireMember(fn, varName, e.getValue());
+      arr.insert(fn, varName, e.getKey(), e.getValue());
+    }
+    arr.incrWriters(fn, varName, -writersDecr);
+  }
+
+  public static void bagBuild(String fn, String varName,
+      BagVar<Object> bag, List<Object> contents, int writersDecr)
+          throws LogicException {
+    for (Object elem: contents) {
+      acquireMember(fn, varName, elem);
+      bag.insert(fn, varName, elem);
+    }
+    bag.incrWriters(fn, varName, -writersDecr);
+  }
+
+  /**
+   * Convert closed container to local representation recursively:
+   * arrays become maps and bags become lists.  Nested containers and
+   * references must be closed.
+   */
+  public static Object unpack(String fn, String varName, Object value)
+      throws InvalidReadException {
+    if (value instanceof ArrayVar) {
+      Map<Object, Object> res = new LinkedHashMap<Object, Object>();
+      for (Map.Entry<Object, Object> e:
+                    arrayContents((ArrayVar<Object>)value).entrySet()) {
+        res.put(e.getKey(), unpack(fn, varName, e.getValue()));
+      }
+      return res;
+    } else if (value instanceof BagVar) {
+      List<Object> res = new ArrayList<Object>();
+      for (Object elem: bagContents((BagVar<Object>)value)) {
+        res.add(unpack(fn, varName, elem));
+      }
+      return res;
+    } else if (value instanceof BaseVar) {
+      return unpack(fn, varName, valueOf(fn, varName, (BaseVar)value));
+    }
+    return value;
+  }
+
+  /**
+   * Fill container from local representation as returned by unpack(),
+   * creating closed nested containers.
+   */
+  public static void build(String fn, String varName, BaseVar dst,
+      Object contents, int writersDecr) throws LogicException {
+    if (dst instanceof ArrayVar) {
+      ArrayVar<Object> arr = (ArrayVar<Object>)dst;
+      for (Map.Entry<Object, Object> e:
+                          ((Map<Object, Object>)contents).entrySet()) {
+        arr.insert(fn, varName, e.getKey(), pack(fn, varName, e.getValue()));
+      }
+    } else {
+      BagVar<Object> bag = (BagVar<Object>)dst;
+      for (Object elem: (List<Object>)contents) {
+        bag.insert(fn, varName, pack(fn, varName, elem));
+      }
+    }
+    dst.incrWriters(fn, varName, -writersDecr);
+  }
+
+  private static Object pack(String fn, String varName, Object value)
+      throws LogicException {
+    BaseVar nested;
+    if (value instanceof Map) {
+      nested = new HashArrayVar<Object>(1);
+    } else if (value instanceof List) {
+      nested = new BagVar<Object>(1);
+    } else {
+      return value;
+    }
+    build(fn, varName, nested, value, 1);
+    return nested;
+  }
+
+  /**
+   * Assign dst once key is inserted into array.  Consumes a read
+   * refcount of arr.
+   */
+  public static void copyOutImm(final String fn, final String varName,
+      final ArrayVar<Object> arr, Object key, final BaseVar dst)
+          throws LogicException {
+    KeyNotifyTarget<Object> target = new KeyNotifyTarget<Object>() {
+      @Override
+      public void notifyInsert(Object key, Object value) {
+        try {
+          setValue(fn, varName, dst, value, 1);
+          arr.incrReaders(fn, varName, -1);
+        } catch (LogicException e) {
+          JVMRuntime.abort(e);
+        }
+      }
+
+      @Override
+      public void notifyNeverInserted(Object key) {
+        JVMRuntime.abort(new InvalidReadException("Subscript [" + key +
+            "] of " + varName + " never assigned in function " + fn + "!"));
+      }
+    };
+    if (!arr.subscribeKey(key, target)) {
+      setValue(fn, varName, dst, arr.get(fn, varName, key), 1);
+      arr.incrReaders(fn, varName, -1);
+    }
+  }
+
+  /**
+   * Consumes read refcounts of arr and key
+   */
+  public static void copyOutFuture(final String fn, final String varName,
+      final ArrayVar<Object> arr, final BaseVar key, final BaseVar dst) {
+    waitAll(new SwiftTask() {
+      @Override
+      protected void exec() throws LogicException {
+        Object k = valueOf(fn, varName, key);
+        key.incrReaders(fn, varName, -1);
+        copyOutImm(fn, varName, arr, k, dst);
+      }
+    }, false, key);
+  }
+
+  /**
+   * Get referenced array, consuming read refcount of reference.  The
+   * caller gets a read refcount on the array.
+   */
+  private static ArrayVar<Object> derefArray(String fn, String varName,
+      RefVar<? extends ArrayVar<Object>> ref) throws LogicException {
+    ArrayVar<Object> target = ref.get(fn, varName);
+    target.incrReaders(fn, varName, 1);
+    ref.incrReaders(fn, varName, -1);
+    return target;
+  }
+
+  public static void refCopyOutImm(final String fn, final String varName,
+      final RefVar<? extends ArrayVar<Object>> arr, final Object key,
+      final BaseVar dst) {
+    waitAll(new SwiftTask() {
+      @Override
+      protected void exec() throws LogicException {
+        copyOutImm(fn, varName, derefArray(fn, varName, arr), key, dst);
+      }
+    }, false, arr);
+  }
+
+  public static void refCopyOutFuture(final String fn, final String varName,
+      final RefVar<? extends ArrayVar<Object>> arr, final BaseVar key,
+      final BaseVar dst) {
+    waitAll(new SwiftTask() {
+      @Override
+      protected void exec() throws LogicException {
+        Object k = valueOf(fn, varName, key);
+        key.incrReaders(fn, varName, -1);
+        copyOutImm(fn, varName, derefArray(fn, varName, arr), k, dst);
+      }
+    }, false, arr, key);
+  }
+
+  /**
+   * Insert once key is closed, then consume write refcounts and read
+   * refcount of key.  The array takes over the read refcount of member
+   * if it is a variable.
+   */
+  public static void storeFuture(final String fn, final String varName,
+      final ArrayVar<Object> arr, final BaseVar key, final Object member,
+      final int writersDecr) {
+    waitAll(new SwiftTask() {
+      @Override
+      protected void exec() throws LogicException {
+        arr.insert(fn, varName, valueOf(fn, varName, key), member);
+        key.incrReaders(fn, varName, -1);
+        arr.incrWriters(fn, varName, -writersDecr);
+      }
+    }, false, key);
+  }
+
+  /**
+   * Insert value of member once closed, then consume write refcounts
+   * and read refcount of member
+   */
+  public static void copyInImm(final String fn, final String varName,
+      final ArrayVar<Object> arr, final Object key, final BaseVar member,
+      final int writersDecr) {
+    waitAll(new SwiftTask() {
+      @Override
+      protected void exec() throws LogicException {
+        Object value = valueOf(fn, varName, member);
+        acquireMember(fn, varName, value);
+        arr.insert(fn, varName, key, value);
+        member.incrReaders(fn, varName, -1);
+        arr.incrWriters(fn, varName, -writersDecr);
+      }
+    }, false, member);
+  }
+
+  public static void copyInFuture(final String fn, final String varName,
+      final ArrayVar<Object> arr, final BaseVar key, final BaseVar member,
+      final int writersDecr) {
+    waitAll(new SwiftTask() {
+      @Override
+      protected void exec() throws LogicException {
+        Object value = valueOf(fn, varName, member);
+        acquireMember(fn, varName, value);
+        arr.insert(fn, varName, valueOf(fn, varName, key), value);
+        key.incrReaders(fn, varName, -1);
+        member.incrReaders(fn, varName, -1);
+        arr.incrWriters(fn, varName, -writersDecr);
+      }
+    }, false, key, member);
+  }
+
+  /**
+   * Insert into referenced array.  Write refcount is acquired through
+   * the reference for the duration of the insert.  Consumes read
+   * refcounts of the reference and of keyVar and memberVar.
+   * @param key key value, or null if keyVar is provided
+   * @param keyVar key future, or null
+   * @param member value to insert, or null if memberVar is provided
+   * @param memberVar future to copy value from, or null
+   */
+  public static void refInsert(final String fn, final String varName,
+      final RefVar<? extends ArrayVar<Object>> arr,
+      final Object key, final BaseVar keyVar,
+      final Object member, final BaseVar memberVar) {
+    List<BaseVar> waitVars = new ArrayList<BaseVar>(3);
+    waitVars.add(arr);
+    if (keyVar != null) {
+      waitVars.add(keyVar);
+    }
+    if (memberVar != null) {
+      waitVars.add(memberVar);
+    }
+    waitAll(new SwiftTask() {
+      @Override
+      protected void exec() throws LogicException {
+        ArrayVar<Object> target = arr.acquireWriters(fn, varName, 1);
+        Object k = keyVar != null ? valueOf(fn, varName, keyVar) : key;
+        Object v = member;
+        if (memberVar != null) {
+          v = valueOf(fn, varName, memberVar);
+          acquireMember(fn, varName, v);
+        }
+        target.insert(fn, varName, k, v);
+        target.incrWriters(fn, varName, -1);
+        arr.incrReaders(fn, varName, -1);
+        if (keyVar != null) {
+          keyVar.incrReaders(fn, varName, -1);
+        }
+        if (memberVar != null) {
+          memberVar.incrReaders(fn, varName, -1);
+        }
+      }
+    }, false, waitVars.toArray(new BaseVar[waitVars.size()]));
+  }
+
+  /**
+   * Create alias for array element.  Container elements are created if
+   * not present, as with createNested.  Scalar elements are stored as
+   * values, so the alias is a separate future linked to the element:
+   * it is assigned when the key is inserted, and writing it inserts the
+   * value into the array.  Read refcount operations on the alias apply to
+   * the array, as they would for a Turbine alias.
+   * @param alias new future of element type with one writer
+   * @return the alias
+   */
+  public static BaseVar elemAlias(final String fn, final String varName,
+      final ArrayVar<Object> arr, final Object key, final BaseVar alias)
+          throws LogicException {
+    if (alias instanceof ArrayVar || alias instanceof BagVar) {
+      return createNested(fn, varName, arr, key, 0, 0, 0,
+                          alias instanceof BagVar);
+    }
+
+    ((ScalarVar)alias).shareReaders(arr);
+
+    // 1 if alias was assigned from array, so shouldn't be inserted,
+    // 2 if alias was inserted, 3 if array was closed without key
+    final AtomicInteger fromArray = new AtomicInteger(0);
+    KeyNotifyTarget<Object> readTarget = new KeyNotifyTarget<Object>() {
+      @Override
+      public void notifyInsert(Object key, Object value) {
+        try {
+          if (!alias.isClosed() && fromArray.compareAndSet(0, 1)) {
+            setValue(fn, varName, alias, value, 1);
+          }
+        } catch (LogicException e) {
+          JVMRuntime.abort(e);
+        }
+      }
+
+      @Override
+      public void notifyNeverInserted(Object key) {
+        // Writing alias would fail too, since array is closed
+        if (fromArray.compareAndSet(0, 3)) {
+          JVMRuntime.abort(new InvalidReadException("Subscript [" + key +
+              "] of " + varName + " never assigned in function " + fn +
+              "!"));
+        }
+      }
+    };
+    if (!arr.subscribeKey(key, readTarget)) {
+      readTarget.notifyInsert(key, arr.get(fn, varName, key));
+      return alias;
+    }
+
+    NotifyTarget writeTarget = new NotifyTarget() {
+      @Override
+      public void notifyFinal(BaseVar var) {
+        try {
+          if (fromArray.compareAndSet(0, 2)) {
+            Object value = valueOf(fn, varName, alias);
+            acquireMember(fn, varName, value);
+            arr.insert(fn, varName, key, value);
+          }
+        } catch (LogicException e) {
+          JVMRuntime.abort(e);
+        }
+      }
+    };
+    alias.subscribe(writeTarget);
+    return alias;
+  }
+
+  /**
+   * Get nested container, creating it if not present.  A new nested
+   * container is closed when the outer container is closed.  Its read
+   * refcount isn't tracked: it is left to the garbage collector once the
+   * outer container is released.
+   * @param callerWriteRefs write refcounts on nested container for caller
+   * @param readersDecr read refcounts on outer container to consume
+   * @param writersDecr write refcounts on outer container to consume
+   * @param bag true if nested container is a bag
+   */
+  public static BaseVar createNested(final String fn, final String varName,
+      ArrayVar<Object> outer, Object key, int callerWriteRefs,
+      int readersDecr, int writersDecr, boolean bag)
+          throws LogicException {
+    BaseVar fresh;
+    if (bag) {
+      fresh = new BagVar<Object>(1 + callerWriteRefs);
+    } else {
+      fresh = new HashArrayVar<Object>(1 + callerWriteRefs);
+    }
+    final BaseVar nested = (BaseVar)outer.getOrInsert(fn, varName, key,
+                                                      fresh);
+    if (nested == fresh) {
+      NotifyTarget closeNested = new NotifyTarget() {
+        @Override
+        public void notifyFinal(BaseVar var) {
+          try {
+            nested.incrWriters(fn, varName, -1);
+          } catch (DoubleWriteException e) {
+            JVMRuntime.abort(e);
+          }
+        }
+      };
+      if (!outer.subscribe(closeNested)) {
+        closeNested.notifyFinal(outer);
+      }
+    } else if (callerWriteRefs > 0) {
+      nested.incrWriters(fn, varName, callerWriteRefs);
+    }
+    outer.incrWriters(fn, varName, -writersDecr);
+    outer.incrReaders(fn, varName, -readersDecr);
+    return nested;
+  }
+
+  /**
+   * Create nested container once key is closed and assign reference to
+   * it.  Consumes one write refcount on outer array and a read refcount
+   * of key.  The reference holds a write refcount on the nested container.
+   */
+  public static <T extends BaseVar> void createNestedFuture(final String fn,
+      final String varName, final ArrayVar<Object> outer, final BaseVar key,
+      final RefVar<T> result, final boolean bag) {
+    waitAll(new SwiftTask() {
+      @Override
+      protected void exec() throws LogicException {
+        BaseVar nested = createNested(fn, varName, outer,
+                            valueOf(fn, varName, key), 1, 0, 1, bag);
+        key.incrReaders(fn, varName, -1);
+        result.holdWriters(1);
+        result.set(fn, varName, (T)nested);
+      }
+    }, false, key);
+  }
+
+  /**
+   * Create nested container in referenced array.  Consumes read
+   * refcounts of arr and keyVar.
+   * @param key key value, or null if keyVar is provided
+   * @param keyVar key future, or null
+   */
+  public static <T extends BaseVar> void refCreateNested(final String fn,
+      final String varName, final RefVar<? extends ArrayVar<Object>> arr,
+      final Object key, final BaseVar keyVar,
+      final RefVar<T> result, final boolean bag) {
+    BaseVar waitVars[];
+    if (keyVar != null) {
+      waitVars = new BaseVar[] {arr, keyVar};
+    } else {
+      waitVars = new BaseVar[] {arr};
+    }
+    waitAll(new SwiftTask() {
+      @Override
+      protected void exec() throws LogicException {
+        ArrayVar<Object> outer = arr.acquireWriters(fn, varName, 1);
+        Object k = keyVar != null ? valueOf(fn, varName, keyVar) : key;
+        BaseVar nested = createNested(fn, varName, outer, k, 1, 0, 1, bag);
+        result.holdWriters(1);
+        result.set(fn, varName, (T)nested);
+        arr.incrReaders(fn, varName, -1);
+        if (keyVar != null) {
+          keyVar.incrReaders(fn, varName, -1);
+        }
+      }
+    }, false, waitVars);
+  }
+}
@@ -0,0 +1,8 @@
+package exm.stc.jvm.runtime;
+
+@SuppressWarnings("serial")
+public class InvalidWriteException extends LogicException {
+  public InvalidWriteException(String msg) {
+    super(msg);
+  }
+}
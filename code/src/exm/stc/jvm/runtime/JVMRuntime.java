@@ -2,9 +2,144 @@ package exm.stc.jvm.runtime;
 
 import org.apache.log4j.Logger;
 
+/**
+ * Entry point and global state for programs compiled to Java.
+ *
+ * Generated programs call {@link #run(String[], Task)} from main() with a
+ * task that runs the Swift main function.  Worker threads execute tasks
+ * until no tasks remain.  The number of threads defaults to the number
+ * of processors and can be set with the swift.jvm.threads property.
+ * Tasks that may block run on a separate elastic pool: see
+ * {@link BlockingExecutor}.  Variables that were never released after
+ * their last read can be reported at exit: see {@link LeakCheck}.
+ * Scheduler metrics and traces can also be reported: see
+ * {@link Metrics}.
+ */
 public class JVMRuntime {
 
+  public static final String THREADS_PROPERTY = "swift.jvm.threads";
+
+  private static volatile TaskQueue queue = null;
+
+  private static volatile BlockingExecutor blocking = null;
+
+  private static String[] args = new String[0];
+
   public static Logger getLogger() {
     return Logger.getLogger(JVMRuntime.class);
   }
+
+  /**
+   * @return queue for running program
+   */
+  public static TaskQueue queue() {
+    return queue;
+  }
+
+  /**
+   * Add task to queue for running program, or run on the blocking
+   * pool if it may block.  Priorities and locations of generated tasks
+   * are honoured: location ranks map onto worker threads modulo the
+   * number of threads.  Blocking tasks don't run on worker threads, so
+   * only their priority applies.
+   */
+  public static void spawn(Task task) {
+    if (!(task instanceof SwiftTask)) {
+      queue.addTask(task);
+      return;
+    }
+    SwiftTask swiftTask = (SwiftTask)task;
+    if (Metrics.ENABLED) {
+      swiftTask.markReady();
+    }
+    if (task instanceof BlockingTask) {
+      blocking.execute(task, swiftTask.priority());
+    } else if (swiftTask.location() != SwiftTask.ANY_LOCATION) {
+      queue.addTargeted(swiftTask.location() % queue.numThreads(), task,
+                        swiftTask.priority(), swiftTask.softLocation());
+    } else {
+      queue.addTask(task, swiftTask.priority());
+    }
+  }
+
+  /**
+   * @return command line arguments of running program
+   */
+  public static String[] args() {
+    return args;
+  }
+
+  public static int defaultThreads() {
+    return Integer.getInteger(THREADS_PROPERTY,
+                        Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Run program to completion with default number of threads
+   * @param args command line arguments
+   * @param main task that runs main function
+   */
+  public static void run(String[] args, Task main) {
+    run(args, defaultThreads(), main);
+  }
+
+  /**
+   * Run program to completion.  Programs run one at a time, but another
+   * program can be run after this returns.
+   * @param args command line arguments
+   * @param threads number of worker threads
+   * @param main task that runs main function
+   */
+  public static void run(String[] args, int threads, Task main) {
+    if (queue != null) {
+      throw new IllegalStateException("Program already running");
+    }
+    JVMRuntime.args = args;
+    TaskQueue q = new TaskQueue(threads);
+    queue = q;
+    BlockingExecutor b = new BlockingExecutor(q,
+                            BlockingExecutor.defaultMaxThreads());
+    blocking = b;
+
+    q.register();
+    spawn(main);
+    q.deregister();
+
+    Thread workers[] = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread(q.worker(i), "swift-worker-" + i);
+      workers[i].start();
+    }
+
+    try {
+      q.awaitTermination();
+      for (Thread worker: workers) {
+        worker.join();
+      }
+    } catch (InterruptedException e) {
+      abort(e);
+    }
+    b.shutdown();
+    System.out.flush();
+    if (LeakCheck.ENABLED) {
+      LeakCheck.report(System.err);
+    }
+    Metrics.report(System.err);
+    queue = null;
+    blocking = null;
+  }
+
+  /**
+   * Terminate program after unrecoverable error in task
+   */
+  public static void abort(Throwable t) {
+    System.out.flush();
+    if (t instanceof LogicException) {
+      System.err.println(t.getMessage());
+    } else {
+      t.printStackTrace();
+    }
+    System.err.flush();
+    System.exit(1);
+  }
 }
@@ -0,0 +1,80 @@
+package exm.stc.jvm.runtime;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import exm.stc.jvm.runtime.Vars.BaseVar;
+
+/**
+ * Leak detection for variables with tracked read refcounts.  Enabled with
+ * the swift.jvm.leak-check property.  Each tracked variable is recorded
+ * with the function and name it was declared with, and removed once it
+ * is released.  Variables remaining at shutdown are reported: these had
+ * refcounts that were never decremented.
+ */
+public class LeakCheck {
+
+  public static final String PROPERTY = "swift.jvm.leak-check";
+
+  public static final boolean ENABLED = Boolean.getBoolean(PROPERTY);
+
+  /** Maximum number of declarations to list */
+  private static final int MAX_REPORTED = 20;
+
+  private static final Map<BaseVar, String> live =
+                          new ConcurrentHashMap<BaseVar, String>();
+
+  static void track(BaseVar var, String fn, String varName) {
+    live.put(var, varName + " in function " + fn);
+  }
+
+  static void untrack(BaseVar var) {
+    live.remove(var);
+  }
+
+  /**
+   * @return number of tracked variables not yet released
+   */
+  public static int liveCount() {
+    return live.size();
+  }
+
+  /**
+   * Report variables never released, grouped by declaration with the
+   * most frequent first
+   * @return number of leaked variables
+   */
+  public static int report(PrintStream out) {
+    final Map<String, Integer> counts = new HashMap<String, Integer>();
+    int total = 0;
+    for (String label: live.values()) {
+      Integer count = counts.get(label);
+      counts.put(label, count == null ? 1 : count + 1);
+      total++;
+    }
+    if (total == 0) {
+      return 0;
+    }
+    List<String> labels = new ArrayList<String>(counts.keySet());
+    Collections.sort(labels, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        return counts.get(b) - counts.get(a);
+      }
+    });
+    out.println("LEAK CHECK: " + total + " variables never released");
+    for (int i = 0; i < Math.min(labels.size(), MAX_REPORTED); i++) {
+      out.println("  " + counts.get(labels.get(i)) + " x " + labels.get(i));
+    }
+    if (labels.size() > MAX_REPORTED) {
+      out.println("  ...");
+    }
+    return total;
+  }
+}
@@ -0,0 +1,344 @@
+package exm.stc.jvm.runtime;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scheduler metrics and tracing.  Enabled with the swift.jvm.stats
+ * property, which prints a summary at shutdown, or the swift.jvm.trace
+ * property, which names a file to write a trace of task executions to
+ * in Chrome trace event format (viewable in chrome://tracing or
+ * Perfetto).
+ *
+ * Each thread records into its own {@link Buffer}, so recording doesn't
+ * need synchronization.  Buffers are merged when the report is written,
+ * after all threads have finished.  Callers check {@link #ENABLED}
+ * before recording: it is a constant, so the checks are compiled away
+ * when metrics are disabled.
+ *
+ * Latencies and queue depths are recorded in histograms with power of
+ * two buckets, so percentiles are reported as bucket upper bounds.
+ */
+public class Metrics {
+
+  public static final String STATS_PROPERTY = "swift.jvm.stats";
+
+  public static final String TRACE_PROPERTY = "swift.jvm.trace";
+
+  /** Maximum number of trace events to keep per thread */
+  public static final String TRACE_MAX_PROPERTY = "swift.jvm.trace-max-events";
+
+  private static final String TRACE_FILE = System.getProperty(TRACE_PROPERTY);
+
+  public static final boolean TRACE = TRACE_FILE != null;
+
+  public static final boolean ENABLED = Boolean.getBoolean(STATS_PROPERTY)
+                                        || TRACE;
+
+  private static final int TRACE_MAX_EVENTS =
+                          Integer.getInteger(TRACE_MAX_PROPERTY, 1000000);
+
+  private static final int HISTOGRAM_BUCKETS = 64;
+
+  /** Trace timestamps are relative to this */
+  private static final long START_NANOS = System.nanoTime();
+
+  private static final ConcurrentLinkedQueue<Buffer> buffers =
+                                    new ConcurrentLinkedQueue<Buffer>();
+
+  private static final AtomicInteger bufferCount = new AtomicInteger(0);
+
+  private static final ThreadLocal<Buffer> localBuffer =
+                                    new ThreadLocal<Buffer>() {
+    @Override
+    protected Buffer initialValue() {
+      Buffer buf = new Buffer(Thread.currentThread().getName(),
+                              bufferCount.getAndIncrement());
+      buffers.add(buf);
+      return buf;
+    }
+  };
+
+  /**
+   * @return buffer for current thread
+   */
+  static Buffer local() {
+    return localBuffer.get();
+  }
+
+  /**
+   * Metrics recorded by a single thread
+   */
+  static class Buffer {
+    final String threadName;
+    final int id;
+
+    long tasks = 0;
+    long stealAttempts = 0;
+    long steals = 0;
+    long idleNanos = 0;
+    long subscribes = 0;
+    long notifies = 0;
+
+    final long queueDepth[] = new long[HISTOGRAM_BUCKETS];
+    final long readyToStart[] = new long[HISTOGRAM_BUCKETS];
+    final long startToEnd[] = new long[HISTOGRAM_BUCKETS];
+
+    /** Trace events: task class, start and duration */
+    private Class<?> traceClasses[] = new Class<?>[0];
+    private long traceTimes[] = new long[0];
+    private int traceCount = 0;
+    private long traceDropped = 0;
+
+    private Buffer(String threadName, int id) {
+      this.threadName = threadName;
+      this.id = id;
+    }
+
+    /**
+     * Record execution of task
+     * @param readyNanos when task became ready to run, or 0 if unknown
+     */
+    void taskRun(Task task, long readyNanos, long startNanos,
+                 long endNanos) {
+      tasks++;
+      if (readyNanos != 0) {
+        readyToStart[bucket(startNanos - readyNanos)]++;
+      }
+      startToEnd[bucket(endNanos - startNanos)]++;
+      if (TRACE) {
+        trace(task.getClass(), startNanos, endNanos);
+      }
+    }
+
+    void stealAttempt(boolean success) {
+      stealAttempts++;
+      if (success) {
+        steals++;
+      }
+    }
+
+    void idle(long nanos) {
+      idleNanos += nanos;
+    }
+
+    void queueDepth(int depth) {
+      queueDepth[bucket(depth)]++;
+    }
+
+    void subscribed() {
+      subscribes++;
+    }
+
+    void notified() {
+      notifies++;
+    }
+
+    private void trace(Class<?> cls, long startNanos, long endNanos) {
+      if (traceCount == TRACE_MAX_EVENTS) {
+        traceDropped++;
+        return;
+      }
+      if (traceCount == traceClasses.length) {
+        int newLen = Math.min(TRACE_MAX_EVENTS,
+                              Math.max(1024, traceCount * 2));
+        traceClasses = Arrays.copyOf(traceClasses, newLen);
+        traceTimes = Arrays.copyOf(traceTimes, newLen * 2);
+      }
+      traceClasses[traceCount] = cls;
+      traceTimes[2 * traceCount] = startNanos - START_NANOS;
+      traceTimes[2 * traceCount + 1] = endNanos - startNanos;
+      traceCount++;
+    }
+  }
+
+  /**
+   * @return histogram bucket: 0 for 0, otherwise floor(log2(x)) + 1
+   */
+  private static int bucket(long x) {
+    return x <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(x);
+  }
+
+  /**
+   * @return upper bound of values in histogram bucket
+   */
+  private static long bucketMax(int bucket) {
+    return bucket == 0 ? 0 : (1L << bucket) - 1;
+  }
+
+  /**
+   * Write summary and trace file if enabled.  Must be called after all
+   * threads that recorded metrics have finished.
+   */
+  public static void report(PrintStream out) {
+    if (!ENABLED) {
+      return;
+    }
+    List<Buffer> bufs = new ArrayList<Buffer>(buffers);
+    printSummary(out, bufs);
+    if (TRACE) {
+      try {
+        writeTrace(TRACE_FILE, bufs);
+        out.println("Trace written to " + TRACE_FILE);
+      } catch (IOException e) {
+        out.println("Could not write trace to " + TRACE_FILE + ": " +
+                    e.getMessage());
+      }
+    }
+  }
+
+  private static void printSummary(PrintStream out, List<Buffer> bufs) {
+    long tasks = 0, subscribes = 0, notifies = 0;
+    long queueDepth[] = new long[HISTOGRAM_BUCKETS];
+    long readyToStart[] = new long[HISTOGRAM_BUCKETS];
+    long startToEnd[] = new long[HISTOGRAM_BUCKETS];
+    out.println("SCHEDULER STATS");
+    out.printf("  %-24s %10s %10s %10s %10s%n", "thread", "tasks",
+               "steals", "attempts", "idle ms");
+    for (Buffer buf: bufs) {
+      tasks += buf.tasks;
+      subscribes += buf.subscribes;
+      notifies += buf.notifies;
+      add(queueDepth, buf.queueDepth);
+      add(readyToStart, buf.readyToStart);
+      add(startToEnd, buf.startToEnd);
+      if (buf.tasks > 0 || buf.stealAttempts > 0) {
+        out.printf("  %-24s %10d %10d %10d %10.1f%n", buf.threadName,
+            buf.tasks, buf.steals, buf.stealAttempts, buf.idleNanos / 1e6);
+      }
+    }
+    out.printf("  tasks: %d, subscribes: %d, notifies: %d%n", tasks,
+               subscribes, notifies);
+    out.println("  ready to start: " + latencySummary(readyToStart));
+    out.println("  start to end:   " + latencySummary(startToEnd));
+    out.println("  local queue depth when task taken: " +
+                histogramString(queueDepth));
+  }
+
+  private static void add(long total[], long h[]) {
+    for (int i = 0; i < h.length; i++) {
+      total[i] += h[i];
+    }
+  }
+
+  private static String latencySummary(long h[]) {
+    long count = 0;
+    for (long n: h) {
+      count += n;
+    }
+    if (count == 0) {
+      return "no samples";
+    }
+    return String.format("%d samples, p50 < %s, p99 < %s, max < %s",
+        count, formatNanos(percentile(h, count, 0.5)),
+        formatNanos(percentile(h, count, 0.99)),
+        formatNanos(percentile(h, count, 1.0)));
+  }
+
+  /**
+   * @return upper bound of bucket containing percentile
+   */
+  private static long percentile(long h[], long count, double p) {
+    long target = Math.max(1, (long)Math.ceil(count * p));
+    long seen = 0;
+    for (int i = 0; i < h.length; i++) {
+      seen += h[i];
+      if (seen >= target) {
+        return bucketMax(i) + 1;
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+
+  private static String formatNanos(long nanos) {
+    if (nanos < 1000) {
+      return nanos + "ns";
+    } else if (nanos < 1000000) {
+      return String.format("%.1fus", nanos / 1e3);
+    } else {
+      return String.format("%.1fms", nanos / 1e6);
+    }
+  }
+
+  /**
+   * @return non-empty buckets as "[lo-hi]: count" pairs
+   */
+  private static String histogramString(long h[]) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < h.length; i++) {
+      if (h[i] == 0) {
+        continue;
+      }
+      if (sb.length() > 0) {
+        sb.append(", ");
+      }
+      long lo = i == 0 ? 0 : bucketMax(i - 1) + 1;
+      sb.append('[').append(lo);
+      if (bucketMax(i) != lo) {
+        sb.append('-').append(bucketMax(i));
+      }
+      sb.append("]: ").append(h[i]);
+    }
+    return sb.length() == 0 ? "no samples" : sb.toString();
+  }
+
+  /**
+   * Write complete events for each task, one track per thread
+   */
+  private static void writeTrace(String file, List<Buffer> bufs)
+      throws IOException {
+    Writer w = new BufferedWriter(new OutputStreamWriter(
+                          new FileOutputStream(file), "UTF-8"));
+    try {
+      w.write("{\"traceEvents\":[\n");
+      boolean first = true;
+      for (Buffer buf: bufs) {
+        if (!first) {
+          w.write(",\n");
+        }
+        first = false;
+        w.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" +
+                buf.id + ",\"args\":{\"name\":\"" +
+                jsonEscape(buf.threadName) + "\"}}");
+        for (int i = 0; i < buf.traceCount; i++) {
+          w.write(String.format(",\n{\"name\":\"%s\",\"cat\":\"task\"," +
+              "\"ph\":\"X\",\"pid\":1,\"tid\":%d,\"ts\":%.3f,\"dur\":%.3f}",
+              jsonEscape(buf.traceClasses[i].getSimpleName()), buf.id,
+              buf.traceTimes[2 * i] / 1e3, buf.traceTimes[2 * i + 1] / 1e3));
+        }
+        if (buf.traceDropped > 0) {
+          System.err.println("Trace: dropped " + buf.traceDropped +
+                " events on " + buf.threadName + ", increase " +
+                TRACE_MAX_PROPERTY + " to keep them");
+        }
+      }
+      w.write("\n]}\n");
+    } finally {
+      w.close();
+    }
+  }
+
+  private static String jsonEscape(String s) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int)c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,66 @@
+package exm.stc.jvm.runtime;
+
+/**
+ * Task for a range of loop iterations that recursively splits off chunks
+ * for other workers until at most leafDegree iterations are left.
+ * Follows the splitting scheme used for Turbine range loops.
+ */
+public abstract class RangeTask extends SwiftTask {
+  protected final long lo;
+  protected final long hi;
+  protected final long inc;
+  private final int splitDegree;
+  private final int leafDegree;
+
+  /**
+   * @param lo first iteration (inclusive)
+   * @param hi last iteration (inclusive)
+   * @param inc increment, must be positive
+   */
+  protected RangeTask(long lo, long hi, long inc,
+                      int splitDegree, int leafDegree) {
+    assert(inc > 0);
+    this.lo = lo;
+    this.hi = hi;
+    this.inc = inc;
+    this.splitDegree = Math.max(2, splitDegree);
+    this.leafDegree = Math.max(1, leafDegree);
+  }
+
+  public static long iterations(long lo, long hi, long inc) {
+    return Math.max(0, (hi - lo) / inc + 1);
+  }
+
+  @Override
+  protected final void exec() throws LogicException {
+    long myHi = hi;
+    while (lo <= myHi) {
+      long itersLeft = iterations(lo, myHi, inc);
+      if (itersLeft <= leafDegree) {
+        break;
+      }
+      long skip = inc * Math.max(leafDegree,
+                                 (itersLeft - 1) / splitDegree + 1);
+      for (long start = lo + skip; start <= myHi; start += skip) {
+        // Splits inherit priority, as with Turbine
+        JVMRuntime.spawn(split(start, Math.min(myHi, start + skip - 1))
+                             .priority(priority()));
+      }
+      myHi = lo + skip - 1;
+    }
+    if (lo <= myHi) {
+      runRange(lo, myHi, inc);
+    }
+  }
+
+  /**
+   * @return task for sub-range with same loop body
+   */
+  protected abstract RangeTask split(long lo, long hi);
+
+  /**
+   * Run loop body for iterations in range
+   */
+  protected abstract void runRange(long lo, long hi, long inc)
+      throws LogicException;
+}
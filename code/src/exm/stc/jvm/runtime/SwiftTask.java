@@ -0,0 +1,90 @@
+package exm.stc.jvm.runtime;
+
+/**
+ * Base class for tasks in generated code.  Errors in the task body abort
+ * the program, as an error in a Turbine task would.
+ *
+ * Scheduling properties from Swift task annotations can be set when
+ * the task is created, before it is spawned.  Locations are Turbine
+ * ranks, which map onto worker threads: see {@link JVMRuntime#spawn}.
+ */
+public abstract class SwiftTask implements Task {
+
+  /** Location value for tasks that can run anywhere */
+  public static final int ANY_LOCATION = -1;
+
+  /** Location strictness and accuracy, matching TaskProps constants */
+  public static final String LOC_STRICTNESS_SOFT = "SOFT";
+  public static final String LOC_ACCURACY_NODE = "NODE";
+
+  private int priority = 0;
+
+  private int location = ANY_LOCATION;
+
+  private boolean softLocation = false;
+
+  /** When task was spawned, if metrics are enabled */
+  private long readyNanos = 0;
+
+  @Override
+  public final void run() {
+    try {
+      exec();
+    } catch (Throwable t) {
+      JVMRuntime.abort(t);
+    }
+  }
+
+  protected abstract void exec() throws LogicException;
+
+  /**
+   * Set priority: higher priority tasks run first.
+   * @return this task
+   */
+  public SwiftTask priority(long priority) {
+    this.priority = (int)Math.max(Integer.MIN_VALUE,
+                                  Math.min(Integer.MAX_VALUE, priority));
+    return this;
+  }
+
+  /**
+   * Set location.  Negative ranks, such as Turbine's ANY_LOCATION, mean
+   * any location.  A location with node accuracy doesn't constrain the
+   * task, since all workers are on the same node.
+   * @param strictness HARD or SOFT
+   * @param accuracy RANK or NODE
+   * @return this task
+   */
+  public SwiftTask location(long rank, String strictness, String accuracy) {
+    if (rank < 0 || accuracy.equals(LOC_ACCURACY_NODE)) {
+      this.location = ANY_LOCATION;
+    } else {
+      this.location = (int)Math.min(Integer.MAX_VALUE, rank);
+      this.softLocation = strictness.equals(LOC_STRICTNESS_SOFT);
+    }
+    return this;
+  }
+
+  public int priority() {
+    return priority;
+  }
+
+  public int location() {
+    return location;
+  }
+
+  public boolean softLocation() {
+    return softLocation;
+  }
+
+  void markReady() {
+    readyNanos = System.nanoTime();
+  }
+
+  /**
+   * @return when task was spawned, or 0 if metrics are disabled
+   */
+  static long readyNanos(Task task) {
+    return task instanceof SwiftTask ? ((SwiftTask)task).readyNanos : 0;
+  }
+}
@@ -1,81 +1,490 @@
 package exm.stc.jvm.runtime;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Random;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * The global task queue
- * TODO: priorities
+ * The global task queue, with a work-stealing deque per worker thread.
  *
+ * Each worker thread should obtain its {@link Worker} handle and either
+ * run {@link Worker#run()} or call {@link Worker#getTask()} and
+ * {@link Worker#taskDone()} itself.  Tasks added from a worker thread go
+ * on that worker's deque; tasks added from other threads go on a shared
+ * queue.  Idle workers steal from random victims, backing off and then
+ * parking until new work is added.
+ *
+ * Termination: the queue counts tasks that have been added but not
+ * finished, plus registered external submitters.  When the count drops
+ * to zero no more work can be created, so the queue is terminated, and
+ * getTask() returns null in all workers.  Threads other than workers
+ * that add tasks must call {@link #register()} beforehand and
+ * {@link #deregister()} when they have finished adding tasks.
+ *
+ * Priorities: each queue is split into priority buckets (see
+ * {@link BucketQueue}), and workers take the most urgent task they can
+ * find locally before stealing.  Priorities are not enforced globally:
+ * a worker may run a local task while a more urgent one waits on another
+ * worker's deque, as with Turbine's per-server queues.
+ *
+ * Placement: a task can be targeted at a worker.  Hard-targeted tasks
+ * only run on that worker.  Soft-targeted tasks are preferred by that
+ * worker, but idle workers steal them, so that a busy worker doesn't
+ * hold up tasks with affinity for it.  Thieves take other work from the
+ * same victim first unless the soft-targeted tasks are more urgent.
  */
 public class TaskQueue {
-  
-  /**
-   * TODO: allow passing in of queues so that each thread
-   * can have in own local heap
-   * @param numThreads
-   */
+
+  /** Number of steal attempts before yielding */
+  private static final int STEAL_SPINS = 64;
+
+  /** Number of rounds of yielding before parking */
+  private static final int YIELD_ROUNDS = 4;
+
+  /** Bound on park time, as safeguard against missed wakeups */
+  private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
   public TaskQueue(int numThreads) {
     this.numThreads = numThreads;
-    this.targeted = new ArrayList<ConcurrentLinkedDeque<Task>>(numThreads);
-    this.regular = new ArrayList<ArrayDeque<Task>>(numThreads);
+    this.workers = new ArrayList<Worker>(numThreads);
     for (int i = 0; i < numThreads; i++) {
-      this.targeted.add(new ConcurrentLinkedDeque<Task>());
-      this.regular.add(new ArrayDeque<Task>());
+      this.workers.add(new Worker(i));
     }
   }
-  
+
   private final int numThreads;
-  
+
+  /**
+   * Per-thread deques and state
+   */
+  private final ArrayList<Worker> workers;
+
+  /**
+   * Tasks added by non-worker threads
+   */
+  private final BucketQueue shared = new BucketQueue();
+
+  /**
+   * Worker associated with current thread, if any
+   */
+  private final ThreadLocal<Worker> currentWorker = new ThreadLocal<Worker>();
+
+  /**
+   * Number of tasks added and not finished, plus registered submitters
+   */
+  private final AtomicLong pending = new AtomicLong(0);
+
+  /**
+   * Number of workers that are parked or about to park
+   */
+  private final AtomicInteger idle = new AtomicInteger(0);
+
+  private volatile boolean terminated = false;
+
+  private final CountDownLatch terminatedLatch = new CountDownLatch(1);
+
+  public int numThreads() {
+    return numThreads;
+  }
+
+  /**
+   * Get handle for a worker thread.  Should only be used by one thread.
+   */
+  public Worker worker(int threadNum) {
+    return workers.get(threadNum);
+  }
+
+  /**
+   * Add a task with default priority.  If called from a worker thread,
+   * add to that worker's deque.  Otherwise caller must be registered.
+   */
+  public void addTask(Task task) {
+    addTask(task, 0);
+  }
+
+  /**
+   * Add a task.  Tasks with higher priority are run first.
+   */
+  public void addTask(Task task, int priority) {
+    Worker w = currentWorker.get();
+    if (w != null && w.queue() == this) {
+      w.addTask(task, priority);
+    } else {
+      taskAdded();
+      shared.add(task, priority);
+      signalWork();
+    }
+  }
+
+  /**
+   * Add a task that must run on a particular worker thread.
+   */
+  public void addTargeted(int threadNum, Task task) {
+    addTargeted(threadNum, task, 0, false);
+  }
+
+  /**
+   * Add a task targeted at a particular worker thread.
+   * @param soft if other workers may run the task when idle
+   */
+  public void addTargeted(int threadNum, Task task, int priority,
+                          boolean soft) {
+    taskAdded();
+    Worker w = workers.get(threadNum);
+    if (soft) {
+      w.preferred.add(task, priority);
+    } else {
+      w.targeted.add(task, priority);
+    }
+    if (w.parked) {
+      LockSupport.unpark(w.thread);
+    } else if (soft) {
+      signalWork();
+    }
+  }
+
+  /**
+   * Register a thread that will add tasks.  Prevents termination until
+   * deregistered.
+   */
+  public void register() {
+    if (terminated) {
+      throw new IllegalStateException("Task queue already terminated");
+    }
+    pending.incrementAndGet();
+  }
+
+  public void deregister() {
+    decrementPending();
+  }
+
+  public boolean isTerminated() {
+    return terminated;
+  }
+
   /**
-   * Targeted task queues (one per thread)
+   * Wait until all tasks have run and no registered threads remain
    */
-  private final ArrayList<ConcurrentLinkedDeque<Task>> targeted;
-  
+  public void awaitTermination() throws InterruptedException {
+    terminatedLatch.await();
+  }
+
   /**
-   * Personal non-targeted task queue (one per thread) 
-   * TODO: priorities
+   * @return number of tasks that have been added and not finished
    */
-  private final ArrayList<ArrayDeque<Task>> regular;
-  
-  
+  public long pendingTasks() {
+    return pending.get();
+  }
+
   /**
-   * TODO: each thread should hold local reference to own deque
-   * @return a task, or null if nothing available
+   * @return a task, or null if queue has terminated
    */
   public Task getTask(int threadNum) {
-    // Targeted have highest priority
-    Task res = targeted.get(threadNum).pollLast();
-    if (res != null)
-      return res;
-    
-    // Next, try to see if something in local deque
-    ArrayDeque<Task> myDeque = regular.get(threadNum);
-    synchronized (myDeque) {
-      res = myDeque.pollLast();
+    return workers.get(threadNum).getTask();
+  }
+
+  private void taskAdded() {
+    if (terminated) {
+      throw new IllegalStateException("Task added after termination");
+    }
+    pending.incrementAndGet();
+  }
+
+  private void decrementPending() {
+    long remaining = pending.decrementAndGet();
+    assert(remaining >= 0);
+    if (remaining == 0) {
+      terminate();
     }
-    if (res != null)
+  }
+
+  private void terminate() {
+    terminated = true;
+    terminatedLatch.countDown();
+    for (Worker w: workers) {
+      LockSupport.unpark(w.thread);
+    }
+  }
+
+  /**
+   * Wake up a parked worker if there are any
+   */
+  private void signalWork() {
+    if (idle.get() == 0) {
+      return;
+    }
+    for (Worker w: workers) {
+      if (w.parked) {
+        LockSupport.unpark(w.thread);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Per-thread handle to the queue
+   */
+  public class Worker implements Runnable {
+    private final int threadNum;
+
+    /** Tasks that must run on this thread */
+    private final BucketQueue targeted = new BucketQueue();
+
+    /** Tasks that should run on this thread, but may be stolen */
+    private final BucketQueue preferred = new BucketQueue();
+
+    /** Work-stealing deque, owned by this thread */
+    private final BucketDeque deque = new BucketDeque();
+
+    /** State for victim selection */
+    private int randomState;
+
+    private volatile Thread thread = null;
+    private volatile boolean parked = false;
+
+    /** Metrics for this worker, if enabled */
+    private Metrics.Buffer stats = null;
+
+    private Worker(int threadNum) {
+      this.threadNum = threadNum;
+      this.randomState = 0x9E3779B9 * (threadNum + 1);
+    }
+
+    public int threadNum() {
+      return threadNum;
+    }
+
+    private TaskQueue queue() {
+      return TaskQueue.this;
+    }
+
+    /**
+     * Associate this worker with the current thread.  Called automatically
+     * by run() and getTask().
+     */
+    public void bind() {
+      Thread current = Thread.currentThread();
+      if (thread != current) {
+        assert(thread == null) : "Worker " + threadNum + " already bound";
+        thread = current;
+        currentWorker.set(this);
+        if (Metrics.ENABLED) {
+          stats = Metrics.local();
+        }
+      }
+    }
+
+    /**
+     * Add task to own deque.  Must be called from owning thread.
+     */
+    public void addTask(Task task) {
+      addTask(task, 0);
+    }
+
+    public void addTask(Task task, int priority) {
+      taskAdded();
+      deque.push(task, priority);
+      signalWork();
+    }
+
+    /**
+     * Must be called after each task returned by getTask() finishes.
+     */
+    public void taskDone() {
+      decrementPending();
+    }
+
+    /**
+     * Get next task, blocking until one is available.
+     * @return a task, or null if queue has terminated
+     */
+    public Task getTask() {
+      bind();
+      if (Metrics.ENABLED) {
+        stats.queueDepth(deque.size());
+      }
+      Task res = findTask();
+      if (res != null) {
+        return res;
+      }
+
+      long idleStart = Metrics.ENABLED ? System.nanoTime() : 0;
+      res = waitForTask();
+      if (Metrics.ENABLED) {
+        stats.idle(System.nanoTime() - idleStart);
+      }
       return res;
-    
-    // Finally, search other deques to steal work
-    // TODO: exit condition - detect idle, or go to sleep
-    Random r = new Random();
-    while (true) {
-      int deque = r.nextInt(numThreads - 1);
-      if (deque >= threadNum)
-        deque++;
-      
-      ArrayDeque<Task> otherDeque = regular.get(threadNum);
-      // Task from other end
-      synchronized (otherDeque) {
-        res = otherDeque.pollFirst();
-      }
-      if (res != null)
-        return res;      
-    }
-  }
-  
-  
+    }
+
+    /**
+     * Spin, yield, then park until a task is found
+     * @return a task, or null if queue has terminated
+     */
+    private Task waitForTask() {
+      int rounds = 0;
+      while (true) {
+        Task res = findTask();
+        if (res != null) {
+          return res;
+        }
+        if (terminated) {
+          return null;
+        }
+
+        if (rounds < YIELD_ROUNDS) {
+          rounds++;
+          Thread.yield();
+        } else {
+          res = park();
+          if (res != null) {
+            return res;
+          }
+          rounds = 0;
+        }
+      }
+    }
+
+    /**
+     * Run tasks until queue terminates
+     */
+    @Override
+    public void run() {
+      Task task;
+      while ((task = getTask()) != null) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        try {
+          task.run();
+        } catch (Throwable t) {
+          JVMRuntime.getLogger().error("Task failed on thread " + threadNum,
+                                       t);
+        } finally {
+          if (Metrics.ENABLED) {
+            stats.taskRun(task, SwiftTask.readyNanos(task), start,
+                          System.nanoTime());
+          }
+          taskDone();
+        }
+      }
+    }
+
+    /**
+     * Single pass over all sources of work
+     */
+    private Task findTask() {
+      // Hard-targeted tasks can't run anywhere else
+      Task res = targeted.poll();
+      if (res != null) {
+        return res;
+      }
+
+      res = pollLocal();
+      if (res != null) {
+        return res;
+      }
+
+      return steal();
+    }
+
+    /**
+     * Take task from the local source with the most urgent bucket,
+     * falling back to the others if we lose a race for it.  Ties go to
+     * the deque, then the preferred queue.
+     */
+    private Task pollLocal() {
+      int dequeMax = deque.maxBucket();
+      int preferredMax = preferred.maxBucket();
+      int sharedMax = shared.maxBucket();
+      Task res;
+      if (dequeMax >= preferredMax && dequeMax >= sharedMax) {
+        if (dequeMax < 0) {
+          return null;
+        }
+        res = deque.pop();
+      } else if (preferredMax >= sharedMax) {
+        res = preferred.poll();
+      } else {
+        res = shared.poll();
+      }
+      if (res != null) {
+        return res;
+      }
+
+      res = deque.pop();
+      if (res != null) {
+        return res;
+      }
+      res = preferred.poll();
+      if (res != null) {
+        return res;
+      }
+      return shared.poll();
+    }
+
+    private Task steal() {
+      if (numThreads <= 1) {
+        return null;
+      }
+      for (int i = 0; i < STEAL_SPINS; i++) {
+        int victim = nextRandom(numThreads - 1);
+        if (victim >= threadNum) {
+          victim++;
+        }
+        // Only take tasks with affinity for victim if they are more
+        // urgent than its other work, or if it has nothing else
+        Worker w = workers.get(victim);
+        Task res;
+        if (w.preferred.maxBucket() > w.deque.maxBucket()) {
+          res = w.preferred.poll();
+        } else {
+          res = w.deque.steal();
+          if (res == null) {
+            res = w.preferred.poll();
+          }
+        }
+        if (Metrics.ENABLED) {
+          stats.stealAttempt(res != null);
+        }
+        if (res != null) {
+          return res;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Park until woken.  Announces that we are idle, then checks again
+     * for work to avoid missing a wakeup.
+     * @return a task if found after announcing idle
+     */
+    private Task park() {
+      parked = true;
+      idle.incrementAndGet();
+      try {
+        Task res = findTask();
+        if (res != null || terminated) {
+          return res;
+        }
+        LockSupport.parkNanos(this, MAX_PARK_NANOS);
+        return null;
+      } finally {
+        idle.decrementAndGet();
+        parked = false;
+      }
+    }
+
+    /**
+     * Xorshift random number in [0, n)
+     */
+    private int nextRandom(int n) {
+      int x = randomState;
+      x ^= x << 13;
+      x ^= x >>> 17;
+      x ^= x << 5;
+      randomState = x;
+      return (x & Integer.MAX_VALUE) % n;
+    }
+  }
 }
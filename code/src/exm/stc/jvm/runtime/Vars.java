@@ -1,61 +1,254 @@
 package exm.stc.jvm.runtime;
 
-import java.util.ArrayList;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class Vars {
   public static abstract class BaseVar {
-    private final AtomicInteger writers;
-    
+    private static final AtomicIntegerFieldUpdater<BaseVar> WRITERS =
+        AtomicIntegerFieldUpdater.newUpdater(BaseVar.class, "writers");
+    private static final AtomicIntegerFieldUpdater<BaseVar> READERS =
+        AtomicIntegerFieldUpdater.newUpdater(BaseVar.class, "readers");
+    private static final AtomicReferenceFieldUpdater<BaseVar, Object> WAITERS =
+        AtomicReferenceFieldUpdater.newUpdater(BaseVar.class, Object.class,
+                                               "waiters");
+
+    /** Value of waiters once variable is closed */
+    private static final Object CLOSED = new Object();
+
+    /** Value of readers if read refcount isn't tracked */
+    private static final int UNTRACKED = Integer.MAX_VALUE;
+
+    /** Value of readers once variable is released */
+    private static final int RELEASED = Integer.MIN_VALUE;
+
+    /**
+     * Write refcount.  This is kept separate from waiters: the variable
+     * is closed when waiters is set to CLOSED, not when writers drops to
+     * zero.  Only the writer whose getAndAdd takes writers from positive
+     * to zero or below closes the variable, so waiters are notified
+     * exactly once, and later writers see a count of zero or below and
+     * fail.  A subscriber either pushes onto the stack before CLOSED is
+     * swapped in, and is notified, or fails its CAS and sees CLOSED.
+     */
+    private volatile int writers;
+
+    /**
+     * Read refcount.  Untracked variables are never released, and are
+     * left to the garbage collector.
+     */
+    private volatile int readers = UNTRACKED;
+
+    /**
+     * Lock-free stack of waiters.  Either null if no waiters, a single
+     * NotifyTarget, a WaiterNode for two or more waiters, or CLOSED
+     * once all waiters have been notified.
+     */
+    private volatile Object waiters = null;
+
     public BaseVar(int writers) {
-      this.writers = new AtomicInteger(writers);
+      this.writers = writers;
+      if (writers <= 0) {
+        this.waiters = CLOSED;
+      }
     }
     
     public void incrWriters(String fn, String varName, int amount) 
         throws DoubleWriteException {
       if (amount == 0)
         return;
-      long prev = writers.getAndAdd(amount);
+      long prev = WRITERS.getAndAdd(this, amount);
       if (prev <= 0) {
         throw new DoubleWriteException("Variable " + varName + 
             " written after close in function " + fn + "!");
       }
-      long curr = prev - amount;
+      long curr = prev + amount;
       if (curr < 0) {
         JVMRuntime.getLogger().warn("Decremented " + varName + " below 0 "
-                    + " in function " + fn + " " + prev + " - " + amount);
+                    + " in function " + fn + " " + prev + " + " + amount);
       }
       if (curr <= 0) {
         notifyWaiters();
       }
     }
 
-    // TODO: more memory-efficient way?
-    // TODO: lock-free way?  AtomicReference?
-    ArrayList<NotifyTarget> notifications = null;
+    /**
+     * Start tracking read refcount.  The variable is released once it is
+     * closed and the read refcount drops to zero.  Must be called before
+     * the variable is shared with other tasks.
+     * @param readers initial read refcount
+     */
+    public void initReaders(String fn, String varName, int readers) {
+      if (LeakCheck.ENABLED) {
+        LeakCheck.track(this, fn, varName);
+      }
+      this.readers = readers;
+      if (readers <= 0 && isClosed()) {
+        tryRelease();
+      }
+    }
+
+    public void incrReaders(String fn, String varName, int amount)
+        throws InvalidReadException {
+      if (amount == 0)
+        return;
+      while (true) {
+        int prev = readers;
+        if (prev == UNTRACKED) {
+          BaseVar owner = readersOwner();
+          if (owner != null) {
+            owner.incrReaders(fn, varName, amount);
+          }
+          return;
+        } else if (prev == RELEASED) {
+          throw new InvalidReadException("Read refcount of " + varName +
+              " modified after release in function " + fn);
+        }
+        int curr = prev + amount;
+        if (READERS.compareAndSet(this, prev, curr)) {
+          if (curr < 0) {
+            JVMRuntime.getLogger().warn("Decremented readers of " + varName +
+                " below 0 in function " + fn + " " + prev + " + " + amount);
+          }
+          // Closing thread checks readers after setting CLOSED
+          if (curr <= 0 && isClosed()) {
+            tryRelease();
+          }
+          return;
+        }
+      }
+    }
+
+    /**
+     * @return variable that holds read refcount on behalf of this
+     *         untracked variable, or null
+     */
+    protected BaseVar readersOwner() {
+      return null;
+    }
+
+    /**
+     * @return true if variable was released after last read
+     */
+    public boolean isReleased() {
+      return readers == RELEASED;
+    }
+
+    private void tryRelease() {
+      while (true) {
+        int r = readers;
+        if (r > 0 || r == RELEASED) {
+          return;
+        }
+        if (READERS.compareAndSet(this, r, RELEASED)) {
+          if (LeakCheck.ENABLED) {
+            LeakCheck.untrack(this);
+          }
+          release();
+          return;
+        }
+      }
+    }
+
+    /**
+     * Free contents once no readers or writers remain.  Subclasses drop
+     * references to values and release refcounts they hold on other
+     * variables.
+     */
+    protected void release() {
+      // Nothing to free by default
+    }
+
+    /**
+     * @return message for read that failed because value was not present
+     */
+    protected String readFailure(String fn, String varName) {
+      if (isReleased()) {
+        return varName + " was read after release in function " + fn;
+      }
+      return varName + " was read before writing in function " + fn;
+    }
+
+    /**
+     * @return true if all writers are finished
+     */
+    public boolean isClosed() {
+      return waiters == CLOSED;
+    }
+
     /**
      * 
      * @param target
      * @return true if subscribed, false if closed
      */
-    public synchronized boolean subscribe(NotifyTarget target) {
-      // TODO: I think this avoids race condition with notifications
-      if (writers.get() <= 0) {
-        return false;
+    public boolean subscribe(NotifyTarget target) {
+      while (true) {
+        Object head = waiters;
+        if (head == CLOSED) {
+          return false;
+        }
+        // First waiter is stored directly
+        Object newHead = (head == null) ? target : new WaiterNode(target, head);
+        if (WAITERS.compareAndSet(this, head, newHead)) {
+          if (Metrics.ENABLED) {
+            Metrics.local().subscribed();
+          }
+          return true;
+        }
       }
-      
-      if (notifications == null)
-        notifications = new ArrayList<NotifyTarget>();
-      notifications.add(target);
-      
-      return true;
     }
     
-    private synchronized void notifyWaiters() {
-      for (NotifyTarget t: notifications)
-        t.notifyFinal(this);
-      
-      notifications = null;
+    private void notifyWaiters() {
+      // Subscribers that lose the race with this see CLOSED
+      Object head = WAITERS.getAndSet(this, CLOSED);
+      if (Metrics.ENABLED) {
+        countNotifies(head);
+      }
+      while (head instanceof WaiterNode) {
+        WaiterNode node = (WaiterNode)head;
+        node.target.notifyFinal(this);
+        head = node.next;
+      }
+      if (head != null && head != CLOSED) {
+        ((NotifyTarget)head).notifyFinal(this);
+      }
+      closed();
+      if (readers <= 0) {
+        tryRelease();
+      }
+    }
+
+    /**
+     * Called once after the variable is closed and waiters are notified,
+     * before it can be released
+     */
+    protected void closed() {
+      // Nothing to do by default
+    }
+
+    private static void countNotifies(Object head) {
+      Metrics.Buffer stats = Metrics.local();
+      while (head instanceof WaiterNode) {
+        stats.notified();
+        head = ((WaiterNode)head).next;
+      }
+      if (head != null && head != CLOSED) {
+        stats.notified();
+      }
+    }
+  }
+
+  /**
+   * Entry in waiter stack.  The last entry's next is a NotifyTarget.
+   */
+  private static class WaiterNode {
+    final NotifyTarget target;
+    final Object next;
+
+    WaiterNode(NotifyTarget target, Object next) {
+      this.target = target;
+      this.next = next;
     }
   }
   
@@ -67,6 +260,11 @@ public class Vars {
     public void notifyFinal(BaseVar var);
   }
   
+  /**
+   * Base class for variables holding a single value.  Subclasses store
+   * the value in an unboxed field and use checkRead(), checkWrite() and
+   * setDone() around accesses to it.
+   */
   public abstract static class ScalarVar extends BaseVar {
     public ScalarVar(int writers, boolean isSet) {
       super(writers);
@@ -77,6 +275,64 @@ public class Vars {
      * Whether value is available
      */
     protected boolean isSet = false;
+
+    /** Variable holding read refcount for this alias, or null */
+    private BaseVar readersOwner = null;
+
+    /**
+     * Apply read refcount operations to owner instead, for alias of
+     * element of owner.  Must be called before variable is shared.
+     */
+    public void shareReaders(BaseVar owner) {
+      this.readersOwner = owner;
+    }
+
+    @Override
+    protected BaseVar readersOwner() {
+      return readersOwner;
+    }
+
+    public boolean isSet() {
+      return isSet;
+    }
+
+    protected void checkRead(String fn, String varName)
+        throws InvalidReadException {
+      // Should subscribe before reading, creating memory barrier
+      if (!isSet) {
+        throw new InvalidReadException(readFailure(fn, varName));
+      }
+    }
+
+    protected void checkWrite(String fn, String varName)
+        throws DoubleWriteException {
+      if (isSet) {
+        throw new DoubleWriteException("Variable " + varName + 
+            " written twice in function " + fn + "!");
+      }
+    }
+
+    @Override
+    protected void release() {
+      isSet = false;
+      clearValue();
+    }
+
+    /**
+     * Drop reference to value after release
+     */
+    protected void clearValue() {
+      // Unboxed values don't need to be cleared
+    }
+
+    /**
+     * Mark value as set after storing it, and release writers
+     */
+    protected void setDone(String fn, String varName, int writersDecr)
+        throws DoubleWriteException {
+      this.isSet = true;
+      this.incrWriters(fn, varName, -1 * writersDecr);
+    }
   }
   
   public static class IntVar extends ScalarVar {
@@ -92,13 +348,8 @@ public class Vars {
     private long value;
     
     public long get(String fn, String varName) throws InvalidReadException {
-      // Should subscribe before reading, creating memory barrier
-      if (isSet) {
-        return value;
-      } else {
-        throw new InvalidReadException(varName + " was read before writing " 
-            + " in function " + fn);
-      }
+      checkRead(fn, varName);
+      return value;
     }
     
     /**
@@ -115,8 +366,358 @@ public class Vars {
 
     public void set(String fn, String varName, long value,
                      int writersDecr) throws DoubleWriteException {
+      checkWrite(fn, varName);
       this.value = value;
-      this.incrWriters(fn, varName, -1 * writersDecr);
+      setDone(fn, varName, writersDecr);
+    }
+  }
+
+  public static class FloatVar extends ScalarVar {
+    public FloatVar(int writers) {
+      super(writers, false);
+    }
+
+    public FloatVar(int writers, double value) {
+      super(writers, true);
+      this.value = value;
+    }
+
+    private double value;
+
+    public double get(String fn, String varName) throws InvalidReadException {
+      checkRead(fn, varName);
+      return value;
+    }
+
+    public void set(String fn, String varName, double value)
+                                      throws DoubleWriteException {
+      set(fn, varName, value, 1);
+    }
+
+    public void set(String fn, String varName, double value,
+                     int writersDecr) throws DoubleWriteException {
+      checkWrite(fn, varName);
+      this.value = value;
+      setDone(fn, varName, writersDecr);
+    }
+  }
+
+  public static class BoolVar extends ScalarVar {
+    public BoolVar(int writers) {
+      super(writers, false);
+    }
+
+    public BoolVar(int writers, boolean value) {
+      super(writers, true);
+      this.value = value;
+    }
+
+    private boolean value;
+
+    public boolean get(String fn, String varName) throws InvalidReadException {
+      checkRead(fn, varName);
+      return value;
+    }
+
+    public void set(String fn, String varName, boolean value)
+                                      throws DoubleWriteException {
+      set(fn, varName, value, 1);
+    }
+
+    public void set(String fn, String varName, boolean value,
+                     int writersDecr) throws DoubleWriteException {
+      checkWrite(fn, varName);
+      this.value = value;
+      setDone(fn, varName, writersDecr);
+    }
+  }
+
+  public static class StringVar extends ScalarVar {
+    public StringVar(int writers) {
+      super(writers, false);
+    }
+
+    public StringVar(int writers, String value) {
+      super(writers, true);
+      this.value = value;
+    }
+
+    private String value;
+
+    public String get(String fn, String varName) throws InvalidReadException {
+      checkRead(fn, varName);
+      return value;
+    }
+
+    public void set(String fn, String varName, String value)
+                                      throws DoubleWriteException {
+      set(fn, varName, value, 1);
+    }
+
+    public void set(String fn, String varName, String value,
+                     int writersDecr) throws DoubleWriteException {
+      checkWrite(fn, varName);
+      this.value = value;
+      setDone(fn, varName, writersDecr);
+    }
+
+    @Override
+    protected void clearValue() {
+      value = null;
+    }
+  }
+
+  /**
+   * Void variables carry no value: only the fact they were set
+   */
+  public static class VoidVar extends ScalarVar {
+    public VoidVar(int writers) {
+      super(writers, false);
+    }
+
+    public VoidVar(int writers, boolean isSet) {
+      super(writers, isSet);
+    }
+
+    public void get(String fn, String varName) throws InvalidReadException {
+      checkRead(fn, varName);
+    }
+
+    public void set(String fn, String varName) throws DoubleWriteException {
+      set(fn, varName, 1);
+    }
+
+    public void set(String fn, String varName, int writersDecr)
+                                      throws DoubleWriteException {
+      checkWrite(fn, varName);
+      setDone(fn, varName, writersDecr);
+    }
+  }
+
+  /**
+   * Blob variables hold a byte buffer.  Buffers can be allocated off-heap
+   * with allocate() so that large blobs don't add to garbage collection
+   * work.  The variable takes ownership of the buffer passed to set(), and
+   * readers get a read-only view without copying.  Once released, the
+   * buffer is returned to the {@link BlobPool} unless a view of it was
+   * handed out, since the view may outlive the variable.
+   */
+  public static class BlobVar extends ScalarVar {
+    public BlobVar(int writers) {
+      super(writers, false);
+    }
+
+    public BlobVar(int writers, ByteBuffer value) {
+      super(writers, true);
+      this.value = value;
+    }
+
+    private ByteBuffer value;
+
+    /** Whether a view of the buffer was handed out */
+    private volatile boolean viewed = false;
+
+    /**
+     * Allocate an off-heap buffer for a blob
+     */
+    public static ByteBuffer allocate(int size) {
+      return BlobPool.allocate(size);
+    }
+
+    public ByteBuffer get(String fn, String varName)
+        throws InvalidReadException {
+      checkRead(fn, varName);
+      viewed = true;
+      return value.asReadOnlyBuffer();
+    }
+
+    public void set(String fn, String varName, ByteBuffer value)
+                                      throws DoubleWriteException {
+      set(fn, varName, value, 1);
+    }
+
+    public void set(String fn, String varName, ByteBuffer value,
+                     int writersDecr) throws DoubleWriteException {
+      checkWrite(fn, varName);
+      this.value = value;
+      setDone(fn, varName, writersDecr);
+    }
+
+    @Override
+    protected void clearValue() {
+      ByteBuffer buf = value;
+      value = null;
+      if (buf != null && !viewed) {
+        BlobPool.recycle(buf);
+      }
+    }
+  }
+
+  /**
+   * File variables have a filename, which may be known before the file is
+   * written, and are set once the file is written.
+   */
+  public static class FileVar extends ScalarVar {
+    public FileVar(int writers) {
+      super(writers, false);
+    }
+
+    public FileVar(int writers, String filename) {
+      super(writers, true);
+      this.filename = filename;
+    }
+
+    private volatile String filename = null;
+
+    public String getFilename(String fn, String varName)
+        throws InvalidReadException {
+      String res = filename;
+      if (res == null) {
+        throw new InvalidReadException("Filename of " + varName +
+            " was read before being set in function " + fn);
+      }
+      return res;
+    }
+
+    public void setFilename(String fn, String varName, String filename)
+        throws DoubleWriteException {
+      if (this.filename != null) {
+        throw new DoubleWriteException("Filename of " + varName +
+            " set twice in function " + fn + "!");
+      }
+      this.filename = filename;
+    }
+
+    public boolean isMapped() {
+      return filename != null;
+    }
+
+    /**
+     * @return filename once file is written
+     */
+    public String get(String fn, String varName) throws InvalidReadException {
+      checkRead(fn, varName);
+      return filename;
+    }
+
+    /**
+     * Mark file as written
+     */
+    public void set(String fn, String varName)
+        throws DoubleWriteException, InvalidWriteException {
+      set(fn, varName, 1);
+    }
+
+    public void set(String fn, String varName, int writersDecr)
+        throws DoubleWriteException, InvalidWriteException {
+      checkWrite(fn, varName);
+      if (filename == null) {
+        throw new InvalidWriteException("File " + varName +
+            " written without filename in function " + fn + "!");
+      }
+      setDone(fn, varName, writersDecr);
+    }
+  }
+
+  /**
+   * Reference to another variable
+   */
+  public static class RefVar<T extends BaseVar> extends ScalarVar {
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final AtomicIntegerFieldUpdater<RefVar<?>> HELD =
+        (AtomicIntegerFieldUpdater)
+        AtomicIntegerFieldUpdater.newUpdater(RefVar.class, "held");
+
+    public RefVar(int writers) {
+      super(writers, false);
+    }
+
+    public RefVar(int writers, T value) {
+      super(writers, true);
+      this.value = value;
+    }
+
+    private T value;
+
+    /**
+     * Write refcounts on the referenced variable that are held by this
+     * reference, to be handed over to whoever acquires write access.
+     */
+    private volatile int held = 0;
+
+    /**
+     * Read refcounts on the referenced variable that are held by this
+     * reference, released along with the reference.
+     */
+    private volatile int heldReaders = 0;
+
+    /**
+     * Hold write refcounts on referenced variable on behalf of readers
+     * of this reference.  Caller must already own the refcounts.
+     */
+    public void holdWriters(int amount) {
+      HELD.addAndGet(this, amount);
+    }
+
+    /**
+     * Hold read refcounts on referenced variable until this reference is
+     * released.  Caller must already own the refcounts, and must call
+     * this before setting the reference.
+     */
+    public void holdReaders(int amount) {
+      heldReaders += amount;
+    }
+
+    /**
+     * Acquire write refcounts on referenced variable, taking held
+     * refcounts first and incrementing the variable's count otherwise.
+     * Variable must be set.
+     */
+    public T acquireWriters(String fn, String varName, int amount)
+        throws LogicException {
+      T target = get(fn, varName);
+      while (amount > 0) {
+        int h = held;
+        if (h <= 0) {
+          target.incrWriters(fn, varName, amount);
+          break;
+        }
+        int take = Math.min(h, amount);
+        if (HELD.compareAndSet(this, h, h - take)) {
+          amount -= take;
+        }
+      }
+      return target;
+    }
+
+    public T get(String fn, String varName) throws InvalidReadException {
+      checkRead(fn, varName);
+      return value;
+    }
+
+    public void set(String fn, String varName, T value)
+                                      throws DoubleWriteException {
+      set(fn, varName, value, 1);
+    }
+
+    public void set(String fn, String varName, T value,
+                     int writersDecr) throws DoubleWriteException {
+      checkWrite(fn, varName);
+      this.value = value;
+      setDone(fn, varName, writersDecr);
+    }
+
+    @Override
+    protected void clearValue() {
+      T target = value;
+      value = null;
+      if (target != null && heldReaders > 0) {
+        try {
+          target.incrReaders("release", "<ref>", -heldReaders);
+        } catch (InvalidReadException e) {
+          JVMRuntime.abort(e);
+        }
+      }
     }
   }
 }
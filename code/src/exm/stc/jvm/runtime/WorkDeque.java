@@ -0,0 +1,125 @@
+package exm.stc.jvm.runtime;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Chase-Lev work-stealing deque.  The owning thread pushes and pops
+ * tasks at the bottom without locking.  Other threads steal from the
+ * top with a compare-and-swap.
+ *
+ * Based on "Dynamic Circular Work-Stealing Deque" (Chase and Lev, 2005)
+ * and "Correct and Efficient Work-Stealing for Weak Memory Models"
+ * (Le et al., 2013).  Volatile accesses to top and bottom provide
+ * the required fences under the Java memory model.
+ */
+class WorkDeque {
+  private static final int INITIAL_CAPACITY = 64;
+
+  private static final AtomicLongFieldUpdater<WorkDeque> TOP =
+          AtomicLongFieldUpdater.newUpdater(WorkDeque.class, "top");
+
+  /** Index of next task to steal.  Only increases. */
+  private volatile long top = 0;
+
+  /** Index of next free slot.  Only modified by owner. */
+  private volatile long bottom = 0;
+
+  /** Circular buffer, size is a power of two.  Only replaced by owner */
+  private volatile AtomicReferenceArray<Task> tasks =
+                      new AtomicReferenceArray<Task>(INITIAL_CAPACITY);
+
+  /**
+   * Add task at bottom.  Must only be called by owner.
+   */
+  public void push(Task task) {
+    long b = bottom;
+    long t = top;
+    AtomicReferenceArray<Task> a = tasks;
+    if (b - t >= a.length()) {
+      a = grow(a, t, b);
+      tasks = a;
+    }
+    a.lazySet(index(a, b), task);
+    // Volatile write publishes task to thieves
+    bottom = b + 1;
+  }
+
+  /**
+   * Remove task from bottom.  Must only be called by owner.
+   * @return a task, or null if empty
+   */
+  public Task pop() {
+    long b = bottom - 1;
+    AtomicReferenceArray<Task> a = tasks;
+    // Volatile write then read acts as store-load fence
+    bottom = b;
+    long t = top;
+    if (t > b) {
+      // Empty
+      bottom = b + 1;
+      return null;
+    }
+
+    int i = index(a, b);
+    Task task = a.get(i);
+    if (t == b) {
+      // Last task: race with thieves
+      if (!TOP.compareAndSet(this, t, t + 1)) {
+        task = null;
+      }
+      bottom = b + 1;
+    } else {
+      // Clear to allow garbage collection
+      a.lazySet(i, null);
+    }
+    return task;
+  }
+
+  /**
+   * Remove task from top.  May be called by any thread.
+   * @return a task, or null if empty or if lost race with another thread
+   */
+  public Task steal() {
+    long t = top;
+    long b = bottom;
+    if (t >= b) {
+      return null;
+    }
+    AtomicReferenceArray<Task> a = tasks;
+    int i = index(a, t);
+    Task task = a.get(i);
+    if (task == null || !TOP.compareAndSet(this, t, t + 1)) {
+      return null;
+    }
+    // Clear slot unless owner already reused it
+    a.compareAndSet(i, task, null);
+    return task;
+  }
+
+  /**
+   * @return approximate number of tasks
+   */
+  public int size() {
+    long n = bottom - top;
+    return n < 0 ? 0 : (int)n;
+  }
+
+  public boolean isEmpty() {
+    return bottom <= top;
+  }
+
+  private static int index(AtomicReferenceArray<Task> a, long i) {
+    return (int)i & (a.length() - 1);
+  }
+
+  private static AtomicReferenceArray<Task> grow(AtomicReferenceArray<Task> a,
+                                                 long t, long b) {
+    AtomicReferenceArray<Task> bigger =
+                      new AtomicReferenceArray<Task>(a.length() * 2);
+    for (long i = t; i < b; i++) {
+      bigger.lazySet(index(bigger, i), a.get(index(a, i)));
+    }
+    return bigger;
+  }
+}
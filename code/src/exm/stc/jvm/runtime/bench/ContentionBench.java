@@ -0,0 +1,232 @@
+package exm.stc.jvm.runtime.bench;
+
+import java.util.concurrent.CyclicBarrier;
+
+import exm.stc.jvm.runtime.LogicException;
+import exm.stc.jvm.runtime.Vars.BaseVar;
+import exm.stc.jvm.runtime.Vars.IntVar;
+import exm.stc.jvm.runtime.Vars.NotifyTarget;
+
+/**
+ * Multi-threaded microbenchmarks of futures under contention, run at
+ * 1, 2, 4, ... up to the given number of threads:
+ *
+ *   get:            all threads read the same few closed futures
+ *   subscribe:      all threads subscribe to the same open futures,
+ *                   which are then set, notifying all subscribers.
+ *                   Includes the time to set and notify.
+ *   set:            each thread sets its own futures, each with
+ *                   a subscriber, so notification is included
+ *   incrWriters:    all threads increment and decrement the writer
+ *                   count of the same future, as when many tasks are
+ *                   spawned that may write a shared container
+ *
+ * Times are per operation per thread, so ideal scaling keeps them
+ * constant as threads are added.
+ *
+ * usage: ContentionBench [max threads] [operations per thread]
+ */
+public class ContentionBench {
+
+  private static final int WARMUP_TRIALS = 3;
+  private static final int TRIALS = 5;
+
+  /** Futures read by get benchmark: must be a power of two */
+  private static final int GET_VARS = 16;
+
+  /** Futures per subscribe round, to bound memory */
+  private static final int SUBSCRIBE_BATCH = 1024;
+
+  /** Prevent dead code elimination */
+  private static volatile long sink;
+
+  private static final NotifyTarget NOOP_TARGET = new NotifyTarget() {
+    @Override
+    public void notifyFinal(BaseVar var) {
+      // Do nothing
+    }
+  };
+
+  /**
+   * Benchmark where each thread performs ops operations
+   */
+  private static abstract class Bench {
+    final String name;
+
+    Bench(String name) {
+      this.name = name;
+    }
+
+    /** Called before each trial, on one thread */
+    void setup(int threads, int ops) throws LogicException {
+      // Do nothing
+    }
+
+    abstract void run(int thread, int threads, int ops)
+        throws LogicException;
+
+    /** Called after each trial, on one thread */
+    void teardown() throws LogicException {
+      // Do nothing
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) :
+                            Runtime.getRuntime().availableProcessors();
+    int ops = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+    Bench benches[] = {
+      new Bench("get") {
+        IntVar vars[];
+
+        @Override
+        void setup(int threads, int ops) throws LogicException {
+          // Rotate through a few futures so reads can't be hoisted
+          vars = new IntVar[GET_VARS];
+          for (int i = 0; i < GET_VARS; i++) {
+            vars[i] = new IntVar(0, i);
+          }
+        }
+
+        @Override
+        void run(int thread, int threads, int ops) throws LogicException {
+          long sum = 0;
+          for (int i = 0; i < ops; i++) {
+            sum += vars[(int)(sum + i) & (GET_VARS - 1)].get("bench", "v");
+          }
+          sink += sum;
+        }
+      },
+      new Bench("subscribe") {
+        IntVar vars[];
+        CyclicBarrier barrier;
+
+        @Override
+        void setup(int threads, int ops) throws LogicException {
+          vars = new IntVar[SUBSCRIBE_BATCH];
+          newBatch();
+          barrier = new CyclicBarrier(threads, new Runnable() {
+            @Override
+            public void run() {
+              // Last thread to arrive closes batch and starts next one
+              try {
+                for (int i = 0; i < vars.length; i++) {
+                  vars[i].set("bench", "v", i);
+                }
+              } catch (LogicException e) {
+                throw new RuntimeException(e);
+              }
+              newBatch();
+            }
+          });
+        }
+
+        void newBatch() {
+          for (int i = 0; i < vars.length; i++) {
+            vars[i] = new IntVar(1);
+          }
+        }
+
+        @Override
+        void run(int thread, int threads, int ops) throws LogicException {
+          try {
+            for (int done = 0; done < ops; done += SUBSCRIBE_BATCH) {
+              for (int i = 0; i < SUBSCRIBE_BATCH; i++) {
+                vars[i].subscribe(NOOP_TARGET);
+              }
+              barrier.await();
+            }
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      },
+      new Bench("set") {
+        @Override
+        void run(int thread, int threads, int ops) throws LogicException {
+          for (int i = 0; i < ops; i++) {
+            IntVar v = new IntVar(1);
+            v.subscribe(NOOP_TARGET);
+            v.set("bench", "v", i);
+          }
+        }
+      },
+      new Bench("incrWriters") {
+        IntVar v;
+
+        @Override
+        void setup(int threads, int ops) throws LogicException {
+          v = new IntVar(1);
+          v.subscribe(NOOP_TARGET);
+        }
+
+        @Override
+        void run(int thread, int threads, int ops) throws LogicException {
+          for (int i = 0; i < ops; i++) {
+            v.incrWriters("bench", "v", 1);
+            v.incrWriters("bench", "v", -1);
+          }
+        }
+
+        @Override
+        void teardown() throws LogicException {
+          v.set("bench", "v", 0);
+        }
+      },
+    };
+
+    for (Bench b: benches) {
+      for (int threads = 1; threads <= maxThreads; threads *= 2) {
+        for (int i = 0; i < WARMUP_TRIALS; i++) {
+          trial(b, threads, ops);
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < TRIALS; i++) {
+          best = Math.min(best, trial(b, threads, ops));
+        }
+        System.out.printf("%-12s threads=%-3d %8.2f ns/op%n", b.name,
+                          threads, best / (double)ops);
+      }
+    }
+  }
+
+  /**
+   * @return elapsed nanoseconds
+   */
+  private static long trial(final Bench b, final int threads, final int ops)
+      throws Exception {
+    b.setup(threads, ops);
+    final CyclicBarrier start = new CyclicBarrier(threads + 1);
+    final Throwable errors[] = new Throwable[threads];
+    Thread workers[] = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      final int thread = i;
+      workers[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            b.run(thread, threads, ops);
+          } catch (Throwable t) {
+            errors[thread] = t;
+          }
+        }
+      });
+      workers[i].start();
+    }
+    start.await();
+    long startTime = System.nanoTime();
+    for (Thread t: workers) {
+      t.join();
+    }
+    long elapsed = System.nanoTime() - startTime;
+    for (Throwable t: errors) {
+      if (t != null) {
+        throw new RuntimeException("Benchmark " + b.name + " failed", t);
+      }
+    }
+    b.teardown();
+    return elapsed;
+  }
+}
@@ -0,0 +1,347 @@
+package exm.stc.jvm.runtime.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import exm.stc.jvm.runtime.DataOps;
+import exm.stc.jvm.runtime.JVMRuntime;
+import exm.stc.jvm.runtime.LogicException;
+import exm.stc.jvm.runtime.SwiftTask;
+import exm.stc.jvm.runtime.Vars.IntVar;
+
+/**
+ * Synthetic dataflow graphs built from the same primitives as generated
+ * code: futures, tasks spawned by {@link DataOps#waitAll} once their
+ * inputs are closed, and {@link JVMRuntime#run}.  Measures runtime
+ * overhead per task, since tasks do almost no work.
+ *
+ *   fanout:    one task spawns n independent tasks
+ *   fanin:     n tasks each set a future, one task waits for all of them
+ *   dataflow:  element j waits for a random earlier element, as in
+ *              bench/dataflow/dataflow-1D.swift
+ *   wavefront: cell (i, j) of a sqrt(n) x sqrt(n) grid waits for its
+ *              three neighbours above and to the left, as in
+ *              bench/wavefront/wavefront.swift
+ *   fib:       recursive Fibonacci with a task per call, as in
+ *              bench/suite/reducetree/fib.swift, with the argument
+ *              chosen to give about n tasks
+ *
+ * usage: DagBench [threads] [n]
+ */
+public class DagBench {
+
+  private static final int WARMUP_TRIALS = 3;
+  private static final int TRIALS = 5;
+
+  private static final String SHAPES[] = {"fanout", "fanin", "dataflow",
+                                          "wavefront", "fib"};
+
+  public static void main(String[] args) {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) :
+                            Runtime.getRuntime().availableProcessors();
+    int n = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+    for (String shape: SHAPES) {
+      for (int i = 0; i < WARMUP_TRIALS; i++) {
+        trial(shape, threads, n);
+      }
+      double times[] = new double[TRIALS];
+      long tasks = 0;
+      for (int i = 0; i < TRIALS; i++) {
+        Graph g = trial(shape, threads, n);
+        times[i] = g.elapsedNanos;
+        tasks = g.tasks;
+      }
+      Arrays.sort(times);
+      System.out.printf("%-10s threads=%d tasks=%d: median %.1f ms, " +
+          "%.0f ns/task (min %.1f ms, max %.1f ms)%n", shape, threads, tasks,
+          times[TRIALS / 2] / 1e6, times[TRIALS / 2] / tasks,
+          times[0] / 1e6, times[TRIALS - 1] / 1e6);
+    }
+  }
+
+  private static Graph trial(String shape, int threads, int n) {
+    Graph g;
+    if (shape.equals("fanout")) {
+      g = new FanOut(n);
+    } else if (shape.equals("fanin")) {
+      g = new FanIn(n);
+    } else if (shape.equals("dataflow")) {
+      g = new Dataflow(n);
+    } else if (shape.equals("wavefront")) {
+      g = new Wavefront((int)Math.sqrt(n));
+    } else {
+      assert(shape.equals("fib"));
+      g = new Fib(n);
+    }
+    long start = System.nanoTime();
+    JVMRuntime.run(new String[0], threads, g);
+    g.elapsedNanos = System.nanoTime() - start;
+    g.check();
+    return g;
+  }
+
+  /**
+   * Main task of a graph, which spawns the rest of the graph
+   */
+  private static abstract class Graph extends SwiftTask {
+    /** Number of tasks in graph, including main task */
+    long tasks;
+
+    long elapsedNanos;
+
+    /** Check result after graph is run */
+    abstract void check();
+  }
+
+  private static void checkEqual(String what, long expected, long actual) {
+    if (expected != actual) {
+      throw new RuntimeException(what + ": expected " + expected +
+                                 " but got " + actual);
+    }
+  }
+
+  /**
+   * Task that sets a future to the sum of other futures plus a constant
+   */
+  private static class Sum extends SwiftTask {
+    private final IntVar out;
+    private final long k;
+    private final IntVar in[];
+
+    Sum(IntVar out, long k, IntVar... in) {
+      this.out = out;
+      this.k = k;
+      this.in = in;
+    }
+
+    /**
+     * Spawn once inputs are closed
+     */
+    void waitInputs() {
+      DataOps.waitAll(this, false, in);
+    }
+
+    @Override
+    protected void exec() throws LogicException {
+      long sum = k;
+      for (IntVar v: in) {
+        sum += v.get("sum", "in");
+      }
+      out.set("sum", "out", sum);
+    }
+  }
+
+  private static class FanOut extends Graph {
+    private final IntVar out[];
+
+    FanOut(int n) {
+      out = new IntVar[n];
+      tasks = n + 1;
+    }
+
+    @Override
+    protected void exec() {
+      for (int i = 0; i < out.length; i++) {
+        out[i] = new IntVar(1);
+        JVMRuntime.spawn(new Sum(out[i], i));
+      }
+    }
+
+    @Override
+    void check() {
+      try {
+        checkEqual("fanout", out.length - 1,
+                   out[out.length - 1].get("check", "out"));
+      } catch (LogicException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private static class FanIn extends Graph {
+    private final int n;
+    private final IntVar result = new IntVar(1);
+
+    FanIn(int n) {
+      this.n = n;
+      tasks = n + 2;
+    }
+
+    @Override
+    protected void exec() {
+      IntVar in[] = new IntVar[n];
+      for (int i = 0; i < n; i++) {
+        in[i] = new IntVar(1);
+      }
+      new Sum(result, 0, in).waitInputs();
+      for (int i = 0; i < n; i++) {
+        JVMRuntime.spawn(new Sum(in[i], 1));
+      }
+    }
+
+    @Override
+    void check() {
+      try {
+        checkEqual("fanin", n, result.get("check", "result"));
+      } catch (LogicException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private static class Dataflow extends Graph {
+    private final IntVar a[];
+    private final int deps[];
+
+    Dataflow(int n) {
+      a = new IntVar[n];
+      deps = new int[n];
+      Random r = new Random(0);
+      for (int j = 1; j < n; j++) {
+        deps[j] = r.nextInt(j);
+      }
+      tasks = n + 1;
+    }
+
+    @Override
+    protected void exec() {
+      for (int j = 0; j < a.length; j++) {
+        a[j] = new IntVar(1);
+      }
+      JVMRuntime.spawn(new Sum(a[0], 0));
+      for (int j = 1; j < a.length; j++) {
+        new Sum(a[j], 1, a[deps[j]]).waitInputs();
+      }
+    }
+
+    @Override
+    void check() {
+      try {
+        long depth = 0;
+        for (int j = a.length - 1; j > 0; j = deps[j]) {
+          depth++;
+        }
+        checkEqual("dataflow", depth, a[a.length - 1].get("check", "a"));
+      } catch (LogicException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private static class Wavefront extends Graph {
+    private final int n;
+    private final IntVar a[];
+
+    Wavefront(int n) {
+      this.n = n;
+      this.a = new IntVar[n * n];
+      tasks = (long)n * n + 1;
+    }
+
+    @Override
+    protected void exec() {
+      for (int i = 0; i < a.length; i++) {
+        a[i] = new IntVar(1);
+      }
+      // Edges are 1, interior cells are sum of neighbours
+      for (int i = 0; i < n; i++) {
+        JVMRuntime.spawn(new Sum(a[i], 1));
+        if (i > 0) {
+          JVMRuntime.spawn(new Sum(a[i * n], 1));
+        }
+      }
+      for (int i = 1; i < n; i++) {
+        for (int j = 1; j < n; j++) {
+          new Sum(a[i * n + j], 0, a[(i - 1) * n + j - 1],
+                  a[(i - 1) * n + j], a[i * n + j - 1]).waitInputs();
+        }
+      }
+    }
+
+    @Override
+    void check() {
+      try {
+        // Delannoy numbers: check value modulo 2^64 against serial
+        long expected[] = new long[n * n];
+        for (int i = 0; i < n; i++) {
+          for (int j = 0; j < n; j++) {
+            expected[i * n + j] = (i == 0 || j == 0) ? 1 :
+                expected[(i - 1) * n + j - 1] + expected[(i - 1) * n + j] +
+                expected[i * n + j - 1];
+          }
+        }
+        checkEqual("wavefront", expected[n * n - 1],
+                   a[n * n - 1].get("check", "a"));
+      } catch (LogicException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private static class Fib extends Graph {
+    private final int k;
+    private final IntVar result = new IntVar(1);
+
+    Fib(int n) {
+      // fib(k) spawns about 2 * fib(k + 1) tasks
+      int k = 1;
+      while (fibTasks(k + 1) <= n) {
+        k++;
+      }
+      this.k = k;
+      tasks = fibTasks(k) + 1;
+    }
+
+    /**
+     * @return number of tasks to compute fib(k): one per call, plus one
+     *         to add results of each non-leaf call
+     */
+    private static long fibTasks(int k) {
+      return k < 2 ? 1 : 2 + fibTasks(k - 1) + fibTasks(k - 2);
+    }
+
+    @Override
+    protected void exec() {
+      JVMRuntime.spawn(new FibCall(result, k));
+    }
+
+    @Override
+    void check() {
+      try {
+        long a = 0, b = 1;
+        for (int i = 0; i < k; i++) {
+          long c = a + b;
+          a = b;
+          b = c;
+        }
+        checkEqual("fib", a, result.get("check", "result"));
+      } catch (LogicException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private static class FibCall extends SwiftTask {
+    private final IntVar out;
+    private final int k;
+
+    FibCall(IntVar out, int k) {
+      this.out = out;
+      this.k = k;
+    }
+
+    @Override
+    protected void exec() throws LogicException {
+      if (k < 2) {
+        out.set("fib", "o", k);
+        return;
+      }
+      IntVar f1 = new IntVar(1);
+      IntVar f2 = new IntVar(1);
+      new Sum(out, 0, f1, f2).waitInputs();
+      JVMRuntime.spawn(new FibCall(f1, k - 1));
+      JVMRuntime.spawn(new FibCall(f2, k - 2));
+    }
+  }
+}
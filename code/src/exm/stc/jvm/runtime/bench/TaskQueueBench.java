@@ -0,0 +1,181 @@
+package exm.stc.jvm.runtime.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import exm.stc.jvm.runtime.Task;
+import exm.stc.jvm.runtime.TaskQueue;
+
+/**
+ * Throughput and latency benchmarks for the task queue.
+ *
+ * Throughput: measured in tasks per second at 1, 2, 4, ... up to the
+ * given number of threads, for two task graphs:
+ *   tree: tasks recursively spawn a binary tree of tasks.  This mostly
+ *         exercises owner push and pop, with occasional steals.
+ *   flat: one task spawns all the others, so other workers only get
+ *         work by stealing from the first.
+ *
+ * Latency: an external thread submits single tasks to idle workers,
+ * measuring time until the task starts running.  This exercises
+ * parking and wakeup.
+ *
+ * usage: TaskQueueBench [max threads] [tree depth] [latency samples]
+ * The flat graph has the same number of tasks as the tree.
+ */
+public class TaskQueueBench {
+
+  private static final int WARMUP_TRIALS = 3;
+  private static final int TRIALS = 5;
+
+  public static void main(String[] args) throws InterruptedException {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) :
+                            Runtime.getRuntime().availableProcessors();
+    int depth = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    int samples = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+    for (boolean flat: new boolean[] {false, true}) {
+      for (int t = 1; t <= threads; t *= 2) {
+        for (int i = 0; i < WARMUP_TRIALS; i++) {
+          throughput(t, depth, flat);
+        }
+        double[] rates = new double[TRIALS];
+        for (int i = 0; i < TRIALS; i++) {
+          rates[i] = throughput(t, depth, flat);
+        }
+        Arrays.sort(rates);
+        System.out.printf("throughput %s threads=%d depth=%d: " +
+            "median %.0f tasks/s (min %.0f, max %.0f)%n",
+            flat ? "flat" : "tree", t, depth,
+            rates[TRIALS / 2], rates[0], rates[TRIALS - 1]);
+      }
+    }
+
+    latency(threads, samples / 10);
+    long[] latencies = latency(threads, samples);
+    Arrays.sort(latencies);
+    System.out.printf("latency threads=%d samples=%d: median %.1f us, " +
+        "p99 %.1f us, max %.1f us%n", threads, samples,
+        latencies[samples / 2] / 1000.0,
+        latencies[(int)(samples * 0.99)] / 1000.0,
+        latencies[samples - 1] / 1000.0);
+  }
+
+  /**
+   * @return tasks per second
+   */
+  private static double throughput(int threads, final int depth,
+      boolean flat) throws InterruptedException {
+    final TaskQueue queue = new TaskQueue(threads);
+    final AtomicLong count = new AtomicLong();
+
+    long start = System.nanoTime();
+    queue.register();
+    if (flat) {
+      queue.addTask(new FlatTask(queue, count, (2L << depth) - 2));
+    } else {
+      queue.addTask(new TreeTask(queue, count, depth));
+    }
+    queue.deregister();
+    Thread[] workers = startWorkers(queue);
+    queue.awaitTermination();
+    long elapsed = System.nanoTime() - start;
+    joinAll(workers);
+
+    return count.get() / (elapsed / 1e9);
+  }
+
+  private static class TreeTask implements Task {
+    private final TaskQueue queue;
+    private final AtomicLong count;
+    private final int depth;
+
+    TreeTask(TaskQueue queue, AtomicLong count, int depth) {
+      this.queue = queue;
+      this.count = count;
+      this.depth = depth;
+    }
+
+    @Override
+    public void run() {
+      count.incrementAndGet();
+      if (depth > 0) {
+        queue.addTask(new TreeTask(queue, count, depth - 1));
+        queue.addTask(new TreeTask(queue, count, depth - 1));
+      }
+    }
+  }
+
+  private static class FlatTask implements Task {
+    private final TaskQueue queue;
+    private final AtomicLong count;
+    private final long children;
+
+    FlatTask(TaskQueue queue, AtomicLong count, long children) {
+      this.queue = queue;
+      this.count = count;
+      this.children = children;
+    }
+
+    @Override
+    public void run() {
+      count.incrementAndGet();
+      for (long i = 0; i < children; i++) {
+        queue.addTask(new FlatTask(queue, count, 0));
+      }
+    }
+  }
+
+  /**
+   * @return nanoseconds from submission to start for each sample
+   */
+  private static long[] latency(int threads, int samples)
+      throws InterruptedException {
+    final TaskQueue queue = new TaskQueue(threads);
+    final long[] latencies = new long[samples];
+    queue.register();
+    Thread[] workers = startWorkers(queue);
+
+    for (int i = 0; i < samples; i++) {
+      final int sample = i;
+      final long submitTime = System.nanoTime();
+      final Object done = new Object();
+      final boolean[] ran = new boolean[1];
+      queue.addTask(new Task() {
+        @Override
+        public void run() {
+          latencies[sample] = System.nanoTime() - submitTime;
+          synchronized (done) {
+            ran[0] = true;
+            done.notify();
+          }
+        }
+      });
+      synchronized (done) {
+        while (!ran[0]) {
+          done.wait();
+        }
+      }
+    }
+
+    queue.deregister();
+    queue.awaitTermination();
+    joinAll(workers);
+    return latencies;
+  }
+
+  private static Thread[] startWorkers(TaskQueue queue) {
+    Thread[] workers = new Thread[queue.numThreads()];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Thread(queue.worker(i), "worker-" + i);
+      workers[i].start();
+    }
+    return workers;
+  }
+
+  private static void joinAll(Thread[] threads) throws InterruptedException {
+    for (Thread t: threads) {
+      t.join();
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package exm.stc.jvm.runtime.bench;
+
+import exm.stc.jvm.runtime.LogicException;
+import exm.stc.jvm.runtime.Vars.BaseVar;
+import exm.stc.jvm.runtime.Vars.FloatVar;
+import exm.stc.jvm.runtime.Vars.IntVar;
+import exm.stc.jvm.runtime.Vars.NotifyTarget;
+import exm.stc.jvm.runtime.Vars.ScalarVar;
+
+/**
+ * Single-threaded microbenchmarks of future create+set, get and subscribe
+ * cost, comparing unboxed typed futures against a future storing a
+ * boxed value.
+ *
+ * usage: VarsBench [iterations]
+ */
+public class VarsBench {
+
+  private static final int WARMUP_TRIALS = 3;
+  private static final int TRIALS = 5;
+
+  /** Prevent dead code elimination */
+  private static volatile long sink;
+
+  /**
+   * Baseline: value stored as boxed object
+   */
+  private static class BoxedVar extends ScalarVar {
+    private Object value;
+
+    BoxedVar(int writers) {
+      super(writers, false);
+    }
+
+    Object get(String fn, String varName) throws LogicException {
+      checkRead(fn, varName);
+      return value;
+    }
+
+    void set(String fn, String varName, Object value) throws LogicException {
+      checkWrite(fn, varName);
+      this.value = value;
+      setDone(fn, varName, 1);
+    }
+  }
+
+  private static final NotifyTarget NOOP_TARGET = new NotifyTarget() {
+    @Override
+    public void notifyFinal(BaseVar var) {
+      sink++;
+    }
+  };
+
+  private static abstract class Bench {
+    final String name;
+
+    Bench(String name) {
+      this.name = name;
+    }
+
+    abstract void run(int n) throws LogicException;
+  }
+
+  public static void main(String[] args) throws LogicException {
+    int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+    Bench benches[] = {
+      new Bench("int set+get") {
+        @Override
+        void run(int n) throws LogicException {
+          long sum = 0;
+          for (int i = 0; i < n; i++) {
+            IntVar v = new IntVar(1);
+            v.set("bench", "v", i);
+            sum += v.get("bench", "v");
+          }
+          sink = sum;
+        }
+      },
+      new Bench("float set+get") {
+        @Override
+        void run(int n) throws LogicException {
+          double sum = 0;
+          for (int i = 0; i < n; i++) {
+            FloatVar v = new FloatVar(1);
+            v.set("bench", "v", i * 0.5);
+            sum += v.get("bench", "v");
+          }
+          sink = (long)sum;
+        }
+      },
+      new Bench("boxed long set+get") {
+        @Override
+        void run(int n) throws LogicException {
+          long sum = 0;
+          for (int i = 0; i < n; i++) {
+            BoxedVar v = new BoxedVar(1);
+            v.set("bench", "v", Long.valueOf(i));
+            sum += (Long)v.get("bench", "v");
+          }
+          sink = sum;
+        }
+      },
+      new Bench("int subscribe 1 + set") {
+        @Override
+        void run(int n) throws LogicException {
+          for (int i = 0; i < n; i++) {
+            IntVar v = new IntVar(1);
+            v.subscribe(NOOP_TARGET);
+            v.set("bench", "v", i);
+          }
+        }
+      },
+      new Bench("int subscribe 4 + set") {
+        @Override
+        void run(int n) throws LogicException {
+          for (int i = 0; i < n; i++) {
+            IntVar v = new IntVar(1);
+            for (int j = 0; j < 4; j++) {
+              v.subscribe(NOOP_TARGET);
+            }
+            v.set("bench", "v", i);
+          }
+        }
+      },
+      new Bench("int subscribe closed") {
+        @Override
+        void run(int n) throws LogicException {
+          IntVar v = new IntVar(0, 1);
+          long closed = 0;
+          for (int i = 0; i < n; i++) {
+            if (!v.subscribe(NOOP_TARGET)) {
+              closed++;
+            }
+          }
+          sink = closed;
+        }
+      },
+    };
+
+    for (Bench b: benches) {
+      for (int i = 0; i < WARMUP_TRIALS; i++) {
+        b.run(n);
+      }
+      long best = Long.MAX_VALUE;
+      for (int i = 0; i < TRIALS; i++) {
+        long start = System.nanoTime();
+        b.run(n);
+        best = Math.min(best, System.nanoTime() - start);
+      }
+      System.out.printf("%-24s %8.2f ns/op%n", b.name, best / (double)n);
+    }
+  }
+}
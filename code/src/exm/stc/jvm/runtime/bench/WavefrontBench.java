@@ -0,0 +1,180 @@
+package exm.stc.jvm.runtime.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import exm.stc.jvm.runtime.Task;
+import exm.stc.jvm.runtime.TaskQueue;
+
+/**
+ * Scheduling benchmark for priorities and placement, modelled on the
+ * wavefront benchmark in bench/suite/wavefront.
+ *
+ * Cell (i, j) of an NxN grid can run once cells (i-1, j), (i, j-1) and
+ * (i-1, j-1) are done.  Alongside the grid, a batch of independent
+ * background tasks compete for the workers.  Every task spins for the
+ * same amount of time.  We measure the time until the last cell of the
+ * grid is done, which is what the wavefront program waits for, and the
+ * time until all tasks are done.
+ *
+ * Modes:
+ *   none:     all tasks have default priority
+ *   priority: cells have priority equal to the length of the remaining
+ *             critical path from the cell, background tasks have
+ *             default priority
+ *   soft:     as priority, with row i having soft affinity for
+ *             worker i mod threads
+ *   hard:     as priority, with row i pinned to worker i mod threads
+ *
+ * usage: WavefrontBench [threads] [N] [background tasks] [task us]
+ */
+public class WavefrontBench {
+
+  private static final int WARMUP_TRIALS = 2;
+  private static final int TRIALS = 5;
+
+  private static final String MODES[] = {"none", "priority", "soft", "hard"};
+
+  public static void main(String[] args) throws InterruptedException {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) :
+                            Runtime.getRuntime().availableProcessors();
+    int n = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+    int background = args.length > 2 ? Integer.parseInt(args[2]) : 2 * n * n;
+    long taskNanos = 1000L * (args.length > 3 ? Integer.parseInt(args[3]) :
+                                                20);
+
+    System.out.printf("wavefront threads=%d N=%d background=%d " +
+        "task=%dus: critical path %.1f ms, total work %.1f ms%n", threads,
+        n, background, taskNanos / 1000, (2 * n - 1) * taskNanos / 1e6,
+        ((long)n * n + background) * taskNanos / 1e6);
+    for (String mode: MODES) {
+      for (int i = 0; i < WARMUP_TRIALS; i++) {
+        new Trial(mode, threads, n, background, taskNanos).run();
+      }
+      double[] gridTimes = new double[TRIALS];
+      double[] totalTimes = new double[TRIALS];
+      for (int i = 0; i < TRIALS; i++) {
+        Trial t = new Trial(mode, threads, n, background, taskNanos);
+        t.run();
+        gridTimes[i] = t.gridNanos / 1e6;
+        totalTimes[i] = t.totalNanos / 1e6;
+      }
+      Arrays.sort(gridTimes);
+      Arrays.sort(totalTimes);
+      System.out.printf("%-8s: grid done median %.1f ms (min %.1f, " +
+          "max %.1f), all done median %.1f ms%n", mode,
+          gridTimes[TRIALS / 2], gridTimes[0], gridTimes[TRIALS - 1],
+          totalTimes[TRIALS / 2]);
+    }
+  }
+
+  private static class Trial {
+    private final String mode;
+    private final int n;
+    private final int background;
+    private final long taskNanos;
+    private final TaskQueue queue;
+
+    /** Number of unfinished predecessors of each cell */
+    private final AtomicInteger waiting[];
+
+    private final AtomicLong sink = new AtomicLong();
+
+    private long start;
+    private volatile long gridNanos;
+    private long totalNanos;
+
+    Trial(String mode, int threads, int n, int background, long taskNanos) {
+      this.mode = mode;
+      this.n = n;
+      this.background = background;
+      this.taskNanos = taskNanos;
+      this.queue = new TaskQueue(threads);
+      this.waiting = new AtomicInteger[n * n];
+      for (int i = 0; i < n; i++) {
+        for (int j = 0; j < n; j++) {
+          int preds = (i > 0 ? 1 : 0) + (j > 0 ? 1 : 0) +
+                      (i > 0 && j > 0 ? 1 : 0);
+          waiting[i * n + j] = new AtomicInteger(preds);
+        }
+      }
+    }
+
+    void run() throws InterruptedException {
+      start = System.nanoTime();
+      queue.register();
+      queue.addTask(new Task() {
+        @Override
+        public void run() {
+          for (int i = 0; i < background; i++) {
+            queue.addTask(new Task() {
+              @Override
+              public void run() {
+                spin();
+              }
+            });
+          }
+          spawnCell(0, 0);
+        }
+      });
+      queue.deregister();
+
+      Thread[] workers = new Thread[queue.numThreads()];
+      for (int i = 0; i < workers.length; i++) {
+        workers[i] = new Thread(queue.worker(i), "worker-" + i);
+        workers[i].start();
+      }
+      queue.awaitTermination();
+      totalNanos = System.nanoTime() - start;
+      for (Thread t: workers) {
+        t.join();
+      }
+    }
+
+    private void spawnCell(final int i, final int j) {
+      Task cell = new Task() {
+        @Override
+        public void run() {
+          spin();
+          if (i == n - 1 && j == n - 1) {
+            gridNanos = System.nanoTime() - start;
+          }
+          if (i + 1 < n) {
+            ready(i + 1, j);
+          }
+          if (j + 1 < n) {
+            ready(i, j + 1);
+          }
+          if (i + 1 < n && j + 1 < n) {
+            ready(i + 1, j + 1);
+          }
+        }
+      };
+      int priority = 2 * n - 1 - i - j;
+      int worker = i % queue.numThreads();
+      if (mode.equals("none")) {
+        queue.addTask(cell);
+      } else if (mode.equals("priority")) {
+        queue.addTask(cell, priority);
+      } else {
+        queue.addTargeted(worker, cell, priority, mode.equals("soft"));
+      }
+    }
+
+    private void ready(int i, int j) {
+      if (waiting[i * n + j].decrementAndGet() == 0) {
+        spawnCell(i, j);
+      }
+    }
+
+    private void spin() {
+      long end = System.nanoTime() + taskNanos;
+      long x = 0;
+      while (System.nanoTime() < end) {
+        x++;
+      }
+      sink.addAndGet(x);
+    }
+  }
+}
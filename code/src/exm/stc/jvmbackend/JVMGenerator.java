@@ -0,0 +1,1886 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvmbackend;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.ListMultimap;
+
+import exm.stc.common.CompilerBackend;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.exceptions.UnsupportedFeatureException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.AsyncExecutor;
+import exm.stc.common.lang.ExecContext.WorkContext;
+import exm.stc.common.lang.ExecTarget;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.common.lang.LocalForeignFunction;
+import exm.stc.common.lang.Location;
+import exm.stc.common.lang.Operators.BuiltinOpcode;
+import exm.stc.common.lang.Operators.UpdateMode;
+import exm.stc.common.lang.PassedVar;
+import exm.stc.common.lang.Redirects;
+import exm.stc.common.lang.RefCounting;
+import exm.stc.common.lang.RefCounting.RefCountType;
+import exm.stc.common.lang.RequiredPackage;
+import exm.stc.common.lang.TaskProp.TaskPropKey;
+import exm.stc.common.lang.TaskProp.TaskProps;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Types.FunctionType;
+import exm.stc.common.lang.Types.StructType;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.Var.SourceLoc;
+import exm.stc.common.lang.Var.VarProvenance;
+import exm.stc.common.lang.WrappedForeignFunction;
+import exm.stc.common.util.StackLite;
+import exm.stc.ic.ICUtil;
+import exm.stc.ic.tree.TurbineOp.RefCountOp.RCDir;
+import exm.stc.tclbackend.TclFunRef;
+
+/**
+ * Generate Java code for the shared-memory runtime in exm.stc.jvm.runtime.
+ *
+ * The program is a single class.  Each Swift function becomes a static
+ * method, plus a task class to call it asynchronously.  Each continuation
+ * (wait, loop iteration, split of a parallel loop) becomes a static nested
+ * task class with a field for each variable passed in, corresponding to
+ * the Tcl procs generated by TurbineGenerator.  Futures are runtime
+ * variable objects and values are Java locals.  Tasks that call foreign
+ * functions that block the thread, e.g. sleeping, extend BlockingTask so
+ * that they run on the runtime's elastic pool for blocking work, and
+ * other tasks stay on the work-stealing workers.  Priorities and
+ * locations of tasks are passed to the runtime scheduler.
+ *
+ * Write refcounts are tracked so that variables are closed at the same
+ * point as with Turbine.  Read refcounts are tracked for variables that
+ * Turbine would track, so that they are released at the same point, with
+ * operations consuming refcounts as the Turbine runtime does.  Alias
+ * variables and nested containers are left to the garbage collector.
+ */
+public class JVMGenerator implements CompilerBackend {
+
+  private static final String LOOP_COND = "loopCond$";
+  private static final String RANGE_LO = "lo$";
+  private static final String RANGE_HI = "hi$";
+  private static final String RANGE_INC = "inc$";
+
+  private final Logger logger;
+  private final String timestamp;
+
+  private ForeignFunctions foreignFuncs;
+
+  /** Whether to emit read refcount operations */
+  private boolean refcounting;
+
+  private final JavaNamer namer = new JavaNamer();
+
+  /** Comments at top of file */
+  private final JavaCode header = new JavaCode();
+
+  /** Static fields for global variables */
+  private final JavaCode globals = new JavaCode();
+
+  /** Methods and nested classes */
+  private final JavaCode members = new JavaCode();
+
+  /** Where code is currently being added */
+  private final StackLite<JavaCode> pointStack = new StackLite<JavaCode>();
+
+  private final StackLite<FnID> functionStack = new StackLite<FnID>();
+
+  /** Enclosing ordered loops */
+  private final StackLite<EnclosingLoop> loopStack =
+                                          new StackLite<EnclosingLoop>();
+
+  /** Enclosing foreach and range loops */
+  private final StackLite<IterLoop> iterLoopStack = new StackLite<IterLoop>();
+
+  /** Task classes being generated, innermost last */
+  private final StackLite<TaskClass> taskStack = new StackLite<TaskClass>();
+
+  /**
+   * Source location of most recently declared variable, used to locate
+   * errors for unsupported features.  Null if not known.
+   */
+  private SourceLoc lastLoc = null;
+
+  /** Java methods implementing foreign functions */
+  private final Map<FnID, String> foreignMethods =
+                                        new HashMap<FnID, String>();
+
+  private static class EnclosingLoop {
+    final String className;
+    final boolean simpleLoop;
+    final List<Var> loopVars;
+    final List<Var> usedVars;
+
+    EnclosingLoop(String className, boolean simpleLoop, List<Var> loopVars,
+                  List<Var> usedVars) {
+      this.className = className;
+      this.simpleLoop = simpleLoop;
+      this.loopVars = loopVars;
+      this.usedVars = usedVars;
+    }
+  }
+
+  private static class TaskClass {
+    final String className;
+    /**
+     * Declaration of class, added once body is generated, or null for
+     * range splitting tasks, which always run on worker threads
+     */
+    final JavaCode decl;
+    /** If task calls code that blocks thread */
+    boolean blocking = false;
+
+    TaskClass(String className, JavaCode decl) {
+      this.className = className;
+      this.decl = decl;
+    }
+  }
+
+  private static class IterLoop {
+    /** Body of split loop task, or null if not split */
+    final JavaCode splitBody;
+    /** Block containing loop */
+    final JavaCode loopParent;
+    /** Containers with batched inserts, mapped to buffer */
+    final Map<Var, String> batches;
+    IterLoop(JavaCode splitBody, JavaCode loopParent,
+             Map<Var, String> batches) {
+      this.splitBody = splitBody;
+      this.loopParent = loopParent;
+      this.batches = batches;
+    }
+  }
+
+  public JVMGenerator(Logger logger, String timestamp) {
+    this.logger = logger;
+    this.timestamp = timestamp;
+  }
+
+  @Override
+  public void initialize(CodeGenOptions options,
+                         ForeignFunctions foreignFuncs) {
+    this.foreignFuncs = foreignFuncs;
+    this.refcounting = Settings.getBooleanUnchecked(
+                                        Settings.ENABLE_REFCOUNTING);
+    File inputFile = new File(Settings.get(Settings.INPUT_FILENAME));
+    header.add("// Generated by stc version " +
+               Settings.get(Settings.STC_VERSION));
+    header.add("// date                    : " + timestamp);
+    header.add("// Input filename          : " +
+                inputFile.getAbsolutePath());
+    header.add("// Runtime                 : exm.stc.jvm.runtime");
+  }
+
+  @Override
+  public void finalize() {
+    assert(pointStack.isEmpty());
+    assert(functionStack.isEmpty());
+  }
+
+  @Override
+  public void generate(OutputStream output) throws IOException {
+    String className = className(Settings.get(Settings.OUTPUT_FILENAME));
+    logger.debug("Generating Java class " + className);
+
+    JavaCode file = new JavaCode();
+    file.add("");
+    file.add("import java.nio.ByteBuffer;");
+    file.add("import java.util.ArrayList;");
+    file.add("import java.util.LinkedHashMap;");
+    file.add("import java.util.List;");
+    file.add("import java.util.Map;");
+    file.add("");
+    file.add("import exm.stc.jvm.runtime.*;");
+    file.add("import exm.stc.jvm.runtime.Containers.*;");
+    file.add("import exm.stc.jvm.runtime.Vars.*;");
+    file.add("");
+    file.add("@SuppressWarnings(\"unchecked\")");
+    JavaCode cls = file.block("final class " + className);
+    if (!globals.isEmpty()) {
+      cls.add("");
+      cls.add("// Global variables");
+      cls.add(globals);
+    }
+    cls.add("");
+    JavaCode main = cls.block("public static void main(String[] args)");
+    main.add("JVMRuntime.run(args, new " +
+             JavaNamer.fnClass(FnID.ENTRY_FUNCTION) + "());");
+    cls.add(members);
+
+    StringBuilder sb = new StringBuilder(10 * 1024);
+    header.appendTo(sb);
+    file.appendTo(sb);
+
+    OutputStreamWriter w = new OutputStreamWriter(output);
+    w.write(sb.toString());
+    w.flush();
+  }
+
+  /**
+   * @return Java class name for output file
+   */
+  public static String className(String outputFilename) {
+    String base = new File(outputFilename).getName();
+    int dot = base.lastIndexOf('.');
+    if (dot > 0) {
+      base = base.substring(0, dot);
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < base.length(); i++) {
+      char c = base.charAt(i);
+      sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+    }
+    if (sb.length() == 0 || !Character.isJavaIdentifierStart(sb.charAt(0))) {
+      sb.insert(0, "Swift_");
+    }
+    return sb.toString();
+  }
+
+  private JavaCode point() {
+    return pointStack.peek();
+  }
+
+  private void pointAdd(String line) {
+    point().add(line);
+  }
+
+  private void pointPush(JavaCode block) {
+    pointStack.push(block);
+  }
+
+  private JavaCode pointPop() {
+    return pointStack.pop();
+  }
+
+  private UnsupportedFeatureException.Unchecked unsupported(String what) {
+    String msg = "JVM backend doesn't support " + what;
+    return new UnsupportedFeatureException.Unchecked(lastLoc == null ?
+        new UnsupportedFeatureException(msg) :
+        new UnsupportedFeatureException(lastLoc, msg));
+  }
+
+  /**
+   * Track location in source for error messages
+   */
+  private void updateLoc(Var var) {
+    VarProvenance prov = var.provenance();
+    // Follow temporaries and renamed variables back to source
+    while (prov != null && prov.sourceLoc == null &&
+           prov.predecessors != null && !prov.predecessors.isEmpty()) {
+      prov = prov.predecessors.get(0).provenance();
+    }
+    if (prov != null && prov.sourceLoc != null) {
+      lastLoc = prov.sourceLoc;
+    }
+  }
+
+  /**
+   * @return function name literal for runtime error messages
+   */
+  private String fn() {
+    return JavaNamer.stringLiteral(functionStack.peek().originalName());
+  }
+
+  private static String v(Var var) {
+    return JavaNamer.var(var);
+  }
+
+  /**
+   * @return variable name literal for runtime error messages
+   */
+  private static String name(Var var) {
+    return JavaNamer.stringLiteral(var.name());
+  }
+
+  private static String arg(Arg arg) {
+    return JavaTypes.argExpr(arg);
+  }
+
+  /**
+   * @return expression for int refcount argument
+   */
+  private static String intArg(Arg arg) {
+    if (arg.isVar()) {
+      return "(int)" + arg(arg);
+    }
+    return Long.toString(arg.getInt());
+  }
+
+  private static String join(List<String> exprs) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < exprs.size(); i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(exprs.get(i));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Variables to pass to task: globals are visible everywhere
+   */
+  private static List<Var> fieldVars(List<Var> vars) {
+    Map<String, Var> res = new LinkedHashMap<String, Var>();
+    for (Var var: vars) {
+      if (!var.storage().isGlobal()) {
+        res.put(var.name(), var);
+      }
+    }
+    return new ArrayList<Var>(res.values());
+  }
+
+  private static List<Var> dedupe(List<Var> vars) {
+    Map<String, Var> res = new LinkedHashMap<String, Var>();
+    for (Var var: vars) {
+      res.put(var.name(), var);
+    }
+    return new ArrayList<Var>(res.values());
+  }
+
+  private static List<String> paramDecls(List<Var> vars) {
+    List<String> res = new ArrayList<String>(vars.size());
+    for (Var var: vars) {
+      res.add(JavaTypes.javaType(var) + " " + v(var));
+    }
+    return res;
+  }
+
+  /**
+   * Add task class with a field for each variable.
+   * Must be matched by endTaskClass() once the task body is generated.
+   * @param mutable if fields can be reassigned
+   * @return body of exec() method
+   */
+  private JavaCode taskClass(String className, List<Var> fields,
+                             boolean mutable) {
+    members.add("");
+    // Base class depends on whether body blocks
+    JavaCode decl = members.nested(false);
+    JavaCode cls = members.nested(true);
+    members.add("}");
+    taskStack.push(new TaskClass(className, decl));
+    for (Var field: fields) {
+      cls.add("private " + (mutable ? "" : "final ") +
+              JavaTypes.javaType(field) + " " + v(field) + ";");
+    }
+    if (!fields.isEmpty()) {
+      cls.add("");
+      JavaCode ctor = cls.block(className + "(" +
+                                join(paramDecls(fields)) + ")");
+      for (Var field: fields) {
+        ctor.add("this." + v(field) + " = " + v(field) + ";");
+      }
+      cls.add("");
+    }
+    cls.add("@Override");
+    return cls.block("protected void exec() throws LogicException");
+  }
+
+  /**
+   * Add declaration of innermost task class.  Tasks that block run on the
+   * runtime's blocking pool so that they don't hold up worker threads.
+   */
+  private void endTaskClass() {
+    TaskClass task = taskStack.pop();
+    assert(task.decl != null);
+    task.decl.add("static final class " + task.className + " extends " +
+                  (task.blocking ? "BlockingTask" : "SwiftTask") + " {");
+  }
+
+  /**
+   * Code to run task once variables are closed
+   */
+  private static String waitStatement(String task, List<Var> waitVars,
+                                      boolean recursive) {
+    List<Var> waitFor = dedupe(waitVars);
+    if (waitFor.isEmpty()) {
+      return "JVMRuntime.spawn(" + task + ");";
+    }
+    return "DataOps.waitAll(" + task + ", " + recursive + ", " +
+           join(JavaNamer.vars(waitFor)) + ");";
+  }
+
+  /**
+   * Start task that runs once waitVars are closed
+   * @param props scheduling properties of task
+   */
+  private void startAsync(String procName, List<Var> waitVars,
+            List<Var> passIn, boolean recursive, TaskProps props) {
+    List<Var> fields = fieldVars(passIn);
+    String className = namer.uniqueClass("C_", procName);
+    pointAdd(waitStatement(withProps("new " + className + "(" +
+             join(JavaNamer.vars(fields)) + ")", props), waitVars,
+             recursive));
+    pointPush(taskClass(className, fields, false));
+  }
+
+  /**
+   * Set scheduling properties on newly created task.  Property values
+   * are evaluated when the task is created, as with Turbine rules.
+   * @return expression for task with properties
+   */
+  private String withProps(String task, TaskProps props) {
+    if (props == null) {
+      return task;
+    }
+    Arg parallelism = props.get(TaskPropKey.PARALLELISM);
+    if (parallelism != null &&
+        !(parallelism.isInt() && parallelism.getInt() == 1)) {
+      throw unsupported("parallel tasks");
+    }
+    StringBuilder sb = new StringBuilder(task);
+    Arg priority = props.get(TaskPropKey.PRIORITY);
+    if (priority != null) {
+      sb.append(".priority(").append(arg(priority)).append(")");
+    }
+    Arg rank = props.get(TaskPropKey.LOC_RANK);
+    if (!Location.isAnyLocation(rank, true)) {
+      sb.append(".location(").append(arg(rank)).append(", ")
+        .append(arg(props.getWithDefault(TaskPropKey.LOC_STRICTNESS)))
+        .append(", ")
+        .append(arg(props.getWithDefault(TaskPropKey.LOC_ACCURACY)))
+        .append(")");
+    }
+    return sb.toString();
+  }
+
+  private void endAsync() {
+    pointPop();
+    endTaskClass();
+  }
+
+  @Override
+  public void requirePackage(RequiredPackage pkg) {
+    // Runtime has no packages
+  }
+
+  @Override
+  public void addGlobalConst(Var var, Arg val) {
+    String init;
+    switch (val.getKind()) {
+      case INTVAL:
+      case FLOATVAL:
+      case STRINGVAL:
+      case BOOLVAL:
+        init = arg(val);
+        break;
+      default:
+        throw unsupported("global constant " + val);
+    }
+    String javaType = JavaTypes.javaType(var);
+    if (Types.isVoid(var)) {
+      init = "true";
+    } else if (!Types.isScalarFuture(var) || Types.isBlob(var)) {
+      throw unsupported("global constant of type " + var.type());
+    }
+    globals.add("static final " + javaType + " " + v(var) + " = new " +
+                javaType + "(0, " + init + ");");
+  }
+
+  @Override
+  public void declareGlobalVars(List<VarDecl> vars) {
+    for (VarDecl decl: vars) {
+      Var var = decl.var;
+      globals.add("static final " + JavaTypes.javaType(var) + " " + v(var) +
+          " = " + JavaTypes.newVar(var, intArg(decl.initWriters)) + ";");
+    }
+  }
+
+  @Override
+  public void declareStructType(StructType structType) {
+    // Fail if struct variables are used
+  }
+
+  @Override
+  public void declareWorkType(WorkContext workType) {
+    // All tasks run in same pool
+  }
+
+  @Override
+  public void defineForeignFunction(FnID id, FunctionType type,
+      LocalForeignFunction localImpl, WrappedForeignFunction wrappedImpl) {
+    String symbol;
+    if (wrappedImpl instanceof TclFunRef) {
+      TclFunRef tclImpl = (TclFunRef)wrappedImpl;
+      symbol = tclImpl.pkg + "::" + tclImpl.symbol;
+    } else {
+      symbol = id.originalName();
+    }
+    String method = JavaOps.foreignImpl(symbol);
+    if (method != null) {
+      foreignMethods.put(id, method);
+    }
+    logger.debug("JVMGenerator: Defined foreign function " + id + " as " +
+                 method);
+  }
+
+  private String foreignMethod(FnID id) {
+    String method = foreignMethods.get(id);
+    if (method == null) {
+      throw unsupported("foreign function " + id.originalName());
+    }
+    return method;
+  }
+
+  @Override
+  public void startFunction(FnID id, List<Var> outArgs, List<Var> inArgs,
+                            ExecTarget mode) {
+    List<Var> params = new ArrayList<Var>(outArgs);
+    params.addAll(inArgs);
+    lastLoc = null;
+    for (Var param: params) {
+      updateLoc(param);
+    }
+
+    JavaCode exec = taskClass(JavaNamer.fnClass(id), params, false);
+    exec.add(JavaNamer.fnMethod(id) + "(" +
+             join(JavaNamer.vars(params)) + ");");
+
+    members.add("");
+    JavaCode body = members.block("static void " + JavaNamer.fnMethod(id) +
+        "(" + join(paramDecls(params)) + ") throws LogicException");
+
+    pointPush(body);
+    functionStack.push(id);
+  }
+
+  @Override
+  public void endFunction() {
+    pointPop();
+    functionStack.pop();
+    endTaskClass();
+  }
+
+  @Override
+  public void declare(List<VarDecl> decls) {
+    for (VarDecl decl: decls) {
+      Var var = decl.var;
+      if (var.storage().isGlobal()) {
+        continue;
+      }
+      updateLoc(var);
+      if (var.mappedDecl()) {
+        throw unsupported("mapped variable " + var.name());
+      }
+      String init;
+      if (var.storage() == Alloc.ALIAS || JavaTypes.isValue(var)) {
+        init = JavaTypes.defaultValue(var);
+      } else {
+        init = JavaTypes.newVar(var, intArg(decl.initWriters));
+      }
+      pointAdd(JavaTypes.javaType(var) + " " + v(var) + " = " + init + ";");
+      if (var.storage() != Alloc.ALIAS && trackReaders(var)) {
+        pointAdd(v(var) + ".initReaders(" + fn() + ", " + name(var) + ", " +
+                 intArg(decl.initReaders) + ");");
+      }
+    }
+  }
+
+  /**
+   * @return true if read refcount of variable is tracked at runtime
+   */
+  private boolean trackReaders(Var var) {
+    return refcounting && !JavaTypes.isValue(var) &&
+           RefCounting.trackReadRefCount(var);
+  }
+
+  @Override
+  public void startNestedBlock() {
+    pointPush(point().block(""));
+  }
+
+  @Override
+  public void endNestedBlock() {
+    pointPop();
+  }
+
+  @Override
+  public void addComment(String comment) {
+    for (String line: comment.split("\n")) {
+      pointAdd("// " + line);
+    }
+  }
+
+  @Override
+  public void startIfStatement(Arg condition, boolean hasElse) {
+    assert(condition.isImmBool() || condition.isImmInt());
+    String cond = arg(condition);
+    if (condition.isImmInt()) {
+      cond = cond + " != 0";
+    }
+    JavaCode curr = point();
+    curr.add("if (" + cond + ") {");
+    JavaCode thenBlock = curr.nested(true);
+    if (hasElse) {
+      curr.add("} else {");
+      pointPush(curr.nested(true));
+    }
+    curr.add("}");
+    pointPush(thenBlock);
+  }
+
+  @Override
+  public void startElseBlock() {
+    pointPop();
+  }
+
+  @Override
+  public void endIfStatement() {
+    pointPop();
+  }
+
+  @Override
+  public void startSwitch(Arg switchVar, List<Integer> caseLabels,
+                          boolean hasDefault) {
+    assert(switchVar.isImmInt());
+    JavaCode curr = point();
+    curr.add("switch ((int)" + arg(switchVar) + ") {");
+    JavaCode sw = curr.nested(true);
+    curr.add("}");
+
+    List<JavaCode> caseBodies = new ArrayList<JavaCode>();
+    List<String> labels = new ArrayList<String>();
+    for (Integer label: caseLabels) {
+      labels.add("case " + label + ":");
+    }
+    if (hasDefault) {
+      labels.add("default:");
+    }
+    for (String label: labels) {
+      sw.add(label + " {");
+      caseBodies.add(sw.nested(true));
+      sw.nested(true).add("break;");
+      sw.add("}");
+    }
+    // Push in reverse order so we can pop off as we add cases
+    for (int i = caseBodies.size() - 1; i >= 0; i--) {
+      pointPush(caseBodies.get(i));
+    }
+  }
+
+  @Override
+  public void endCase() {
+    pointPop();
+  }
+
+  @Override
+  public void endSwitch() {
+    // Last case already popped
+  }
+
+  @Override
+  public void startForeachLoop(String loopName, Var container,
+      Var memberVar, Var loopCountVar, int splitDegree, int leafDegree,
+      boolean arrayClosed, List<PassedVar> passedVars,
+      List<RefCount> perIterIncrs, ListMultimap<Var, RefCount> constIncrs,
+      List<RefCount> perIterDecrs, List<Var> batchedInserts) {
+    if (!arrayClosed) {
+      throw unsupported("loops over open containers");
+    }
+
+    if (Types.isContainerLocal(container)) {
+      if (splitDegree >= 0) {
+        throw unsupported("async foreach with local container");
+      }
+      if (!perIterIncrs.isEmpty()) {
+        handleRefcounts(constIncrs, perIterIncrs, v(container) + ".size()",
+                        false);
+      }
+      JavaCode body;
+      String entry = namer.tmp("e");
+      Map<Var, String> batches = startBatchedInserts(point(), batchedInserts);
+      if (Types.isArrayLocal(container)) {
+        body = point().block("for (Map.Entry<Object, Object> " + entry +
+                             ": " + v(container) + ".entrySet())");
+        declareElem(body, memberVar, entry + ".getValue()");
+        if (loopCountVar != null) {
+          declareElem(body, loopCountVar, entry + ".getKey()");
+        }
+      } else {
+        body = point().block("for (Object " + entry + ": " + v(container) +
+                             ")");
+        declareElem(body, memberVar, entry);
+      }
+      JavaCode loopParent = point();
+      pointPush(body);
+      iterLoopStack.push(new IterLoop(null, loopParent, batches));
+      return;
+    }
+
+    // Snapshot contents so that loop can be split by position
+    String snapshot = namer.tmp("snapshot");
+    pointAdd("Snapshot<Object> " + snapshot + " = " + v(container) +
+             ".snapshot();");
+    if (!perIterIncrs.isEmpty()) {
+      handleRefcounts(constIncrs, perIterIncrs, snapshot + ".size()", false);
+    }
+
+    String ix = namer.tmp("i");
+    JavaCode body;
+    JavaCode splitBody = null;
+    JavaCode loopParent = point();
+    Map<Var, String> batches;
+    if (splitDegree <= 0) {
+      batches = startBatchedInserts(loopParent, batchedInserts);
+      body = loopParent.block("for (int " + ix + " = 0; " + ix + " < " +
+                              snapshot + ".size(); " + ix + "++)");
+    } else {
+      splitBody = startRangeSplit(loopName, passedVars, perIterDecrs,
+          Arrays.asList("Snapshot<Object> " + snapshot), "0L",
+          "(long)" + snapshot + ".size() - 1", "1L", splitDegree,
+          leafDegree);
+      loopParent = splitBody;
+      batches = startBatchedInserts(loopParent, batchedInserts);
+      body = splitBody.block("for (int " + ix + " = (int)" + RANGE_LO +
+                             "; " + ix + " <= " + RANGE_HI + "; " + ix +
+                             "++)");
+    }
+    if (memberVar != null) {
+      declareElem(body, memberVar, snapshot + ".value(" + ix + ")");
+    }
+    if (loopCountVar != null) {
+      declareElem(body, loopCountVar, snapshot + ".key(" + ix + ")");
+    }
+    pointPush(body);
+    iterLoopStack.push(new IterLoop(splitBody, loopParent, batches));
+  }
+
+  /**
+   * Declare buffers for batched inserts into containers in loop body
+   * @param loopParent block that loop will be added to
+   * @return map from container to buffer
+   */
+  private Map<Var, String> startBatchedInserts(JavaCode loopParent,
+                                               List<Var> batchedInserts) {
+    Map<Var, String> batches = new LinkedHashMap<Var, String>();
+    for (Var container: batchedInserts) {
+      String batch = namer.tmp("batch");
+      loopParent.add("InsertBatch<Object> " + batch +
+                     " = new InsertBatch<Object>();");
+      batches.put(container, batch);
+    }
+    return batches;
+  }
+
+  /**
+   * @return buffer for batched inserts into container, or null if not
+   *         batched in current loop
+   */
+  private String insertBatch(Var container) {
+    if (iterLoopStack.isEmpty()) {
+      return null;
+    }
+    return iterLoopStack.peek().batches.get(container);
+  }
+
+  /**
+   * Declare variable holding container member or key
+   */
+  private static void declareElem(JavaCode block, Var var, String elem) {
+    block.add(JavaTypes.javaType(var) + " " + v(var) + " = (" +
+              JavaTypes.boxedType(var) + ")" + elem + ";");
+  }
+
+  @Override
+  public void endForeachLoop(int splitDegree, boolean arrayClosed,
+                             List<RefCount> perIterDecrs) {
+    endIterLoop(perIterDecrs);
+  }
+
+  private void endIterLoop(List<RefCount> perIterDecrs) {
+    pointPop();
+    IterLoop loop = iterLoopStack.pop();
+    if (loop.splitBody != null) {
+      taskStack.pop();
+    }
+    for (Map.Entry<Var, String> batch: loop.batches.entrySet()) {
+      loop.loopParent.add(batch.getValue() + ".flush(" + fn() + ", " +
+                          name(batch.getKey()) + ", " + v(batch.getKey()) +
+                          ");");
+    }
+    if (loop.splitBody != null && !perIterDecrs.isEmpty()) {
+      // Decrement for iterations executed in this split
+      pointPush(loop.splitBody);
+      handleRefcounts(null, perIterDecrs, "RangeTask.iterations(" +
+                RANGE_LO + ", " + RANGE_HI + ", " + RANGE_INC + ")", true);
+      pointPop();
+    }
+  }
+
+  @Override
+  public void startRangeLoop(String loopName, Var loopVar, Var countVar,
+      Arg start, Arg end, Arg increment, int splitDegree, int leafDegree,
+      List<PassedVar> passedVars, List<RefCount> perIterIncrs,
+      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs,
+      List<Var> batchedInserts) {
+    if (countVar != null) {
+      throw unsupported("counter var in range loop");
+    }
+
+    if (start.isImmInt()) {
+      assert(Types.isIntVal(loopVar));
+      startIntRangeLoop(loopName, v(loopVar), arg(start), arg(end),
+          arg(increment), splitDegree, leafDegree, passedVars, perIterIncrs,
+          constIncrs, perIterDecrs, batchedInserts);
+    } else {
+      assert(start.isImmFloat()) : "Invalid range loop type " + start.type();
+      assert(Types.isFloatVal(loopVar));
+      // Iterate over integers to get the index of each float
+      String startE = arg(start);
+      String incE = arg(increment);
+      String iterMax = namer.tmp("itermax");
+      pointAdd("long " + iterMax + " = (long)Math.floor((" + arg(end) +
+               " - " + startE + " + " + incE + ") / " + incE + ") - 1;");
+      List<PassedVar> passedVars2 = PassedVar.mergeLists(passedVars,
+                        PassedVar.fromArgs(false, start, increment));
+      String iter = namer.tmp("iter");
+      startIntRangeLoop(loopName, iter, "0L", iterMax, "1L", splitDegree,
+          leafDegree, passedVars2, perIterIncrs, constIncrs, perIterDecrs,
+          batchedInserts);
+      pointAdd("double " + v(loopVar) + " = " + startE + " + " + incE +
+               " * " + iter + ";");
+    }
+  }
+
+  private void startIntRangeLoop(String loopName, String loopVar,
+      String start, String end, String incr, int splitDegree,
+      int leafDegree, List<PassedVar> passedVars,
+      List<RefCount> perIterIncrs, ListMultimap<Var, RefCount> constIncrs,
+      List<RefCount> perIterDecrs, List<Var> batchedInserts) {
+    if (!perIterIncrs.isEmpty()) {
+      handleRefcounts(constIncrs, perIterIncrs, "RangeTask.iterations(" +
+                      start + ", " + end + ", " + incr + ")", false);
+    }
+
+    JavaCode splitBody = null;
+    String lo = start, hi = end, inc = incr;
+    JavaCode loopParent = point();
+    if (splitDegree > 0) {
+      splitBody = startRangeSplit(loopName, passedVars, perIterDecrs,
+          new ArrayList<String>(), start, end, incr, splitDegree,
+          leafDegree);
+      lo = RANGE_LO;
+      hi = RANGE_HI;
+      inc = RANGE_INC;
+      loopParent = splitBody;
+    }
+    Map<Var, String> batches = startBatchedInserts(loopParent,
+                                                   batchedInserts);
+    JavaCode body = loopParent.block("for (long " + loopVar + " = " + lo +
+        "; " + loopVar + " <= " + hi + "; " + loopVar + " += " + inc + ")");
+    pointPush(body);
+    iterLoopStack.push(new IterLoop(splitBody, loopParent, batches));
+  }
+
+  @Override
+  public void endRangeLoop(int splitDegree, List<RefCount> perIterDecrs) {
+    endIterLoop(perIterDecrs);
+  }
+
+  /**
+   * Create task class that recursively splits range of iterations, and
+   * run it at current point.
+   * @param extraFields additional fields to pass, as declarations
+   * @return body of method that runs loop over [lo$, hi$] by inc$
+   */
+  private JavaCode startRangeSplit(String loopName,
+      List<PassedVar> passedVars, List<RefCount> perIterDecrs,
+      List<String> extraFields, String start, String end, String incr,
+      int splitDegree, int leafDegree) {
+    List<Var> passIn = PassedVar.extractVars(passedVars);
+    passIn.addAll(RefCount.extractVars(perIterDecrs));
+    List<Var> fields = fieldVars(passIn);
+
+    List<String> fieldDecls = paramDecls(fields);
+    fieldDecls.addAll(extraFields);
+    List<String> fieldNames = new ArrayList<String>();
+    for (String decl: fieldDecls) {
+      fieldNames.add(decl.substring(decl.lastIndexOf(' ') + 1));
+    }
+
+    String className = namer.uniqueClass("R_", loopName);
+    List<String> ctorArgs = new ArrayList<String>(Arrays.asList(
+                                                  start, end, incr));
+    ctorArgs.addAll(fieldNames);
+    // Run outermost split directly as Turbine does, so that the first
+    // chunk runs before the enclosing block releases passed in variables
+    pointAdd("new " + className + "(" + join(ctorArgs) + ").run();");
+
+    members.add("");
+    JavaCode cls = members.block("static final class " + className +
+                                 " extends RangeTask");
+    taskStack.push(new TaskClass(className, null));
+    for (String decl: fieldDecls) {
+      cls.add("private final " + decl + ";");
+    }
+    cls.add("");
+    List<String> ctorParams = new ArrayList<String>(Arrays.asList(
+                                "long lo", "long hi", "long inc"));
+    ctorParams.addAll(fieldDecls);
+    JavaCode ctor = cls.block(className + "(" + join(ctorParams) + ")");
+    ctor.add("super(lo, hi, inc, " + splitDegree + ", " + leafDegree + ");");
+    for (String field: fieldNames) {
+      ctor.add("this." + field + " = " + field + ";");
+    }
+    cls.add("");
+    cls.add("@Override");
+    JavaCode split = cls.block("protected RangeTask split(long lo, long hi)");
+    List<String> splitArgs = new ArrayList<String>(Arrays.asList(
+                                                  "lo", "hi", "inc"));
+    splitArgs.addAll(fieldNames);
+    split.add("return new " + className + "(" + join(splitArgs) + ");");
+    cls.add("");
+    cls.add("@Override");
+    return cls.block("protected void runRange(long " + RANGE_LO + ", long " +
+        RANGE_HI + ", long " + RANGE_INC + ") throws LogicException");
+  }
+
+  /**
+   * Generate refcounting code from RefCount list
+   * @param constIncrs constant increments, or null
+   * @param multiplier expression to multiply refcounts by
+   * @param decrement if true, generate decrements instead
+   */
+  private void handleRefcounts(ListMultimap<Var, RefCount> constIncrs,
+      List<RefCount> multipliedIncrs, String multiplier, boolean decrement) {
+    for (RefCount refCount: multipliedIncrs) {
+      if (!trackRefCount(refCount.var, refCount.type)) {
+        continue;
+      }
+      StringBuilder total = new StringBuilder();
+      total.append(arg(refCount.amount) + " * " + multiplier);
+      if (constIncrs != null) {
+        for (RefCount constRC: constIncrs.get(refCount.var)) {
+          if (constRC.type == refCount.type) {
+            total.append(" + " + arg(constRC.amount));
+          }
+        }
+      }
+      pointAdd(v(refCount.var) + "." + incrMethod(refCount.type) + "(" +
+               fn() + ", " + name(refCount.var) + ", " +
+               (decrement ? "-" : "") + "(int)(" + total + "));");
+    }
+  }
+
+  @Override
+  public void startWaitStatement(String procName, List<Var> waitVars,
+      List<Var> usedVars, boolean recursive, ExecTarget target,
+      TaskProps props) {
+    startAsync(procName, waitVars, usedVars, recursive, props);
+  }
+
+  @Override
+  public void endWaitStatement() {
+    endAsync();
+  }
+
+  @Override
+  public void startAsyncExec(String procName, List<Var> passIn,
+      AsyncExecutor executor, Arg cmdName, List<Var> taskOutputs,
+      List<Arg> taskArgs, Map<String, Arg> taskProps,
+      boolean hasContinuation) {
+    throw unsupported("async executor " + executor);
+  }
+
+  @Override
+  public void endAsyncExec(boolean hasContinuation) {
+    throw unsupported("async executors");
+  }
+
+  @Override
+  public void startLoop(String loopName, List<Var> loopVars,
+      List<Arg> initVals, List<Var> usedVariables, List<Var> initWaitVars,
+      boolean simpleLoop) {
+    assert(initWaitVars.isEmpty() || !simpleLoop) : initWaitVars;
+    List<Var> usedFields = fieldVars(usedVariables);
+    usedFields.removeAll(loopVars);
+    List<Var> fields = new ArrayList<Var>(loopVars);
+    fields.addAll(usedFields);
+
+    List<String> firstIterArgs = new ArrayList<String>();
+    for (Arg init: initVals) {
+      firstIterArgs.add(arg(init));
+    }
+    firstIterArgs.addAll(JavaNamer.vars(usedFields));
+
+    String className = namer.uniqueClass("C_", loopName);
+    pointAdd(waitStatement("new " + className + "(" + join(firstIterArgs) +
+                           ")", initWaitVars, false));
+    JavaCode exec = taskClass(className, fields, simpleLoop);
+
+    if (simpleLoop) {
+      // Run iterations immediately with while loop
+      exec.add("boolean " + LOOP_COND + " = true;");
+      JavaCode iter = exec.block("while (" + LOOP_COND + ")");
+      for (Var loopVar: loopVars) {
+        iter.add(JavaTypes.javaType(loopVar) + " " +
+                 JavaNamer.nextIter(loopVar) + " = " +
+                 JavaTypes.defaultValue(loopVar) + ";");
+      }
+      JavaCode body = iter.nested(false);
+      // Update loop variables for next iteration
+      JavaCode update = iter.block("if (" + LOOP_COND + ")");
+      for (Var loopVar: loopVars) {
+        update.add(v(loopVar) + " = " + JavaNamer.nextIter(loopVar) + ";");
+      }
+      pointPush(body);
+    } else {
+      pointPush(exec);
+    }
+    loopStack.push(new EnclosingLoop(className, simpleLoop, loopVars,
+                                     usedFields));
+  }
+
+  @Override
+  public void loopContinue(List<Arg> newVals, List<Var> usedVariables,
+                           List<Boolean> blockingVars) {
+    EnclosingLoop loop = loopStack.peek();
+    assert(loop.loopVars.size() == newVals.size());
+    if (loop.simpleLoop) {
+      for (int i = 0; i < newVals.size(); i++) {
+        pointAdd(JavaNamer.nextIter(loop.loopVars.get(i)) + " = " +
+                 arg(newVals.get(i)) + ";");
+      }
+    } else {
+      List<String> nextIterArgs = new ArrayList<String>();
+      List<Var> waitVars = new ArrayList<Var>();
+      for (int i = 0; i < newVals.size(); i++) {
+        Arg newVal = newVals.get(i);
+        nextIterArgs.add(arg(newVal));
+        if (blockingVars.get(i) && newVal.isVar()) {
+          waitVars.add(newVal.getVar());
+        }
+      }
+      nextIterArgs.addAll(JavaNamer.vars(loop.usedVars));
+      pointAdd(waitStatement("new " + loop.className + "(" +
+                             join(nextIterArgs) + ")", waitVars, false));
+    }
+  }
+
+  @Override
+  public void loopBreak(List<Var> loopUsedVars, List<Var> keepOpenVars) {
+    if (loopStack.peek().simpleLoop) {
+      pointAdd(LOOP_COND + " = false;");
+    }
+  }
+
+  @Override
+  public void endLoop() {
+    pointPop();
+    loopStack.pop();
+    endTaskClass();
+  }
+
+  @Override
+  public void modifyRefCounts(List<DirRefCount> refcounts) {
+    for (DirRefCount rc: refcounts) {
+      if (trackRefCount(rc.var, rc.type)) {
+        String amount = intArg(rc.amount);
+        if (rc.dir == RCDir.DECR) {
+          amount = "-" + (rc.amount.isVar() ? "(" + amount + ")" : amount);
+        }
+        pointAdd(v(rc.var) + "." + incrMethod(rc.type) + "(" + fn() + ", " +
+                 name(rc.var) + ", " + amount + ");");
+      }
+    }
+  }
+
+  private boolean trackRefCount(Var var, RefCountType type) {
+    if (type == RefCountType.WRITERS) {
+      return RefCounting.trackWriteRefCount(var);
+    } else {
+      return trackReaders(var);
+    }
+  }
+
+  private static String incrMethod(RefCountType type) {
+    return type == RefCountType.WRITERS ? "incrWriters" : "incrReaders";
+  }
+
+  /**
+   * @return expression to get value of closed input
+   */
+  private String valueExpr(Arg in) {
+    if (!in.isVar() || JavaTypes.isValue(in.getVar())) {
+      return arg(in);
+    }
+    Var var = in.getVar();
+    if (Types.isVoid(var)) {
+      return "true";
+    } else if (Types.isContainer(var)) {
+      return v(var);
+    }
+    return v(var) + ".get(" + fn() + ", " + name(var) + ")";
+  }
+
+  /**
+   * @return Variables that must be waited for before reading value
+   */
+  private static List<Var> futureInputs(List<Arg> inputs) {
+    List<Var> res = new ArrayList<Var>();
+    for (Arg in: inputs) {
+      if (in.isVar() && !JavaTypes.isValue(in.getVar())) {
+        res.add(in.getVar());
+      }
+    }
+    return res;
+  }
+
+  private static boolean anyContainer(List<Var> vars) {
+    for (Var var: vars) {
+      if (Types.isContainer(var)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Assign result of expression to output variable
+   * @param out value or future, may be null
+   * @param expr expression, or null if no value
+   */
+  private void assignResult(Var out, String expr) {
+    if (out == null) {
+      if (expr != null) {
+        pointAdd(expr + ";");
+      }
+      return;
+    }
+    boolean isVoid = Types.isVoid(out) || Types.isVoidVal(out);
+    if (isVoid && expr != null) {
+      pointAdd(expr + ";");
+    }
+    if (JavaTypes.isValue(out)) {
+      pointAdd(v(out) + " = " + (isVoid ? "true" : expr) + ";");
+    } else if (isVoid) {
+      pointAdd(v(out) + ".set(" + fn() + ", " + name(out) + ");");
+    } else {
+      pointAdd(v(out) + ".set(" + fn() + ", " + name(out) + ", " + expr +
+               ");");
+    }
+  }
+
+  private void opBody(BuiltinOpcode op, Var out, List<String> args) {
+    String expr = JavaOps.opExpr(op, args);
+    if (JavaOps.isStatement(op)) {
+      pointAdd(expr);
+      expr = null;
+    } else if (JavaOps.floatResult(op) && out != null &&
+               (Types.isInt(out) || Types.isIntVal(out))) {
+      expr = "(long)" + expr;
+    }
+    assignResult(out, expr);
+  }
+
+  @Override
+  public void localOp(BuiltinOpcode op, Var out, List<Arg> in) {
+    List<String> args = new ArrayList<String>();
+    for (Arg a: in) {
+      args.add(arg(a));
+    }
+    opBody(op, out, args);
+  }
+
+  @Override
+  public void asyncOp(BuiltinOpcode op, Var out, List<Arg> in,
+                      TaskProps props) {
+    List<Var> waitVars = futureInputs(in);
+    List<Var> passIn = new ArrayList<Var>();
+    if (out != null) {
+      passIn.add(out);
+    }
+    passIn.addAll(ICUtil.extractVars(in));
+    startAsync("op-" + op.toString().toLowerCase(), waitVars, passIn,
+               false, props);
+    List<String> args = new ArrayList<String>();
+    for (Arg a: in) {
+      args.add(valueExpr(a));
+    }
+    opBody(op, out, args);
+    consumeReaders(in);
+    endAsync();
+  }
+
+  /**
+   * Call foreign function implementation.  Container outputs are passed
+   * in as arguments and closed by the implementation, other outputs are
+   * assigned the return value.
+   */
+  private void callForeign(String method, List<Var> outputs,
+                           List<String> inputs) {
+    List<String> args = new ArrayList<String>();
+    Var result = null;
+    for (Var out: outputs) {
+      if (Types.isContainer(out)) {
+        args.add(v(out));
+      } else if (result == null) {
+        result = out;
+      } else {
+        throw unsupported("multiple outputs for " + method);
+      }
+    }
+    args.addAll(inputs);
+    if (JavaOps.isBlocking(method) && !taskStack.isEmpty()) {
+      taskStack.peek().blocking = true;
+    }
+    String call = JavaOps.call(method, args);
+    if (result == null) {
+      pointAdd(call + ";");
+    } else {
+      assignResult(result, call);
+    }
+  }
+
+  @Override
+  public void callForeignFunctionLocal(FnID id, List<Var> outputs,
+                                       List<Arg> inputs) {
+    List<String> args = new ArrayList<String>();
+    for (Arg in: inputs) {
+      args.add(arg(in));
+    }
+    for (Var out: outputs) {
+      if (Types.isContainerLocal(out)) {
+        throw unsupported("local container output for " +
+                          id.originalName());
+      }
+    }
+    callForeign(foreignMethod(id), outputs, args);
+  }
+
+  @Override
+  public void callForeignFunctionWrapped(FnID id, List<Var> outputs,
+      List<Arg> inputs, TaskProps props) {
+    String method = foreignMethod(id);
+    List<Var> waitVars = futureInputs(inputs);
+    List<Var> passIn = new ArrayList<Var>(outputs);
+    passIn.addAll(ICUtil.extractVars(inputs));
+    startAsync(id.uniqueName(), waitVars, passIn, anyContainer(waitVars),
+               props);
+    List<String> args = new ArrayList<String>();
+    for (Arg in: inputs) {
+      args.add(valueExpr(in));
+    }
+    callForeign(method, outputs, args);
+    consumeReaders(inputs);
+    endAsync();
+  }
+
+  @Override
+  public void functionCall(FnID id, List<Var> outputs, List<Arg> inputs,
+      List<Boolean> blockOn, ExecTarget mode, TaskProps props) {
+    List<String> args = new ArrayList<String>(JavaNamer.vars(outputs));
+    List<Var> waitVars = new ArrayList<Var>();
+    for (int i = 0; i < inputs.size(); i++) {
+      Arg in = inputs.get(i);
+      args.add(arg(in));
+      if (in.isVar() && blockOn.get(i)) {
+        waitVars.add(in.getVar());
+      }
+    }
+
+    if (mode.isAsync()) {
+      pointAdd(waitStatement(withProps("new " + JavaNamer.fnClass(id) +
+                             "(" + join(args) + ")", props), waitVars, false));
+    } else {
+      assert(waitVars.isEmpty()) : id + ": " + waitVars;
+      pointAdd(JavaNamer.fnMethod(id) + "(" + join(args) + ");");
+    }
+  }
+
+  @Override
+  public void execExternal(Arg cmd, List<Arg> args, List<Var> outFiles,
+      List<Arg> inFiles, Redirects<Arg> redirects, boolean hasSideEffects,
+      boolean deterministic) {
+    throw unsupported("app functions");
+  }
+
+  @Override
+  public void assignScalar(Var dst, Arg src) {
+    assert(Types.isScalarFuture(dst));
+    if (Types.isVoid(dst)) {
+      pointAdd(v(dst) + ".set(" + fn() + ", " + name(dst) + ");");
+    } else {
+      pointAdd(v(dst) + ".set(" + fn() + ", " + name(dst) + ", " +
+               arg(src) + ");");
+    }
+  }
+
+  @Override
+  public void retrieveScalar(Var dst, Var src, Arg decr) {
+    assert(Types.isScalarFuture(src));
+    if (Types.isVoid(src)) {
+      pointAdd(v(src) + ".get(" + fn() + ", " + name(src) + ");");
+      pointAdd(v(dst) + " = true;");
+    } else {
+      pointAdd(v(dst) + " = " + v(src) + ".get(" + fn() + ", " +
+               name(src) + ");");
+    }
+    decrReaders(src, decr);
+  }
+
+  @Override
+  public void assignFile(Var dst, Arg src, Arg setFilename) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void retrieveFile(Var dst, Var src, Arg decr) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void assignReference(Var dst, Var src, long readRefs,
+                              long writeRefs) {
+    if (readRefs > 0 && trackReaders(src)) {
+      pointAdd(v(dst) + ".holdReaders(" + readRefs + ");");
+    }
+    if (writeRefs > 0) {
+      pointAdd(v(dst) + ".holdWriters(" + writeRefs + ");");
+    }
+    pointAdd(v(dst) + ".set(" + fn() + ", " + name(dst) + ", " + v(src) +
+             ");");
+  }
+
+  @Override
+  public void retrieveReference(Var dst, Var src, Arg acquireRead,
+                                Arg acquireWrite, Arg decr) {
+    if (acquireWrite.isVar() || acquireWrite.getInt() > 0) {
+      pointAdd(v(dst) + " = " + v(src) + ".acquireWriters(" + fn() + ", " +
+               name(src) + ", " + intArg(acquireWrite) + ");");
+    } else {
+      pointAdd(v(dst) + " = " + v(src) + ".get(" + fn() + ", " + name(src) +
+               ");");
+    }
+    incrReaders(dst, acquireRead);
+    decrReaders(src, decr);
+  }
+
+  @Override
+  public void assignArray(Var dst, Arg src) {
+    pointAdd("DataOps.arrayBuild(" + fn() + ", " + name(dst) + ", " +
+             v(dst) + ", " + arg(src) + ", 1);");
+  }
+
+  @Override
+  public void retrieveArray(Var dst, Var src, Arg decr) {
+    pointAdd(v(dst) + " = DataOps.arrayContents(" + v(src) + ");");
+    decrReaders(src, decr);
+  }
+
+  @Override
+  public void assignBag(Var dst, Arg src) {
+    pointAdd("DataOps.bagBuild(" + fn() + ", " + name(dst) + ", " +
+             v(dst) + ", " + arg(src) + ", 1);");
+  }
+
+  @Override
+  public void retrieveBag(Var dst, Var src, Arg decr) {
+    pointAdd(v(dst) + " = DataOps.bagContents(" + v(src) + ");");
+    decrReaders(src, decr);
+  }
+
+  @Override
+  public void assignStruct(Var dst, Arg src) {
+    throw unsupported("structs");
+  }
+
+  @Override
+  public void retrieveStruct(Var dst, Var src, Arg decr) {
+    throw unsupported("structs");
+  }
+
+  @Override
+  public void assignArrayRecursive(Var dst, Arg src) {
+    pointAdd("DataOps.build(" + fn() + ", " + name(dst) + ", " + v(dst) +
+             ", " + arg(src) + ", 1);");
+  }
+
+  @Override
+  public void assignStructRecursive(Var dst, Arg src) {
+    throw unsupported("structs");
+  }
+
+  @Override
+  public void assignBagRecursive(Var dst, Arg src) {
+    assignArrayRecursive(dst, src);
+  }
+
+  @Override
+  public void retrieveArrayRecursive(Var dst, Var src, Arg decr) {
+    pointAdd(v(dst) + " = (" + JavaTypes.javaType(dst) + ")DataOps.unpack(" +
+             fn() + ", " + name(src) + ", " + v(src) + ");");
+    decrReaders(src, decr);
+  }
+
+  @Override
+  public void retrieveStructRecursive(Var dst, Var src, Arg decr) {
+    throw unsupported("structs");
+  }
+
+  @Override
+  public void retrieveBagRecursive(Var dst, Var src, Arg decr) {
+    retrieveArrayRecursive(dst, src, decr);
+  }
+
+  @Override
+  public void unpackArrayToFlat(Var flatLocalArray, Arg inputArray) {
+    throw unsupported("flattening arrays");
+  }
+
+  @Override
+  public void dereferenceScalar(Var dst, Var src) {
+    pointAdd("DataOps.derefScalar(" + fn() + ", " + name(dst) + ", " +
+             v(dst) + ", " + v(src) + ");");
+  }
+
+  @Override
+  public void dereferenceFile(Var dst, Var src) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void makeAlias(Var dst, Var src) {
+    pointAdd(v(dst) + " = " + v(src) + ";");
+  }
+
+  @Override
+  public void asyncCopy(Var dst, Var src) {
+    long writeDecr = RefCounting.baseWriteRefCount(dst, true, true);
+    pointAdd("DataOps.asyncCopy(" + fn() + ", " + name(dst) + ", " +
+             v(dst) + ", " + v(src) + ", " + writeDecr + ");");
+  }
+
+  @Override
+  public void syncCopy(Var dst, Var src) {
+    long writeDecr = RefCounting.baseWriteRefCount(dst, true, true);
+    pointAdd("DataOps.copy(" + fn() + ", " + name(dst) + ", " +
+             v(dst) + ", " + v(src) + ", " + writeDecr + ");");
+  }
+
+  @Override
+  public void buildStructLocal(Var struct, List<List<String>> fieldPaths,
+                               List<Arg> fieldVals) {
+    throw unsupported("structs");
+  }
+
+  @Override
+  public void decrLocalFileRefCount(Var fileVal) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void freeBlob(Var blobVal) {
+    // Garbage collected: local blobs may share buffers with variables
+  }
+
+  @Override
+  public void getFileNameAlias(Var filename, Var file) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void copyInFilename(Var file, Var filename) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void getLocalFileName(Var filename, Var file) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void isMapped(Var isMapped, Var file) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void chooseTmpFilename(Var filenameVal) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void initLocalOutputFile(Var localFile, Arg filenameVal,
+                                  Arg isMapped) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void getFilenameVal(Var filenameVal, Var file) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void setFilenameVal(Var file, Arg filenameVal) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void copyFileContents(Var dst, Var src) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void structCreateAlias(Var dst, Var struct, List<String> fields) {
+    throw unsupported("structs");
+  }
+
+  @Override
+  public void structRetrieveSub(Var dst, Var struct, List<String> fields,
+                                Arg decr) {
+    throw unsupported("structs");
+  }
+
+  @Override
+  public void structCopyOut(Var dst, Var struct, List<String> fields) {
+    throw unsupported("structs");
+  }
+
+  @Override
+  public void structRefCopyOut(Var dst, Var struct, List<String> fields) {
+    throw unsupported("structs");
+  }
+
+  @Override
+  public void structStore(Var struct, List<String> fields, Arg src) {
+    throw unsupported("structs");
+  }
+
+  @Override
+  public void structCopyIn(Var struct, List<String> fields, Var src) {
+    throw unsupported("structs");
+  }
+
+  @Override
+  public void structRefStoreSub(Var structRef, List<String> fields,
+                                Arg src) {
+    throw unsupported("structs");
+  }
+
+  @Override
+  public void structRefCopyIn(Var structRef, List<String> fields, Var src) {
+    throw unsupported("structs");
+  }
+
+  @Override
+  public void structCreateNested(Var result, Var struct,
+      List<String> fields, Arg callerReadRefs, Arg callerWriteRefs,
+      Arg readDecr, Arg writeDecr) {
+    throw unsupported("structs");
+  }
+
+  @Override
+  public void arrayCreateAlias(Var dst, Var array, Arg key) {
+    assert(dst.storage() == Alloc.ALIAS) : dst;
+    pointAdd(v(dst) + " = (" + JavaTypes.javaType(dst) +
+             ")DataOps.elemAlias(" + fn() + ", " + name(array) + ", " +
+             v(array) + ", " + arg(key) + ", " +
+             JavaTypes.newVar(dst, "1") + ");");
+  }
+
+  @Override
+  public void arrayRetrieve(Var dst, Var array, Arg key, Arg decr,
+                            Arg acquire) {
+    pointAdd(v(dst) + " = (" + JavaTypes.boxedType(dst) + ")" + v(array) +
+             ".get(" + fn() + ", " + name(array) + ", " + arg(key) + ");");
+    incrReaders(dst, acquire);
+    decrReaders(array, decr);
+  }
+
+  @Override
+  public void arrayCopyOutImm(Var dst, Var array, Arg key) {
+    pointAdd("DataOps.copyOutImm(" + fn() + ", " + name(array) + ", " +
+             v(array) + ", " + arg(key) + ", " + v(dst) + ");");
+  }
+
+  @Override
+  public void arrayCopyOutFuture(Var dst, Var array, Var key) {
+    pointAdd("DataOps.copyOutFuture(" + fn() + ", " + name(array) + ", " +
+             v(array) + ", " + v(key) + ", " + v(dst) + ");");
+  }
+
+  @Override
+  public void arrayRefCopyOutImm(Var dst, Var array, Arg key) {
+    pointAdd("DataOps.refCopyOutImm(" + fn() + ", " + name(array) + ", " +
+             v(array) + ", " + arg(key) + ", " + v(dst) + ");");
+  }
+
+  @Override
+  public void arrayRefCopyOutFuture(Var dst, Var array, Var key) {
+    pointAdd("DataOps.refCopyOutFuture(" + fn() + ", " + name(array) +
+             ", " + v(array) + ", " + v(key) + ", " + v(dst) + ");");
+  }
+
+  @Override
+  public void arrayContains(Var dst, Var array, Arg key) {
+    pointAdd(v(dst) + " = " + v(array) + ".contains(" + arg(key) + ");");
+  }
+
+  @Override
+  public void arrayLocalContains(Var dst, Var array, Arg key) {
+    pointAdd(v(dst) + " = " + v(array) + ".containsKey(" + arg(key) + ");");
+  }
+
+  @Override
+  public void containerSize(Var dst, Var container) {
+    pointAdd(v(dst) + " = Builtins.containerSize(" + v(container) + ");");
+  }
+
+  @Override
+  public void containerLocalSize(Var dst, Var container) {
+    pointAdd(v(dst) + " = " + v(container) + ".size();");
+  }
+
+  private void incrReaders(Var var, Arg incr) {
+    if (trackReaders(var) && (incr.isVar() || incr.getInt() != 0)) {
+      pointAdd(v(var) + ".incrReaders(" + fn() + ", " + name(var) + ", " +
+               intArg(incr) + ");");
+    }
+  }
+
+  private void decrReaders(Var var, Arg decr) {
+    if (trackReaders(var) && (decr.isVar() || decr.getInt() != 0)) {
+      pointAdd(v(var) + ".incrReaders(" + fn() + ", " + name(var) + ", -" +
+               (decr.isVar() ? "(" + intArg(decr) + ")" : intArg(decr)) +
+               ");");
+    }
+  }
+
+  /**
+   * Consume a read refcount of each input, once per occurrence
+   */
+  private void consumeReaders(List<Arg> inputs) {
+    for (Arg in: inputs) {
+      if (in.isVar()) {
+        decrReaders(in.getVar(), Arg.ONE);
+      }
+    }
+  }
+
+  /**
+   * @return read refcount decrement to pass to runtime
+   */
+  private String readDecrArg(Var var, Arg decr) {
+    return trackReaders(var) ? intArg(decr) : "0";
+  }
+
+  private void decrWriters(Var var, Arg decr) {
+    if (decr.isVar() || decr.getInt() != 0) {
+      pointAdd(v(var) + ".incrWriters(" + fn() + ", " + name(var) + ", -" +
+               (decr.isVar() ? "(" + intArg(decr) + ")" : intArg(decr)) +
+               ");");
+    }
+  }
+
+  @Override
+  public void arrayStore(Var array, Arg key, Arg member, Arg writeDecr) {
+    String batch = insertBatch(array);
+    if (batch != null) {
+      pointAdd(batch + ".add(" + arg(key) + ", " + arg(member) + ", " +
+               intArg(writeDecr) + ");");
+      return;
+    }
+    pointAdd(v(array) + ".insert(" + fn() + ", " + name(array) + ", " +
+             arg(key) + ", " + arg(member) + ");");
+    decrWriters(array, writeDecr);
+  }
+
+  @Override
+  public void arrayStoreFuture(Var array, Var key, Arg member,
+                               Arg writeDecr) {
+    pointAdd("DataOps.storeFuture(" + fn() + ", " + name(array) + ", " +
+             v(array) + ", " + v(key) + ", " + arg(member) + ", " +
+             intArg(writeDecr) + ");");
+  }
+
+  @Override
+  public void arrayCopyInImm(Var array, Arg key, Var member,
+                             Arg writeDecr) {
+    pointAdd("DataOps.copyInImm(" + fn() + ", " + name(array) + ", " +
+             v(array) + ", " + arg(key) + ", " + v(member) + ", " +
+             intArg(writeDecr) + ");");
+  }
+
+  @Override
+  public void arrayCopyInFuture(Var array, Var key, Var member,
+                                Arg writeDecr) {
+    pointAdd("DataOps.copyInFuture(" + fn() + ", " + name(array) + ", " +
+             v(array) + ", " + v(key) + ", " + v(member) + ", " +
+             intArg(writeDecr) + ");");
+  }
+
+  private void refInsert(Var array, String key, String keyVar,
+                         String member, String memberVar) {
+    pointAdd("DataOps.refInsert(" + fn() + ", " + name(array) + ", " +
+             v(array) + ", " + key + ", " + keyVar + ", " + member + ", " +
+             memberVar + ");");
+  }
+
+  @Override
+  public void arrayRefStoreImm(Var array, Arg key, Arg member) {
+    refInsert(array, arg(key), "null", arg(member), "null");
+  }
+
+  @Override
+  public void arrayRefStoreFuture(Var array, Var key, Arg member) {
+    refInsert(array, "null", v(key), arg(member), "null");
+  }
+
+  @Override
+  public void arrayRefCopyInImm(Var array, Arg key, Var member) {
+    refInsert(array, arg(key), "null", "null", v(member));
+  }
+
+  @Override
+  public void arrayRefCopyInFuture(Var array, Var key, Var member) {
+    refInsert(array, "null", v(key), "null", v(member));
+  }
+
+  @Override
+  public void arrayBuild(Var array, List<Arg> keys, List<Arg> vals) {
+    assert(keys.size() == vals.size());
+    for (int i = 0; i < keys.size(); i++) {
+      pointAdd(v(array) + ".insert(" + fn() + ", " + name(array) + ", " +
+               arg(keys.get(i)) + ", " + arg(vals.get(i)) + ");");
+    }
+    decrWriters(array, Arg.ONE);
+  }
+
+  @Override
+  public void arrayCreateNestedImm(Var result, Var array, Arg key,
+      Arg callerReadRefs, Arg callerWriteRefs, Arg readDecr,
+      Arg writeDecr) {
+    pointAdd(v(result) + " = (" + JavaTypes.javaType(result) +
+        ")DataOps.createNested(" + fn() + ", " + name(array) + ", " +
+        v(array) + ", " + arg(key) + ", " + intArg(callerWriteRefs) + ", " +
+        readDecrArg(array, readDecr) + ", " + intArg(writeDecr) + ", " +
+        Types.isBag(result) + ");");
+  }
+
+  @Override
+  public void arrayCreateNestedFuture(Var result, Var array, Var key) {
+    pointAdd("DataOps.createNestedFuture(" + fn() + ", " + name(array) +
+             ", " + v(array) + ", " + v(key) + ", " + v(result) + ", " +
+             Types.isBag(result.type().memberType()) + ");");
+  }
+
+  @Override
+  public void arrayRefCreateNestedImm(Var result, Var array, Arg key) {
+    pointAdd("DataOps.refCreateNested(" + fn() + ", " + name(array) +
+             ", " + v(array) + ", " + arg(key) + ", null, " + v(result) +
+             ", " + Types.isBag(result.type().memberType()) + ");");
+  }
+
+  @Override
+  public void arrayRefCreateNestedFuture(Var result, Var array, Var key) {
+    pointAdd("DataOps.refCreateNested(" + fn() + ", " + name(array) +
+             ", " + v(array) + ", null, " + v(key) + ", " + v(result) +
+             ", " + Types.isBag(result.type().memberType()) + ");");
+  }
+
+  @Override
+  public void bagInsert(Var bag, Arg value, Arg writeDecr) {
+    String batch = insertBatch(bag);
+    if (batch != null) {
+      pointAdd(batch + ".add(" + arg(value) + ", " + intArg(writeDecr) +
+               ");");
+      return;
+    }
+    pointAdd(v(bag) + ".insert(" + fn() + ", " + name(bag) + ", " +
+             arg(value) + ");");
+    decrWriters(bag, writeDecr);
+  }
+
+  @Override
+  public void initScalarUpdateable(Var updateable, Arg val) {
+    throw unsupported("updateable variables");
+  }
+
+  @Override
+  public void latestValue(Var result, Var updateable) {
+    throw unsupported("updateable variables");
+  }
+
+  @Override
+  public void updateScalarFuture(Var updateable, UpdateMode updateMode,
+                                 Var val) {
+    throw unsupported("updateable variables");
+  }
+
+  @Override
+  public void updateScalarImm(Var updateable, UpdateMode updateMode,
+                              Arg val) {
+    throw unsupported("updateable variables");
+  }
+
+  @Override
+  public void checkpointLookupEnabled(Var out) {
+    pointAdd(v(out) + " = false;");
+  }
+
+  @Override
+  public void checkpointWriteEnabled(Var out) {
+    pointAdd(v(out) + " = false;");
+  }
+
+  @Override
+  public void writeCheckpoint(Arg key, Arg val) {
+    // Checkpointing is never enabled
+  }
+
+  @Override
+  public void lookupCheckpoint(Var checkpointExists, Var val, Arg key) {
+    pointAdd(v(checkpointExists) + " = false;");
+  }
+
+  @Override
+  public void writeMemo(Arg key, Arg val) {
+    // No memoization
+  }
+
+  @Override
+  public void lookupMemo(Var memoExists, Var val, Arg key) {
+    pointAdd(v(memoExists) + " = false;");
+  }
+
+  @Override
+  public void packValues(Var packed, List<Arg> unpacked) {
+    throw unsupported("packing values");
+  }
+
+  @Override
+  public void unpackValues(List<Var> unpacked, Arg packed) {
+    throw unsupported("packing values");
+  }
+}
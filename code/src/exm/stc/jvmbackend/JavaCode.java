@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvmbackend;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Block of Java source code.  Contains lines and nested blocks, which
+ * can be appended to after being added so that code generation can
+ * proceed out of order, as with the Tcl tree.
+ */
+public class JavaCode {
+  private static final String INDENT = "  ";
+
+  private final List<Object> members = new ArrayList<Object>();
+
+  /** Whether contents are indented relative to parent */
+  private final boolean indent;
+
+  public JavaCode() {
+    this(false);
+  }
+
+  private JavaCode(boolean indent) {
+    this.indent = indent;
+  }
+
+  public void add(String line) {
+    members.add(line);
+  }
+
+  /**
+   * Add a nested block of code at the current position
+   * @param indent if the block should be indented
+   * @return the nested block
+   */
+  public JavaCode nested(boolean indent) {
+    JavaCode block = new JavaCode(indent);
+    members.add(block);
+    return block;
+  }
+
+  /**
+   * Add previously built block at the current position
+   */
+  public void add(JavaCode block) {
+    members.add(block);
+  }
+
+  /**
+   * Add header { ... } with indented body
+   * @param header code before block, or empty string for bare block
+   * @return body of block
+   */
+  public JavaCode block(String header) {
+    add(header.length() == 0 ? "{" : header + " {");
+    JavaCode body = nested(true);
+    add("}");
+    return body;
+  }
+
+  public boolean isEmpty() {
+    return members.isEmpty();
+  }
+
+  public void appendTo(StringBuilder sb) {
+    appendTo(sb, 0);
+  }
+
+  private void appendTo(StringBuilder sb, int level) {
+    int innerLevel = indent ? level + 1 : level;
+    for (Object member: members) {
+      if (member instanceof JavaCode) {
+        ((JavaCode)member).appendTo(sb, innerLevel);
+      } else {
+        String line = (String)member;
+        if (line.length() > 0) {
+          for (int i = 0; i < innerLevel; i++) {
+            sb.append(INDENT);
+          }
+          sb.append(line);
+        }
+        sb.append('\n');
+      }
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvmbackend;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.Var;
+
+/**
+ * Map Swift and compiler-generated names to valid Java identifiers.
+ * Prefixes keep the namespaces of variables, functions and generated
+ * classes separate from each other and from Java keywords.
+ */
+public class JavaNamer {
+  private static final String VAR_PREFIX = "v_";
+  private static final String FN_METHOD_PREFIX = "f_";
+  private static final String FN_CLASS_PREFIX = "F_";
+  private static final String NEXTITER_PREFIX = "next$";
+
+  /** Suffix for temporaries in generated code, which can't clash */
+  private static final String TMP_SEP = "$";
+
+  private final Set<String> usedClassNames = new HashSet<String>();
+  private int nextTmp = 0;
+
+  public static String var(Var var) {
+    return VAR_PREFIX + mangle(var.name());
+  }
+
+  public static List<String> vars(List<Var> vars) {
+    List<String> res = new ArrayList<String>(vars.size());
+    for (Var var: vars) {
+      res.add(var(var));
+    }
+    return res;
+  }
+
+  public static String nextIter(Var loopVar) {
+    return NEXTITER_PREFIX + var(loopVar);
+  }
+
+  public static String fnMethod(FnID id) {
+    return FN_METHOD_PREFIX + mangle(id.uniqueName());
+  }
+
+  public static String fnClass(FnID id) {
+    return FN_CLASS_PREFIX + mangle(id.uniqueName());
+  }
+
+  /**
+   * @return unique name for generated class
+   */
+  public String uniqueClass(String prefix, String name) {
+    String base = prefix + mangle(name);
+    String unique = base;
+    int next = 1;
+    while (usedClassNames.contains(unique)) {
+      unique = base + "_" + next;
+      next++;
+    }
+    usedClassNames.add(unique);
+    return unique;
+  }
+
+  /**
+   * @return unique name for temporary variable
+   */
+  public String tmp(String name) {
+    return name + TMP_SEP + (nextTmp++);
+  }
+
+  /**
+   * Replace characters not valid in Java identifiers.  ':' is common in
+   * compiler-generated names so gets a short replacement.
+   */
+  public static String mangle(String name) {
+    StringBuilder sb = new StringBuilder(name.length());
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+          (c >= '0' && c <= '9') || c == '_') {
+        sb.append(c);
+      } else if (c == ':') {
+        sb.append('$');
+      } else {
+        sb.append('$').append(Integer.toHexString(c)).append('$');
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return Java string literal
+   */
+  public static String stringLiteral(String s) {
+    StringBuilder sb = new StringBuilder(s.length() + 2);
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        default:
+          if (c < 0x20 || c > 0x7e) {
+            sb.append(String.format("\\u%04x", (int)c));
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+    sb.append('"');
+    return sb.toString();
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvmbackend;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import exm.stc.common.exceptions.UnsupportedFeatureException;
+import exm.stc.common.lang.Operators.BuiltinOpcode;
+
+/**
+ * Java implementations of builtin operations and foreign functions.
+ * Operations are inline Java expressions where possible, otherwise calls
+ * to the runtime Builtins class.
+ */
+public class JavaOps {
+
+  /**
+   * Foreign functions implemented by runtime, keyed by Tcl package and
+   * symbol of the Turbine implementation.
+   */
+  private static final Map<String, String> foreignImpls =
+                                          new HashMap<String, String>();
+
+  static {
+    addForeign("turbine", "trace", "Builtins.trace");
+    addForeign("turbine", "printf", "Builtins.printf");
+    addForeign("turbine", "sprintf", "Builtins.sprintf");
+    addForeign("turbine", "assert", "Builtins.assertTrue");
+    addForeign("turbine", "assertEqual", "Builtins.assertEqual");
+    addForeign("turbine", "toint", "Builtins.toint");
+    addForeign("turbine", "fromint", "Builtins.fromint");
+    addForeign("turbine", "tofloat", "Builtins.tofloat");
+    addForeign("turbine", "fromfloat", "Builtins.fromfloat");
+    addForeign("turbine", "itof", "Builtins.itof");
+    addForeign("turbine", "strcat", "Builtins.strcat");
+    addForeign("turbine", "strlen", "Builtins.strlen");
+    addForeign("turbine", "substring", "Builtins.substring");
+    addForeign("turbine", "argv_get", "Builtins.argvGet");
+    addForeign("turbine", "sleep_trace", "Builtins.sleepTrace");
+    addForeign("turbine", "container_size", "Builtins.containerSize");
+    addForeign("turbine", "range", "Builtins.range");
+  }
+
+  /**
+   * Foreign function implementations that block the calling thread
+   */
+  private static final Set<String> blockingImpls = new HashSet<String>();
+
+  static {
+    blockingImpls.add("Builtins.sleepTrace");
+  }
+
+  private static void addForeign(String pkg, String symbol, String method) {
+    foreignImpls.put(pkg + "::" + symbol, method);
+  }
+
+  /**
+   * @param symbol Tcl symbol of Turbine implementation
+   * @return Java method implementing function, or null if none
+   */
+  public static String foreignImpl(String symbol) {
+    return foreignImpls.get(symbol);
+  }
+
+  /**
+   * @param method Java method implementing foreign function
+   * @return true if method blocks the calling thread, so shouldn't be
+   *         run on a worker thread
+   */
+  public static boolean isBlocking(String method) {
+    return blockingImpls.contains(method);
+  }
+
+  /**
+   * @return true if op is executed for side-effect with no output value
+   */
+  public static boolean isStatement(BuiltinOpcode op) {
+    return op == BuiltinOpcode.ASSERT || op == BuiltinOpcode.ASSERT_EQ;
+  }
+
+  /**
+   * @param op
+   * @param args Java expressions for input values
+   * @return Java expression or statement (for ops where isStatement is true)
+   */
+  public static String opExpr(BuiltinOpcode op, List<String> args) {
+    switch (op) {
+      case PLUS_INT:
+      case PLUS_FLOAT:
+        return binop(args, "+");
+      case MINUS_INT:
+      case MINUS_FLOAT:
+        return binop(args, "-");
+      case MULT_INT:
+      case MULT_FLOAT:
+        return binop(args, "*");
+      case DIV_INT:
+      case DIV_FLOAT:
+        return binop(args, "/");
+      case MOD_INT:
+        return binop(args, "%");
+      case NEGATE_INT:
+      case NEGATE_FLOAT:
+        return "(-(" + args.get(0) + "))";
+      case POW_INT:
+        return call("Builtins.powInt", args);
+      case POW_FLOAT:
+        return call("Math.pow", args);
+      case MAX_INT:
+      case MAX_FLOAT:
+        return call("Math.max", args);
+      case MIN_INT:
+      case MIN_FLOAT:
+        return call("Math.min", args);
+      case ABS_INT:
+      case ABS_FLOAT:
+        return call("Math.abs", args);
+      case EQ_INT:
+      case EQ_FLOAT:
+      case EQ_BOOL:
+        return binop(args, "==");
+      case NEQ_INT:
+      case NEQ_FLOAT:
+      case NEQ_BOOL:
+        return binop(args, "!=");
+      case GT_INT:
+      case GT_FLOAT:
+        return binop(args, ">");
+      case LT_INT:
+      case LT_FLOAT:
+        return binop(args, "<");
+      case GTE_INT:
+      case GTE_FLOAT:
+        return binop(args, ">=");
+      case LTE_INT:
+      case LTE_FLOAT:
+        return binop(args, "<=");
+      case EQ_STRING:
+        return args.get(0) + ".equals(" + args.get(1) + ")";
+      case NEQ_STRING:
+        return "(!" + args.get(0) + ".equals(" + args.get(1) + "))";
+      case NOT:
+        return "(!" + args.get(0) + ")";
+      case AND:
+        return binop(args, "&&");
+      case OR:
+        return binop(args, "||");
+      case XOR:
+        return binop(args, "^");
+      case STRCAT:
+        return call("Builtins.strcat", args);
+      case DIRCAT:
+        return "(" + args.get(0) + " + \"/\" + " + args.get(1) + ")";
+      case SUBSTRING:
+        return call("Builtins.substring", args);
+      case COPY_INT:
+      case COPY_FLOAT:
+      case COPY_BOOL:
+      case COPY_STRING:
+      case COPY_BLOB:
+      case COPY_VOID:
+        return args.get(0);
+      case FLOOR:
+        return call("Math.floor", args);
+      case CEIL:
+        return call("Math.ceil", args);
+      case ROUND:
+        return call("Builtins.round", args);
+      case INTTOFLOAT:
+        return "((double)" + args.get(0) + ")";
+      case FLOATTOINT:
+        return "((long)Math.floor(" + args.get(0) + "))";
+      case PARSE_INT:
+        return call("Builtins.parseInt", args);
+      case INTTOSTR:
+        return call("Long.toString", args);
+      case PARSE_FLOAT:
+        return call("Builtins.parseFloat", args);
+      case FLOATTOSTR:
+        return call("Builtins.floatToString", args);
+      case LOG:
+        return call("Math.log", args);
+      case EXP:
+        return call("Math.exp", args);
+      case SQRT:
+        return call("Math.sqrt", args);
+      case IS_NAN:
+        return call("Double.isNaN", args);
+      case ASSERT:
+        return call("Builtins.assertTrue", args) + ";";
+      case ASSERT_EQ:
+        return call("Builtins.assertEqual", args) + ";";
+      case SPRINTF:
+        return call("Builtins.sprintf", args);
+      default:
+        throw new UnsupportedFeatureException.Unchecked(
+            new UnsupportedFeatureException(
+                "JVM backend doesn't support op " + op));
+    }
+  }
+
+  /**
+   * @return true if op returns a floating point value
+   */
+  public static boolean floatResult(BuiltinOpcode op) {
+    return op == BuiltinOpcode.FLOOR || op == BuiltinOpcode.CEIL ||
+           op == BuiltinOpcode.ROUND;
+  }
+
+  public static String call(String method, List<String> args) {
+    StringBuilder sb = new StringBuilder(method);
+    sb.append('(');
+    for (int i = 0; i < args.size(); i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(args.get(i));
+    }
+    sb.append(')');
+    return sb.toString();
+  }
+
+  private static String binop(List<String> args, String operator) {
+    assert(args.size() == 2) : args;
+    return "(" + args.get(0) + " " + operator + " " + args.get(1) + ")";
+  }
+}
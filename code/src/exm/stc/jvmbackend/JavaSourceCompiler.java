@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvmbackend;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCRuntimeError;
+
+/**
+ * Compile generated Java source in-process with the system Java compiler,
+ * so that no separate javac step is needed to run the program.
+ */
+public class JavaSourceCompiler {
+
+  /** Runtime classes, relative to STC_HOME */
+  public static final String RUNTIME_JAR = "lib/stc-jvm-runtime.jar";
+
+  /**
+   * Compile source file, placing class files in same directory.
+   * @return false if no Java compiler is available in this JVM
+   * @throws STCRuntimeError if compilation fails
+   */
+  public static boolean compile(Logger logger, File source)
+      throws IOException {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    if (compiler == null) {
+      logger.warn("No Java compiler available: run javac on " + source +
+                  " with " + runtimeClasspath() + " on classpath");
+      return false;
+    }
+
+    File outDir = source.getAbsoluteFile().getParentFile();
+    List<String> options = Arrays.asList("-classpath", runtimeClasspath(),
+                                         "-d", outDir.getPath(),
+                                         "-nowarn");
+    logger.debug("Compiling " + source + " with options " + options);
+
+    StandardJavaFileManager fileManager =
+                    compiler.getStandardFileManager(null, null, null);
+    try {
+      Iterable<? extends JavaFileObject> units =
+              fileManager.getJavaFileObjects(source);
+      StringWriter errors = new StringWriter();
+      boolean ok = compiler.getTask(errors, fileManager, null, options,
+                                    null, units).call();
+      if (!ok) {
+        throw new STCRuntimeError("Compiling generated Java code " + source +
+                                  " failed:\n" + errors);
+      }
+    } finally {
+      fileManager.close();
+    }
+    return true;
+  }
+
+  private static String runtimeClasspath() {
+    String stcHome = Settings.get(Settings.STC_HOME);
+    return new File(stcHome, RUNTIME_JAR).getPath();
+  }
+}
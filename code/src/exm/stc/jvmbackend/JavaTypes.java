@@ -0,0 +1,229 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvmbackend;
+
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.exceptions.UnsupportedFeatureException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Types.PrimType;
+import exm.stc.common.lang.Types.Type;
+import exm.stc.common.lang.Types.Typed;
+
+/**
+ * Representation of Swift types in generated Java code.
+ *
+ * Futures are runtime variable objects.  Values are unboxed Java values,
+ * with void values represented as booleans.  Container elements are boxed
+ * values for scalar element types and the referenced variable for
+ * references.  Local containers are java.util maps and lists.
+ */
+public class JavaTypes {
+
+  /**
+   * @return declared Java type for a variable of this type
+   */
+  public static String javaType(Typed t) {
+    Type type = t.type().getImplType();
+    if (Types.isScalarFuture(type)) {
+      return futureClass(type.primType());
+    } else if (Types.isFile(type)) {
+      return "FileVar";
+    } else if (Types.isRef(type)) {
+      return "RefVar<" + javaType(type.memberType()) + ">";
+    } else if (Types.isArray(type)) {
+      return "ArrayVar<Object>";
+    } else if (Types.isBag(type)) {
+      return "BagVar<Object>";
+    } else if (Types.isScalarValue(type)) {
+      return valueType(type.primType());
+    } else if (Types.isFileVal(type)) {
+      return "String";
+    } else if (Types.isArrayLocal(type)) {
+      return "Map<Object, Object>";
+    } else if (Types.isBagLocal(type)) {
+      return "List<Object>";
+    } else {
+      throw new UnsupportedFeatureException.Unchecked(
+          new UnsupportedFeatureException(
+              "JVM backend doesn't support type " + type.typeName()));
+    }
+  }
+
+  /**
+   * @return Java type for values of variable after boxing, as stored
+   *         in containers
+   */
+  public static String boxedType(Typed t) {
+    String javaType = javaType(t);
+    if (javaType.equals("long")) {
+      return "Long";
+    } else if (javaType.equals("double")) {
+      return "Double";
+    } else if (javaType.equals("boolean")) {
+      return "Boolean";
+    }
+    return javaType;
+  }
+
+  /**
+   * @return Java type of element stored in container
+   */
+  public static String elemType(Typed container) {
+    Type elem = Types.containerElemType(container);
+    if (Types.isContainerLocal(container)) {
+      return boxedType(elem);
+    }
+    return boxedType(Types.retrievedType(elem));
+  }
+
+  /**
+   * @return Java type of key of array
+   */
+  public static String keyType(Typed arr) {
+    return boxedType(Types.retrievedType(Types.arrayKeyType(arr)));
+  }
+
+  /**
+   * @return true if values are stored in variable directly, not through
+   *        a runtime variable object
+   */
+  public static boolean isValue(Typed t) {
+    return Types.isPrimValue(t) || Types.isContainerLocal(t);
+  }
+
+  /**
+   * @return expression to create new variable
+   */
+  public static String newVar(Typed t, String writers) {
+    Type type = t.type().getImplType();
+    if (Types.isArray(type)) {
+      return "new HashArrayVar<Object>(" + writers + ")";
+    }
+    return "new " + javaType(type) + "(" + writers + ")";
+  }
+
+  /**
+   * @return default value for locals of this type
+   */
+  public static String defaultValue(Typed t) {
+    String javaType = javaType(t);
+    if (javaType.equals("long")) {
+      return "0L";
+    } else if (javaType.equals("double")) {
+      return "0.0";
+    } else if (javaType.equals("boolean")) {
+      return "false";
+    } else if (Types.isArrayLocal(t)) {
+      return "new LinkedHashMap<Object, Object>()";
+    } else if (Types.isBagLocal(t)) {
+      return "new ArrayList<Object>()";
+    }
+    return "null";
+  }
+
+  public static String futureClass(PrimType primType) {
+    switch (primType) {
+      case INT:
+        return "IntVar";
+      case FLOAT:
+        return "FloatVar";
+      case STRING:
+        return "StringVar";
+      case BOOL:
+        return "BoolVar";
+      case VOID:
+        return "VoidVar";
+      case BLOB:
+        return "BlobVar";
+      case FILE:
+        return "FileVar";
+      default:
+        throw new STCRuntimeError("Unknown prim type " + primType);
+    }
+  }
+
+  public static String valueType(PrimType primType) {
+    switch (primType) {
+      case INT:
+        return "long";
+      case FLOAT:
+        return "double";
+      case STRING:
+      case FILE:
+        return "String";
+      case BOOL:
+      case VOID:
+        return "boolean";
+      case BLOB:
+        return "ByteBuffer";
+      default:
+        throw new STCRuntimeError("Unknown prim type " + primType);
+    }
+  }
+
+  /**
+   * @return Java expression for argument: literal or variable name
+   */
+  public static String argExpr(Arg arg) {
+    switch (arg.getKind()) {
+      case INTVAL:
+        return arg.getInt() + "L";
+      case FLOATVAL:
+        return floatLiteral(arg.getFloat());
+      case STRINGVAL:
+        return JavaNamer.stringLiteral(arg.getString());
+      case BOOLVAL:
+        return arg.getBool() ? "true" : "false";
+      case VAR:
+        return JavaNamer.var(arg.getVar());
+      default:
+        throw new STCRuntimeError("Unknown arg kind " + arg.getKind());
+    }
+  }
+
+  /**
+   * @return argument as boxed Java object
+   */
+  public static String boxedArgExpr(Arg arg) {
+    switch (arg.getKind()) {
+      case INTVAL:
+        return "Long.valueOf(" + argExpr(arg) + ")";
+      case FLOATVAL:
+        return "Double.valueOf(" + argExpr(arg) + ")";
+      case BOOLVAL:
+        return "Boolean.valueOf(" + argExpr(arg) + ")";
+      case VAR:
+        String javaType = javaType(arg.getVar());
+        if (javaType.equals("long") || javaType.equals("double") ||
+            javaType.equals("boolean")) {
+          return boxedType(arg.getVar()) + ".valueOf(" + argExpr(arg) + ")";
+        }
+        return argExpr(arg);
+      default:
+        return argExpr(arg);
+    }
+  }
+
+  public static String floatLiteral(double f) {
+    if (Double.isNaN(f)) {
+      return "Double.NaN";
+    } else if (Double.isInfinite(f)) {
+      return f > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+    }
+    return Double.toString(f);
+  }
+}
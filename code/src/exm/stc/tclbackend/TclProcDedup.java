@@ -0,0 +1,318 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.tclbackend;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import exm.stc.tclbackend.tree.Proc;
+import exm.stc.tclbackend.tree.Sequence;
+import exm.stc.tclbackend.tree.TclTree;
+
+/**
+ * Merge generated continuation procs that are identical apart from names.
+ * Inlining, unrolling and wrapper generation often produce many copies
+ * of the same continuation that only differ in the proc name and the
+ * names of Tcl variables, and every rank parses the whole Tcl file at
+ * startup.
+ *
+ * This works on the rendered Tcl for each top-level proc.  Each candidate
+ * proc is canonicalized by dropping comments, replacing its own name and
+ * renaming local variables in order of first appearance.  Procs where a
+ * local variable name also appears outside a variable reference, e.g. in
+ * a string in inlined Tcl code, are not merged, since renaming it would
+ * change the string.  Procs with the
+ * same canonical text are merged into the first one, and references to
+ * the removed procs are renamed.  Merging a set of procs can make procs
+ * that reference them identical, so we repeat until nothing changes.
+ */
+public class TclProcDedup {
+
+  private static final String SELF = "%self";
+  private static final String LOCAL_PREFIX = "%";
+
+  /** Rendered top-level code, null if removed */
+  private final List<String> code = new ArrayList<String>();
+
+  /** Proc names, null if not a merge candidate */
+  private final List<String> procNames = new ArrayList<String>();
+
+  /** Tcl variables local to each proc, null if not a candidate */
+  private final List<Set<String>> procLocals = new ArrayList<Set<String>>();
+
+  private int candidates = 0;
+  private int merged = 0;
+  private int bytesBefore = 0;
+
+  /**
+   * @param tree top-level Tcl code
+   * @param candidateNames names of procs that can be merged.  These
+   *      must only be referenced by name from within the generated code.
+   */
+  public TclProcDedup(Sequence tree, Set<String> candidateNames) {
+    for (int i = 0; i < tree.size(); i++) {
+      TclTree member = tree.get(i);
+      StringBuilder sb = new StringBuilder();
+      member.setIndentation(0);
+      member.appendTo(sb);
+      String text = sb.toString();
+      bytesBefore += text.length();
+      code.add(text);
+
+      if (member instanceof Proc &&
+          candidateNames.contains(((Proc)member).name())) {
+        Proc proc = (Proc)member;
+        procNames.add(proc.name());
+        procLocals.add(findLocals(text));
+        candidates++;
+      } else {
+        procNames.add(null);
+        procLocals.add(null);
+      }
+    }
+  }
+
+  /**
+   * Merge duplicate procs
+   */
+  public void run() {
+    Map<String, String> renames;
+    do {
+      renames = new HashMap<String, String>();
+      Map<String, String> canonicalProcs = new HashMap<String, String>();
+      for (int i = 0; i < code.size(); i++) {
+        String name = procNames.get(i);
+        if (name == null || code.get(i) == null) {
+          continue;
+        }
+        String canonical = canonicalize(name, procLocals.get(i), code.get(i));
+        if (canonical == null) {
+          continue;
+        }
+        String existing = canonicalProcs.get(canonical);
+        if (existing == null) {
+          canonicalProcs.put(canonical, name);
+        } else {
+          renames.put(name, existing);
+          code.set(i, null);
+          merged++;
+        }
+      }
+
+      if (!renames.isEmpty()) {
+        for (int i = 0; i < code.size(); i++) {
+          if (code.get(i) != null) {
+            code.set(i, renameTokens(code.get(i), renames));
+          }
+        }
+      }
+    } while (!renames.isEmpty());
+  }
+
+  public void appendTo(StringBuilder sb) {
+    for (String text: code) {
+      if (text != null) {
+        sb.append(text);
+      }
+    }
+  }
+
+  public int candidates() {
+    return candidates;
+  }
+
+  public int merged() {
+    return merged;
+  }
+
+  public int bytesBefore() {
+    return bytesBefore;
+  }
+
+  /**
+   * Find variables local to a proc: arguments and variables that are
+   * set or read, excluding globals.
+   */
+  private static Set<String> findLocals(String text) {
+    Set<String> locals = new HashSet<String>();
+    Set<String> globals = new HashSet<String>();
+    for (String line: text.split("\n")) {
+      if (isComment(line)) {
+        continue;
+      }
+      List<String> tokens = tokenize(line);
+      boolean[] varPos = varPositions(line, tokens);
+      for (int i = 0; i < tokens.size(); i++) {
+        String tok = tokens.get(i);
+        if (varPos[i]) {
+          locals.add(tok);
+        } else if (isName(tok) && i > 1 && tokens.get(i - 1).equals(" ") &&
+                   tokens.get(i - 2).equals("global")) {
+          globals.add(tok);
+        }
+      }
+    }
+    locals.removeAll(globals);
+
+    Set<String> result = new HashSet<String>();
+    for (String local: locals) {
+      if (!local.startsWith("::")) {
+        result.add(local);
+      }
+    }
+    return result;
+  }
+
+  private static boolean isComment(String line) {
+    return line.trim().startsWith("#");
+  }
+
+  /**
+   * Find names in a line of Tcl that refer to variables: proc arguments,
+   * variable substitutions and variables assigned by set, incr, lassign,
+   * foreach or dict for
+   * @return flag for each token
+   */
+  private static boolean[] varPositions(String line, List<String> tokens) {
+    boolean[] result = new boolean[tokens.size()];
+    String trimmed = line.trim();
+    // Variables in first braced list, e.g. proc name { args } {
+    boolean firstList = line.startsWith("proc ") ||
+                        trimmed.startsWith("dict for {");
+    boolean lassign = trimmed.startsWith("lassign ");
+    int lastClose = tokens.lastIndexOf("]");
+    int braces = 0;
+    int opened = 0;
+    for (int i = 0; i < tokens.size(); i++) {
+      String tok = tokens.get(i);
+      if (!isName(tok)) {
+        if (tok.equals("{")) {
+          braces++;
+          opened++;
+        } else if (tok.equals("}")) {
+          braces--;
+        }
+        continue;
+      }
+      String prev = i > 0 ? tokens.get(i - 1) : "";
+      String prev2 = i > 1 ? tokens.get(i - 2) : "";
+      if (firstList && opened == 1) {
+        result[i] = braces == 1;
+      } else if (lassign && i > lastClose) {
+        result[i] = true;
+      } else {
+        result[i] = prev.equals("$") ||
+            (prev.equals("{") && prev2.equals("$")) ||
+            (prev.equals(" ") && (prev2.equals("set") ||
+                          prev2.equals("incr") || prev2.equals("foreach")));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return canonical text of proc, or null if it can't be merged
+   */
+  private static String canonicalize(String name, Set<String> locals,
+                                     String text) {
+    Map<String, String> localNames = new HashMap<String, String>();
+    StringBuilder sb = new StringBuilder();
+    for (String line: text.split("\n")) {
+      if (isComment(line)) {
+        continue;
+      }
+      List<String> tokens = tokenize(line);
+      boolean[] varPos = varPositions(line, tokens);
+      for (int i = 0; i < tokens.size(); i++) {
+        String tok = tokens.get(i);
+        if (tok.equals(name)) {
+          sb.append(SELF);
+        } else if (locals.contains(tok)) {
+          if (!varPos[i]) {
+            // Same name used for something else, e.g. a string in
+            // inlined Tcl code, so renaming would change behaviour
+            return null;
+          }
+          String localName = localNames.get(tok);
+          if (localName == null) {
+            localName = LOCAL_PREFIX + localNames.size();
+            localNames.put(tok, localName);
+          }
+          sb.append(localName);
+        } else {
+          sb.append(tok);
+        }
+      }
+      sb.append('\n');
+    }
+
+    String canonical = sb.toString();
+    // Check that all variable references were found, so that the
+    // canonical text determines behaviour of proc
+    for (String local: localNames.keySet()) {
+      if (canonical.contains(local)) {
+        return null;
+      }
+    }
+    return canonical;
+  }
+
+  private static String renameTokens(String text,
+                                     Map<String, String> renames) {
+    StringBuilder sb = new StringBuilder(text.length());
+    for (String tok: tokenize(text)) {
+      String rename = renames.get(tok);
+      sb.append(rename != null ? rename : tok);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Split text into runs of name characters and single other characters
+   */
+  private static List<String> tokenize(String text) {
+    List<String> tokens = new ArrayList<String>();
+    int start = 0;
+    while (start < text.length()) {
+      int end = start + 1;
+      if (isNameChar(text.charAt(start))) {
+        while (end < text.length() && isNameChar(text.charAt(end))) {
+          end++;
+        }
+      }
+      tokens.add(text.substring(start, end));
+      start = end;
+    }
+    return tokens;
+  }
+
+  private static boolean isName(String tok) {
+    return isNameChar(tok.charAt(0));
+  }
+
+  /**
+   * Characters that can appear in generated proc and variable names
+   */
+  private static boolean isNameChar(char c) {
+    return Character.isLetterOrDigit(c) || c == ':' || c == '_' ||
+           c == '@' || c == '=' || c == '-' || c == '<' || c == '>' ||
+           c == '.';
+  }
+}
@@ -1446,6 +1446,16 @@ class Turbine {
     return enumerateAll(resultVar, arr, includeKeys, null);
   }
 
+  /**
+   * Get entire contents of container, or only keys
+   * @param includeMembers if false, get list of keys only
+   */
+  public static SetVariable enumerateAll(String resultVar, Value arr,
+          boolean includeKeys, boolean includeMembers) {
+    return enumerate(resultVar, arr, includeKeys, includeMembers,
+            new LiteralInt(0), new Token("all"), null);
+  }
+
   /**
    * Retrieve partial contents of container from start to end inclusive start to
    * end are not the logical array indices, but rather physical indices
@@ -1460,7 +1470,18 @@ class Turbine {
   public static SetVariable enumerate(String resultVar, Value arr,
           boolean includeKeys, Expression start, Expression len,
           Expression readDecr) {
-    Token mode = includeKeys ? new Token("dict") : new Token("members");
+    return enumerate(resultVar, arr, includeKeys, true, start, len, readDecr);
+  }
+
+  /**
+   * Retrieve partial contents of container, as for
+   * {@link #enumerate(String, Value, boolean, Expression, Expression)}
+   * @param includeMembers if false, get list of keys only
+   */
+  public static SetVariable enumerate(String resultVar, Value arr,
+          boolean includeKeys, boolean includeMembers, Expression start,
+          Expression len, Expression readDecr) {
+    Token mode = enumerateMode(includeKeys, includeMembers);
     Expression enumE;
     if (readDecr != null) {
       enumE = new Square(ENUMERATE, arr, mode, len, start, readDecr);
@@ -1475,6 +1496,15 @@ class Turbine {
     return enumerate(resultVar, arr, includeKeys, start, len, null);
   }
 
+  private static Token enumerateMode(boolean includeKeys,
+                                     boolean includeMembers) {
+    if (!includeMembers) {
+      assert(includeKeys);
+      return new Token("subscripts");
+    }
+    return includeKeys ? new Token("dict") : new Token("members");
+  }
+
   public static Command turbineLog(String msg) {
     return new Command(TURBINE_LOG, new TclString(msg, true));
   }
@@ -1639,6 +1669,28 @@ class Turbine {
     return new Command(MULTISET_BUILD, argList);
   }
 
+  /**
+   * Buffer array insert in local dict, to be built with
+   * {@link #arrayBuild} later
+   */
+  public static Command batchArrayStore(String kvDictVar, Expression key,
+          Expression val) {
+    return new Command(new Token("dict"), new Token("set"),
+                       new Token(kvDictVar), key, val);
+  }
+
+  /**
+   * Buffer multiset insert in local list, to be built with
+   * {@link #multisetBuild} later
+   */
+  public static Command batchBagInsert(String listVar, Expression elem) {
+    return new Command(new Token("lappend"), new Token(listVar), elem);
+  }
+
+  public static Command incrLocal(String var, Expression amount) {
+    return new Command(new Token("incr"), new Token(var), amount);
+  }
+
   public static Command buildRec(List<Expression> typeList, Value target,
           Expression src, long writeDecr) {
     Expression typeListStartIx = LiteralInt.ZERO;
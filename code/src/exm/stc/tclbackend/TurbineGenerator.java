@@ -103,6 +103,7 @@ import exm.stc.tclbackend.tree.LiteralInt;
 import exm.stc.tclbackend.tree.PackageRequire;
 import exm.stc.tclbackend.tree.Proc;
 import exm.stc.tclbackend.tree.Sequence;
+import exm.stc.tclbackend.tree.Square;
 import exm.stc.tclbackend.tree.SetVariable;
 import exm.stc.tclbackend.tree.Switch;
 import exm.stc.tclbackend.tree.TclExpr;
@@ -121,11 +122,15 @@ public class TurbineGenerator implements CompilerBackend {
   /**
    * Stored options
    */
-  @SuppressWarnings("unused")
   private CodeGenOptions options = null;
 
   private ForeignFunctions foreignFuncs = null;
 
+  /**
+   * Whether memo cache runtime is needed
+   */
+  private boolean memoUsed = false;
+
   /**
      This prevents duplicate "lappend auto_path" statements
      We use a List because these should stay in order
@@ -152,6 +157,8 @@ public class TurbineGenerator implements CompilerBackend {
   private static final String TCLTMP_SPLIT_START = "tcltmp:splitstart";
   private static final String TCLTMP_SKIP = "tcltmp:skip";
   private static final String TCLTMP_IGNORE = "tcltmp:ignore";
+  private static final String TCLTMP_BATCH = "tcltmp:batch:";
+  private static final String TCLTMP_BATCH_DECR = "tcltmp:batchdecr:";
 
   private static final String ENTRY_FUNCTION_NAME = "swift:main";
   private static final String CONSTINIT_FUNCTION_NAME = "swift:constants";
@@ -231,10 +238,22 @@ public class TurbineGenerator implements CompilerBackend {
    */
   private final StackLite<ExecContext> execContextStack = new StackLite<ExecContext>();
 
+  /**
+   * Stack for containers with batched inserts in enclosing loop bodies
+   */
+  private final StackLite<List<Var>> batchedInsertStack =
+                                          new StackLite<List<Var>>();
+
   private final String turbineVersion = Settings.get(Settings.TURBINE_VERSION);
 
   private final HashSet<String> usedTclFunctionNames = new HashSet<String>();
 
+  /**
+   * Names of procs generated for continuations and loops, which are only
+   * referenced from generated code
+   */
+  private final Set<String> continuationProcNames = new HashSet<String>();
+
   /**
    * Track work contexts this program may execute things in.
    */
@@ -290,6 +309,22 @@ public class TurbineGenerator implements CompilerBackend {
 
   private final List<VarDecl> globalVars = new ArrayList<VarDecl>();
 
+  /**
+   * Position in top-level tree where code for current function starts
+   */
+  private int functionTreeStart = -1;
+
+  /**
+   * All top-level Tcl code generated for specialized functions,
+   * retained so that we can report code growth
+   */
+  private final Sequence specializedCode = new Sequence();
+
+  /**
+   * Specialized functions for which code was generated
+   */
+  private final Set<FnID> specializedGenerated = new HashSet<FnID>();
+
   public TurbineGenerator(Logger logger, String timestamp)
   {
     this.logger = logger;
@@ -381,6 +416,9 @@ public class TurbineGenerator implements CompilerBackend {
 
     tree.add(new Command("turbine::start " + ENTRY_FUNCTION_NAME +
                                         " " + CONSTINIT_FUNCTION_NAME));
+    if (memoUsed) {
+      tree.add(TurbineMemo.report());
+    }
     tree.add(new Command("turbine::finalize"));
   }
 
@@ -440,6 +478,11 @@ public class TurbineGenerator implements CompilerBackend {
     pointPop();
     assert(pointStack.isEmpty());
 
+    if (memoUsed) {
+      tree.append(TurbineMemo.declareCache(usedTclFunctionNames,
+                    Settings.getLongUnchecked(Settings.MEMO_CACHE_SIZE)));
+    }
+
     // Generate startup code at bottom of file
     turbineStartup();
   }
@@ -453,7 +496,11 @@ public class TurbineGenerator implements CompilerBackend {
     StringBuilder sb = new StringBuilder(10*1024);
     try
     {
-      tree.appendTo(sb);
+      if (Settings.getBooleanUnchecked(Settings.OPT_DEDUP_PROCS)) {
+        dedupProcs(sb);
+      } else {
+        tree.appendTo(sb);
+      }
     }
     catch (Exception e)
     {
@@ -465,6 +512,8 @@ public class TurbineGenerator implements CompilerBackend {
       System.out.println("exiting");
       throw new STCFatal(ExitCode.ERROR_INTERNAL.code());
     }
+    logSpecializedCodeSize(sb.length());
+
     OutputStreamWriter w = new OutputStreamWriter(output);
     w.write(sb.toString());
     // Check everything is flushed to underlying stream
@@ -1846,6 +1895,25 @@ public class TurbineGenerator implements CompilerBackend {
     assert(writersDecr.isImmInt());
     assert(Types.isElemValType(array, member));
 
+    if (isBatchedInsert(array)) {
+      // Insert both values for duplicate key directly, so that the double
+      // write is detected as it would be without batching
+      Value batch = new Value(TCLTMP_BATCH + prefixVar(array));
+      TypeName valType = TurbineTypes.arrayValueType(array, false);
+      If dupCheck = new If(Turbine.dictExists(batch, argToExpr(arrIx)), true);
+      dupCheck.thenBlock().add(Turbine.arrayStoreImmediate(
+          Square.fnCall("dict", new Token("get"), batch, argToExpr(arrIx)),
+          varToExpr(array), argToExpr(arrIx), LiteralInt.ZERO, valType));
+      dupCheck.thenBlock().add(Turbine.arrayStoreImmediate(
+          argToExpr(member), varToExpr(array), argToExpr(arrIx),
+          LiteralInt.ZERO, valType));
+      dupCheck.elseBlock().add(Turbine.batchArrayStore(batch.variable(),
+                                       argToExpr(arrIx), argToExpr(member)));
+      pointAdd(dupCheck);
+      batchDecrWriters(array, writersDecr);
+      return;
+    }
+
     Command r = Turbine.arrayStoreImmediate(
         argToExpr(member), varToExpr(array),
         argToExpr(arrIx), argToExpr(writersDecr),
@@ -2062,6 +2130,12 @@ public class TurbineGenerator implements CompilerBackend {
   @Override
   public void bagInsert(Var bag, Arg elem, Arg writersDecr) {
     assert(Types.isElemValType(bag, elem));
+    if (isBatchedInsert(bag)) {
+      pointAdd(Turbine.batchBagInsert(TCLTMP_BATCH + prefixVar(bag),
+                                      argToExpr(elem)));
+      batchDecrWriters(bag, writersDecr);
+      return;
+    }
     pointAdd(Turbine.bagAppend(varToExpr(bag),
           TurbineTypes.arrayValueType(bag, false), argToExpr(elem),
           argToExpr(writersDecr)));
@@ -2180,6 +2254,44 @@ public class TurbineGenerator implements CompilerBackend {
     logger.debug("TurbineGenerator: Defined built-in " + id);
   }
 
+  /**
+   * Merge duplicate continuation procs and output code
+   * @param sb output for Tcl code
+   */
+  private void dedupProcs(StringBuilder sb) {
+    TclProcDedup dedup = new TclProcDedup(tree, continuationProcNames);
+    dedup.run();
+    dedup.appendTo(sb);
+
+    if (dedup.merged() > 0) {
+      int saved = dedup.bytesBefore() - sb.length();
+      // Each rank parses the whole file at startup, so the parse time saved
+      // is roughly proportional to the bytes removed
+      double pct = (100.0 * saved) / dedup.bytesBefore();
+      logger.info(String.format("Proc deduplication: merged %d of %d " +
+          "continuation procs, saving %d of %d bytes of Tcl " +
+          "(%.1f%% of startup parse time on each rank)",
+          dedup.merged(), dedup.candidates(), saved, dedup.bytesBefore(),
+          pct));
+    }
+  }
+
+  /**
+   * Report code growth from function specialization
+   * @param totalBytes total size of generated Tcl
+   */
+  private void logSpecializedCodeSize(int totalBytes) {
+    if (specializedGenerated.isEmpty()) {
+      return;
+    }
+    StringBuilder sb = new StringBuilder();
+    specializedCode.appendTo(sb);
+    double pct = totalBytes == 0 ? 0.0 : (100.0 * sb.length()) / totalBytes;
+    logger.info(String.format("Function specialization: %d specialized " +
+        "functions generated %d bytes of Tcl (%.1f%% of %d bytes)",
+        specializedGenerated.size(), sb.length(), pct, totalBytes));
+  }
+
   @Override
   public void startFunction(FnID id, List<Var> oList, List<Var> iList,
                            ExecTarget mode) throws UserException {
@@ -2205,6 +2317,7 @@ public class TurbineGenerator implements CompilerBackend {
     Proc proc = new Proc(prefixedFunctionName,
                          usedTclFunctionNames, args, s);
 
+    functionTreeStart = tree.size();
     point.add(proc);
     s.add(Turbine.turbineLog("enter function: " + id));
 
@@ -2215,7 +2328,13 @@ public class TurbineGenerator implements CompilerBackend {
   @Override
   public void endFunction() {
     pointPop();
-    functionStack.pop();
+    FnID id = functionStack.pop();
+
+    if (options.specializedFunctions().containsKey(id)) {
+      // Function proc and any continuation procs were added to tree
+      specializedCode.append(tree.subSequence(functionTreeStart, tree.size()));
+      specializedGenerated.add(id);
+    }
   }
 
   @Override
@@ -2591,8 +2710,10 @@ public class TurbineGenerator implements CompilerBackend {
   public void startForeachLoop(String loopName, Var container, Var memberVar,
         Var loopCountVar, int splitDegree, int leafDegree, boolean arrayClosed,
         List<PassedVar> passedVars, List<RefCount> perIterIncrs,
-        ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs) {
+        ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs,
+        List<Var> batchedInserts) {
     boolean haveKeys = loopCountVar != null;
+    boolean haveValues = memberVar != null;
 
     boolean isKVContainer;
     if (Types.isArray(container) || Types.isArrayLocal(container)) {
@@ -2616,7 +2737,7 @@ public class TurbineGenerator implements CompilerBackend {
 
       assert(Types.isElemType(container, memberVar));
     } else {
-      assert(Types.isElemValType(container, memberVar));
+      assert(!haveValues || Types.isElemValType(container, memberVar));
     }
 
     if (!arrayClosed) {
@@ -2630,17 +2751,25 @@ public class TurbineGenerator implements CompilerBackend {
         // Already have var
         tclContainer = varToExpr(container);
         isDict = isKVContainer;
+      } else if (!haveKeys && !haveValues) {
+        // Only need number of iterations
+        tclContainer = null;
+        isDict = false;
       } else {
         // Load container contents and increment refcounts
-        // Only get keys if needed
+        // Only get keys or values if needed
         tclContainer = new Value(TCLTMP_ARRAY_CONTENTS);
         pointAdd(Turbine.enumerateAll(tclContainer.variable(),
-                            varToExpr(container), haveKeys));
-        isDict = haveKeys;
+                   varToExpr(container), haveKeys, haveValues));
+        isDict = haveKeys && haveValues;
       }
 
       Expression containerSize;
-      if (isDict) {
+      if (tclContainer == null) {
+        pointAdd(Turbine.containerSize(TCLTMP_CONTAINER_SIZE,
+                                       varToExpr(container)));
+        containerSize = Value.numericValue(TCLTMP_CONTAINER_SIZE);
+      } else if (isDict) {
         containerSize = Turbine.dictSize(tclContainer);
       } else {
         containerSize = Turbine.listLength(tclContainer);
@@ -2649,14 +2778,26 @@ public class TurbineGenerator implements CompilerBackend {
     } else {
       assert(!localContainer);
 
-      tclContainer = new Value(TCLTMP_ARRAY_CONTENTS);
-      startForeachSplit(loopName, container, tclContainer.variable(),
-          splitDegree, leafDegree, haveKeys, passedVars, perIterIncrs,
-          constIncrs, perIterDecrs);
-      isDict = haveKeys;
+      if (haveKeys || haveValues) {
+        tclContainer = new Value(TCLTMP_ARRAY_CONTENTS);
+      } else {
+        tclContainer = null;
+      }
+      startForeachSplit(loopName, container,
+          tclContainer == null ? null : tclContainer.variable(),
+          splitDegree, leafDegree, haveKeys, haveValues, passedVars,
+          perIterIncrs, constIncrs, perIterDecrs);
+      isDict = haveKeys && haveValues;
+    }
+
+    startBatchedInserts(batchedInserts);
+    if (tclContainer == null) {
+      startForeachCount(splitDegree > 0 ?
+          Value.numericValue(TCLTMP_SPLITLEN) :
+          Value.numericValue(TCLTMP_CONTAINER_SIZE));
+    } else {
+      startForeachInner(tclContainer, memberVar, loopCountVar, isDict);
     }
-
-    startForeachInner(tclContainer, memberVar, loopCountVar, isDict);
   }
 
   private void handleForeachContainerRefcounts(List<RefCount> perIterIncrs,
@@ -2671,7 +2812,7 @@ public class TurbineGenerator implements CompilerBackend {
 
   private void startForeachSplit(String procName, Var arrayVar,
       String contentsVar, int splitDegree, int leafDegree, boolean haveKeys,
-      List<PassedVar> usedVars, List<RefCount> perIterIncrs,
+      boolean haveValues, List<PassedVar> usedVars, List<RefCount> perIterIncrs,
       ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs) {
     // load array size
     pointAdd(Turbine.containerSize(TCLTMP_CONTAINER_SIZE,
@@ -2698,9 +2839,23 @@ public class TurbineGenerator implements CompilerBackend {
                         Value.numericValue(TCLTMP_RANGE_LO), TclExpr.PLUS,
                         LiteralInt.ONE)));
 
-    // load the subcontainer
-    pointAdd(Turbine.enumerate(contentsVar, varToExpr(arrayVar),
-        haveKeys, TCLTMP_RANGE_LO_V, Value.numericValue(TCLTMP_SPLITLEN)));
+    // load the subcontainer in one chunk, unless only count is needed
+    if (contentsVar != null) {
+      pointAdd(Turbine.enumerate(contentsVar, varToExpr(arrayVar),
+          haveKeys, haveValues, TCLTMP_RANGE_LO_V,
+          Value.numericValue(TCLTMP_SPLITLEN), null));
+    }
+  }
+
+  /**
+   * Loop over iterations without fetching any container contents
+   * @param iterations number of iterations
+   */
+  private void startForeachCount(Expression iterations) {
+    Sequence loopBody = new Sequence();
+    point().add(new ForLoop(TCLTMP_IGNORE, LiteralInt.ZERO,
+        TclExpr.minus(iterations, LiteralInt.ONE), LiteralInt.ONE, loopBody));
+    pointPush(loopBody);
   }
 
   private void startForeachInner(
@@ -2708,13 +2863,16 @@ public class TurbineGenerator implements CompilerBackend {
     Sequence curr = point();
     Sequence loopBody = new Sequence();
 
-    String tclMemberVar = prefixVar(memberVar);
+    String tclMemberVar = (memberVar != null) ?
+                  prefixVar(memberVar) : null;
     String tclCountVar = (loopCountVar != null) ?
                   prefixVar(loopCountVar) : TCLTMP_IGNORE;
 
-    /* Iterate over keys and values, or just values */
+    /* Iterate over keys and values, or just values or keys */
     Sequence tclLoop;
-    if (isDict) {
+    if (memberVar == null) {
+      tclLoop = new ForEach(new Token(tclCountVar), arrayContents, loopBody);
+    } else if (isDict) {
       tclLoop = new DictFor(new Token(tclCountVar), new Token(tclMemberVar),
                       arrayContents, loopBody);
     } else {
@@ -2730,6 +2888,7 @@ public class TurbineGenerator implements CompilerBackend {
                   List<RefCount> perIterDecrements) {
     assert(pointStack.size() >= 2);
     pointPop(); // tclloop body
+    endBatchedInserts();
     if (splitDegree > 0) {
       endRangeSplit(perIterDecrements);
     }
@@ -2739,7 +2898,8 @@ public class TurbineGenerator implements CompilerBackend {
   public void startRangeLoop(String loopName, Var loopVar, Var countVar,
       Arg start, Arg end, Arg increment, int splitDegree, int leafDegree,
       List<PassedVar> passedVars, List<RefCount> perIterIncrs,
-      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs) {
+      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs,
+      List<Var> batchedInserts) {
     if (countVar != null) {
       // TODO
       throw new STCRuntimeError("Backend doesn't support counter var in range " +
@@ -2751,12 +2911,12 @@ public class TurbineGenerator implements CompilerBackend {
       String loopVarName = prefixVar(loopVar);
       startIntRangeLoop(loopName, loopVarName, start, end, increment,
           splitDegree, leafDegree, passedVars, perIterIncrs, constIncrs,
-          perIterDecrs);
+          perIterDecrs, batchedInserts);
     } else {
       assert(start.isImmFloat()) : "Invalid range loop type " + start.type();
       startFloatRangeLoop(loopName, loopVar, start, end, increment,
           splitDegree, leafDegree, passedVars, perIterIncrs, constIncrs,
-          perIterDecrs);
+          perIterDecrs, batchedInserts);
     }
 
   }
@@ -2764,7 +2924,8 @@ public class TurbineGenerator implements CompilerBackend {
   private void startFloatRangeLoop(String loopName, Var loopVar,
       Arg start, Arg end, Arg increment, int splitDegree, int leafDegree,
       List<PassedVar> passedVars, List<RefCount> perIterIncrs,
-      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs) {
+      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs,
+      List<Var> batchedInserts) {
     assert(start.isImmFloat());
     assert(end.isImmFloat());
     assert(increment.isImmFloat());
@@ -2797,7 +2958,7 @@ public class TurbineGenerator implements CompilerBackend {
     startIntRangeLoop2(loopName, dummyLoopVar.variable(),
         LiteralInt.ZERO, iterLimitVar, LiteralInt.ONE,
         splitDegree, leafDegree, passedVars2, perIterIncrs, constIncrs,
-        perIterDecrs);
+        perIterDecrs, batchedInserts);
 
     // TODO: need pass in values?
     // Compute real float loop var
@@ -2808,7 +2969,8 @@ public class TurbineGenerator implements CompilerBackend {
   private void startIntRangeLoop(String loopName, String loopVarName,
       Arg start, Arg end, Arg increment, int splitDegree, int leafDegree,
       List<PassedVar> passedVars, List<RefCount> perIterIncrs,
-      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs) {
+      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs,
+      List<Var> batchedInserts) {
     assert(start.isImmInt());
     assert(end.isImmInt());
     assert(increment.isImmInt());
@@ -2816,14 +2978,14 @@ public class TurbineGenerator implements CompilerBackend {
     startIntRangeLoop2(loopName, loopVarName,
         argToExpr(start), argToExpr(end), argToExpr(increment),
         splitDegree, leafDegree, passedVars, perIterIncrs, constIncrs,
-        perIterDecrs);
+        perIterDecrs, batchedInserts);
   }
 
   private void startIntRangeLoop2(String loopName, String loopVarName,
       Expression start, Expression end, Expression incr,
       int splitDegree, int leafDegree, List<PassedVar> passedVars,
       List<RefCount> perIterIncrs, ListMultimap<Var, RefCount> constIncrs,
-      List<RefCount> perIterDecrs) {
+      List<RefCount> perIterDecrs, List<Var> batchedInserts) {
     if (!perIterIncrs.isEmpty()) {
       // Increment references by # of iterations
       pointAdd(new SetVariable(TCLTMP_ITERSTOTAL,
@@ -2836,9 +2998,11 @@ public class TurbineGenerator implements CompilerBackend {
     if (splitDegree > 0) {
       startRangeSplit(loopName, passedVars, perIterIncrs,
               splitDegree, leafDegree, start, end, incr, perIterDecrs);
+      startBatchedInserts(batchedInserts);
       startRangeLoopInner(loopName, loopVarName,
           TCLTMP_RANGE_LO_V, TCLTMP_RANGE_HI_V, TCLTMP_RANGE_INC_V);
     } else {
+      startBatchedInserts(batchedInserts);
       startRangeLoopInner(loopName, loopVarName, start, end, incr);
     }
   }
@@ -2847,12 +3011,72 @@ public class TurbineGenerator implements CompilerBackend {
   public void endRangeLoop(int splitDegree, List<RefCount> perIterDecrements) {
     assert(pointStack.size() >= 2);
     pointPop(); // for loop body
+    endBatchedInserts();
 
     if (splitDegree > 0) {
       endRangeSplit(perIterDecrements);
     }
   }
 
+  /**
+   * Set up local buffers for inserts into containers in loop body.
+   * Must be called in the same Tcl proc as the loop.
+   */
+  private void startBatchedInserts(List<Var> batchedInserts) {
+    for (Var container: batchedInserts) {
+      Expression empty = Types.isArray(container) ?
+                  Square.fnCall("dict", new Token("create")) : new TclList();
+      pointAdd(new SetVariable(TCLTMP_BATCH + prefixVar(container), empty));
+      pointAdd(new SetVariable(TCLTMP_BATCH_DECR + prefixVar(container),
+                               LiteralInt.ZERO));
+    }
+    batchedInsertStack.push(batchedInserts);
+  }
+
+  /**
+   * Do buffered inserts after loop, if any
+   */
+  private void endBatchedInserts() {
+    for (Var container: batchedInsertStack.pop()) {
+      Value buffer = new Value(TCLTMP_BATCH + prefixVar(container));
+      Value decr = Value.numericValue(TCLTMP_BATCH_DECR + prefixVar(container));
+      List<TypeName> valType = Collections.singletonList(
+                              TurbineTypes.arrayValueType(container, false));
+      If nonEmpty;
+      if (Types.isArray(container)) {
+        nonEmpty = new If(new TclExpr(Turbine.dictSize(buffer), TclExpr.GT,
+                                      LiteralInt.ZERO), false);
+        nonEmpty.thenBlock().add(Turbine.arrayBuild(varToExpr(container),
+            buffer, decr, TurbineTypes.reprType(Types.arrayKeyType(container)),
+            valType));
+      } else {
+        nonEmpty = new If(new TclExpr(Turbine.listLength(buffer), TclExpr.GT,
+                                      LiteralInt.ZERO), false);
+        nonEmpty.thenBlock().add(Turbine.multisetBuild(varToExpr(container),
+                                   buffer, decr, valType));
+      }
+      pointAdd(nonEmpty);
+    }
+  }
+
+  /**
+   * @return true if inserts into container should be buffered
+   */
+  private boolean isBatchedInsert(Var container) {
+    return !batchedInsertStack.isEmpty() &&
+            batchedInsertStack.peek().contains(container);
+  }
+
+  /**
+   * Buffer writers decrement for batched insert
+   */
+  private void batchDecrWriters(Var container, Arg writersDecr) {
+    if (!writersDecr.isInt() || writersDecr.getInt() != 0) {
+      pointAdd(Turbine.incrLocal(TCLTMP_BATCH_DECR + prefixVar(container),
+                                 argToExpr(writersDecr)));
+    }
+  }
+
   private void startRangeLoopInner(String loopName, String loopVarName,
           Expression startE, Expression endE, Expression incrE) {
     Sequence loopBody = new Sequence();
@@ -3347,6 +3571,7 @@ public class TurbineGenerator implements CompilerBackend {
       unique = tclFunctionName + "-" + next;
       next++;
     }
+    continuationProcNames.add(unique);
     return unique;
   }
 
@@ -3532,6 +3757,24 @@ public class TurbineGenerator implements CompilerBackend {
             prefixVar(val), argToExpr(key)));
   }
 
+  @Override
+  public void writeMemo(Arg key, Arg val) {
+    assert(Types.isBlobVal(key));
+    assert(Types.isBlobVal(val));
+    memoUsed = true;
+    pointAdd(TurbineMemo.store(argToExpr(key), argToExpr(val)));
+  }
+
+  @Override
+  public void lookupMemo(Var memoExists, Var val, Arg key) {
+    assert(Types.isBoolVal(memoExists));
+    assert(Types.isBlobVal(key));
+    assert(Types.isBlobVal(val));
+    memoUsed = true;
+    pointAdd(TurbineMemo.lookup(prefixVar(memoExists), prefixVar(val),
+                                argToExpr(key)));
+  }
+
   @Override
   public void packValues(Var packed, List<Arg> unpacked) {
     assert(Types.isBlobVal(packed));
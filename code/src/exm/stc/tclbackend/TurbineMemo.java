@@ -0,0 +1,191 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.tclbackend;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import exm.stc.tclbackend.tree.Command;
+import exm.stc.tclbackend.tree.DictFor;
+import exm.stc.tclbackend.tree.Expression;
+import exm.stc.tclbackend.tree.Expression.ExprContext;
+import exm.stc.tclbackend.tree.If;
+import exm.stc.tclbackend.tree.LiteralInt;
+import exm.stc.tclbackend.tree.Proc;
+import exm.stc.tclbackend.tree.Sequence;
+import exm.stc.tclbackend.tree.SetVariable;
+import exm.stc.tclbackend.tree.Square;
+import exm.stc.tclbackend.tree.TclExpr;
+import exm.stc.tclbackend.tree.TclString;
+import exm.stc.tclbackend.tree.Token;
+import exm.stc.tclbackend.tree.Value;
+
+/**
+ * Generate the per-rank in-memory cache for calls to @memo functions.
+ *
+ * The cache is a Tcl dict from packed arguments to packed results.  Tcl
+ * dicts preserve insertion order, so we reinsert entries when they are
+ * used to keep the dict in least-recently-used order, and evict the first
+ * entry when the cache is full.  Blobs are converted to strings for
+ * storage since the blobs passed in are freed by the caller.
+ */
+public class TurbineMemo {
+
+  public static final String LOOKUP_FUNCTION_NAME = "swift:memo_lookup";
+  public static final String STORE_FUNCTION_NAME = "swift:memo_store";
+  public static final String REPORT_FUNCTION_NAME = "swift:memo_report";
+
+  private static final String CACHE = "::swift_memo_cache";
+  private static final String HITS = "::swift_memo_hits";
+  private static final String MISSES = "::swift_memo_misses";
+  private static final String EVICTIONS = "::swift_memo_evictions";
+
+  private static final Token BLOB_TO_STRING =
+                                new Token("adlb::blob_to_string");
+  private static final Token BLOB_FROM_STRING =
+                                new Token("adlb::blob_from_string");
+
+  /**
+   * @param usedFunctionNames
+   * @param capacity max number of cache entries per rank
+   * @return global variables and procedures implementing the cache
+   */
+  public static Sequence declareCache(Set<String> usedFunctionNames,
+                                      long capacity) {
+    Sequence seq = new Sequence();
+    seq.add(new SetVariable(CACHE, Square.fnCall("dict", new Token("create"))));
+    seq.add(new SetVariable(HITS, LiteralInt.ZERO));
+    seq.add(new SetVariable(MISSES, LiteralInt.ZERO));
+    seq.add(new SetVariable(EVICTIONS, LiteralInt.ZERO));
+
+    seq.add(lookupProc(usedFunctionNames));
+    seq.add(storeProc(usedFunctionNames, capacity));
+    seq.add(reportProc(usedFunctionNames));
+    return seq;
+  }
+
+  /**
+   * proc swift:memo_lookup { key result }: return 1 and set result to
+   * a new blob if key is cached, otherwise return 0.
+   */
+  private static Proc lookupProc(Set<String> usedFunctionNames) {
+    Sequence body = new Sequence();
+    body.add(new Command(new Token("upvar"), LiteralInt.ONE,
+                         new Value("result"), new Token("v")));
+    body.add(new SetVariable("k",
+                   Square.fnCall(BLOB_TO_STRING, new Value("key"))));
+
+    If hit = new If(cacheExists(new Value("k")), false);
+    Sequence then = hit.thenBlock();
+    then.add(new SetVariable("cached", Square.fnCall("dict",
+                    new Token("get"), new Value(CACHE), new Value("k"))));
+    // Move to most-recently-used position
+    then.add(new Command(new Token("dict"), new Token("unset"),
+                         new Token(CACHE), new Value("k")));
+    then.add(new Command(new Token("dict"), new Token("set"),
+                   new Token(CACHE), new Value("k"), new Value("cached")));
+    then.add(incr(HITS));
+    then.add(new SetVariable("v",
+                   Square.fnCall(BLOB_FROM_STRING, new Value("cached"))));
+    then.add(new Command(new Token("return"), LiteralInt.ONE));
+    body.add(hit);
+
+    body.add(incr(MISSES));
+    body.add(new Command(new Token("return"), LiteralInt.ZERO));
+
+    return new Proc(LOOKUP_FUNCTION_NAME, usedFunctionNames,
+                    Arrays.asList("key", "result"), body);
+  }
+
+  /**
+   * proc swift:memo_store { key val }: add entry, evicting the
+   * least-recently-used entry if full.
+   */
+  private static Proc storeProc(Set<String> usedFunctionNames,
+                                long capacity) {
+    Sequence body = new Sequence();
+    body.add(new SetVariable("k",
+                   Square.fnCall(BLOB_TO_STRING, new Value("key"))));
+    body.add(new Command(new Token("dict"), new Token("unset"),
+                         new Token(CACHE), new Value("k")));
+
+    Expression full = new TclExpr(
+        Square.fnCall("dict", new Token("size"), new Value(CACHE)),
+        TclExpr.GTE, new LiteralInt(capacity));
+    If evict = new If(full, false);
+    Sequence findOldest = new Sequence(new Command("break"));
+    evict.thenBlock().add(new DictFor(new Token("oldest"), new Token("_"),
+                                      new Value(CACHE), findOldest));
+    evict.thenBlock().add(new Command(new Token("dict"), new Token("unset"),
+                              new Token(CACHE), new Value("oldest")));
+    evict.thenBlock().add(incr(EVICTIONS));
+    body.add(evict);
+
+    body.add(new Command(new Token("dict"), new Token("set"),
+          new Token(CACHE), new Value("k"),
+          Square.fnCall(BLOB_TO_STRING, new Value("val"))));
+
+    return new Proc(STORE_FUNCTION_NAME, usedFunctionNames,
+                    Arrays.asList("key", "val"), body);
+  }
+
+  /**
+   * proc swift:memo_report {}: log cache statistics for this rank
+   */
+  private static Proc reportProc(Set<String> usedFunctionNames) {
+    TclString msg = new TclString(ExprContext.VALUE_STRING,
+        new Token("memo cache: hits: "), new Value(HITS),
+        new Token(" misses: "), new Value(MISSES),
+        new Token(" evictions: "), new Value(EVICTIONS),
+        new Token(" entries: "),
+        Square.fnCall("dict", new Token("size"), new Value(CACHE)));
+    Sequence body = new Sequence(Turbine.log(msg));
+
+    return new Proc(REPORT_FUNCTION_NAME, usedFunctionNames,
+                    Arrays.<String>asList(), body);
+  }
+
+  private static Expression cacheExists(Expression key) {
+    return Square.fnCall("dict", new Token("exists"), new Value(CACHE), key);
+  }
+
+  private static Command incr(String var) {
+    return new Command(new Token("incr"), new Token(var));
+  }
+
+  /**
+   * @param existsVar set to 1 if found, 0 if not found
+   * @param resultVar set to blob with cached result if found
+   * @param key packed key blob
+   */
+  public static SetVariable lookup(String existsVar, String resultVar,
+                                   Expression key) {
+    return new SetVariable(existsVar, Square.fnCall(LOOKUP_FUNCTION_NAME,
+                                          key, new Token(resultVar)));
+  }
+
+  /**
+   * @param key packed key blob
+   * @param val packed value blob
+   */
+  public static Command store(Expression key, Expression val) {
+    return new Command(new Token(STORE_FUNCTION_NAME), key, val);
+  }
+
+  public static Command report() {
+    return new Command(REPORT_FUNCTION_NAME);
+  }
+}
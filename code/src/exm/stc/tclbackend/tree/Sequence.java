@@ -58,6 +58,30 @@ public class Sequence extends TclTree {
     }
   }
 
+  /**
+   * @return number of members in sequence
+   */
+  public int size() {
+    return members.size();
+  }
+
+  /**
+   * @param i index of member
+   * @return member at index
+   */
+  public TclTree get(int i) {
+    return members.get(i);
+  }
+
+  /**
+   * @param from first member, inclusive
+   * @param to last member, exclusive
+   * @return new sequence with range of members of this sequence
+   */
+  public Sequence subSequence(int from, int to) {
+    return new Sequence(members.subList(from, to));
+  }
+
   /**
    * Append at end of current sequence
    * @param seq
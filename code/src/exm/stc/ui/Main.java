@@ -48,6 +48,7 @@ import exm.stc.common.exceptions.InvalidOptionException;
 import exm.stc.common.exceptions.STCFatal;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.lang.CompileTimeArgs;
+import exm.stc.jvmbackend.JavaSourceCompiler;
 
 /**
  * Command line interface to STC compiler.  Some compiler options
@@ -103,6 +104,9 @@ public class Main {
         stc.compile(inputFile.getPath(), stcArgs.inputFilename, preprocess,
                      outStream, icOutput);
         copyToOutput(tmpOutput, finalOutput);
+        if (Settings.jvmBackend()) {
+          compileJava(logger, finalOutput);
+        }
       }
 
       cleanupFiles(true, stcArgs);
@@ -317,7 +321,8 @@ public class Main {
       } else {
         prefix = infile;
       }
-      outputFilename = prefix + ".tic";
+      outputFilename = prefix + (Settings.jvmBackend() ? ".java" : ".tic");
+      Settings.set(Settings.OUTPUT_FILENAME, outputFilename);
     }
     return new File(outputFilename);
   }
@@ -449,6 +454,28 @@ public class Main {
     }
   }
 
+  /**
+   * Compile generated Java source to class files, if enabled
+   */
+  private static void compileJava(Logger logger, File output) {
+    try {
+      if (!Settings.getBoolean(Settings.JVM_COMPILE) ||
+          !output.getName().endsWith(".java")) {
+        return;
+      }
+      JavaSourceCompiler.compile(logger, output);
+    } catch (InvalidOptionException e) {
+      throw new STCRuntimeError(e.getMessage());
+    } catch (IOException e) {
+      System.err.println("I/O error while compiling " + output + ": " +
+                         e.getMessage());
+      throw new STCFatal(ExitCode.ERROR_IO.code());
+    } catch (STCRuntimeError e) {
+      System.err.println(e.getMessage());
+      throw new STCFatal(ExitCode.ERROR_INTERNAL.code());
+    }
+  }
+
   private static boolean olderThan(File file1, File file2) {
     long modTime1 = file1.lastModified();
     long modTime2 = file2.lastModified();
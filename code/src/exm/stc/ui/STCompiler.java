@@ -15,12 +15,14 @@
  */
 package exm.stc.ui;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 
 import org.apache.log4j.Logger;
 
+import exm.stc.common.CompilerBackend;
 import exm.stc.common.Settings;
 import exm.stc.common.exceptions.STCFatal;
 import exm.stc.common.exceptions.UserException;
@@ -28,6 +30,8 @@ import exm.stc.common.lang.ForeignFunctions;
 import exm.stc.common.util.Misc;
 import exm.stc.frontend.ASTWalker;
 import exm.stc.ic.STCMiddleEnd;
+import exm.stc.ic.TaskGraph;
+import exm.stc.jvmbackend.JVMGenerator;
 import exm.stc.tclbackend.TurbineGenerator;
 
 /**
@@ -115,8 +119,15 @@ public class STCompiler {
      */
     intermediate.optimize();
 
+    writeTaskGraph(intermediate);
+
     /* Generate output tcl code from intermediate representation */
-    TurbineGenerator codeGen = new TurbineGenerator(logger, Misc.timestamp());
+    CompilerBackend codeGen;
+    if (Settings.jvmBackend()) {
+      codeGen = new JVMGenerator(logger, Misc.timestamp());
+    } else {
+      codeGen = new TurbineGenerator(logger, Misc.timestamp());
+    }
     intermediate.regenerate(codeGen);
     try {
       codeGen.generate(output);
@@ -127,6 +138,28 @@ public class STCompiler {
     }
   }
 
+  /**
+   * Write task graph for optimized program if requested
+   */
+  private void writeTaskGraph(STCMiddleEnd intermediate) {
+    String fileName = Settings.get(Settings.TASK_GRAPH_OUTPUT_FILE);
+    if (fileName == null || fileName.length() == 0) {
+      return;
+    }
+    try {
+      PrintStream out = new PrintStream(new FileOutputStream(fileName));
+      try {
+        intermediate.writeTaskGraph(out, TaskGraph.Format.fromFileName(fileName));
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      System.err.println("I/O error while writing task graph to " + fileName);
+      System.err.println(e.getMessage());
+      throw new STCFatal(ExitCode.ERROR_IO.code());
+    }
+  }
+
   public static void reportInternalError(Logger logger, Throwable e) {
     logger.error("STC internal error: please report this", e);
   }
@@ -0,0 +1,31 @@
+import assert;
+import blob;
+import location;
+
+// Test that compiler-added soft locations for tasks reading data from
+// located tasks don't change results
+
+@dispatch=WORKER
+(blob o) make_blob(int i) "turbine" "0.0.1" [
+  "set <<o>> [ adlb::blob_from_string \"hello <<i>>\" ]"
+];
+
+@dispatch=WORKER
+(int o) blob_length(blob i) "turbine" "0.0.1" [
+  "set <<o>> [ lindex <<i>> 1 ]"
+];
+
+@dispatch=WORKER
+(int rank) get_rank(blob i) "turbine" "0.0.1" [
+  "set <<rank>> [ adlb::rank ]"
+];
+
+main {
+  foreach i in [1:20] {
+    location L = locationFromRank(randomWorkerRank());
+    blob b = @location=L make_blob(i);
+    int n = blob_length(b);
+    assertEqual(n, blob_length(make_blob(i)), "blob length");
+    trace(get_rank(b));
+  }
+}
@@ -0,0 +1,39 @@
+// Test futures assigned in different branches, then read later in the
+// same task and in tasks spawned afterwards.  Checks that these are
+// correct when demoted to local values.
+import assert;
+
+main {
+  int a;
+  string s;
+  switch (test(2)) {
+    case 1:
+      a = 10;
+      s = "one";
+    case 2:
+      a = 20;
+      s = "two";
+    default:
+      a = 30;
+      s = "other";
+  }
+  foreach i in [1:3] {
+    assertEqual(a + i, 20 + i, "a + " + fromint(i));
+  }
+  assertEqual(s, "two", "s");
+
+  float x;
+  if (test(3) > 2) {
+    x = 1.5;
+  } else {
+    x = 2.5;
+  }
+  wait (s) {
+    assertEqual(x * 2.0, 3.0, "x");
+  }
+}
+
+// Opaque function that can't be inlined
+(int o) test (int i) "turbine" "0.0.1" [
+  "set <<o>> <<i>>"
+];
@@ -0,0 +1,45 @@
+// Test recursion passing containers down to recursive calls on one branch
+// and using them on the other.  Checks that refcounts are correct when
+// the callee takes over the caller's reference.
+import assert;
+
+main {
+    int A[] = fill(0, 15);
+    assertEqual(walk(A, 10), 16, "walk");
+    assertEqual(sum(A, 0, 15), 240, "sum");
+}
+
+(int A[]) fill(int lo, int hi) {
+    if (lo == hi) {
+        A[lo] = lo * 2;
+    } else {
+        int mid = (lo + hi) %/ 2;
+        A = merge(fill(lo, mid), fill(mid + 1, hi));
+    }
+}
+
+(int C[]) merge(int A[], int B[]) {
+    foreach x, i in A {
+        C[i] = x;
+    }
+    foreach y, j in B {
+        C[j] = y;
+    }
+}
+
+(int o) walk(int A[], int n) {
+    if (n > 0) {
+        o = walk(A, n - 1);
+    } else {
+        o = size(A);
+    }
+}
+
+(int s) sum(int A[], int lo, int hi) {
+    if (lo == hi) {
+        s = A[lo];
+    } else {
+        int mid = (lo + hi) %/ 2;
+        s = sum(A, lo, mid) + sum(A, mid + 1, hi);
+    }
+}
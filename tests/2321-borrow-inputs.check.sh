@@ -0,0 +1,17 @@
+#!/bin/bash
+
+# Check that the array passed through the recursion is borrowed: the
+# recursive function shouldn't touch its refcount.
+case ${STC_OUT_FILE} in
+  *.O0.stc.out|*.O1.stc.out)
+    exit 0
+    ;;
+esac
+
+TCL_FILE=${STC_OUT_FILE%.stc.out}.tic
+
+if awk '/^proc f:count/,/^}/' ${TCL_FILE} | grep -q 'refcount_.*\${u:A}'; then
+  echo "Expected no refcount ops on borrowed input A in ${TCL_FILE}"
+  exit 1
+fi
+exit 0
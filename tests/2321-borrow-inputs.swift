@@ -0,0 +1,25 @@
+// Test input that a recursive function only passes through to the
+// recursive call, so doesn't need a reference of its own
+
+import assert;
+
+(int o) count(int n, int A[], int acc) {
+  if (n <= 0) {
+    o = acc;
+  } else {
+    o = count(n - 1, A, acc + 1);
+  }
+}
+
+main {
+  int A[];
+  A[0] = 1;
+  A[1] = 2;
+  int r = count(10, A, 0);
+  trace("r", r);
+  wait (r) {
+    trace("A[1]", A[1]);
+    assertEqual(A[1], 2, "A[1]");
+  }
+  assertEqual(r, 10, "r");
+}
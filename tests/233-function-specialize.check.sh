@@ -0,0 +1,23 @@
+#!/bin/bash
+
+# Check that calls were specialized, and that calls over the size budget
+# still go to the original function.  Constant arguments are only visible
+# to specialization once the optimizer has propagated them.
+case ${STC_OUT_FILE} in
+  *.O0.stc.out|*.O1.stc.out)
+    exit 0
+    ;;
+esac
+
+TCL_FILE=${STC_OUT_FILE%.stc.out}.tic
+
+if ! grep -q '^proc f:sum-spec-[0-9]*-[0-9]* ' ${TCL_FILE}; then
+  echo "Expected specialized copies of sum in ${TCL_FILE}"
+  exit 1
+fi
+
+if ! grep -q '^proc f:sum-[0-9]* ' ${TCL_FILE}; then
+  echo "Expected unspecialized sum in ${TCL_FILE}"
+  exit 1
+fi
+exit 0
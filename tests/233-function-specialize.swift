@@ -0,0 +1,128 @@
+/*
+   Test for function specialization on constant arguments, which is
+   enabled at -O3 and by -f function-specialize in the .stcargs file.
+   Calls with constant arguments get specialized copies, and calls with
+   the same constant arguments share a copy.  Copies of sum() for later
+   values of k don't fit in the remaining instruction budget
+   (stc.opt.function-specialize-threshold), so those calls are left
+   unspecialized.  The check script looks for both in the output.
+*/
+
+import assert;
+import sys;
+
+// Recursive, so not inlined
+(int r) pow(int b, int e)
+{
+  if (e <= 0) {
+    r = 1;
+  } else {
+    r = b * pow(b, e - 1);
+  }
+}
+
+(int r) scale(int x, int k, boolean neg)
+{
+  if (x <= 0) {
+    r = 0;
+  } else if (neg) {
+    r = -k + scale(x - 1, k, neg);
+  } else {
+    r = k + scale(x - 1, k, neg);
+  }
+}
+
+// Adds k to x 60 times, x times over
+(int r) sum(int x, int k)
+{
+  if (x <= 0) {
+    r = 0;
+  } else {
+    int a0 = x + k;
+    int a1 = a0 + k;
+    int a2 = a1 + k;
+    int a3 = a2 + k;
+    int a4 = a3 + k;
+    int a5 = a4 + k;
+    int a6 = a5 + k;
+    int a7 = a6 + k;
+    int a8 = a7 + k;
+    int a9 = a8 + k;
+    int a10 = a9 + k;
+    int a11 = a10 + k;
+    int a12 = a11 + k;
+    int a13 = a12 + k;
+    int a14 = a13 + k;
+    int a15 = a14 + k;
+    int a16 = a15 + k;
+    int a17 = a16 + k;
+    int a18 = a17 + k;
+    int a19 = a18 + k;
+    int a20 = a19 + k;
+    int a21 = a20 + k;
+    int a22 = a21 + k;
+    int a23 = a22 + k;
+    int a24 = a23 + k;
+    int a25 = a24 + k;
+    int a26 = a25 + k;
+    int a27 = a26 + k;
+    int a28 = a27 + k;
+    int a29 = a28 + k;
+    int a30 = a29 + k;
+    int a31 = a30 + k;
+    int a32 = a31 + k;
+    int a33 = a32 + k;
+    int a34 = a33 + k;
+    int a35 = a34 + k;
+    int a36 = a35 + k;
+    int a37 = a36 + k;
+    int a38 = a37 + k;
+    int a39 = a38 + k;
+    int a40 = a39 + k;
+    int a41 = a40 + k;
+    int a42 = a41 + k;
+    int a43 = a42 + k;
+    int a44 = a43 + k;
+    int a45 = a44 + k;
+    int a46 = a45 + k;
+    int a47 = a46 + k;
+    int a48 = a47 + k;
+    int a49 = a48 + k;
+    int a50 = a49 + k;
+    int a51 = a50 + k;
+    int a52 = a51 + k;
+    int a53 = a52 + k;
+    int a54 = a53 + k;
+    int a55 = a54 + k;
+    int a56 = a55 + k;
+    int a57 = a56 + k;
+    int a58 = a57 + k;
+    int a59 = a58 + k;
+    r = a59 - x + sum(x - 1, k);
+  }
+}
+
+main
+{
+  int n = toint(argv("n", "3"));
+
+  assertEqual(pow(2, n), 8, "pow(2, n)");
+  assertEqual(pow(2, n + 1), 16, "pow(2, n + 1)");
+  assertEqual(pow(3, n), 27, "pow(3, n)");
+  assertEqual(pow(n, 2), 9, "pow(n, 2)");
+
+  assertEqual(scale(n, 5, false), 15, "scale(n, 5, false)");
+  assertEqual(scale(n, 5, true), -15, "scale(n, 5, true)");
+  assertEqual(scale(n + 1, 5, true), -20, "scale(n + 1, 5, true)");
+
+  assertEqual(sum(n, 1), 180, "sum(n, 1)");
+  assertEqual(sum(n, 2), 360, "sum(n, 2)");
+  assertEqual(sum(n, 3), 540, "sum(n, 3)");
+  assertEqual(sum(n, 4), 720, "sum(n, 4)");
+  assertEqual(sum(n, 5), 900, "sum(n, 5)");
+  assertEqual(sum(n, 6), 1080, "sum(n, 6)");
+  assertEqual(sum(n, 7), 1260, "sum(n, 7)");
+  assertEqual(sum(n, 8), 1440, "sum(n, 8)");
+  trace("DONE");
+}
+
@@ -0,0 +1,30 @@
+#!/bin/bash
+
+# Impure calls must all run, whatever the optimization level
+COUNT=`grep -E '(\[[0-9]*\])? trace: noisy,0$' ${TURBINE_OUTPUT} | wc -l`
+if [ ${COUNT} -ne 2 ]; then
+    echo "Expected 2 noisy trace statements in ${TURBINE_OUTPUT}, but saw ${COUNT}"
+    exit 1
+fi
+
+# Purity is only inferred at -O2 and above
+case ${STC_OUT_FILE} in
+  *.O0.stc.out|*.O1.stc.out)
+    exit 0
+    ;;
+esac
+
+TCL_FILE=${STC_OUT_FILE%.stc.out}.tic
+
+# Duplicate pure call should be merged
+if grep -q 'u:e2' ${TCL_FILE}; then
+  echo "Expected is_even calls to be merged in ${TCL_FILE}"
+  exit 1
+fi
+
+# Pure call with unused result should be removed, and function pruned
+if grep -q '^proc f:unused_count' ${TCL_FILE}; then
+  echo "Expected unused_count to be removed from ${TCL_FILE}"
+  exit 1
+fi
+exit 0
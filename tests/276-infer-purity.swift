@@ -0,0 +1,63 @@
+// Test inference of purity for composite functions.  Calls to functions
+// inferred to be pure can be merged or removed by the optimizer, but
+// calls to functions that have side-effects, directly or through a
+// callee, must all run.  The check script checks both.
+import assert;
+import sys;
+
+// Mutually recursive, so both must be assumed pure to infer purity
+(boolean r) is_even(int n) {
+  if (n == 0) {
+    r = true;
+  } else {
+    r = is_odd(n - 1);
+  }
+}
+
+(boolean r) is_odd(int n) {
+  if (n == 0) {
+    r = false;
+  } else {
+    r = is_even(n - 1);
+  }
+}
+
+// Pure and result never used, so calls can be removed
+(int r) unused_count(int n) {
+  if (n <= 0) {
+    r = 0;
+  } else {
+    r = 1 + unused_count(n - 1);
+  }
+}
+
+// Impure: calls trace
+(int r) noisy(int n) {
+  trace("noisy", n);
+  r = n;
+}
+
+// Impure through callee
+(int r) indirect(int n) {
+  if (n <= 0) {
+    r = noisy(n);
+  } else {
+    r = indirect(n - 1);
+  }
+}
+
+main {
+  int n = toint(argv("n", "7"));
+
+  boolean e1 = is_even(n);
+  boolean e2 = is_even(n);
+  assertEqual(e1, false, "e1");
+  assertEqual(e2, false, "e2");
+  assertEqual(is_odd(n), true, "is_odd");
+
+  int u = unused_count(n);
+
+  int a = indirect(n);
+  int b = indirect(n);
+  assertEqual(a + b, 0, "a + b");
+}
@@ -0,0 +1,32 @@
+
+// Test that continuation procs that only differ in names are merged
+// correctly: each call site must still get its own arguments.  Merging
+// is experimental, so is enabled in the .stcargs file.
+
+@dispatch=WORKER
+(int o) f(int i) "turbine" "0.0.1" [
+  "set <<o>> [ expr {<<i>> * 2} ]"
+];
+
+// Leaf functions where the only difference is a name that is used both
+// as a Tcl variable and a string, so must not be merged
+@dispatch=WORKER
+(string o) g(int i) "turbine" "0.0.1" [
+  "set x x; set <<o>> \"$x <<i>>\""
+];
+
+@dispatch=WORKER
+(string o) h(int i) "turbine" "0.0.1" [
+  "set y y; set <<o>> \"$y <<i>>\""
+];
+
+main {
+  int n = f(1);
+  trace(f(n));
+  trace(f(n + 1));
+  trace(f(n + 2));
+  trace(f(f(n + 3)));
+
+  trace(g(n));
+  trace(h(n));
+}
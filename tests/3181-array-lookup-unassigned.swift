@@ -0,0 +1,13 @@
+// THIS-TEST-SHOULD-NOT-RUN
+
+// Test lookup of array subscript that is never assigned, with a key that
+// is only known at runtime
+
+import sys;
+
+main {
+  int A[];
+  A[0] = 1;
+  int k = toint(argv("k", "1"));
+  trace(A[k]);
+}
@@ -0,0 +1,19 @@
+#!/bin/bash
+
+# Check that inserts were batched in generated code.  Loops are only
+# split into chunks of iterations at -O2 and above.
+case ${STC_OUT_FILE} in
+  *.O0.stc.out|*.O1.stc.out)
+    exit 0
+    ;;
+esac
+
+TCL_FILE=${STC_OUT_FILE%.stc.out}.tic
+
+for BUILD in array_kv_build multiset_build; do
+  if ! grep -q "turbine::${BUILD} .*tcltmp:batch" ${TCL_FILE}; then
+    echo "Expected batched inserts with ${BUILD} in ${TCL_FILE}"
+    exit 1
+  fi
+done
+exit 0
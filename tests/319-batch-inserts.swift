@@ -0,0 +1,47 @@
+// Test inserts into containers from loop bodies, which can be batched
+// into one insert per chunk of iterations.  Batching is experimental, so
+// is enabled in the .stcargs file, and the check script checks that it
+// was used.
+import assert;
+import sys;
+
+main {
+    int N = toint(argv("n", "1000"));
+
+    int A[];
+    foreach i in [0:N-1] {
+        A[i] = i * 2;
+    }
+    assertEqual(size(A), N, "size(A)");
+    assertEqual(A[N-1], 2 * (N - 1), "A[N-1]");
+
+    // Conditional inserts
+    int B[];
+    bag<int> C;
+    foreach x, i in A {
+        if (i %% 3 == 0) {
+            B[i] = x + 1;
+        } else {
+            C += x;
+        }
+    }
+    assertEqual(size(B), (N + 2) %/ 3, "size(B)");
+    assertEqual(B[3], 7, "B[3]");
+    int E[];
+    foreach c in C {
+        E[c %/ 2] = c;
+    }
+    assertEqual(size(E), N - (N + 2) %/ 3, "size(E)");
+    assertEqual(E[1], 2, "E[1]");
+
+    // Inserts into nested arrays
+    int D[][];
+    foreach i in [0:9] {
+        foreach j in [0:N-1:7] {
+            D[i][j] = i + j;
+        }
+    }
+    assertEqual(size(D), 10, "size(D)");
+    assertEqual(size(D[9]), (N + 6) %/ 7, "size(D[9])");
+    assertEqual(D[9][14], 23, "D[9][14]");
+}
@@ -0,0 +1,21 @@
+#!/bin/bash
+
+COUNT=`grep -E '(\[[0-9]*\])? trace: ITER$' ${TURBINE_OUTPUT} | wc -l`
+if [ ${COUNT} -ne 200 ]; then
+    echo "Expected 200 trace statements in ${TURBINE_OUTPUT}, but saw ${COUNT}"
+    exit 1
+fi
+
+# Check that only keys were enumerated at -O2 and above
+case ${STC_OUT_FILE} in
+  *.O0.stc.out|*.O1.stc.out)
+    exit 0
+    ;;
+esac
+
+TCL_FILE=${STC_OUT_FILE%.stc.out}.tic
+if ! grep -q "adlb::enumerate .* subscripts" ${TCL_FILE}; then
+    echo "Expected enumeration of subscripts only in ${TCL_FILE}"
+    exit 1
+fi
+exit 0
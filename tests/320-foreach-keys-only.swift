@@ -0,0 +1,55 @@
+// Test foreach loops that don't use member values, so only keys or
+// the container size need to be enumerated.  This is experimental, so is
+// enabled in the .stcargs file.
+import assert;
+import sys;
+
+main {
+    int n = toint(argv("n", "100"));
+    int A[];
+    foreach i in [0:n-1] {
+        A[i] = i * 2;
+    }
+
+    // Only keys used
+    int B[];
+    foreach _, k in A {
+        B[k] = k + 1;
+    }
+
+    // Keys and values used
+    int E[];
+    foreach v, k in B {
+        E[k] = v + k;
+    }
+
+    // Only count of members used: checked by 320-foreach-keys-only.check.sh
+    trace_each(E);
+    trace_each_nosplit(E);
+
+    // Only keys used, not split
+    int F[];
+    @nosplit
+    foreach _, k in A {
+        F[k] = k;
+    }
+    assertEqual(size(F), n, "size(F)");
+
+    assertEqual(size(B), n, "size(B)");
+    assertEqual(B[3], 4, "B[3]");
+    assertEqual(size(E), n, "size(E)");
+    assertEqual(E[3], 7, "E[3]");
+}
+
+trace_each(int X[]) {
+    foreach _ in X {
+        trace("ITER");
+    }
+}
+
+trace_each_nosplit(int X[]) {
+    @nosplit
+    foreach _ in X {
+        trace("ITER");
+    }
+}
@@ -0,0 +1,60 @@
+// Test splitting up structs that are only used locally
+import assert;
+import sys;
+
+type pt {
+  int x;
+  float y;
+  string name;
+}
+
+(pt r) mk(int a) {
+  r.x = a;
+  r.y = itof(a) * 0.5;
+  r.name = "p" + fromint(a);
+}
+
+(int o) get_x(pt p) {
+  o = p.x;
+}
+
+main {
+  int a = toint(argv("a", "3"));
+
+  // Fields assigned separately
+  pt p;
+  p.x = a + 1;
+  p.y = 2.5;
+  p.name = "foo";
+  assertEqual(p.x, 4, "p.x");
+  assertEqual(p.y, 2.5, "p.y");
+  assertEqual(p.name, "foo", "p.name");
+
+  // Struct returned from function
+  pt q = mk(a);
+  assertEqual(q.x + 2, 5, "q.x");
+  assertEqual(q.name, "p3", "q.name");
+
+  // Fields copied in and out
+  pt r;
+  r.x = q.x;
+  r.y = p.y;
+  r.name = p.name + q.name;
+  int rx = r.x;
+  assertEqual(rx, 3, "rx");
+  assertEqual(r.name, "foop3", "r.name");
+
+  // Struct passed whole to a function
+  pt s;
+  s.x = a * 2;
+  s.y = 1.0;
+  s.name = "s";
+  assertEqual(get_x(s), 6, "get_x(s)");
+
+  // Struct waited on
+  pt t = mk(a + 1);
+  wait (t) {
+    trace("t", t.x, t.y, t.name);
+    assertEqual(t.x, 4, "t.x");
+  }
+}
@@ -0,0 +1,8 @@
+#!/bin/bash
+
+COUNT=`grep -E '(\[[0-9]*\])? trace: D,[0-9]+$' ${TURBINE_OUTPUT} | wc -l`
+if [ ${COUNT} -ne 50 ]; then
+    echo "Expected 50 trace statements in ${TURBINE_OUTPUT}, but saw ${COUNT}"
+    exit 1
+fi
+exit 0
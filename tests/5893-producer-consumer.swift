@@ -0,0 +1,65 @@
+// Test fusing foreach loops over an array into the range loop that
+// produces the array
+import assert;
+import sys;
+
+(int o) f(int i) {
+    o = i * 3;
+}
+
+main {
+    int n = toint(argv("n", "100"));
+
+    // Consumer fused, intermediate array not needed afterwards
+    int B[];
+    foreach i in [0:n-1] {
+        B[i] = f(i);
+    }
+    int C[];
+    foreach x, j in B {
+        C[j] = x + 1;
+    }
+    assertEqual(size(C), n, "size(C)");
+    assertEqual(C[5], 16, "C[5]");
+
+    // Intermediate array used afterwards
+    int D[];
+    foreach i in [1:n:2] {
+        D[i] = i;
+    }
+    int E[];
+    foreach y, k in D {
+        E[k] = y * y;
+    }
+    foreach z in D {
+        trace("D", z);
+    }
+    assertEqual(size(D), (n + 1) %/ 2, "size(D)");
+    assertEqual(size(E), (n + 1) %/ 2, "size(E)");
+    assertEqual(E[7], 49, "E[7]");
+
+    // Extra element written outside loop: can't fuse
+    int F[];
+    foreach i in [0:n-1] {
+        F[i] = i;
+    }
+    F[n] = n;
+    int G[];
+    foreach w, l in F {
+        G[l] = w;
+    }
+    assertEqual(size(G), n + 1, "size(G)");
+
+    // Elements written conditionally: can't fuse
+    int H[];
+    foreach i in [0:n-1] {
+        if (i %% 2 == 0) {
+            H[i] = i;
+        }
+    }
+    int I[];
+    foreach v, m in H {
+        I[m] = v;
+    }
+    assertEqual(size(I), (n + 1) %/ 2, "size(I)");
+}
@@ -0,0 +1,14 @@
+#!/bin/bash
+
+COUNT=`grep -E '(\[[0-9]*\])? trace: S,[0-9]+$' ${TURBINE_OUTPUT} | wc -l`
+if [ ${COUNT} -ne 52 ]; then
+    echo "Expected 52 trace statements in ${TURBINE_OUTPUT}, but saw ${COUNT}"
+    exit 1
+fi
+
+COUNT=`grep -E '(\[[0-9]*\])? trace: T,[0-9]+$' ${TURBINE_OUTPUT} | wc -l`
+if [ ${COUNT} -ne 3 ]; then
+    echo "Expected 3 trace statements in ${TURBINE_OUTPUT}, but saw ${COUNT}"
+    exit 1
+fi
+exit 0
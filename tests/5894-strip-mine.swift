@@ -0,0 +1,36 @@
+// Test strip-mining range loops that wait on loop-invariant futures
+import assert;
+import sys;
+
+main {
+    int n = toint(argv("n", "103"));
+    int x = toint(argv("x", "7"));
+    float s = tofloat(argv("s", "0.5"));
+
+    // Iteration count not a multiple of strip size
+    int A[];
+    foreach i in [0:n-1] {
+        A[i] = i * x + 1;
+    }
+    assertEqual(size(A), n, "size(A)");
+    assertEqual(A[0], 1, "A[0]");
+    assertEqual(A[101], 708, "A[101]");
+    assertEqual(A[102], 715, "A[102]");
+
+    // Non-unit step
+    float F[];
+    foreach i in [1:n:3] {
+        F[i] = itof(i) * s;
+    }
+    assertEqual(size(F), 35, "size(F)");
+    assertEqual(F[100], 50.0, "F[100]");
+
+    // Fewer iterations than strip size
+    foreach i in [x:x+2] {
+        trace("T", i * x);
+    }
+
+    foreach i in [0:n-1:2] {
+        trace("S", i + x);
+    }
+}
@@ -0,0 +1,36 @@
+import assert;
+
+// Basic test for in-memory memoization
+
+main {
+  foreach i in [1:100] {
+    // Repeated arguments should hit in cache
+    assertEqual(sq(i %% 5), (i %% 5) * (i %% 5), "sq");
+    x1, x2 = divmod(i, 7);
+    assertEqual(x1 * 7 + x2, i, "divmod");
+  }
+
+  assertEqual(fib(20), 6765, "fib(20)");
+  assertEqual(fib(20) + fib(19), fib(21), "fib(21)");
+}
+
+@pure @memo
+(int o) sq (int i) "turbine" "0.0" [
+  "set <<o>> [ expr {<<i>> * <<i>>} ]"
+];
+
+// Multiple outputs
+@memo @deterministic
+(int o1, int o2) divmod (int i, int j) "turbine" "0.0" [
+  "lassign [ list [ expr {<<i>> / <<j>>} ] [ expr {<<i>> % <<j>>} ] ] <<o1>> <<o2>>"
+];
+
+// Recursive composite function
+@memo @pure
+(int r) fib (int n) {
+  if (n <= 1) {
+    r = n;
+  } else {
+    r = fib(n - 1) + fib(n - 2);
+  }
+}
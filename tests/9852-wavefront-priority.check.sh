@@ -0,0 +1,25 @@
+#!/bin/bash
+
+# Check priorities in generated code.  Explicit priorities only appear
+# as constants once the optimizer has folded them into task properties.
+case ${STC_OUT_FILE} in
+  *.O0.stc.out|*.O1.stc.out)
+    exit 0
+    ;;
+esac
+
+TCL_FILE=${STC_OUT_FILE%.stc.out}.tic
+
+for PRIO in 3 100; do
+  if ! grep -q "turbine::set_priority ${PRIO}\$" ${TCL_FILE}; then
+    echo "Expected explicit priority ${PRIO} in ${TCL_FILE}"
+    exit 1
+  fi
+done
+
+# Wavefront tasks get priorities computed at runtime
+if ! grep -q 'turbine::set_priority ${v:prio' ${TCL_FILE}; then
+  echo "Expected runtime priorities in ${TCL_FILE}"
+  exit 1
+fi
+exit 0
@@ -0,0 +1,60 @@
+/*
+   Wavefront pattern
+   Test for compiler-assigned critical path priorities: tasks in the
+   wavefront get priorities computed at runtime, while the explicit
+   priorities on the final check and on the inlined call must be left
+   alone.  Emitted priorities are checked by 9852-wavefront-priority.check.sh
+*/
+
+import assert;
+import io;
+import sys;
+
+main
+{
+  int N = toint(argv("N"));
+  float A[][];
+
+  A[0][0] = 0;
+  foreach i in [1:N-1]
+  {
+    A[i][0] = itof(i);
+    A[0][i] = itof(i);
+  }
+
+  foreach i in [1:N-1]
+  {
+    foreach j in [1:N-1]
+    {
+      A[i][j] = f(A[i-1][j-1],A[i-1][j],A[i][j-1]);
+    }
+  }
+
+  float result = @prio=3 g(A[N-1][N-1]);
+  printf("final value: %f", result);
+  assertEqual(result, 360.0, "final value");
+
+  // Tasks spawned by inlined function inherit call priority
+  int y = @prio=100 h(N);
+  assertEqual(y, N + 3, "h");
+}
+
+(float r) f(float a, float b, float c)
+{
+  r = a + b + c;
+}
+
+@dispatch=WORKER
+(float r) g(float a) "turbine" "0.0" [
+  "set <<r>> <<a>>"
+];
+
+@dispatch=WORKER
+(int o) step(int i) "turbine" "0.0" [
+  "set <<o>> [ expr {<<i>> + 1} ]"
+];
+
+(int r) h(int x)
+{
+  r = step(step(step(x)));
+}